@@ -10,22 +10,29 @@ import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
 import io.bitcoinsv.bitcoinjsv.core.VarInt;
 import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.AbstractBlock;
 import io.bitcoinsv.bitcoinjsv.bitcoin.api.extended.LiteBlock;
-import io.bitcoinsv.bitcoinjsv.bitcoin.bean.MerkleBuilder;
 import io.bitcoinsv.bitcoinjsv.bitcoin.bean.extended.BlockMetaBean;
 import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.FullBlock;
 import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.Header;
 import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.Tx;
 import io.bitcoinsv.bitcoinjsv.bitcoin.bean.extended.LiteBlockBean;
+import io.bitcoinsv.bitcoinjsv.merkle.MerkleEngine;
 import io.bitcoinsv.bitcoinjsv.utils.Threading;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static io.bitcoinsv.bitcoinjsv.core.Sha256Hash.hashTwice;
 import static io.bitcoinsv.bitcoinjsv.core.Sha256Hash.of;
@@ -105,6 +112,24 @@ public class FullBlockBean extends HashableImpl<FullBlock> implements FullBlock
         }
     }
 
+    /**
+     * If true parsing only records where each transaction is in the payload, see {@link LazyFullBlockBean}.
+     * Called during construction so implementations must not depend on instance fields.
+     */
+    protected boolean parseLazily() {
+        return false;
+    }
+
+    /**
+     * Returns the hash of a transaction.  Transactions of a lazily parsed block are hashed straight from the block
+     * payload without being materialized.
+     */
+    public Sha256Hash getTxHash(int index) {
+        if (transactions instanceof IndexedTxList)
+            return ((IndexedTxList) transactions).getHash(index);
+        return transactions.get(index).getHash();
+    }
+
     @Override
     protected void parse() {
 
@@ -112,13 +137,22 @@ public class FullBlockBean extends HashableImpl<FullBlock> implements FullBlock
         cursor += header.getMessageSize();
 
         int numTransactions = (int) readVarInt();
-        transactions = new ArrayList<>(numTransactions);
-        CountDownLatch hashLatch = new CountDownLatch(numTransactions);
-
-        for (int i = 0; i < numTransactions; i++) {
-            TxBean tx = new TxBean(this, payload, cursor);
-            transactions.add(tx);
-            cursor += tx.getMessageSize();
+        if (parseLazily()) {
+            //offsets are relative to the start of the block as the payload may be trimmed once parsed
+            int[] txOffsets = new int[numTransactions + 1];
+            for (int i = 0; i < numTransactions; i++) {
+                txOffsets[i] = cursor - offset;
+                cursor += TxBean.scanMessageSize(payload, cursor);
+            }
+            txOffsets[numTransactions] = cursor - offset;
+            transactions = new IndexedTxList(txOffsets);
+        } else {
+            transactions = new ArrayList<>(numTransactions);
+            for (int i = 0; i < numTransactions; i++) {
+                TxBean tx = new TxBean(this, payload, cursor);
+                transactions.add(tx);
+                cursor += tx.getMessageSize();
+            }
         }
 
         //fill in the meta data
@@ -160,6 +194,10 @@ public class FullBlockBean extends HashableImpl<FullBlock> implements FullBlock
     public void serializeTo(OutputStream stream) throws IOException {
         header.serializeTo(stream);
         stream.write(new VarInt(transactions.size()).encode());
+        if (transactions instanceof IndexedTxList) {
+            ((IndexedTxList) transactions).writeTo(stream);
+            return;
+        }
         for (Tx tx : transactions) {
             tx.serializeTo(stream);
         }
@@ -180,6 +218,9 @@ public class FullBlockBean extends HashableImpl<FullBlock> implements FullBlock
 
     @Override
     public void makeSelfMutable() {
+        //transactions have to be materialized before the payload they are read from is released
+        if (transactions instanceof IndexedTxList)
+            transactions = new ArrayList<>(transactions);
         super.makeSelfMutable();
         if (header != null) {
             header.makeSelfMutable(); //also nulls block hash
@@ -192,13 +233,20 @@ public class FullBlockBean extends HashableImpl<FullBlock> implements FullBlock
     }
 
     /**
-     * This is here for early testing, we'll replace it with something more efficient.
-     * @return
+     * Calculates the merkle root with {@link MerkleEngine}.  Transactions of a lazily parsed block are hashed straight
+     * into the flat leaf array.
      */
-
     @Override
     public Sha256Hash calculateMerkleRoot() {
-        return MerkleBuilder.calculateMerkleRootFromTxs(transactions);
+        int count = transactions.size();
+        byte[] leaves = new byte[count * Sha256Hash.LENGTH];
+        if (transactions instanceof IndexedTxList) {
+            ((IndexedTxList) transactions).hashInto(leaves);
+        } else {
+            for (int i = 0; i < count; i++)
+                MerkleEngine.setLeaf(leaves, i, transactions.get(i).getHash());
+        }
+        return Sha256Hash.wrapReversed(MerkleEngine.getDefault().computeRoot(leaves, count));
     }
 
     @Override
@@ -214,4 +262,68 @@ public class FullBlockBean extends HashableImpl<FullBlock> implements FullBlock
         lite.getBlockMeta().setTxCount(getTransactions().size());
         return lite;
     }
+
+    /**
+     * Transactions of a lazily parsed block.  Holds the offset of each transaction in the block payload and weak
+     * references to the {@link TxBean}s it has handed out, so iterating doesn't hold on to the transactions but
+     * {@link #get(int)} returns the same instance for as long as anyone is still using it.  That is what makes edits
+     * to a transaction fetched before the block became mutable survive {@link #makeSelfMutable()}, which copies the
+     * list.
+     */
+    private class IndexedTxList extends AbstractList<Tx> implements RandomAccess {
+
+        private final int[] txOffsets;
+        private final AtomicReferenceArray<WeakReference<Tx>> handedOut;
+
+        IndexedTxList(int[] txOffsets) {
+            this.txOffsets = txOffsets;
+            this.handedOut = new AtomicReferenceArray<>(txOffsets.length - 1);
+        }
+
+        @Override
+        public Tx get(int index) {
+            Objects.checkIndex(index, size());
+            while (true) {
+                WeakReference<Tx> ref = handedOut.get(index);
+                Tx tx = ref == null ? null : ref.get();
+                if (tx != null)
+                    return tx;
+                tx = new TxBean(FullBlockBean.this, payload, offset + txOffsets[index]);
+                //if another thread got there first use its instance
+                if (handedOut.compareAndSet(index, ref, new WeakReference<>(tx)))
+                    return tx;
+            }
+        }
+
+        @Override
+        public int size() {
+            return txOffsets.length - 1;
+        }
+
+        Sha256Hash getHash(int index) {
+            Objects.checkIndex(index, size());
+            int start = offset + txOffsets[index];
+            return Sha256Hash.wrapReversed(hashTwice(payload, start, txOffsets[index + 1] - txOffsets[index]));
+        }
+
+        //writes the hash of every transaction into consecutive 32 byte slots, in internal byte order
+        void hashInto(byte[] leaves) {
+            MessageDigest digest = Sha256Hash.newDigest();
+            byte[] first = new byte[Sha256Hash.LENGTH];
+            try {
+                for (int i = 0; i < size(); i++) {
+                    digest.update(payload, offset + txOffsets[i], txOffsets[i + 1] - txOffsets[i]);
+                    digest.digest(first, 0, first.length);
+                    digest.update(first);
+                    digest.digest(leaves, i * Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+                }
+            } catch (DigestException e) {
+                throw new RuntimeException(e);  // Can't happen, the buffers are the digest's length
+            }
+        }
+
+        void writeTo(OutputStream stream) throws IOException {
+            stream.write(payload, offset + txOffsets[0], txOffsets[size()] - txOffsets[0]);
+        }
+    }
 }
@@ -0,0 +1,39 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.bitcoin.bean.base;
+
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.FullBlock;
+
+/**
+ * A {@link FullBlockBean} that doesn't parse its transactions up front.  Parsing only records the offset of each
+ * transaction in the payload, a {@link TxBean} is parsed when one is fetched from {@link #getTransactions()} and
+ * only weakly held by the block.  Iterating the transactions streams through the block without holding them all, so
+ * the heap needed is roughly the size of the serialized block rather than several times it.  Consumers that only need
+ * the header, the coinbase or the txids ({@link #getTxHash(int)}) only pay for what they touch.
+ *
+ * A fetch returns the same object as earlier fetches of that transaction while the caller still holds it, and one
+ * parsed again from the payload once it has been collected.  Making the block mutable, directly or through one of
+ * its transactions, parses all the transactions and keeps the ones already handed out, so edits to them are kept.
+ */
+public class LazyFullBlockBean extends FullBlockBean {
+
+    public LazyFullBlockBean(byte[] payload, int offset) {
+        super(payload, offset);
+    }
+
+    public LazyFullBlockBean(byte[] payload) {
+        super(payload);
+    }
+
+    @Override
+    protected boolean parseLazily() {
+        return true;
+    }
+
+    @Override
+    public FullBlock makeNew(byte[] serialized) {
+        return new LazyFullBlockBean(serialized);
+    }
+}
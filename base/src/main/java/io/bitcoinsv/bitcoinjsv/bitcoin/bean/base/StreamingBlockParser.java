@@ -0,0 +1,308 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.bitcoin.bean.base;
+
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.Header;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.Tx;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.TxOutPoint;
+import io.bitcoinsv.bitcoinjsv.bitcoin.bean.BitcoinObjectImpl;
+import io.bitcoinsv.bitcoinjsv.core.ProtocolException;
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+import io.bitcoinsv.bitcoinjsv.core.VarInt;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Decodes a serialized block incrementally from a channel, for blocks too large to hold in a single byte array.
+ * The header is read first, then each transaction is decoded into its own {@link TxBean} and handed to the caller
+ * as soon as it is complete, so memory use is bounded by the largest transaction rather than the block.
+ *
+ * The txid of each transaction is calculated as it is read and is set on the returned TxBean.  The merkle root is
+ * accumulated on the fly keeping one hash per tree level, once every transaction has been read it can be checked
+ * against the header with {@link #isMerkleRootValid()}.
+ *
+ * A parser reads a single block and is not thread safe.
+ */
+public class StreamingBlockParser {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    private final ReadableByteChannel channel;
+
+    //unconsumed bytes are buffer[start, end)
+    private byte[] buffer;
+    private int start;
+    private int end;
+    private long bytesRead;
+
+    private Header header;
+    private long txCount = -1;
+    private long txsRead;
+    private final MerkleRootAccumulator merkle = new MerkleRootAccumulator();
+
+    public StreamingBlockParser(ReadableByteChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize initial read buffer size, it grows to hold the largest transaction in the block.
+     */
+    public StreamingBlockParser(ReadableByteChannel channel, int bufferSize) {
+        checkArgument(bufferSize >= Header.FIXED_MESSAGE_SIZE, "bufferSize must hold at least a header");
+        this.channel = channel;
+        this.buffer = new byte[bufferSize];
+    }
+
+    public StreamingBlockParser(InputStream in) {
+        this(Channels.newChannel(in));
+    }
+
+    /**
+     * Reads the header and the transaction count if they haven't been read yet.
+     */
+    public Header readHeader() throws IOException {
+        if (header == null) {
+            ensure(Header.FIXED_MESSAGE_SIZE);
+            header = new HeaderBean(Arrays.copyOfRange(buffer, start, start + Header.FIXED_MESSAGE_SIZE));
+            consume(Header.FIXED_MESSAGE_SIZE);
+            int varIntSize = varIntSizeAt(0);
+            txCount = new VarInt(buffer, start).value;
+            consume(varIntSize);
+        }
+        return header;
+    }
+
+    /**
+     * @return the number of transactions in the block, reading the header if necessary.
+     */
+    public long getTxCount() throws IOException {
+        readHeader();
+        return txCount;
+    }
+
+    public boolean hasNext() throws IOException {
+        return txsRead < getTxCount();
+    }
+
+    /**
+     * Decodes the next transaction.
+     * @throws NoSuchElementException if every transaction has been read.
+     */
+    public Tx next() throws IOException {
+        if (!hasNext())
+            throw new NoSuchElementException("All " + txCount + " transactions have been read");
+        int length = scanTx();
+        byte[] txBytes = Arrays.copyOfRange(buffer, start, start + length);
+        consume(length);
+        byte[] hash = Sha256Hash.hashTwice(txBytes);
+        merkle.add(hash);
+        txsRead++;
+        return new TxBean(txBytes, Sha256Hash.wrapReversed(hash));
+    }
+
+    /**
+     * Reads all remaining transactions, passing each to the consumer as soon as it is decoded.
+     * @return the merkle root calculated from the transactions.
+     */
+    public Sha256Hash parse(Consumer<Tx> consumer) throws IOException {
+        while (hasNext())
+            consumer.accept(next());
+        return getMerkleRoot();
+    }
+
+    /**
+     * A sequential spliterator over the remaining transactions.  IOExceptions are rethrown as
+     * {@link UncheckedIOException}.
+     */
+    public Spliterator<Tx> spliterator() throws IOException {
+        long remaining = getTxCount() - txsRead;
+        return new Spliterators.AbstractSpliterator<Tx>(remaining,
+                Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE | Spliterator.SIZED) {
+            @Override
+            public boolean tryAdvance(Consumer<? super Tx> action) {
+                try {
+                    if (!hasNext())
+                        return false;
+                    action.accept(next());
+                    return true;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return a sequential stream of the remaining transactions, see {@link #spliterator()}.
+     */
+    public Stream<Tx> transactions() throws IOException {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * @return the merkle root of the transactions, only available once every transaction has been read.
+     */
+    public Sha256Hash getMerkleRoot() {
+        checkState(header != null && txsRead == txCount, "not all transactions have been read");
+        return Sha256Hash.wrapReversed(merkle.root());
+    }
+
+    public boolean isMerkleRootValid() {
+        return getMerkleRoot().equals(header.getMerkleRoot());
+    }
+
+    public long getTxsRead() {
+        return txsRead;
+    }
+
+    /**
+     * @return bytes of the block consumed so far.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Finds the length of the transaction at the start of the buffer, reading from the channel until the whole
+     * transaction is buffered.
+     */
+    private int scanTx() throws IOException {
+        long pos = 4; //version
+        long numInputs = varIntAt(pos);
+        pos += varIntSizeAt(pos);
+        for (long i = 0; i < numInputs; i++) {
+            pos += TxOutPoint.FIXED_MESSAGE_SIZE;
+            pos = skipByteArray(pos);
+            pos += 4; //sequence number
+        }
+        long numOutputs = varIntAt(pos);
+        pos += varIntSizeAt(pos);
+        for (long i = 0; i < numOutputs; i++) {
+            pos += 8; //value
+            pos = skipByteArray(pos);
+        }
+        pos += 4; //lock time
+        checkTxSize(pos);
+        ensure((int) pos);
+        return (int) pos;
+    }
+
+    private long skipByteArray(long pos) throws IOException {
+        long length = varIntAt(pos);
+        if (length < 0 || length > BitcoinObjectImpl.MAX_SIZE)
+            throw new ProtocolException("Claimed value length too large: " + Long.toUnsignedString(length));
+        return pos + varIntSizeAt(pos) + length;
+    }
+
+    private long varIntAt(long pos) throws IOException {
+        varIntSizeAt(pos); //ensures the whole varint is buffered
+        return new VarInt(buffer, start + (int) pos).value;
+    }
+
+    private int varIntSizeAt(long pos) throws IOException {
+        checkTxSize(pos + 9);
+        ensure((int) pos + 1);
+        int size = 1 + VarInt.bytesRequired(buffer[start + (int) pos]);
+        ensure((int) pos + size);
+        return size;
+    }
+
+    private static void checkTxSize(long size) {
+        if (size > BitcoinObjectImpl.MAX_SIZE)
+            throw new ProtocolException("Transaction larger than " + BitcoinObjectImpl.MAX_SIZE + " bytes");
+    }
+
+    private void consume(int length) {
+        start += length;
+        bytesRead += length;
+    }
+
+    /**
+     * Reads from the channel until at least length unconsumed bytes are buffered.
+     */
+    private void ensure(int length) throws IOException {
+        if (end - start >= length)
+            return;
+        if (buffer.length - start < length) {
+            int buffered = end - start;
+            if (buffer.length < length) {
+                //grow to the next power of 2 so a large transaction doesn't cause repeated copies
+                buffer = Arrays.copyOfRange(buffer, start, start + Math.max(length, Integer.highestOneBit(length - 1) << 1));
+            } else {
+                System.arraycopy(buffer, start, buffer, 0, buffered);
+            }
+            start = 0;
+            end = buffered;
+        }
+        ByteBuffer target = ByteBuffer.wrap(buffer, end, buffer.length - end);
+        while (end - start < length) {
+            int read = channel.read(target);
+            if (read < 0)
+                throw new EOFException("Block truncated after " + (bytesRead + end - start) + " bytes");
+            end += read;
+        }
+    }
+
+    /**
+     * Calculates a merkle root from a stream of leaf hashes holding at most one pending hash per tree level.  Hashes
+     * are in internal (little endian) byte order.
+     */
+    private static class MerkleRootAccumulator {
+
+        //pending[level] is a completed subtree waiting for its right hand sibling
+        private byte[][] pending = new byte[64][];
+        private int levels;
+        private long count;
+
+        void add(byte[] hash) {
+            int level = 0;
+            while (pending[level] != null) {
+                hash = Sha256Hash.hashTwice(pending[level], 0, 32, hash, 0, 32);
+                pending[level] = null;
+                level++;
+            }
+            pending[level] = hash;
+            levels = Math.max(levels, level + 1);
+            count++;
+        }
+
+        /**
+         * Combines the pending subtrees from the bottom up, duplicating the last node of any level with an odd
+         * number of nodes.
+         */
+        byte[] root() {
+            checkState(count > 0, "a merkle tree needs at least one leaf");
+            byte[] carry = null;
+            for (int level = 0; ; level++) {
+                byte[] left = pending[level];
+                if (level == levels - 1)
+                    return left == null ? carry : carry == null ? left : Sha256Hash.hashTwice(left, 0, 32, carry, 0, 32);
+                if (left != null && carry != null)
+                    carry = Sha256Hash.hashTwice(left, 0, 32, carry, 0, 32);
+                else if (left != null)
+                    carry = Sha256Hash.hashTwice(left, 0, 32, left, 0, 32);
+                else if (carry != null)
+                    carry = Sha256Hash.hashTwice(carry, 0, 32, carry, 0, 32);
+            }
+        }
+    }
+
+}
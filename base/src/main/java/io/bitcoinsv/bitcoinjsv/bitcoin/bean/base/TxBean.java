@@ -8,11 +8,14 @@ package io.bitcoinsv.bitcoinjsv.bitcoin.bean.base;
 import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.FullBlock;
 import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.Tx;
 import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.TxInput;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.TxOutPoint;
 import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.TxOutput;
+import io.bitcoinsv.bitcoinjsv.core.ProtocolException;
 import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
 import io.bitcoinsv.bitcoinjsv.core.Utils;
 import io.bitcoinsv.bitcoinjsv.core.VarInt;
 import io.bitcoinsv.bitcoinjsv.bitcoin.api.BitcoinObject;
+import io.bitcoinsv.bitcoinjsv.script.SigHashContext;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -34,6 +37,9 @@ public class TxBean extends HashableImpl<Tx> implements Tx {
 
     private long lockTime;
 
+    //shared forkid sighash midstates, only cached while immutable.
+    private transient volatile SigHashContext sigHashContext;
+
     /**
      * Only use this constructor if you're sure this is the correct hash.  It can avoid recalculating
      * when you already know it.
@@ -116,6 +122,28 @@ public class TxBean extends HashableImpl<Tx> implements Tx {
         return hash;
     }
 
+    @Override
+    public void clearHash() {
+        super.clearHash();
+        sigHashContext = null;
+    }
+
+    /**
+     * Returns the sighash context for this transaction.  While the transaction is immutable the same context
+     * is returned on every call so its midstates are shared between all the inputs being signed or verified.
+     * A mutable transaction can have its inputs and outputs changed without notice so a new context is returned.
+     */
+    public SigHashContext getSigHashContext() {
+        if (isMutable())
+            return new SigHashContext(this);
+        SigHashContext context = sigHashContext;
+        if (context == null) {
+            context = new SigHashContext(this);
+            sigHashContext = context;
+        }
+        return context;
+    }
+
     @Override
     public void setHash(Sha256Hash hash) {
         checkMutable();
@@ -191,6 +219,41 @@ public class TxBean extends HashableImpl<Tx> implements Tx {
 
     }
 
+    /**
+     * Finds the serialized length of the transaction starting at offset without parsing it.
+     */
+    public static int scanMessageSize(byte[] payload, int offset) {
+        try {
+            int cursor = offset + 4; //version
+            VarInt numInputs = new VarInt(payload, cursor);
+            cursor += numInputs.getOriginalSizeInBytes();
+            for (long i = 0; i < numInputs.value; i++) {
+                cursor += TxOutPoint.FIXED_MESSAGE_SIZE;
+                cursor = skipByteArray(payload, cursor);
+                cursor += 4; //sequence number
+            }
+            VarInt numOutputs = new VarInt(payload, cursor);
+            cursor += numOutputs.getOriginalSizeInBytes();
+            for (long i = 0; i < numOutputs.value; i++) {
+                cursor += 8; //value
+                cursor = skipByteArray(payload, cursor);
+            }
+            cursor += 4; //lock time
+            if (cursor > payload.length)
+                throw new ProtocolException("Transaction at " + offset + " runs past the end of the payload");
+            return cursor - offset;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new ProtocolException(e);
+        }
+    }
+
+    private static int skipByteArray(byte[] payload, int cursor) {
+        VarInt length = new VarInt(payload, cursor);
+        if (length.value < 0 || length.value > payload.length - cursor)
+            throw new ProtocolException("Claimed value length too large: " + length.value);
+        return cursor + length.getOriginalSizeInBytes() + (int) length.value;
+    }
+
     @Override
     protected int parse(InputStream in) throws IOException {
         int read = 0;
@@ -248,6 +311,7 @@ public class TxBean extends HashableImpl<Tx> implements Tx {
     @Override
     public void makeSelfMutable() {
         super.makeSelfMutable();
+        sigHashContext = null;
         if (inputs != null) {
             for (TxInput in : getInputs()) {
                 in.makeSelfMutable();
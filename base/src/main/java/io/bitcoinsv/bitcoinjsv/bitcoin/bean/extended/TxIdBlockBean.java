@@ -12,8 +12,8 @@ import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.AbstractBlock;
 import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.Header;
 import io.bitcoinsv.bitcoinjsv.bitcoin.api.extended.TxIdBlock;
 import io.bitcoinsv.bitcoinjsv.bitcoin.bean.BitcoinObjectImpl;
-import io.bitcoinsv.bitcoinjsv.bitcoin.bean.MerkleBuilder;
 import io.bitcoinsv.bitcoinjsv.bitcoin.bean.base.HeaderBean;
+import io.bitcoinsv.bitcoinjsv.merkle.MerkleEngine;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -53,7 +53,7 @@ public class TxIdBlockBean extends BitcoinObjectImpl<TxIdBlock> implements TxIdB
 
     @Override
     public Sha256Hash calculateMerkleRoot() {
-        return MerkleBuilder.calculateMerkleRoot(txids);
+        return MerkleEngine.getDefault().computeRoot(txids);
     }
 
     @Override
@@ -42,8 +42,14 @@ public class ChainUtils {
         long[] timestamps = new long[11];
         int unused = 9;
         timestamps[10] = storedBlock.getHeader().getTime();
-        while (unused >= 0 && (storedBlock = store.getPrev(storedBlock)) != null)
-            timestamps[unused--] = storedBlock.getHeader().getTime();
+        //stores with a height index read the active chain directly rather than walking back hash by hash
+        int found = store.getActiveChainTimestamps(storedBlock.getPrevBlockHash(), timestamps, 10);
+        if (found >= 0) {
+            unused -= found;
+        } else {
+            while (unused >= 0 && (storedBlock = store.getPrev(storedBlock)) != null)
+                timestamps[unused--] = storedBlock.getHeader().getTime();
+        }
 
         Arrays.sort(timestamps, unused+1, 11);
         return timestamps[unused + (11-unused)/2];
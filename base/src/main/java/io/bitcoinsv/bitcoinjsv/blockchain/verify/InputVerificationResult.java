@@ -0,0 +1,82 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.blockchain.verify;
+
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+
+import javax.annotation.Nullable;
+
+/**
+ * Outcome of verifying the scripts of a single transaction input.
+ */
+public class InputVerificationResult {
+
+    public enum Status {
+        /** scriptSig correctly spends the connected output */
+        VALID,
+        /** script execution failed */
+        INVALID,
+        /** the connected output could not be found or the lookup failed */
+        MISSING_INPUT,
+        /** coinbase inputs have no connected output so aren't verified */
+        COINBASE,
+        /** not verified because verification was abandoned after another input failed */
+        NOT_VERIFIED;
+    }
+
+    private final Sha256Hash txHash;
+    private final int txIndex;
+    private final int inputIndex;
+    private final Status status;
+    @Nullable
+    private final Exception error;
+
+    public InputVerificationResult(Sha256Hash txHash, int txIndex, int inputIndex, Status status, @Nullable Exception error) {
+        this.txHash = txHash;
+        this.txIndex = txIndex;
+        this.inputIndex = inputIndex;
+        this.status = status;
+        this.error = error;
+    }
+
+    public Sha256Hash getTxHash() {
+        return txHash;
+    }
+
+    /**
+     * @return index of the transaction within the block or batch that was verified.
+     */
+    public int getTxIndex() {
+        return txIndex;
+    }
+
+    public int getInputIndex() {
+        return inputIndex;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return true if this input failed verification, inputs that were not verified are not failures.
+     */
+    public boolean isFailure() {
+        return status == Status.INVALID || status == Status.MISSING_INPUT;
+    }
+
+    /**
+     * @return the cause of an INVALID or MISSING_INPUT result if there was one.
+     */
+    @Nullable
+    public Exception getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return txHash + ":" + inputIndex + " " + status + (error == null ? "" : " (" + error.getMessage() + ")");
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.blockchain.verify;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Per input results of verifying a block or batch of transactions.  Results are ordered by transaction
+ * then input index.
+ */
+public class ScriptVerificationResult {
+
+    private final List<InputVerificationResult> results;
+    private final int[] txOffsets;
+    @Nullable
+    private final InputVerificationResult firstFailure;
+
+    ScriptVerificationResult(InputVerificationResult[] results, int[] txOffsets) {
+        this.results = Collections.unmodifiableList(Arrays.asList(results));
+        this.txOffsets = txOffsets;
+        InputVerificationResult failure = null;
+        for (InputVerificationResult result : results) {
+            if (result.isFailure()) {
+                failure = result;
+                break;
+            }
+        }
+        this.firstFailure = failure;
+    }
+
+    /**
+     * @return true if no input failed.
+     */
+    public boolean isValid() {
+        return firstFailure == null;
+    }
+
+    /**
+     * @return the failed input that comes first in transaction order.  As verification runs in parallel
+     * this isn't necessarily the first failure that was detected.
+     */
+    @Nullable
+    public InputVerificationResult getFirstFailure() {
+        return firstFailure;
+    }
+
+    public List<InputVerificationResult> getResults() {
+        return results;
+    }
+
+    /**
+     * @param txIndex index of the transaction in the block or batch
+     * @return the results for each input of the transaction
+     */
+    public List<InputVerificationResult> getResults(int txIndex) {
+        return results.subList(txOffsets[txIndex], txOffsets[txIndex + 1]);
+    }
+
+    public int getTransactionCount() {
+        return txOffsets.length - 1;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.blockchain.verify;
+
+import io.bitcoinsv.bitcoinjsv.bitcoin.TxActor;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.FullBlock;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.Tx;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.TxInput;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.TxOutPoint;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.TxOutput;
+import io.bitcoinsv.bitcoinjsv.blockchain.verify.InputVerificationResult.Status;
+import io.bitcoinsv.bitcoinjsv.core.Coin;
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+import io.bitcoinsv.bitcoinjsv.core.UTXO;
+import io.bitcoinsv.bitcoinjsv.exception.UTXOProviderException;
+import io.bitcoinsv.bitcoinjsv.script.Script;
+import io.bitcoinsv.bitcoinjsv.script.ScriptUtils;
+import io.bitcoinsv.bitcoinjsv.script.ScriptVerifyFlag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Verifies the input scripts of a whole block or batch of transactions in parallel.
+ *
+ * Inputs are split into tasks of {@link #getInputsPerTask()} inputs, which are run on the supplied executor.  As soon
+ * as one input fails the remaining inputs are abandoned and reported as {@link Status#NOT_VERIFIED}.  Outputs created
+ * by a transaction in the block or batch may be spent by later transactions in the same block or batch, all other
+ * outputs are resolved with the supplied {@link UTXOLookup}.
+ *
+ * All the inputs of a transaction share the same {@link io.bitcoinsv.bitcoinjsv.script.SigHashContext} so the
+ * transactions passed in should be immutable.
+ */
+public class ScriptVerificationService {
+
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerificationService.class);
+
+    public static final int DEFAULT_INPUTS_PER_TASK = 32;
+
+    private final ExecutorService executor;
+    private final int inputsPerTask;
+
+    /**
+     * Creates a service using the common fork join pool.
+     */
+    public ScriptVerificationService() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public ScriptVerificationService(ExecutorService executor) {
+        this(executor, DEFAULT_INPUTS_PER_TASK);
+    }
+
+    /**
+     * @param executor executor to run verification tasks on, e.g. a {@link ForkJoinPool} sized to the number of cores.
+     * @param inputsPerTask number of inputs verified by each task.  Smaller values spread large transactions across
+     *                      more threads at the cost of more scheduling overhead.
+     */
+    public ScriptVerificationService(ExecutorService executor, int inputsPerTask) {
+        checkArgument(inputsPerTask > 0, "inputsPerTask must be positive");
+        this.executor = executor;
+        this.inputsPerTask = inputsPerTask;
+    }
+
+    public int getInputsPerTask() {
+        return inputsPerTask;
+    }
+
+    /**
+     * Verifies all the non-coinbase inputs of a block.
+     */
+    public ScriptVerificationResult verifyBlock(FullBlock block, UTXOLookup utxoLookup,
+                                                Set<ScriptVerifyFlag> verifyFlags) throws InterruptedException {
+        return verifyTransactions(block.getTransactions(), utxoLookup, verifyFlags);
+    }
+
+    public ScriptVerificationResult verifyTransaction(Tx tx, UTXOLookup utxoLookup,
+                                                      Set<ScriptVerifyFlag> verifyFlags) throws InterruptedException {
+        return verifyTransactions(Collections.singletonList(tx), utxoLookup, verifyFlags);
+    }
+
+    /**
+     * Verifies all the inputs of a batch of transactions.  Transactions must be in dependency order.
+     */
+    public ScriptVerificationResult verifyTransactions(List<Tx> txs, UTXOLookup utxoLookup,
+                                                       Set<ScriptVerifyFlag> verifyFlags) throws InterruptedException {
+        int[] txOffsets = new int[txs.size() + 1];
+        Map<Sha256Hash, Integer> txIndexes = new HashMap<>(txs.size() * 2);
+        for (int i = 0; i < txs.size(); i++) {
+            Tx tx = txs.get(i);
+            txOffsets[i + 1] = txOffsets[i] + tx.getInputs().size();
+            txIndexes.put(tx.getHash(), i);
+        }
+
+        Batch batch = new Batch(txs, txOffsets, txIndexes, utxoLookup, verifyFlags);
+        int totalInputs = txOffsets[txs.size()];
+
+        List<Callable<Void>> tasks = new ArrayList<>(totalInputs / inputsPerTask + 1);
+        int txIndex = 0;
+        for (int start = 0; start < totalInputs; start += inputsPerTask) {
+            int end = Math.min(start + inputsPerTask, totalInputs);
+            while (txOffsets[txIndex + 1] <= start)
+                txIndex++;
+            final int firstTx = txIndex;
+            final int first = start;
+            tasks.add(() -> {
+                batch.verifyRange(firstTx, first, end);
+                return null;
+            });
+        }
+
+        if (tasks.size() == 1) {
+            //not worth handing off to another thread
+            batch.verifyRange(0, 0, totalInputs);
+        } else {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Script verification task failed", e.getCause());
+                }
+            }
+        }
+
+        return new ScriptVerificationResult(batch.results, txOffsets);
+    }
+
+    private static class Batch {
+
+        final List<Tx> txs;
+        final int[] txOffsets;
+        final Map<Sha256Hash, Integer> txIndexes;
+        final UTXOLookup utxoLookup;
+        final Set<ScriptVerifyFlag> verifyFlags;
+        final InputVerificationResult[] results;
+        final AtomicBoolean failed = new AtomicBoolean(false);
+
+        Batch(List<Tx> txs, int[] txOffsets, Map<Sha256Hash, Integer> txIndexes, UTXOLookup utxoLookup,
+              Set<ScriptVerifyFlag> verifyFlags) {
+            this.txs = txs;
+            this.txOffsets = txOffsets;
+            this.txIndexes = txIndexes;
+            this.utxoLookup = utxoLookup;
+            this.verifyFlags = verifyFlags;
+            this.results = new InputVerificationResult[txOffsets[txs.size()]];
+        }
+
+        /**
+         * verifies inputs in the flattened range [start, end), txIndex is the transaction containing start.
+         */
+        void verifyRange(int txIndex, int start, int end) {
+            for (int pos = start; pos < end; pos++) {
+                while (txOffsets[txIndex + 1] <= pos)
+                    txIndex++;
+                Tx tx = txs.get(txIndex);
+                int inputIndex = pos - txOffsets[txIndex];
+                if (failed.get()) {
+                    results[pos] = new InputVerificationResult(tx.getHash(), txIndex, inputIndex, Status.NOT_VERIFIED, null);
+                    continue;
+                }
+                InputVerificationResult result = verifyInput(tx, txIndex, inputIndex);
+                if (result.isFailure())
+                    failed.set(true);
+                results[pos] = result;
+            }
+        }
+
+        private InputVerificationResult verifyInput(Tx tx, int txIndex, int inputIndex) {
+            TxInput input = tx.getInputs().get(inputIndex);
+            if (TxActor.isCoinBase(input))
+                return new InputVerificationResult(tx.getHash(), txIndex, inputIndex, Status.COINBASE, null);
+
+            TxOutPoint outPoint = input.getOutpoint();
+            Script scriptPubKey;
+            Coin value;
+            Integer parentIndex = txIndexes.get(outPoint.getHash());
+            if (parentIndex != null && parentIndex < txIndex) {
+                List<TxOutput> parentOutputs = txs.get(parentIndex).getOutputs();
+                if (outPoint.getIndex() >= parentOutputs.size())
+                    return new InputVerificationResult(tx.getHash(), txIndex, inputIndex, Status.MISSING_INPUT, null);
+                TxOutput output = parentOutputs.get((int) outPoint.getIndex());
+                scriptPubKey = output.getScriptPubKey();
+                value = output.getValue();
+            } else {
+                UTXO utxo;
+                try {
+                    utxo = utxoLookup.getUTXO(outPoint.getHash(), outPoint.getIndex());
+                } catch (UTXOProviderException e) {
+                    return new InputVerificationResult(tx.getHash(), txIndex, inputIndex, Status.MISSING_INPUT, e);
+                }
+                if (utxo == null)
+                    return new InputVerificationResult(tx.getHash(), txIndex, inputIndex, Status.MISSING_INPUT, null);
+                scriptPubKey = utxo.getScript();
+                value = utxo.getValue();
+            }
+
+            try {
+                ScriptUtils.correctlySpends(input.getScriptSig(), tx, inputIndex, scriptPubKey, value, verifyFlags);
+                return new InputVerificationResult(tx.getHash(), txIndex, inputIndex, Status.VALID, null);
+            } catch (RuntimeException e) {
+                //ScriptExecutionException for script failures, anything else means the input is malformed
+                if (log.isDebugEnabled())
+                    log.debug("Input {}:{} failed verification: {}", tx.getHash(), inputIndex, e.getMessage());
+                return new InputVerificationResult(tx.getHash(), txIndex, inputIndex, Status.INVALID, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.blockchain.verify;
+
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+import io.bitcoinsv.bitcoinjsv.core.UTXO;
+import io.bitcoinsv.bitcoinjsv.exception.UTXOProviderException;
+
+import javax.annotation.Nullable;
+
+/**
+ * Resolves the output being spent by an input.  Implementations will be called concurrently from
+ * verification threads so must be thread safe.
+ */
+@FunctionalInterface
+public interface UTXOLookup {
+
+    /**
+     * @param hash hash of the transaction containing the output
+     * @param index index of the output
+     * @return the unspent output or null if it doesn't exist or is already spent.
+     * @throws UTXOProviderException if the lookup itself failed
+     */
+    @Nullable
+    UTXO getUTXO(Sha256Hash hash, long index) throws UTXOProviderException;
+
+}
@@ -0,0 +1,210 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.blockstore;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.FullBlock;
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A concurrent cache of full blocks bounded by their serialized size rather than the number of entries.  Eviction is
+ * least recently used, a block bigger than the whole budget isn't retained at all so one huge block can't push the
+ * cache past its limit.
+ * <p>
+ * The cache has a single segment.  Guava splits a weight limit evenly between segments, with its default of four any
+ * block over a quarter of the budget would never be cached, and a few large blocks are exactly what this cache is
+ * for.  Lookups don't lock so this only serializes writes, which are much rarer than reads.
+ * <p>
+ * Misses are loaded through {@link #get(Sha256Hash, Loader)}, concurrent misses on the same hash wait for a single
+ * load rather than each reading the block from disk.
+ */
+public class BlockCache {
+
+    public static final long DEFAULT_MAX_BYTES = 130 * 1000 * 1000;
+
+    /**
+     * Loads a block on a cache miss.
+     */
+    public interface Loader {
+        /**
+         * @return the block or null if it doesn't exist.
+         */
+        FullBlock load(Sha256Hash hash) throws IOException;
+    }
+
+    private final long maxBytes;
+    private final Cache<Sha256Hash, Entry> cache;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong evictedBytes = new AtomicLong();
+
+    public BlockCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes total serialized size of the blocks to keep.
+     */
+    public BlockCache(long maxBytes) {
+        checkArgument(maxBytes > 0, "maxBytes must be positive");
+        this.maxBytes = maxBytes;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                //one segment so the whole budget is available to any block
+                .concurrencyLevel(1)
+                .weigher((Sha256Hash hash, Entry entry) -> entry.weight)
+                .removalListener(notification -> {
+                    int weight = notification.getValue().weight;
+                    bytes.addAndGet(-weight);
+                    if (notification.getCause() == RemovalCause.SIZE)
+                        evictedBytes.addAndGet(weight);
+                })
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @return the cached block or null, doesn't count towards the hit and miss metrics.
+     */
+    public FullBlock getIfPresent(Sha256Hash hash) {
+        Entry entry = cache.asMap().get(hash);
+        return entry == null ? null : entry.block;
+    }
+
+    /**
+     * Returns the cached block, loading it if it isn't cached.  Only one thread loads a given hash at a time, others
+     * missing on the same hash wait for its result.
+     *
+     * @return the block or null if the loader didn't find it.
+     */
+    public FullBlock get(Sha256Hash hash, Loader loader) throws IOException {
+        try {
+            return cache.get(hash, () -> {
+                FullBlock block = loader.load(hash);
+                if (block == null)
+                    throw new NotFoundException();
+                return newEntry(block);
+            }).block;
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof NotFoundException)
+                return null;
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof UncheckedIOException)
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } catch (ExecutionError e) {
+            throw (Error) e.getCause();
+        }
+    }
+
+    public void put(Sha256Hash hash, FullBlock block) {
+        cache.put(hash, newEntry(block));
+    }
+
+    public boolean contains(Sha256Hash hash) {
+        return cache.asMap().containsKey(hash);
+    }
+
+    /**
+     * @return the removed block or null if it wasn't cached.
+     */
+    public FullBlock remove(Sha256Hash hash) {
+        Entry entry = cache.asMap().remove(hash);
+        return entry == null ? null : entry.block;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the serialized size of the cached blocks.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    public double getHitRate() {
+        return cache.stats().hitRate();
+    }
+
+    /**
+     * @return the number of blocks evicted to stay within the size limit, explicit removals are not counted.
+     */
+    public long getEvictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+    public long getEvictedBytes() {
+        return evictedBytes.get();
+    }
+
+    /**
+     * @return total time spent loading blocks on a miss.
+     */
+    public long getTotalLoadTimeNanos() {
+        return cache.stats().totalLoadTime();
+    }
+
+    @Override
+    public String toString() {
+        CacheStats stats = cache.stats();
+        return String.format("BlockCache[%d blocks, %d/%d bytes, hits %d, misses %d, hit rate %.3f, evictions %d]",
+                cache.size(), getBytes(), maxBytes, stats.hitCount(), stats.missCount(), stats.hitRate(),
+                stats.evictionCount());
+    }
+
+    private Entry newEntry(FullBlock block) {
+        //the weight is fixed when the entry is created so the byte count stays consistent if the block changes
+        int weight = block.getMessageSize();
+        if (weight < 0)
+            //a block that was built rather than parsed only knows its size once serialized
+            weight = block.serialize().length;
+        bytes.addAndGet(weight);
+        return new Entry(block, weight);
+    }
+
+    private static class Entry {
+        final FullBlock block;
+        final int weight;
+
+        Entry(FullBlock block, int weight) {
+            this.block = block;
+            this.weight = weight;
+        }
+    }
+
+    private static class NotFoundException extends Exception {
+        NotFoundException() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -60,7 +60,19 @@ public interface BlockStore<V> {
      * Sets the {@link V} that represents the top of the chain of greatest total work.
      */
     void setChainHead(V chainHead) throws BlockStoreException;
-    
+
+    /**
+     * Reads the timestamps of a block on the active chain and the blocks before it without walking back hash by
+     * hash.  Timestamps are written from timestamps[count - 1] downwards, the given block's first.  Stores that
+     * can't look blocks up by height return -1 and callers fall back to {@link #getPrev(Object)}.
+     *
+     * @return the number of timestamps written, fewer than count near genesis, or -1 if the store can't answer or
+     * the block is not on the active chain.
+     */
+    default int getActiveChainTimestamps(Sha256Hash hash, long[] timestamps, int count) throws BlockStoreException {
+        return -1;
+    }
+
     /** Closes the store. */
     void close() throws BlockStoreException;
 }
@@ -11,43 +11,36 @@ import io.bitcoinsv.bitcoinjsv.params.NetworkParameters;
 import io.bitcoinsv.bitcoinjsv.utils.FileUtil;
 
 import java.io.File;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 
 /**
  * Simple file store for blocks that seperates into dirs based on first 12 bits to keep the file count reasonable.
- * Also contains an in memory cache limited to 200 entries or 130mb total bytes. This is based on the serialized bytes
- * however so real memory usage will be more than this.
+ * Alternatively blocks can be appended to a {@link SegmentedBlockArchive} which keeps them in a few large files, see
+ * {@link #initSegmented(File, NetworkParameters)}.
+ * Also contains an in memory {@link BlockCache} limited to 130mb total bytes by default. This is based on the serialized
+ * bytes however so real memory usage will be more than this.
+ * <p>
+ * Loads and lookups don't take the store's lock so readers aren't serialized behind each other or behind a write.
  *
  * @author Steve Shadders
  */
 public class FullBlockStore {
 
     private final static boolean OVERWRITE_FILES = true;
-    private final static long MAX_CACHE_BYTES = 130 * 1000 * 1000;
-    private final static long MAX_CACHE_ENTRIES = 1200;
+    private final static long MAX_CACHE_BYTES = BlockCache.DEFAULT_MAX_BYTES;
 
     private static FullBlockStore instance = null;
 
     private final File baseDir;
     private final NetworkParameters params;
 
-    private final long[] cacheSize = new long[1];
-
     private final boolean memoryOnly;
 
-    private Map<Sha256Hash, FullBlock> cache = new LinkedHashMap<Sha256Hash, FullBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, FullBlock> eldest) {
+    //null when each block is stored in its own file
+    private final SegmentedBlockArchive archive;
 
-            if (size() > MAX_CACHE_ENTRIES || cacheSize[0] > MAX_CACHE_BYTES) {
-                long len = eldest.getValue().getMessageSize();
-                cacheSize[0] -= len;
-                return true;
-            }
-            return false;
-        }
-    };
+    private final BlockCache cache;
 
     public static FullBlockStore get() {
         return instance;
@@ -57,7 +50,26 @@ public class FullBlockStore {
         new FullBlockStore(null, params, true);
     }
 
+    /**
+     * Initializes the store to append blocks to segment files under baseDir rather than writing a file per block.
+     */
+    public static void initSegmented(File baseDir, NetworkParameters params) {
+        new FullBlockStore(baseDir, params, false, true);
+    }
+
     public FullBlockStore(File baseDir, NetworkParameters params, boolean memoryOnly) {
+        this(baseDir, params, memoryOnly, false);
+    }
+
+    public FullBlockStore(File baseDir, NetworkParameters params, boolean memoryOnly, boolean segmented) {
+        this(baseDir, params, memoryOnly, segmented, MAX_CACHE_BYTES);
+    }
+
+    /**
+     * @param maxCacheBytes the total serialized size of blocks to keep in memory.
+     */
+    public FullBlockStore(File baseDir, NetworkParameters params, boolean memoryOnly, boolean segmented,
+                          long maxCacheBytes) {
         if (instance != null) {
             throw new RuntimeException("Cannot create more than one instance of " + getClass());
         }
@@ -65,6 +77,12 @@ public class FullBlockStore {
         this.baseDir = baseDir == null ? null : addNetSuffix(baseDir, params);
         this.params = params;
         this.memoryOnly = memoryOnly;
+        this.cache = new BlockCache(maxCacheBytes);
+        try {
+            this.archive = segmented && !memoryOnly ? new SegmentedBlockArchive(this.baseDir) : null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
         instance = this;
     }
 
@@ -74,15 +92,18 @@ public class FullBlockStore {
     }
 
     public synchronized long deleteBlock(Sha256Hash hash) {
-        FullBlock removed = cache.get(hash);
         long reclaimed = -1;
-        if (removed != null) {
-            cacheSize[0] -= removed.getMessageSize();
-            cache.remove(hash);
-        }
+        cache.remove(hash);
         if (memoryOnly) {
             return -1;
         }
+        if (archive != null) {
+            try {
+                return archive.delete(hash);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
 
         File f = getFile(hash);
         if (f.exists()) {
@@ -104,26 +125,23 @@ public class FullBlockStore {
      * @param hash
      * @return The block if found or null
      */
-    public synchronized FullBlock loadBlock(Sha256Hash hash) {
-        FullBlock block = cache.get(hash);
-        if (block == null && !memoryOnly) {
-            File f = getFile(hash);
-            if (f.exists()) {
-                byte[] bytes = FileUtil.getFileAsBytes(f);
-                //block = Serializer.get(params,true, true).makeBlock(bytes);
-                block = new FullBlockBean(bytes);
-                cacheSize[0] += bytes.length;
-                cache.put(hash, block);
-            }
+    public FullBlock loadBlock(Sha256Hash hash) {
+        if (memoryOnly)
+            return cache.getIfPresent(hash);
+        try {
+            return cache.get(hash, this::readBlock);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        return block;
     }
 
-    public synchronized boolean hasBlock(Sha256Hash hash) {
-        if (cache.containsKey(hash))
+    public boolean hasBlock(Sha256Hash hash) {
+        if (cache.contains(hash))
             return true;
         if (memoryOnly)
             return false;
+        if (archive != null)
+            return archive.contains(hash);
         File f = getFile(hash);
         return f.exists();
     }
@@ -137,6 +155,19 @@ public class FullBlockStore {
             throw new RuntimeException("Cannot save full block with no transactions");
         Sha256Hash hash = block.getHash();
 
+        if (archive != null) {
+            if (archive.contains(hash))
+                return false;
+            byte[] bytes = block.serialize();
+            try {
+                archive.put(hash, bytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            cache.put(hash, block);
+            return true;
+        }
+
         File f = null;
         if (!memoryOnly) {
             f = getFile(hash);
@@ -146,13 +177,40 @@ public class FullBlockStore {
         }
 
         byte[] bytes = block.serialize();
-        cacheSize[0] += bytes.length;
         cache.put(hash, block);
         if (!memoryOnly)
             FileUtil.saveBytesAsFile(bytes, f, false);
         return true;
     }
 
+    /**
+     * @return the segment archive or null if blocks are stored in individual files.  The archive can be used
+     * directly to transfer blocks or transactions to a channel without loading them.
+     */
+    public SegmentedBlockArchive getArchive() {
+        return archive;
+    }
+
+    /**
+     * @return the block cache, mainly for its hit rate and eviction metrics.
+     */
+    public BlockCache getCache() {
+        return cache;
+    }
+
+    //called by the cache on a miss, concurrent misses on the same hash share one read
+    private FullBlock readBlock(Sha256Hash hash) throws IOException {
+        byte[] bytes;
+        if (archive != null) {
+            bytes = archive.read(hash);
+        } else {
+            File f = getFile(hash);
+            bytes = f.exists() ? FileUtil.getFileAsBytes(f) : null;
+        }
+        //block = Serializer.get(params,true, true).makeBlock(bytes);
+        return bytes == null ? null : new FullBlockBean(bytes);
+    }
+
     private File getFile(Sha256Hash hash) {
         String hex = hash.toString();
         String subDir1 = hex.substring(hex.length() - 3, hex.length() - 1);
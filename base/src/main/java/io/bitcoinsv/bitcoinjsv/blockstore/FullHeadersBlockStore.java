@@ -7,6 +7,7 @@ package io.bitcoinsv.bitcoinjsv.blockstore;
 
 import io.bitcoinsv.bitcoinjsv.bitcoin.Genesis;
 import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.FullBlock;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.Header;
 import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.Tx;
 import io.bitcoinsv.bitcoinjsv.bitcoin.api.extended.LiteBlock;
 import io.bitcoinsv.bitcoinjsv.bitcoin.bean.base.TxBean;
@@ -18,6 +19,7 @@ import io.bitcoinsv.bitcoinjsv.core.VarInt;
 import io.bitcoinsv.bitcoinjsv.exception.BlockStoreException;
 import io.bitcoinsv.bitcoinjsv.params.Net;
 import io.bitcoinsv.bitcoinjsv.params.NetworkParameters;
+import io.bitcoinsv.bitcoinjsv.utils.DaemonThreadFactory;
 import io.bitcoinsv.bitcoinjsv.utils.FileUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,12 +27,28 @@ import org.slf4j.LoggerFactory;
 import java.io.*;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
- * Similar to an SPVBlockstore except it maintains the full block header history.  It also loads and stores
- * all blocks headers in memory on startup.
+ * Similar to an SPVBlockstore except it maintains the full block header history.  Blocks are held in an off-heap
+ * {@link HeaderIndex} so they can be found by hash, or by height on the active chain, without holding them on the
+ * heap.  The index files are kept between opens, on startup they are picked up from the last checkpoint and only
+ * headers written after it are replayed from the headers file.
+ * <p>
+ * Writes are serialized by the file lock.  Lookups don't take it, they read the index under an optimistic
+ * {@link StampedLock} read and only fall back to blocking if writes keep landing mid read.
  * <p>
  * optionally can also store all coinbase transactions
  * FIXME coinbase functionality hasn't been ported into LiteBlock yet so this remains TODO
@@ -52,6 +70,12 @@ public class FullHeadersBlockStore implements BlockStore<LiteBlock>  {
     //public static final int CHAIN_WORK_BYTES = ChainInfo.CHAIN_WORK_BYTES;
     //public static final byte[] EMPTY_BYTES = new byte[ChainInfo.CHAIN_WORK_BYTES];
 
+    public static final String CHECKPOINT_MAGIC = "TNP2PHEADERSCHECKPOINT";
+    public static final byte[] CHECKPOINT_MAGIC_BYTES = CHECKPOINT_MAGIC.getBytes();
+    private static final int CHECKPOINT_VERSION = 2;
+
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 50000;
+
     public static final int MAX_TXID_FILE_SIZE = 1024 * 1024 * 128;
 
     private static final int BASE_COMPACT_SERIALIZED_SIZE =
@@ -68,16 +92,40 @@ public class FullHeadersBlockStore implements BlockStore<LiteBlock>  {
 
     protected ReentrantLock fileLock = new ReentrantLock();
 
-    private LiteBlock chainHead;
+    //Versions the index for readers.  Writers hold fileLock and take the write lock around each index change,
+    //readers read optimistically and validate their stamp afterwards.
+    private final StampedLock indexLock = new StampedLock();
+    private static final int OPTIMISTIC_READ_ATTEMPTS = 3;
+
+    private volatile LiteBlock chainHead;
 
     private final File dir;
     private final File txIdDir;
 
-    //The main headers file, we read the entire file on startup then
+    //The main headers file, on startup we replay the part of it the checkpoint doesn't cover,
     //it is append only so FileOutputStream is the most efficient way of writing it.
     private File headersFile;
     private FileOutputStream headerOutputStream;
 
+    //Memory mapped index of the headers file, picked up from the checkpoint on startup
+    //then brought up to date by replaying the headers written after the checkpoint.
+    private final HeaderIndex index;
+    private final String indexPrefix;
+    private long logOffset;
+
+    //The checkpoint is a few numbers but writing one syncs the headers file and forces the index
+    //mappings, so the ones taken every checkpointInterval headers are written off the put() path.
+    private final File checkpointFile;
+    private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    private int checkpointSize;
+    private boolean checkpointPending;
+    private long checkpointOffset = -1;
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+    private final ExecutorService checkpointExecutor =
+            Executors.newSingleThreadExecutor(new DaemonThreadFactory("header-store-checkpoint"));
+    private int recordsReplayedOnOpen;
+    private volatile boolean closed;
+
     //Metadata is a short file that is constantly being overwritten
     //so we use a memory mapping and let the OS take care of flushing.
     //This is safe unless the JVM is killed in the middle of write operation
@@ -110,8 +158,6 @@ public class FullHeadersBlockStore implements BlockStore<LiteBlock>  {
     private boolean hasAnyCoinbaseData;
     private boolean hasTxids = false;
 
-    private Map<Sha256Hash, LiteBlock> cache = new HashMap<Sha256Hash, LiteBlock>();
-
     public FullHeadersBlockStore(Net net, File dir) throws BlockStoreException {
         this(net, dir, false);
     }
@@ -125,6 +171,8 @@ public class FullHeadersBlockStore implements BlockStore<LiteBlock>  {
         this.dir = dir;
         this.txIdDir = new File(dir, "txids");
         String prefix = net.name();
+        this.indexPrefix = "header-store-" + prefix;
+        this.checkpointFile = new File(dir, indexPrefix + "-checkpoint.dat");
         spvMode = true;
         this.hasCoinbase = storeCoinbase;
         this.hasTxids = storeTxids;
@@ -165,6 +213,12 @@ public class FullHeadersBlockStore implements BlockStore<LiteBlock>  {
             }
         }
 
+        try {
+            index = new HeaderIndex(dir, indexPrefix);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+
         if (isExistingStore) {
             initOldStore();
         } else {
@@ -225,6 +279,13 @@ public class FullHeadersBlockStore implements BlockStore<LiteBlock>  {
 
     private void shutdown() {
         fileLock.lock();
+        if (!closed) {
+            try {
+                writeCheckpoint(true);
+            } catch (BlockStoreException e) {
+                e.printStackTrace();
+            }
+        }
         try {
             headerOutputStream.close();
         } catch (IOException e) {
@@ -268,7 +329,9 @@ public class FullHeadersBlockStore implements BlockStore<LiteBlock>  {
         try {
             //FileUtil.saveBytesAsFile(header, headerOutputStream, false);
             try {
+                index.clear();
                 headerOutputStream.write(header);
+                logOffset = header.length;
             } catch (IOException e) {
                 throw new BlockStoreException(e);
             }
@@ -293,23 +356,207 @@ public class FullHeadersBlockStore implements BlockStore<LiteBlock>  {
         try {
             readMeta();
 
-            byte[] bytes = FileUtil.getFileAsBytes(headersFile);
-            int offset = 0;
-            byte[] header = checkHeader(bytes, 0);
-            offset += header.length;
+            long replayFrom = loadCheckpoint();
+            if (replayFrom < 0) {
+                index.clear();
+                replayFrom = HEADER_MAGIC_BYTES.length;
+            }
+            replay(replayFrom);
+
+            int headRecord = chainHead == null ? -1 : index.find(chainHead.getHash());
+            if (headRecord < 0 && index.size() > 0) {
+                log.warn("Chain head in metadata is not in the headers file, using the block with the most work");
+                headRecord = index.findMostWork();
+                chainHead = index.getBlock(headRecord);
+            }
+            if (headRecord >= 0)
+                index.setChainHead(headRecord);
+            log.info("Indexed {} headers, {} replayed from the headers file, chain height {}",
+                    index.size(), recordsReplayedOnOpen, index.getChainHeight());
+
+            //until the next clean close the index files may run ahead of the checkpoint
+            writeCheckpoint(false);
+
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            fileLock.unlock();
+        }
 
-            while (offset <= bytes.length - COMPACT_SERIALIZED_SIZE()) {
+    }
 
-                final LiteBlock block = new LiteBlockBean(bytes, offset);
-                offset += block.getMessageSize();
-                cache.put(block.getHeader().getHash(), block);
+    /**
+     * Picks the index up from the checkpoint file if there is a usable one.  The checkpoint is ignored if its checksum
+     * doesn't match, the index files don't match its checksums and chain head or the headers file doesn't contain the
+     * records it covers.  The active chain heights are only trusted from a checkpoint written by a clean close.
+     *
+     * @return the headers file offset to replay from, or -1 if the whole file needs replaying.
+     */
+    private long loadCheckpoint() throws IOException {
+        if (!checkpointFile.exists())
+            return -1;
+        try {
+            byte[] bytes = Files.readAllBytes(checkpointFile.toPath());
+            CRC32 crc = new CRC32();
+            if (bytes.length < 8)
+                throw new IOException("checkpoint is truncated");
+            crc.update(bytes, 0, bytes.length - 8);
+            DataInputStream fields = new DataInputStream(new ByteArrayInputStream(bytes));
+            byte[] magic = new byte[CHECKPOINT_MAGIC_BYTES.length];
+            fields.readFully(magic);
+            if (!Arrays.equals(magic, CHECKPOINT_MAGIC_BYTES) || fields.readInt() != CHECKPOINT_VERSION)
+                throw new IOException("unrecognised checkpoint format");
+            boolean clean = fields.readBoolean();
+            long offset = fields.readLong();
+            HeaderIndex.Checkpoint checkpoint = HeaderIndex.Checkpoint.readFrom(fields);
+            if (fields.readLong() != crc.getValue())
+                throw new IOException("checksum mismatch");
+            if (headersFile.length() < offset)
+                throw new IOException("headers file is shorter than the checkpoint");
+            if (!clean)
+                log.info("Checkpoint {} was not written by a clean close, rebuilding the active chain heights", checkpointFile);
+            index.restore(checkpoint, clean);
+            int size = checkpoint.getSize();
+            if (size > 0 && !recordMatches(offset - HeaderIndex.RECORD_SIZE, index.getRecord(size - 1)))
+                throw new IOException("headers file does not match the checkpoint");
+            checkpointSize = size;
+            return offset;
+        } catch (IOException e) {
+            log.warn("Ignoring checkpoint {}, replaying the whole headers file: {}", checkpointFile, e.getMessage());
+            return -1;
+        }
+    }
 
+    private boolean recordMatches(long offset, byte[] expected) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(headersFile, "r")) {
+            byte[] record = new byte[expected.length];
+            raf.seek(offset);
+            raf.readFully(record);
+            return Arrays.equals(record, expected);
+        }
+    }
+
+    /**
+     * Adds the records in the headers file from an offset onwards to the index.  A partially written last record is
+     * truncated so that later writes stay aligned.
+     */
+    private void replay(long offset) throws IOException, BlockStoreException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(headersFile), 1024 * 1024))) {
+            byte[] header = new byte[HEADER_MAGIC_BYTES.length];
+            in.readFully(header);
+            checkHeader(header, 0);
+            for (long toSkip = offset - header.length; toSkip > 0; ) {
+                long skipped = in.skip(toSkip);
+                if (skipped <= 0)
+                    throw new EOFException("Headers file ends before offset " + offset);
+                toSkip -= skipped;
+            }
+
+            logOffset = offset;
+            byte[] record = new byte[HeaderIndex.RECORD_SIZE];
+            int read;
+            while ((read = readRecord(in, record)) == record.length) {
+                index.add(Sha256Hash.hashTwice(record, 0, Header.FIXED_MESSAGE_SIZE), record);
+                logOffset += record.length;
+                recordsReplayedOnOpen++;
+            }
+            if (read > 0) {
+                log.warn("Truncating {} bytes of a partially written header at the end of {}", read, headersFile);
+                headerOutputStream.getChannel().truncate(logOffset);
             }
+        }
+    }
+
+    /**
+     * Reads the next record from the headers file.
+     * @return the number of bytes read, less than the record length at the end of the file.
+     */
+    private int readRecord(InputStream in, byte[] record) throws IOException {
+        int read = 0;
+        while (read < record.length) {
+            int n = in.read(record, read, record.length - read);
+            if (n < 0)
+                break;
+            read += n;
+        }
+        return read;
+    }
 
+    /**
+     * Writes a checkpoint of the index, the next open picks the index files up from it and only replays headers
+     * written after it.  One is written in the background every {@link #setCheckpointInterval(int)} new headers and
+     * one on close.
+     * <p>
+     * The headers file is synced and the index mappings forced before the checkpoint is written, to a temporary file
+     * that is moved into place so a crash leaves the previous one intact.  Only the numbers and the records added since
+     * the last checkpoint are read under the file lock, the syncing and checksumming of the index table is done without
+     * it so puts and lookups carry on meanwhile.
+     */
+    public void writeCheckpoint() throws BlockStoreException {
+        writeCheckpoint(false);
+    }
+
+    /**
+     * @param clean true if no more writes can happen, so the checkpoint's chain heights can be trusted as they are.
+     */
+    private void writeCheckpoint(boolean clean) throws BlockStoreException {
+        HeaderIndex.Checkpoint checkpoint;
+        long offset;
+        fileLock.lock();
+        try {
+            checkpointPending = false;
+            if (closed)
+                return;
+            checkpoint = index.checkpoint();
+            offset = logOffset;
         } finally {
             fileLock.unlock();
         }
 
+        checkpointLock.lock();
+        try {
+            //a checkpoint taken before the last one written finished later, it has nothing to add
+            if (offset < checkpointOffset || (offset == checkpointOffset && !clean))
+                return;
+            //the checkpoint must never cover headers or index entries that could still be lost
+            headerOutputStream.getFD().sync();
+            checkpoint.force();
+
+            File tmp = new File(dir, checkpointFile.getName() + ".tmp");
+            CRC32 crc = new CRC32();
+            try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                DataOutputStream out = new DataOutputStream(new CheckedOutputStream(fos, crc));
+                out.write(CHECKPOINT_MAGIC_BYTES);
+                out.writeInt(CHECKPOINT_VERSION);
+                out.writeBoolean(clean);
+                out.writeLong(offset);
+                checkpoint.writeTo(out);
+                out.writeLong(crc.getValue());
+                out.flush();
+                fos.getFD().sync();
+            }
+            Files.move(tmp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            checkpointOffset = offset;
+        } catch (IOException e) {
+            throw new BlockStoreException("Failed to write checkpoint " + checkpointFile, e);
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    /**
+     * @param checkpointInterval number of new headers between checkpoints, 0 to only write one on close.
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        checkArgument(checkpointInterval >= 0, "checkpointInterval must not be negative");
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * @return the number of headers that had to be read from the headers file when the store was opened.
+     */
+    public int getRecordsReplayedOnOpen() {
+        return recordsReplayedOnOpen;
     }
 
     private void writeMeta() throws IOException {
@@ -325,6 +572,8 @@ public class FullHeadersBlockStore implements BlockStore<LiteBlock>  {
                     + (hasTxids ? FLAG_HAS_TX_IDS : 0);
             bos.write(flags);
             Utils.uint32ToByteStreamLE(txidFileNum, bos);
+            if (chainHead != null)
+                bos.write(chainHead.serialize(), 0, LiteBlock.FIXED_MESSAGE_SIZE);
 
             while (bos.size() < METADATA_BUFFER_SIZE())
                 bos.write(0);
@@ -363,9 +612,13 @@ public class FullHeadersBlockStore implements BlockStore<LiteBlock>  {
             txidFileNum = (int) Utils.readUint32(bytes, offset);
             offset += 4;
 
-            chainHead = new LiteBlockBean(bytes, offset);
+            //stores written before the chain head was saved have zeros here
+            if (bytes.length - offset >= LiteBlock.FIXED_MESSAGE_SIZE) {
+                byte[] headBytes = Arrays.copyOfRange(bytes, offset, offset + LiteBlock.FIXED_MESSAGE_SIZE);
+                if (!Arrays.equals(headBytes, new byte[headBytes.length]))
+                    chainHead = new LiteBlockBean(headBytes, 0);
+            }
             offset += COMPACT_SERIALIZED_SIZE();
-            cache.put(chainHead.getHeader().getHash(), chainHead);
 
         } finally {
             fileLock.unlock();
@@ -395,15 +648,38 @@ public class FullHeadersBlockStore implements BlockStore<LiteBlock>  {
         fileLock.lock();
         try {
 
-            LiteBlock cached = cache.put(block.getHeader().getHash(), block);
-            if (cached != null) {
+            byte[] hash = block.getHeader().getHash().getReversedBytes();
+            if (index.find(hash) >= 0) {
                 return false;
             }
 
+            byte[] record = block.serialize();
+            if (record.length != HeaderIndex.RECORD_SIZE)
+                throw new BlockStoreException("Unexpected serialized size " + record.length + " for block: " + block);
+
             //write it to disk
             //byte[] bytes = serializeValue(block, writeCBFile(block), writeTxidFile(block));
             //headerOutputStream.write(bytes);
-            block.serializeTo(headerOutputStream);
+            headerOutputStream.write(record);
+            long stamp = indexLock.writeLock();
+            try {
+                index.add(hash, record);
+            } finally {
+                indexLock.unlockWrite(stamp);
+            }
+            logOffset += record.length;
+
+            if (checkpointInterval > 0 && !checkpointPending && index.size() - checkpointSize >= checkpointInterval) {
+                checkpointPending = true;
+                checkpointSize = index.size();
+                checkpointExecutor.execute(() -> {
+                    try {
+                        writeCheckpoint(false);
+                    } catch (BlockStoreException e) {
+                        log.warn("Failed to write checkpoint, the next open will replay more of the headers file", e);
+                    }
+                });
+            }
 
         } catch (IOException e) {
             throw new BlockStoreException("Failed to write block: " + block ,e);
@@ -556,7 +832,89 @@ public class FullHeadersBlockStore implements BlockStore<LiteBlock>  {
     }
 
     public LiteBlock get(Sha256Hash hash) throws BlockStoreException {
-        return cache.get(hash);
+        LiteBlock head = chainHead;
+        if (head != null && head.getHash().equals(hash))
+            return head;
+        return readIndex(() -> {
+            int recordNum = index.find(hash);
+            return recordNum < 0 ? null : index.getBlock(recordNum);
+        });
+    }
+
+    /**
+     * @return the block at a height on the active chain, or null if the height is above the chain head.
+     */
+    public LiteBlock getByHeight(int height) throws BlockStoreException {
+        return readIndex(() -> {
+            int recordNum = index.getRecordAtHeight(height);
+            return recordNum < 0 ? null : index.getBlock(recordNum);
+        });
+    }
+
+    /**
+     * @return the hash of the block at a height on the active chain, or null if the height is above the chain head.
+     */
+    public Sha256Hash getHashByHeight(int height) {
+        return readIndex(() -> {
+            int recordNum = index.getRecordAtHeight(height);
+            return recordNum < 0 ? null : Sha256Hash.wrapReversed(index.getHash(recordNum));
+        });
+    }
+
+    /**
+     * Reads the timestamps of a block on the active chain and the blocks before it straight from the index.
+     * Timestamps are written from timestamps[count - 1] downwards, the given block's first.
+     *
+     * @return the number of timestamps written, fewer than count near genesis, or -1 if the block is not on the
+     * active chain.
+     */
+    @Override
+    public int getActiveChainTimestamps(Sha256Hash hash, long[] timestamps, int count) {
+        return readIndex(() -> {
+            int recordNum = index.find(hash);
+            if (!index.isOnActiveChain(recordNum))
+                return -1;
+            int height = index.getHeight(recordNum);
+            int written = 0;
+            while (written < count && height - written >= 0) {
+                int record = index.getRecordAtHeight(height - written);
+                if (record < 0)
+                    break;
+                timestamps[count - 1 - written] = index.getTime(record);
+                written++;
+            }
+            return written;
+        });
+    }
+
+    /**
+     * Runs a read of the index without blocking the writer.  The result of an optimistic attempt is only used if no
+     * write overlapped it, an attempt that overlapped one may also have failed on a half made change so its
+     * exception is only thrown if the stamp is still valid.
+     */
+    private <T> T readIndex(Supplier<T> read) {
+        for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+            long stamp = indexLock.tryOptimisticRead();
+            if (stamp == 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            try {
+                T result = read.get();
+                if (indexLock.validate(stamp))
+                    return result;
+            } catch (RuntimeException e) {
+                if (indexLock.validate(stamp))
+                    throw e;
+            }
+        }
+        //writes keep landing mid read so wait for them to finish instead
+        long stamp = indexLock.readLock();
+        try {
+            return read.get();
+        } finally {
+            indexLock.unlockRead(stamp);
+        }
     }
 
     @Override
@@ -574,6 +932,15 @@ public class FullHeadersBlockStore implements BlockStore<LiteBlock>  {
             if (newChainHead.equals(chainHead))
                 return;
             chainHead = newChainHead;
+            int recordNum = index.find(newChainHead.getHash());
+            if (recordNum >= 0) {
+                long stamp = indexLock.writeLock();
+                try {
+                    index.setChainHead(recordNum);
+                } finally {
+                    indexLock.unlockWrite(stamp);
+                }
+            }
             writeMeta();
         } catch (IOException e) {
             throw new BlockStoreException("Error writing metadata", e);
@@ -583,11 +950,33 @@ public class FullHeadersBlockStore implements BlockStore<LiteBlock>  {
     }
 
     public void close() throws BlockStoreException {
+        //let a background checkpoint finish before the files it syncs are closed, it needs the file lock to start
+        checkpointExecutor.shutdown();
         try {
+            checkpointExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        fileLock.lock();
+        try {
+            if (closed)
+                return;
+            writeCheckpoint(true);
+            closed = true;
+            headerOutputStream.close();
             metadataRaf.close();
-            cbDataRaf.close();
+            if (cbDataRaf != null)
+                cbDataRaf.close();
+            long stamp = indexLock.writeLock();
+            try {
+                index.close();
+            } finally {
+                indexLock.unlockWrite(stamp);
+            }
         } catch (IOException ex){
             throw new BlockStoreException(ex);
+        } finally {
+            fileLock.unlock();
         }
     }
 
@@ -725,20 +1114,13 @@ public class FullHeadersBlockStore implements BlockStore<LiteBlock>  {
         if (oldOldestFullBlockHeight >= highestToKeep)
             return Collections.emptyList();
 
-        int currentHeight = tipHeight;
-        int counter = 0;
-
         pruned = new LinkedList<Sha256Hash>();
-        LiteBlock lastCurrentBlock = null;
-
-        while (currentBlock.getHeight() >= lastHeightPruned
-                && !Genesis.getFor(net).equals(currentBlock.getHeader())) {
 
-            if (currentBlock.getHeight() < highestToKeep) {
-                pruned.add(currentBlock.getHeader().getHash());
-            }
-            lastCurrentBlock = currentBlock;
-            currentBlock = get(currentBlock.getHeader().getPrevBlockHash());
+        //the height index gives us the active chain directly, genesis is never pruned
+        for (int height = highestToKeep - 1; height >= Math.max(lastHeightPruned, 1); height--) {
+            Sha256Hash hash = getHashByHeight(height);
+            if (hash != null)
+                pruned.add(hash);
         }
 
         deleted = 0;
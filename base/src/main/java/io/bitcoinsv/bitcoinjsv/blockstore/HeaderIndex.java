@@ -0,0 +1,552 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.blockstore;
+
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.extended.LiteBlock;
+import io.bitcoinsv.bitcoinjsv.bitcoin.bean.extended.LiteBlockBean;
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Off-heap index of the {@link LiteBlock} records held by a {@link FullHeadersBlockStore}.  Nothing is kept on heap
+ * per block, everything lives in three memory mapped files:
+ * <ul>
+ *     <li>records - each block's hash followed by its serialized LiteBlock, in the order they were added.  Mapped in
+ *     fixed size segments so the file can grow without remapping what has already been written.</li>
+ *     <li>hash table - open addressing with linear probing from block hash to record number.  Slots only hold the
+ *     record number, probes compare against the hash stored in the record.  A table of capacity n lives at offset
+ *     n * 4 in its file, so growing never overwrites the table it replaces and the file ends up about twice the size
+ *     of the current table.</li>
+ *     <li>heights - a dense array from height to record number for the active chain.</li>
+ * </ul>
+ * Hashes are kept in internal (little endian) byte order so the prev block hash can be compared straight from a
+ * record.  Record numbers are stored plus one so that zero marks an empty slot.
+ *
+ * LiteBlocks are decoded from the mapped record each time one is fetched.  The files are kept between opens:
+ * {@link #checkpoint()} captures the few numbers needed to find everything in them again, with checksums of what
+ * they cover and the chain head's hash, and {@link Checkpoint#force()} makes what they cover durable.
+ * {@link #restore(Checkpoint, boolean)} picks the files back up from a checkpoint, reading them once to check them
+ * against it.  Records and slots written after a checkpoint are dropped by a restore from it, records are only ever
+ * appended and the table slots of a checkpoint's records never change, so those stay valid however much more was
+ * written before a crash.  The heights array is rewritten in place by reorgs so it is only trusted from a checkpoint
+ * taken with no writes going on.
+ *
+ * There must only be one writer at a time.  Readers can run alongside it, everything they follow is published
+ * through volatile fields after it is written, but a read that overlaps a write can still see a half made change.
+ * The owning store versions writes with a {@link java.util.concurrent.locks.StampedLock} and only trusts a read that
+ * no write overlapped, retrying it otherwise.
+ */
+public class HeaderIndex {
+
+    public static final int RECORD_SIZE = LiteBlock.FIXED_MESSAGE_SIZE;
+
+    private static final int HASH_SIZE = Sha256Hash.LENGTH;
+    private static final int ENTRY_SIZE = HASH_SIZE + RECORD_SIZE;
+
+    //offsets of fields within a record
+    private static final int PREV_HASH_OFFSET = 4;
+    private static final int TIME_OFFSET = 68;
+    private static final int CHAIN_WORK_OFFSET = 92;
+    private static final int CHAIN_WORK_BYTES = 12;
+    private static final int HEIGHT_OFFSET = 104;
+
+    private static final int ENTRIES_PER_SEGMENT_BITS = 18;
+    private static final int ENTRIES_PER_SEGMENT = 1 << ENTRIES_PER_SEGMENT_BITS;
+    private static final long SEGMENT_SIZE = (long) ENTRIES_PER_SEGMENT * ENTRY_SIZE;
+
+    private static final int INITIAL_TABLE_CAPACITY = 1 << 16;
+    private static final int INITIAL_HEIGHT_CAPACITY = 1 << 16;
+
+    private final RandomAccessFile recordsRaf;
+    private final RandomAccessFile tableRaf;
+    private final RandomAccessFile heightsRaf;
+
+    //only ever replaced by a longer copy, segments are mapped before the records in them are published by size
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private volatile MappedByteBuffer table;
+    private int tableCapacity;
+    private volatile MappedByteBuffer heights;
+    private int heightCapacity;
+
+    private volatile int size;
+    private volatile int chainHeight = -1;
+
+    //checksum of the records up to recordsCrcSize, brought up to date by each checkpoint
+    private CRC32 recordsCrc = new CRC32();
+    private int recordsCrcSize;
+
+    /**
+     * Opens the index files, creating them if they don't exist.  Nothing is read until either {@link #clear()} or
+     * {@link #restore(Checkpoint, boolean)} is called.
+     *
+     * @param prefix file name prefix, "-index.dat", "-table.dat" and "-heights.dat" are appended.
+     */
+    public HeaderIndex(File dir, String prefix) throws IOException {
+        recordsRaf = new RandomAccessFile(new File(dir, prefix + "-index.dat"), "rw");
+        tableRaf = new RandomAccessFile(new File(dir, prefix + "-table.dat"), "rw");
+        heightsRaf = new RandomAccessFile(new File(dir, prefix + "-heights.dat"), "rw");
+    }
+
+    /**
+     * Empties the index, truncating its files.
+     */
+    public void clear() throws IOException {
+        segments = new MappedByteBuffer[0];
+        size = 0;
+        chainHeight = -1;
+        recordsCrc.reset();
+        recordsCrcSize = 0;
+        recordsRaf.setLength(0);
+        tableRaf.setLength(0);
+        heightsRaf.setLength(0);
+        mapTable(INITIAL_TABLE_CAPACITY);
+        mapHeights(INITIAL_HEIGHT_CAPACITY);
+    }
+
+    /**
+     * Picks up the index files as they were when a checkpoint was taken.  The records and table are read once to check
+     * them against the checkpoint's checksums, table slots left by writes after the checkpoint are cleared on the way
+     * so they can't fill the table up over repeated restores.
+     *
+     * @param trustHeights true if the checkpoint was taken with no writes going on, so its heights can be checked
+     *                     and used as they are.  Otherwise the chain height is left at -1 and the next
+     *                     {@link #setChainHead(int)} rewrites all of them.
+     * @throws IOException if the files are too short to hold what the checkpoint describes or don't match it.
+     */
+    public void restore(Checkpoint checkpoint, boolean trustHeights) throws IOException {
+        int size = checkpoint.size;
+        int chainHeight = checkpoint.chainHeight;
+        int tableCapacity = checkpoint.tableCapacity;
+        if (size < 0 || chainHeight < -1 || chainHeight >= size)
+            throw new IOException("Invalid checkpoint size " + size + " chain height " + chainHeight);
+        if (tableCapacity < INITIAL_TABLE_CAPACITY || Integer.bitCount(tableCapacity) != 1 || size * 2L > tableCapacity)
+            throw new IOException("Invalid checkpoint table capacity " + tableCapacity + " for " + size + " records");
+        if (recordsRaf.length() < (long) size * ENTRY_SIZE || tableRaf.length() < tableCapacity * 8L
+                || heightsRaf.length() < (chainHeight + 1) * 4L)
+            throw new IOException("Index files are shorter than the checkpoint");
+        segments = new MappedByteBuffer[0];
+        this.size = 0;
+        this.chainHeight = -1;
+        if (size > 0)
+            mapSegmentFor(size - 1);
+        CRC32 crc = new CRC32();
+        updateCrc(crc, 0, size);
+        if (crc.getValue() != checkpoint.recordsCrc)
+            throw new IOException("Index records don't match the checkpoint");
+        table = map(tableRaf, tableCapacity * 4L, tableCapacity * 4L);
+        this.tableCapacity = tableCapacity;
+        if (tableCrc(table, size, true) != checkpoint.tableCrc)
+            throw new IOException("Index table doesn't match the checkpoint");
+        mapHeights((int) Math.max(INITIAL_HEIGHT_CAPACITY, heightsRaf.length() / 4));
+        this.size = size;
+        recordsCrc = crc;
+        recordsCrcSize = size;
+        if (trustHeights && chainHeight >= 0) {
+            if (heightsCrc(heights, chainHeight) != checkpoint.heightsCrc)
+                throw new IOException("Index heights don't match the checkpoint");
+            int head = heights.getInt(chainHeight * 4) - 1;
+            if (head < 0 || head >= size || !hashEquals(head, checkpoint.chainHeadHash))
+                throw new IOException("Index chain head doesn't match the checkpoint");
+            this.chainHeight = chainHeight;
+        } else if (chainHeight >= 0 && find(checkpoint.chainHeadHash) < 0) {
+            throw new IOException("Checkpoint chain head is not in the index");
+        }
+    }
+
+    /**
+     * Captures what a later {@link #restore(Checkpoint, boolean)} needs.  Must be called by the writer or with writes
+     * held off, the returned checkpoint can be forced from any thread after that.  Only the records added since the
+     * last checkpoint are read here, the table and heights are checksummed by {@link Checkpoint#writeTo(DataOutput)}.
+     */
+    public Checkpoint checkpoint() {
+        updateCrc(recordsCrc, recordsCrcSize, size);
+        recordsCrcSize = size;
+        byte[] chainHeadHash = chainHeight < 0 ? new byte[HASH_SIZE] : getHash(getRecordAtHeight(chainHeight));
+        return new Checkpoint(size, chainHeight, tableCapacity, recordsCrc.getValue(), chainHeadHash, segments, table,
+                heights);
+    }
+
+    /**
+     * @return the number of records in the index.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return height of the active chain or -1 if no chain head has been set.
+     */
+    public int getChainHeight() {
+        return chainHeight;
+    }
+
+    /**
+     * @param hash block hash in internal byte order.
+     * @return the record number or -1 if the block isn't in the index.
+     */
+    public int find(byte[] hash) {
+        int size = this.size;
+        MappedByteBuffer table = this.table;
+        int mask = table.capacity() / 4 - 1;
+        for (int slot = slotFor(hash) & mask; ; slot = (slot + 1) & mask) {
+            int value = table.getInt(slot * 4);
+            if (value == 0)
+                return -1;
+            if (value <= size && hashEquals(value - 1, hash))
+                return value - 1;
+        }
+    }
+
+    public int find(Sha256Hash hash) {
+        return find(hash.getReversedBytes());
+    }
+
+    /**
+     * Adds a record unless a block with the same hash is already indexed.
+     *
+     * @param hash   block hash in internal byte order.
+     * @param record a serialized LiteBlock.
+     * @return the new record number or -1 if the block was already indexed.
+     */
+    public int add(byte[] hash, byte[] record) throws IOException {
+        checkArgument(record.length == RECORD_SIZE, "record must be %s bytes", RECORD_SIZE);
+        if (find(hash) >= 0)
+            return -1;
+        if ((size + 1) * 2L > tableCapacity)
+            mapTable(tableCapacity * 2);
+        int recordNum = size;
+        MappedByteBuffer segment = mapSegmentFor(recordNum);
+        int pos = positionOf(recordNum);
+        for (int i = 0; i < HASH_SIZE; i++)
+            segment.put(pos + i, hash[i]);
+        for (int i = 0; i < RECORD_SIZE; i++)
+            segment.put(pos + HASH_SIZE + i, record[i]);
+        //publish the record before the table slot that leads to it
+        size = recordNum + 1;
+        insert(table, recordNum, hash);
+        return recordNum;
+    }
+
+    /**
+     * Decodes the LiteBlock stored in a record.
+     */
+    public LiteBlock getBlock(int recordNum) {
+        return new LiteBlockBean(getRecord(recordNum), 0);
+    }
+
+    public byte[] getRecord(int recordNum) {
+        return read(recordNum, HASH_SIZE, RECORD_SIZE);
+    }
+
+    /**
+     * @return the block hash of a record in internal byte order.
+     */
+    public byte[] getHash(int recordNum) {
+        return read(recordNum, 0, HASH_SIZE);
+    }
+
+    /**
+     * @return the prev block hash of a record in internal byte order.
+     */
+    public byte[] getPrevHash(int recordNum) {
+        return read(recordNum, HASH_SIZE + PREV_HASH_OFFSET, HASH_SIZE);
+    }
+
+    public long getTime(int recordNum) {
+        return segmentFor(recordNum).getInt(positionOf(recordNum) + HASH_SIZE + TIME_OFFSET) & 0xffffffffL;
+    }
+
+    public int getHeight(int recordNum) {
+        return segmentFor(recordNum).getInt(positionOf(recordNum) + HASH_SIZE + HEIGHT_OFFSET);
+    }
+
+    /**
+     * @return the record number of the active chain block at a height or -1 if there isn't one.
+     */
+    public int getRecordAtHeight(int height) {
+        if (height < 0 || height > chainHeight)
+            return -1;
+        //read after chainHeight, the heights are remapped before a higher chain height is published
+        return heights.getInt(height * 4) - 1;
+    }
+
+    /**
+     * @return true if the record is part of the active chain.
+     */
+    public boolean isOnActiveChain(int recordNum) {
+        return recordNum >= 0 && getRecordAtHeight(getHeight(recordNum)) == recordNum;
+    }
+
+    /**
+     * Makes a record the head of the active chain.  The height array is rewritten walking back through prev hashes
+     * until it reaches a block that is already on the active chain, so extending the chain touches a single entry
+     * and a reorg only touches the blocks that changed.
+     */
+    public void setChainHead(int recordNum) throws IOException {
+        int headHeight = getHeight(recordNum);
+        if (headHeight >= heightCapacity)
+            mapHeights(Math.max(heightCapacity * 2, headHeight + 1));
+        int record = recordNum;
+        for (int height = headHeight; height >= 0 && record >= 0; height--) {
+            if (height <= chainHeight && heights.getInt(height * 4) == record + 1)
+                break;
+            heights.putInt(height * 4, record + 1);
+            record = height == 0 ? -1 : find(getPrevHash(record));
+        }
+        chainHeight = headHeight;
+    }
+
+    /**
+     * @return the record with the most chain work or -1 if the index is empty.
+     */
+    public int findMostWork() {
+        int best = -1;
+        byte[] bestWork = new byte[CHAIN_WORK_BYTES];
+        for (int recordNum = 0; recordNum < size; recordNum++) {
+            byte[] work = read(recordNum, HASH_SIZE + CHAIN_WORK_OFFSET, CHAIN_WORK_BYTES);
+            if (best < 0 || Arrays.compareUnsigned(work, bestWork) > 0) {
+                best = recordNum;
+                bestWork = work;
+            }
+        }
+        return best;
+    }
+
+    public void close() throws IOException {
+        segments = new MappedByteBuffer[0];
+        table = null;
+        heights = null;
+        recordsRaf.close();
+        tableRaf.close();
+        heightsRaf.close();
+    }
+
+    private byte[] read(int recordNum, int offset, int length) {
+        checkArgument(recordNum >= 0 && recordNum < size, "no record %s", recordNum);
+        MappedByteBuffer segment = segmentFor(recordNum);
+        int pos = positionOf(recordNum) + offset;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = segment.get(pos + i);
+        return bytes;
+    }
+
+    private boolean hashEquals(int recordNum, byte[] hash) {
+        MappedByteBuffer segment = segmentFor(recordNum);
+        int pos = positionOf(recordNum);
+        for (int i = 0; i < HASH_SIZE; i++) {
+            if (segment.get(pos + i) != hash[i])
+                return false;
+        }
+        return true;
+    }
+
+    private void updateCrc(CRC32 crc, int from, int to) {
+        for (int recordNum = from; recordNum < to; ) {
+            ByteBuffer segment = segmentFor(recordNum).duplicate();
+            int end = Math.min(to, (recordNum | (ENTRIES_PER_SEGMENT - 1)) + 1);
+            segment.limit(positionOf(end - 1) + ENTRY_SIZE).position(positionOf(recordNum));
+            crc.update(segment);
+            recordNum = end;
+        }
+    }
+
+    /**
+     * Checksums the slots of a table that lead to the first size records, slots past those count as empty.
+     *
+     * @param clear true to empty the slots past them as well.
+     */
+    private static long tableCrc(MappedByteBuffer table, int size, boolean clear) {
+        CRC32 crc = new CRC32();
+        byte[] slots = new byte[4096];
+        for (int pos = 0; pos < table.capacity(); pos += slots.length) {
+            for (int i = 0; i < slots.length; i += 4) {
+                int value = table.getInt(pos + i);
+                if (value > size) {
+                    value = 0;
+                    if (clear)
+                        table.putInt(pos + i, 0);
+                }
+                slots[i] = (byte) value;
+                slots[i + 1] = (byte) (value >>> 8);
+                slots[i + 2] = (byte) (value >>> 16);
+                slots[i + 3] = (byte) (value >>> 24);
+            }
+            crc.update(slots);
+        }
+        return crc.getValue();
+    }
+
+    private static long heightsCrc(MappedByteBuffer heights, int chainHeight) {
+        CRC32 crc = new CRC32();
+        ByteBuffer covered = heights.duplicate();
+        covered.limit((chainHeight + 1) * 4).position(0);
+        crc.update(covered);
+        return crc.getValue();
+    }
+
+    private static void insert(MappedByteBuffer table, int recordNum, byte[] hash) {
+        int mask = table.capacity() / 4 - 1;
+        int slot = slotFor(hash) & mask;
+        while (table.getInt(slot * 4) != 0)
+            slot = (slot + 1) & mask;
+        table.putInt(slot * 4, recordNum + 1);
+    }
+
+    /**
+     * The most significant bytes of a block hash are mostly zero, in internal byte order those are at the end so the
+     * first bytes are well distributed.
+     */
+    private static int slotFor(byte[] hash) {
+        return (hash[0] & 0xff) | (hash[1] & 0xff) << 8 | (hash[2] & 0xff) << 16 | (hash[3] & 0xff) << 24;
+    }
+
+    private static int positionOf(int recordNum) {
+        return (recordNum & (ENTRIES_PER_SEGMENT - 1)) * ENTRY_SIZE;
+    }
+
+    private MappedByteBuffer segmentFor(int recordNum) {
+        return segments[recordNum >>> ENTRIES_PER_SEGMENT_BITS];
+    }
+
+    /**
+     * Writer side of {@link #segmentFor(int)}, maps the segment a new record goes in if it isn't mapped yet.
+     */
+    private MappedByteBuffer mapSegmentFor(int recordNum) throws IOException {
+        int segmentNum = recordNum >>> ENTRIES_PER_SEGMENT_BITS;
+        MappedByteBuffer[] current = segments;
+        if (segmentNum < current.length)
+            return current[segmentNum];
+        MappedByteBuffer[] grown = Arrays.copyOf(current, segmentNum + 1);
+        for (int i = current.length; i <= segmentNum; i++)
+            grown[i] = map(recordsRaf, i * SEGMENT_SIZE, SEGMENT_SIZE);
+        segments = grown;
+        return grown[segmentNum];
+    }
+
+    /**
+     * Maps a larger table in its own part of the file and rebuilds it from the hashes in the records.  The old table
+     * is left as it was, for readers still probing it and for a restore from a checkpoint taken before the growth.
+     */
+    private void mapTable(int capacity) throws IOException {
+        MappedByteBuffer grown = map(tableRaf, capacity * 4L, capacity * 4L);
+        for (int i = 0; i < capacity; i++)
+            grown.putInt(i * 4, 0);
+        for (int recordNum = 0; recordNum < size; recordNum++)
+            insert(grown, recordNum, getHash(recordNum));
+        tableCapacity = capacity;
+        table = grown;
+    }
+
+    private void mapHeights(int capacity) throws IOException {
+        MappedByteBuffer grown = map(heightsRaf, 0, capacity * 4L);
+        heightCapacity = capacity;
+        heights = grown;
+    }
+
+    private static MappedByteBuffer map(RandomAccessFile raf, long position, long size) throws IOException {
+        MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, position, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    /**
+     * The numbers a {@link #restore(Checkpoint, boolean)} needs, with the mappings that hold what they cover.
+     */
+    public static class Checkpoint {
+        private final int size;
+        private final int chainHeight;
+        private final int tableCapacity;
+        private final long recordsCrc;
+        private final byte[] chainHeadHash;
+        private long tableCrc;
+        private long heightsCrc;
+        private final MappedByteBuffer[] segments;
+        private final MappedByteBuffer table;
+        private final MappedByteBuffer heights;
+
+        private Checkpoint(int size, int chainHeight, int tableCapacity, long recordsCrc, byte[] chainHeadHash,
+                           MappedByteBuffer[] segments, MappedByteBuffer table, MappedByteBuffer heights) {
+            this.size = size;
+            this.chainHeight = chainHeight;
+            this.tableCapacity = tableCapacity;
+            this.recordsCrc = recordsCrc;
+            this.chainHeadHash = chainHeadHash;
+            this.segments = segments;
+            this.table = table;
+            this.heights = heights;
+        }
+
+        /**
+         * Reads a checkpoint written by {@link #writeTo(DataOutput)}, it can only be restored from.
+         */
+        public static Checkpoint readFrom(DataInput in) throws IOException {
+            int size = in.readInt();
+            int chainHeight = in.readInt();
+            int tableCapacity = in.readInt();
+            long recordsCrc = in.readLong();
+            byte[] chainHeadHash = new byte[HASH_SIZE];
+            in.readFully(chainHeadHash);
+            Checkpoint checkpoint = new Checkpoint(size, chainHeight, tableCapacity, recordsCrc, chainHeadHash,
+                    null, null, null);
+            checkpoint.tableCrc = in.readLong();
+            checkpoint.heightsCrc = in.readLong();
+            return checkpoint;
+        }
+
+        /**
+         * Writes the checkpoint's numbers and checksums, reading the table and heights it covers to checksum them.
+         * Slots written since the checkpoint was taken don't change the checksum, heights rewritten by a reorg since
+         * do, so a checkpoint taken with writes going on won't have its heights trusted by a restore.
+         */
+        public void writeTo(DataOutput out) throws IOException {
+            tableCrc = tableCrc(table, size, false);
+            heightsCrc = chainHeight < 0 ? 0 : heightsCrc(heights, chainHeight);
+            out.writeInt(size);
+            out.writeInt(chainHeight);
+            out.writeInt(tableCapacity);
+            out.writeLong(recordsCrc);
+            out.write(chainHeadHash);
+            out.writeLong(tableCrc);
+            out.writeLong(heightsCrc);
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public int getChainHeight() {
+            return chainHeight;
+        }
+
+        public int getTableCapacity() {
+            return tableCapacity;
+        }
+
+        /**
+         * Writes the records, table and heights the checkpoint covers through to disk.  Anything written to them
+         * since is written too, which does no harm as a restore ignores it.
+         */
+        public void force() {
+            for (MappedByteBuffer segment : segments)
+                segment.force();
+            table.force();
+            heights.force();
+        }
+    }
+}
@@ -16,9 +16,10 @@
 
 package io.bitcoinsv.bitcoinjsv.blockstore;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import io.bitcoinsv.bitcoinjsv.core.ProtocolException;
 import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
-import io.bitcoinsv.bitcoinjsv.core.Utils;
 import io.bitcoinsv.bitcoinjsv.exception.BlockStoreException;
 import io.bitcoinsv.bitcoinjsv.bitcoin.Genesis;
 import io.bitcoinsv.bitcoinjsv.bitcoin.api.extended.LiteBlock;
@@ -37,9 +38,8 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -49,6 +49,10 @@ import static com.google.common.base.Preconditions.*;
  * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
  * but as they are virtually unheard of this is not a significant risk.
+ * <p>
+ * Writes are serialized by a single lock.  Reads don't take it, {@link #get(Sha256Hash)} scans the ring under an
+ * optimistic {@link StampedLock} read and only retries if a write landed during the scan, so any number of threads
+ * can look up headers concurrently.
  */
 public class SPVBlockStore implements BlockStore<LiteBlock>  {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
@@ -63,6 +67,11 @@ public class SPVBlockStore implements BlockStore<LiteBlock>  {
 
     protected ReentrantLock lock = Threading.lock("SPVBlockStore");
 
+    // Versions the ring contents for readers. Writers take the write lock while modifying the buffer, readers scan
+    // optimistically and validate their stamp afterwards. Writers must hold lock first so there is only ever one.
+    protected final StampedLock ringLock = new StampedLock();
+    private static final int OPTIMISTIC_READ_ATTEMPTS = 3;
+
     // The entire ring-buffer is mmapped and accessing it should be as fast as accessing regular memory once it's
     // faulted in. Unfortunately, in theory practice and theory are the same. In practice they aren't.
     //
@@ -70,25 +79,19 @@ public class SPVBlockStore implements BlockStore<LiteBlock>  {
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
     // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
     // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
-    protected LinkedHashMap<Sha256Hash, LiteBlock> blockCache = new LinkedHashMap<Sha256Hash, LiteBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, LiteBlock> entry) {
-            return size() > 2050;  // Slightly more than the difficulty transition period.
-        }
-    };
+    // They are concurrent so readers can use them without holding any lock.
+    protected final Cache<Sha256Hash, LiteBlock> blockCache = CacheBuilder.newBuilder()
+            .maximumSize(2050)  // Slightly more than the difficulty transition period.
+            .build();
     // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
     // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
     // must efficiently respond.
     //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
+    // We don't care about the value in this cache. It is always notFoundMarker.
     protected static final Object notFoundMarker = new Object();
-    protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new LinkedHashMap<Sha256Hash, Object>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Object> entry) {
-            return size() > 100;  // This was chosen arbitrarily.
-        }
-    };
+    protected final Cache<Sha256Hash, Object> notFoundCache = CacheBuilder.newBuilder()
+            .maximumSize(100)  // This was chosen arbitrarily.
+            .build();
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
@@ -173,6 +176,7 @@ public class SPVBlockStore implements BlockStore<LiteBlock>  {
         if (buffer == null) throw new BlockStoreException("Store closed");
 
         lock.lock();
+        long stamp = ringLock.writeLock();
         try {
             int cursor = getRingCursor(buffer);
             if (cursor == getFileSize()) {
@@ -181,12 +185,15 @@ public class SPVBlockStore implements BlockStore<LiteBlock>  {
             }
             buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
-            notFoundCache.remove(hash);
+            notFoundCache.invalidate(hash);
             buffer.put(hash.getBytes());
             buffer.put(block.serialize());
             setRingCursor(buffer, buffer.position());
             blockCache.put(hash, block);
-        } finally { lock.unlock(); }
+        } finally {
+            ringLock.unlockWrite(stamp);
+            lock.unlock();
+        }
 
         return true;
     }
@@ -197,47 +204,86 @@ public class SPVBlockStore implements BlockStore<LiteBlock>  {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        if (hash.equals(Sha256Hash.ZERO_HASH))
+            return null;
+        LiteBlock cacheHit = blockCache.getIfPresent(hash);
+        if (cacheHit != null)
+            return cacheHit;
+        if (notFoundCache.getIfPresent(hash) != null)
+            return null;
+
         try {
-            if (hash.equals(Sha256Hash.ZERO_HASH))
-                return null;
-            LiteBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
-            if (notFoundCache.get(hash) != null)
-                return null;
-
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize();
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    //StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    LiteBlock storedBlock = new LiteBlockBean(Utils.bufferAsInputStream(buffer));
-                    // LiteBlock storedBlock = buffer.
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
+            // Scan without blocking anyone, the result is only used if no write happened in the meantime.
+            for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+                long stamp = ringLock.tryOptimisticRead();
+                if (stamp == 0) {
+                    Thread.onSpinWait();
+                    continue;
                 }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, notFoundMarker);
-            return null;
+                byte[] record = findRecord(buffer, hash);
+                if (ringLock.validate(stamp))
+                    return cacheResult(hash, record, stamp);
+            }
+            // Writes keep landing mid scan so wait for them to finish instead.
+            long stamp = ringLock.readLock();
+            try {
+                return cacheResult(hash, findRecord(buffer, hash), stamp);
+            } finally {
+                ringLock.unlockRead(stamp);
+            }
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
-        } finally { lock.unlock(); }
+        }
+    }
+
+    /**
+     * Starting from the current tip of the ring works backwards until it has either found the block or wrapped around.
+     * Only reads through a duplicate of the buffer so it is safe to call concurrently with other readers.
+     *
+     * @return the serialized LiteBlock or null if it isn't in the ring.
+     */
+    @Nullable
+    private byte[] findRecord(MappedByteBuffer buffer, Sha256Hash hash) {
+        ByteBuffer view = buffer.duplicate();
+        int cursor = getRingCursor(view);
+        final int startingPoint = cursor;
+        final int fileSize = getFileSize();
+        final byte[] targetHashBytes = hash.getBytes();
+        byte[] scratch = new byte[32];
+        do {
+            cursor -= RECORD_SIZE;
+            if (cursor < FILE_PROLOGUE_BYTES) {
+                // We hit the start, so wrap around.
+                cursor = fileSize - RECORD_SIZE;
+            }
+            // Cursor is now at the start of the next record to check, so read the hash and compare it.
+            view.position(cursor);
+            view.get(scratch);
+            if (Arrays.equals(scratch, targetHashBytes)) {
+                // Found the target.
+                byte[] record = new byte[LiteBlock.FIXED_MESSAGE_SIZE];
+                view.get(record);
+                return record;
+            }
+        } while (cursor != startingPoint);
+        return null;
+    }
+
+    /**
+     * Decodes and caches the result of a validated scan.
+     */
+    @Nullable
+    private LiteBlock cacheResult(Sha256Hash hash, @Nullable byte[] record, long stamp) {
+        if (record != null) {
+            LiteBlock storedBlock = new LiteBlockBean(record, 0);
+            blockCache.put(hash, storedBlock);
+            return storedBlock;
+        }
+        notFoundCache.put(hash, notFoundMarker);
+        // If the block was put since the scan the writer may already have cleared the entry we just added.
+        if (!ringLock.validate(stamp))
+            notFoundCache.invalidate(hash);
+        return null;
     }
 
     @Override
@@ -245,13 +291,17 @@ public class SPVBlockStore implements BlockStore<LiteBlock>  {
         return get(block.getPrevBlockHash());
     }
 
-    protected LiteBlock lastChainHead = null;
+    protected volatile LiteBlock lastChainHead = null;
 
     @Override
     public LiteBlock getChainHead() throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
+        LiteBlock chainHead = lastChainHead;
+        if (chainHead != null)
+            return chainHead;
+
         lock.lock();
         try {
             if (lastChainHead == null) {
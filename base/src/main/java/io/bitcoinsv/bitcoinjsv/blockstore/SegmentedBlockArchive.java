@@ -0,0 +1,574 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.blockstore;
+
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+import io.bitcoinsv.bitcoinjsv.utils.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Stores serialized blocks by appending them to large segment files rather than one file per block.  An in memory
+ * offset index maps each block hash to its segment and position, it is rebuilt by scanning the segments on open.
+ * <p>
+ * Each record in a segment is the block hash, a signed 64 bit length and then the serialized block.  Deleting a block
+ * appends a tombstone (the hash and a length of -1) to the segment holding it, so a segment is self describing and can
+ * be dropped as a whole.  Once more than {@link #setCompactionThreshold(double)} of a sealed segment is dead space
+ * it is queued for compaction, which runs on a background thread: its live blocks are copied to the end of the active
+ * segment one at a time, the segments they were copied to are forced to disk and then the file is deleted.
+ * <p>
+ * Blocks can be read into a byte array, or transferred zero-copy with {@link FileChannel#transferTo} either whole or
+ * as a byte range, e.g. a single transaction.  Appends, deletes and each block copied by compaction are serialized by
+ * a single lock.  Reads don't take it, they pin the segment they read from so compaction can't close it under them,
+ * a compacted segment is only closed and deleted once its last reader is done.  A slow target channel therefore holds
+ * up nothing but its own transfer, though it does keep a compacted segment's disk space until it finishes.
+ */
+public class SegmentedBlockArchive {
+
+    private static final Logger log = LoggerFactory.getLogger(SegmentedBlockArchive.class);
+
+    public static final long DEFAULT_MAX_SEGMENT_SIZE = 1024L * 1024 * 1024;
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+    private static final int RECORD_HEADER_SIZE = Sha256Hash.LENGTH + 8;
+    private static final long TOMBSTONE = -1;
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("blocks(\\d{6})\\.seg");
+
+    private final File dir;
+    private final long maxSegmentSize;
+    private double compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    private final Map<Sha256Hash, Location> index = new ConcurrentHashMap<>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment active;
+
+    //serializes writes to the segments, readers don't take it
+    private final ReentrantLock lock = new ReentrantLock();
+
+    //sealed segments waiting to be compacted, guarded by lock
+    private final Deque<Segment> pendingCompaction = new ArrayDeque<>();
+    //only one compaction runs at a time, it takes lock once per block it copies
+    private final ReentrantLock compactionLock = new ReentrantLock();
+    private final ExecutorService compactionExecutor =
+            Executors.newSingleThreadExecutor(new DaemonThreadFactory("block-archive-compaction"));
+
+    public SegmentedBlockArchive(File dir) throws IOException {
+        this(dir, DEFAULT_MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens or creates an archive, rebuilding the index from any existing segments.
+     *
+     * @param maxSegmentSize a new segment is started once the active one reaches this size.  A block larger than this
+     *                       gets a segment to itself.
+     */
+    public SegmentedBlockArchive(File dir, long maxSegmentSize) throws IOException {
+        checkArgument(maxSegmentSize > RECORD_HEADER_SIZE, "maxSegmentSize is too small");
+        this.dir = dir;
+        this.maxSegmentSize = maxSegmentSize;
+        dir.mkdirs();
+
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Matcher m = SEGMENT_NAME.matcher(file.getName());
+                if (m.matches()) {
+                    int num = Integer.parseInt(m.group(1));
+                    segments.put(num, new Segment(num, file));
+                }
+            }
+        }
+        for (Segment segment : segments.values())
+            scan(segment);
+        active = segments.isEmpty() ? newSegment(0) : segments.lastEntry().getValue();
+        //segments that were already mostly dead when the archive was last closed
+        queueCompactionIfDead();
+        log.info("Opened block archive {} with {} blocks in {} segments", dir, index.size(), segments.size());
+    }
+
+    /**
+     * @param compactionThreshold fraction of a sealed segment that must be dead before it is compacted.
+     */
+    public void setCompactionThreshold(double compactionThreshold) {
+        checkArgument(compactionThreshold > 0 && compactionThreshold <= 1, "compactionThreshold must be in (0, 1]");
+        this.compactionThreshold = compactionThreshold;
+        queueCompactionIfDead();
+    }
+
+    public boolean contains(Sha256Hash hash) {
+        return index.containsKey(hash);
+    }
+
+    /**
+     * @return the serialized size of the block or -1 if it isn't archived.
+     */
+    public long getBlockSize(Sha256Hash hash) {
+        Location location = index.get(hash);
+        return location == null ? -1 : location.length;
+    }
+
+    /**
+     * @return the number of blocks in the archive.
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Appends a serialized block.
+     * @return false if the block was already archived.
+     */
+    public boolean put(Sha256Hash hash, byte[] serialized) throws IOException {
+        lock.lock();
+        try {
+            if (index.containsKey(hash))
+                return false;
+            Segment segment = segmentFor(serialized.length);
+            long offset = segment.size;
+            ByteBuffer header = recordHeader(hash, serialized.length);
+            segment.write(header);
+            segment.write(ByteBuffer.wrap(serialized));
+            segment.liveBytes += RECORD_HEADER_SIZE + serialized.length;
+            index.put(hash, new Location(segment, offset + RECORD_HEADER_SIZE, serialized.length));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads a whole block.
+     * @return the serialized block or null if it isn't archived.
+     */
+    public byte[] read(Sha256Hash hash) throws IOException {
+        Location location = pin(hash);
+        if (location == null)
+            return null;
+        try {
+            checkArgument(location.length <= Integer.MAX_VALUE, "block too large for a byte array, use transferTo");
+            ByteBuffer buffer = ByteBuffer.allocate((int) location.length);
+            location.segment.readFully(buffer, location.offset);
+            return buffer.array();
+        } finally {
+            location.segment.unpin();
+        }
+    }
+
+    /**
+     * Transfers a whole block to a channel without copying it through the heap.  A non-blocking target may take
+     * only part of it, see {@link #transferTo(Sha256Hash, long, long, WritableByteChannel)}.
+     * @return the number of bytes transferred or -1 if the block isn't archived.
+     */
+    public long transferTo(Sha256Hash hash, WritableByteChannel target) throws IOException {
+        return transferTo(hash, 0, Long.MAX_VALUE, target);
+    }
+
+    /**
+     * Transfers a byte range of a block, e.g. a single transaction, to a channel without copying it through the heap.
+     *
+     * @param offset start of the range relative to the start of the serialized block.
+     * @param length length of the range, it is cut short at the end of the block.
+     * @return the number of bytes transferred or -1 if the block isn't archived.  This is less than the range if
+     * the target is a non-blocking channel that can't take any more for now, e.g. a socket whose send buffer is
+     * full; call again for the rest once it is writable.
+     */
+    public long transferTo(Sha256Hash hash, long offset, long length, WritableByteChannel target) throws IOException {
+        checkArgument(offset >= 0 && length >= 0, "offset and length must not be negative");
+        Location location = pin(hash);
+        if (location == null)
+            return -1;
+        try {
+            checkArgument(offset <= location.length, "offset %s is beyond the end of the block", offset);
+            long toTransfer = Math.min(length, location.length - offset);
+            return location.segment.transferTo(location.offset + offset, toTransfer, target);
+        } finally {
+            location.segment.unpin();
+        }
+    }
+
+    /**
+     * Looks a block up and pins its segment so it stays open until {@link Segment#unpin()}.  If compaction retired the
+     * segment between the lookup and the pin the index already points at the block's new location, so look again.
+     */
+    private Location pin(Sha256Hash hash) {
+        while (true) {
+            Location location = index.get(hash);
+            if (location == null || location.segment.pin())
+                return location;
+        }
+    }
+
+    /**
+     * Deletes a block.  If enough of its segment is now dead the segment is queued for compaction in the background.
+     * @return the number of bytes of the block or -1 if it wasn't archived.
+     */
+    public long delete(Sha256Hash hash) throws IOException {
+        lock.lock();
+        try {
+            Location location = index.remove(hash);
+            if (location == null)
+                return -1;
+            Segment segment = location.segment;
+            segment.write(recordHeader(hash, TOMBSTONE));
+            segment.liveBytes -= RECORD_HEADER_SIZE + location.length;
+            queueCompactionIfDead(segment);
+            return location.length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //queues every sealed segment that is dead enough to compact
+    private void queueCompactionIfDead() {
+        lock.lock();
+        try {
+            for (Segment segment : segments.values())
+                queueCompactionIfDead(segment);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a segment for compaction in the background if it is sealed and enough of it is dead.  Called with the
+     * lock held.
+     */
+    private void queueCompactionIfDead(Segment segment) {
+        if (segment == active || segment.compacting || segment.liveBytes >= segment.size * (1 - compactionThreshold))
+            return;
+        segment.compacting = true;
+        pendingCompaction.add(segment);
+        compactionExecutor.execute(() -> {
+            try {
+                compactPending();
+            } catch (IOException e) {
+                log.warn("Failed to compact block archive " + dir, e);
+            }
+        });
+    }
+
+    /**
+     * Compacts the segments queued so far on the calling thread, waiting for a compaction already running
+     * in the background to finish first.
+     */
+    public void compactPending() throws IOException {
+        compactionLock.lock();
+        try {
+            while (true) {
+                Segment segment;
+                lock.lock();
+                try {
+                    segment = pendingCompaction.poll();
+                } finally {
+                    lock.unlock();
+                }
+                if (segment == null)
+                    return;
+                compact(segment);
+            }
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Forces all segments to disk.
+     */
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            for (Segment segment : segments.values())
+                segment.channel.force(false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for compaction in progress, then closes the segments.  A segment still being read is closed when its
+     * last reader finishes.
+     */
+    public void close() throws IOException {
+        compactionExecutor.shutdown();
+        try {
+            compactionExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compactionLock.lock();
+        lock.lock();
+        try {
+            index.clear();
+            pendingCompaction.clear();
+            for (Segment segment : segments.values()) {
+                segment.channel.force(false);
+                segment.retire(false);
+            }
+            segments.clear();
+        } finally {
+            lock.unlock();
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Copies the live blocks of a sealed segment to the active segment then deletes it.  The lock is taken for each
+     * block rather than the whole segment so appends and deletes aren't held up for long.
+     */
+    private void compact(Segment segment) throws IOException {
+        long start = System.currentTimeMillis();
+        List<Map.Entry<Sha256Hash, Location>> live = new ArrayList<>();
+        for (Map.Entry<Sha256Hash, Location> entry : index.entrySet()) {
+            if (entry.getValue().segment == segment)
+                live.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+        }
+        //keep the blocks in their original order
+        live.sort((a, b) -> Long.compare(a.getValue().offset, b.getValue().offset));
+        //every segment a copy went to, the active one can roll over part way through
+        Set<Segment> written = new LinkedHashSet<>();
+        int moved = 0;
+        for (Map.Entry<Sha256Hash, Location> entry : live) {
+            lock.lock();
+            try {
+                Location from = entry.getValue();
+                //deleted since the list was made
+                if (index.get(entry.getKey()) != from)
+                    continue;
+                Segment to = segmentFor(from.length);
+                long offset = to.size;
+                to.write(recordHeader(entry.getKey(), from.length));
+                to.transferFrom(segment, from.offset, from.length);
+                to.liveBytes += RECORD_HEADER_SIZE + from.length;
+                index.put(entry.getKey(), new Location(to, offset + RECORD_HEADER_SIZE, from.length));
+                written.add(to);
+                moved++;
+            } finally {
+                lock.unlock();
+            }
+        }
+        //the copies must be on disk before the originals go
+        for (Segment to : written)
+            to.channel.force(false);
+        lock.lock();
+        try {
+            segments.remove(segment.num);
+            segment.retire(true);
+        } finally {
+            lock.unlock();
+        }
+        log.info("Compacted {}, moved {} blocks and reclaimed {} bytes in {}ms", segment.file.getName(), moved,
+                segment.size - segment.liveBytes, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @return the segment to append a block of the given size to, starting a new one if the active segment is full.
+     */
+    private Segment segmentFor(long blockSize) throws IOException {
+        if (active.size > 0 && active.size + RECORD_HEADER_SIZE + blockSize > maxSegmentSize) {
+            Segment sealed = active;
+            active = newSegment(active.num + 1);
+            //blocks deleted while it was active count now it is sealed
+            queueCompactionIfDead(sealed);
+        }
+        return active;
+    }
+
+    private Segment newSegment(int num) throws IOException {
+        Segment segment = new Segment(num, new File(dir, String.format("blocks%06d.seg", num)));
+        segments.put(num, segment);
+        return segment;
+    }
+
+    /**
+     * Adds the records in a segment to the index.  A partially written record at the end of the segment is truncated.
+     */
+    private void scan(Segment segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        long position = 0;
+        long fileSize = segment.channel.size();
+        while (position + RECORD_HEADER_SIZE <= fileSize) {
+            header.clear();
+            segment.readFully(header, position);
+            header.flip();
+            byte[] hashBytes = new byte[Sha256Hash.LENGTH];
+            header.get(hashBytes);
+            Sha256Hash hash = Sha256Hash.wrap(hashBytes);
+            long length = header.getLong();
+            if (length == TOMBSTONE) {
+                Location removed = index.get(hash);
+                if (removed != null && removed.segment == segment) {
+                    index.remove(hash);
+                    segment.liveBytes -= RECORD_HEADER_SIZE + removed.length;
+                }
+                position += RECORD_HEADER_SIZE;
+                continue;
+            }
+            if (length < 0 || position + RECORD_HEADER_SIZE + length > fileSize)
+                break;
+            Location previous = index.put(hash, new Location(segment, position + RECORD_HEADER_SIZE, length));
+            if (previous != null)
+                previous.segment.liveBytes -= RECORD_HEADER_SIZE + previous.length;
+            segment.liveBytes += RECORD_HEADER_SIZE + length;
+            position += RECORD_HEADER_SIZE + length;
+        }
+        if (position < fileSize) {
+            log.warn("Truncating {} bytes of a partially written record at the end of {}", fileSize - position,
+                    segment.file);
+            segment.channel.truncate(position);
+        }
+        segment.size = position;
+    }
+
+    private static ByteBuffer recordHeader(Sha256Hash hash, long length) {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        header.put(hash.getBytes());
+        header.putLong(length);
+        header.flip();
+        return header;
+    }
+
+    private static class Location {
+        final Segment segment;
+        //position of the serialized block in the segment, after the record header
+        final long offset;
+        final long length;
+
+        Location(Segment segment, long offset, long length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class Segment {
+        final int num;
+        final File file;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+        long size;
+        long liveBytes;
+        //queued for or undergoing compaction, guarded by the archive's lock
+        boolean compacting;
+
+        //readers using the segment and whether it is to be closed once they are done, guarded by this
+        private int pins;
+        private boolean retired;
+        private boolean deleteWhenReleased;
+
+        Segment(int num, File file) throws IOException {
+            this.num = num;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+            this.size = channel.size();
+        }
+
+        /**
+         * @return false if the segment has been retired and must not be read.
+         */
+        synchronized boolean pin() {
+            if (retired)
+                return false;
+            pins++;
+            return true;
+        }
+
+        synchronized void unpin() throws IOException {
+            if (--pins == 0 && retired)
+                release();
+        }
+
+        /**
+         * Closes the segment, and deletes its file if asked to, as soon as no reader has it pinned.
+         */
+        synchronized void retire(boolean delete) throws IOException {
+            retired = true;
+            deleteWhenReleased = delete;
+            if (pins == 0)
+                release();
+        }
+
+        private void release() throws IOException {
+            raf.close();
+            if (deleteWhenReleased && !file.delete())
+                throw new IOException("Failed to delete compacted segment " + file);
+        }
+
+        void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining())
+                size += channel.write(buffer, size);
+        }
+
+        void readFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0)
+                    throw new EOFException("Unexpected end of " + file);
+                position += read;
+            }
+        }
+
+        /**
+         * @return the bytes transferred, fewer than count if a non-blocking target stopped taking them.
+         */
+        long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            long transferred = 0;
+            while (transferred < count) {
+                long n = channel.transferTo(position + transferred, count - transferred, target);
+                if (n > 0) {
+                    transferred += n;
+                    continue;
+                }
+                if (position + transferred >= channel.size())
+                    throw new EOFException("Unexpected end of " + file);
+                //the target is full, leave it to the caller to wait until it is writable
+                break;
+            }
+            return transferred;
+        }
+
+        /**
+         * Appends a range of another segment, only called by the single writer as it moves this channel's position.
+         */
+        void transferFrom(Segment source, long position, long count) throws IOException {
+            long transferred = 0;
+            while (transferred < count) {
+                channel.position(size);
+                long n = source.channel.transferTo(position + transferred, count - transferred, channel);
+                if (n <= 0)
+                    throw new EOFException("Unexpected end of " + source.file);
+                transferred += n;
+                size += n;
+            }
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.blockstore.utxo;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * An open addressing hash table mapping an encoded outpoint key to a long and a few flag bits.  Nothing is allocated
+ * per entry so a table of millions of outpoints costs the GC nothing.
+ * <p>
+ * Every entry is 48 bytes and the capacity is a power of two.  An in-memory table is held in one direct buffer and
+ * grows to keep itself no more than 70% full, taking between 69 and 137 bytes of direct memory per key and half as
+ * much again while it grows.
+ * <p>
+ * A table opened on a file ({@link #open(FileChannel, int, int, long)}) is read in pages of {@link #PAGE_SLOTS} slots
+ * and only the pages in use are kept, up to a given budget, so its memory doesn't depend on the number of keys.  A
+ * page that has been modified stays in memory until {@link #writeDirty()}, so the file only ever changes when the
+ * owner chooses and can be made to match a checkpoint.  A file table doesn't grow, the owner copies it into a larger
+ * one with {@link #copyTo(OutPointTable)} before it fills.
+ * <p>
+ * A key's home slot comes from the top bits of its hash, so doubling the capacity maps the entries of each slot to
+ * two neighbouring slots and copying a table writes the new one front to back.
+ * <p>
+ * Lookups may run concurrently with each other but not with a modification.
+ */
+class OutPointTable {
+
+    static final int KEY_SIZE = UTXOCodec.KEY_SIZE;
+
+    //key, flags byte, 3 bytes padding, value long
+    private static final int FLAGS_OFFSET = KEY_SIZE;
+    private static final int VALUE_OFFSET = KEY_SIZE + 4;
+    static final int ENTRY_SIZE = VALUE_OFFSET + 8;
+
+    //set on every occupied slot, the remaining bits belong to the caller
+    private static final int USED = 1;
+
+    static final float MAX_LOAD = 0.7f;
+
+    static final int PAGE_SLOTS = 128;
+
+    private int capacity;
+    private int mask;
+    private int shift;
+    private int size;
+
+    //an in-memory table
+    private ByteBuffer table;
+
+    //a file table, pages are keyed by number and clean ones are kept in access order
+    private final FileChannel channel;
+    private final long maxCachedBytes;
+    private int pageShift;
+    private int pageBytes;
+    private final LinkedHashMap<Integer, ByteBuffer> cleanPages = new LinkedHashMap<>(16, 0.75f, true);
+    private final TreeMap<Integer, ByteBuffer> dirtyPages = new TreeMap<>();
+
+    OutPointTable(int initialCapacity) {
+        checkArgument(initialCapacity > 0, "initialCapacity must be positive");
+        this.channel = null;
+        this.maxCachedBytes = 0;
+        allocate(Integer.highestOneBit(Math.max(initialCapacity, 16) - 1) << 1);
+    }
+
+    private OutPointTable(FileChannel channel, int capacity, int size, long maxCachedBytes) {
+        this.channel = channel;
+        this.maxCachedBytes = maxCachedBytes;
+        setCapacity(capacity);
+        this.pageShift = Integer.numberOfTrailingZeros(Math.min(PAGE_SLOTS, capacity));
+        this.pageBytes = (1 << pageShift) * ENTRY_SIZE;
+        this.size = size;
+    }
+
+    /**
+     * Opens a table held in a file of up to {@code capacity * ENTRY_SIZE} bytes, slots past the end of the file being
+     * empty, so a new table starts as an empty file.  The table doesn't own the channel.
+     *
+     * @param size number of keys in the table
+     * @param maxCachedBytes memory the clean pages may take, dirty pages are held as well until written
+     */
+    static OutPointTable open(FileChannel channel, int capacity, int size, long maxCachedBytes) throws IOException {
+        checkArgument(capacity >= 16 && Integer.bitCount(capacity) == 1, "capacity must be a power of two");
+        checkArgument(size >= 0 && size <= capacity * MAX_LOAD, "size doesn't fit the capacity");
+        long length = channel.size();
+        if (length > (long) capacity * ENTRY_SIZE)
+            throw new IOException("table file is " + length + " bytes, more than " + (long) capacity * ENTRY_SIZE);
+        return new OutPointTable(channel, capacity, size, maxCachedBytes);
+    }
+
+    /**
+     * @return the capacity a table needs to hold the given number of keys.
+     */
+    static int capacityFor(long keys) {
+        long needed = Math.max(16, (long) Math.ceil(keys / (double) MAX_LOAD) + 1);
+        checkArgument(needed <= 1 << 30, "too many keys");
+        return Integer.highestOneBit((int) needed - 1) << 1;
+    }
+
+    private void setCapacity(int capacity) {
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private void allocate(int capacity) {
+        setCapacity(capacity);
+        this.pageShift = Integer.numberOfTrailingZeros(capacity);
+        this.table = ByteBuffer.allocateDirect(capacity * ENTRY_SIZE);
+        this.size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return bytes of memory held by the table, for a file table the pages currently held.
+     */
+    synchronized long memoryBytes() {
+        if (channel == null)
+            return (long) capacity * ENTRY_SIZE;
+        return (long) (cleanPages.size() + dirtyPages.size()) * pageBytes;
+    }
+
+    /**
+     * @return bytes of modified pages not yet written to the file.
+     */
+    long dirtyBytes() {
+        return (long) dirtyPages.size() * pageBytes;
+    }
+
+    /**
+     * @return the modified pages by their position in the file, valid until the next modification.
+     */
+    Map<Long, ByteBuffer> getDirtyPages() {
+        Map<Long, ByteBuffer> pages = new TreeMap<>();
+        for (Map.Entry<Integer, ByteBuffer> entry : dirtyPages.entrySet())
+            pages.put((long) entry.getKey() * pageBytes, entry.getValue().duplicate());
+        return pages;
+    }
+
+    /**
+     * Writes the modified pages to the file, which the caller forces, and keeps them as clean pages.
+     */
+    synchronized void writeDirty() throws IOException {
+        for (Map.Entry<Integer, ByteBuffer> entry : dirtyPages.entrySet()) {
+            ByteBuffer page = entry.getValue().duplicate();
+            long position = (long) entry.getKey() * pageBytes;
+            while (page.hasRemaining())
+                position += channel.write(page, position);
+            cleanPages.put(entry.getKey(), entry.getValue());
+        }
+        dirtyPages.clear();
+        evict();
+    }
+
+    /**
+     * @return the slot holding the key or -1 if it isn't present.
+     */
+    int find(byte[] key) {
+        int slot = home(ByteBuffer.wrap(key), 0);
+        while (true) {
+            ByteBuffer page = readPage(slot);
+            int base = base(slot);
+            if ((page.get(base + FLAGS_OFFSET) & USED) == 0)
+                return -1;
+            if (keyEquals(page, base, key))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Inserts the key or updates it if already present.
+     *
+     * @param flags caller flags, the lowest bit is reserved.
+     * @return the slot the key is stored in, valid until the next put or remove.
+     */
+    int put(byte[] key, long value, int flags) {
+        checkArgument((flags & USED) == 0, "lowest flag bit is reserved");
+        if (size + 1 > capacity * MAX_LOAD) {
+            if (channel == null)
+                resize(capacity << 1);
+            else
+                //the owner grows a file table ahead of time, this only keeps a free slot to end probes
+                checkState(size + 1 < capacity, "table is full");
+        }
+        int slot = home(ByteBuffer.wrap(key), 0);
+        while (true) {
+            ByteBuffer page = readPage(slot);
+            int base = base(slot);
+            if ((page.get(base + FLAGS_OFFSET) & USED) == 0) {
+                page = writePage(slot);
+                for (int i = 0; i < KEY_SIZE; i++)
+                    page.put(base + i, key[i]);
+                size++;
+                break;
+            }
+            if (keyEquals(page, base, key))
+                break;
+            slot = (slot + 1) & mask;
+        }
+        setFlags(slot, flags);
+        setValue(slot, value);
+        return slot;
+    }
+
+    /**
+     * @return true if the key was present.
+     */
+    boolean remove(byte[] key) {
+        int slot = find(key);
+        if (slot < 0)
+            return false;
+        removeSlot(slot);
+        return true;
+    }
+
+    /**
+     * Removes the entry at the slot, shifting back later entries of the same probe run so lookups never need
+     * tombstones.
+     */
+    void removeSlot(int slot) {
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            ByteBuffer nextPage = readPage(next);
+            int nextBase = base(next);
+            if ((nextPage.get(nextBase + FLAGS_OFFSET) & USED) == 0)
+                break;
+            int home = home(nextPage, nextBase);
+            //the entry can fill the hole unless its home slot lies cyclically between the hole and itself
+            boolean movable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (movable) {
+                copySlot(next, hole);
+                hole = next;
+            }
+        }
+        ByteBuffer holePage = writePage(hole);
+        int holeBase = base(hole);
+        for (int i = 0; i < ENTRY_SIZE; i++)
+            holePage.put(holeBase + i, (byte) 0);
+        size--;
+    }
+
+    /**
+     * Empties an in-memory table.
+     */
+    void clear() {
+        checkState(channel == null, "a file table can't be cleared");
+        if (size == 0)
+            return;
+        //dropping a large table is cheaper than zeroing it, the old buffer is freed by the GC
+        allocate(capacity);
+    }
+
+    long getValue(int slot) {
+        return readPage(slot).getLong(base(slot) + VALUE_OFFSET);
+    }
+
+    void setValue(int slot, long value) {
+        writePage(slot).putLong(base(slot) + VALUE_OFFSET, value);
+    }
+
+    int getFlags(int slot) {
+        return readPage(slot).get(base(slot) + FLAGS_OFFSET) & ~USED & 0xFF;
+    }
+
+    void setFlags(int slot, int flags) {
+        writePage(slot).put(base(slot) + FLAGS_OFFSET, (byte) (flags | USED));
+    }
+
+    byte[] getKey(int slot) {
+        ByteBuffer page = readPage(slot);
+        byte[] key = new byte[KEY_SIZE];
+        int base = base(slot);
+        for (int i = 0; i < KEY_SIZE; i++)
+            key[i] = page.get(base + i);
+        return key;
+    }
+
+    /**
+     * @return the number of slots, occupied slots are found with {@link #isUsed(int)}.
+     */
+    int capacity() {
+        return capacity;
+    }
+
+    boolean isUsed(int slot) {
+        return (readPage(slot).get(base(slot) + FLAGS_OFFSET) & USED) != 0;
+    }
+
+    /**
+     * Puts every entry into the target, a file target's dirty pages are written as it goes so copying takes no more
+     * memory than the target's page budget.  Entries are visited in slot order so the target is written front to
+     * back.
+     */
+    void copyTo(OutPointTable target) throws IOException {
+        byte[] key = new byte[KEY_SIZE];
+        for (int slot = 0; slot < capacity; slot++) {
+            ByteBuffer page = readPage(slot);
+            int base = base(slot);
+            int flags = page.get(base + FLAGS_OFFSET) & 0xFF;
+            if ((flags & USED) == 0)
+                continue;
+            for (int i = 0; i < KEY_SIZE; i++)
+                key[i] = page.get(base + i);
+            target.put(key, page.getLong(base + VALUE_OFFSET), flags & ~USED);
+            if (target.channel != null && target.dirtyBytes() > target.maxCachedBytes)
+                target.writeDirty();
+        }
+    }
+
+    private void resize(int newCapacity) {
+        ByteBuffer old = table;
+        int oldCapacity = capacity;
+        allocate(newCapacity);
+        byte[] key = new byte[KEY_SIZE];
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            int base = slot * ENTRY_SIZE;
+            int flags = old.get(base + FLAGS_OFFSET) & 0xFF;
+            if ((flags & USED) == 0)
+                continue;
+            for (int i = 0; i < KEY_SIZE; i++)
+                key[i] = old.get(base + i);
+            put(key, old.getLong(base + VALUE_OFFSET), flags & ~USED);
+        }
+    }
+
+    private int base(int slot) {
+        return (slot & ((1 << pageShift) - 1)) * ENTRY_SIZE;
+    }
+
+    private ByteBuffer readPage(int slot) {
+        return channel == null ? table : page(slot >>> pageShift, false);
+    }
+
+    private ByteBuffer writePage(int slot) {
+        return channel == null ? table : page(slot >>> pageShift, true);
+    }
+
+    private synchronized ByteBuffer page(int num, boolean forWrite) {
+        ByteBuffer page = dirtyPages.get(num);
+        if (page != null)
+            return page;
+        page = forWrite ? cleanPages.remove(num) : cleanPages.get(num);
+        if (page == null) {
+            page = ByteBuffer.allocate(pageBytes);
+            try {
+                long position = (long) num * pageBytes;
+                //slots past the end of the file are empty
+                while (page.hasRemaining() && channel.read(page, position + page.position()) >= 0);
+            } catch (IOException e) {
+                //lookups don't declare IOException, the owner unwraps it
+                throw new UncheckedIOException(e);
+            }
+            page.clear();
+            if (!forWrite) {
+                cleanPages.put(num, page);
+                evict();
+            }
+        }
+        if (forWrite)
+            dirtyPages.put(num, page);
+        return page;
+    }
+
+    private void evict() {
+        long excess = memoryBytes() - maxCachedBytes;
+        Iterator<ByteBuffer> eldest = cleanPages.values().iterator();
+        //keep the page just loaded however small the budget
+        while (excess > 0 && cleanPages.size() > 1) {
+            eldest.next();
+            eldest.remove();
+            excess -= pageBytes;
+        }
+    }
+
+    private void copySlot(int from, int to) {
+        ByteBuffer fromPage = readPage(from);
+        ByteBuffer toPage = writePage(to);
+        int fromBase = base(from);
+        int toBase = base(to);
+        for (int i = 0; i < ENTRY_SIZE; i += 4)
+            toPage.putInt(toBase + i, fromPage.getInt(fromBase + i));
+    }
+
+    private static boolean keyEquals(ByteBuffer page, int base, byte[] key) {
+        for (int i = 0; i < KEY_SIZE; i++) {
+            if (page.get(base + i) != key[i])
+                return false;
+        }
+        return true;
+    }
+
+    private int home(ByteBuffer buffer, int offset) {
+        //the multiply leaves the top bits well mixed, xoring in the index first spreads the outputs of one tx
+        long h = (buffer.getLong(offset) ^ buffer.getInt(offset + 32) * 0xC2B2AE3D27D4EB4FL) * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> shift);
+    }
+}
@@ -0,0 +1,419 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.blockstore.utxo;
+
+import io.bitcoinsv.bitcoinjsv.bitcoin.TxActor;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.FullBlock;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.Tx;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.TxInput;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.TxOutPoint;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.TxOutput;
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+import io.bitcoinsv.bitcoinjsv.core.UTXO;
+import io.bitcoinsv.bitcoinjsv.exception.BlockStoreException;
+import io.bitcoinsv.bitcoinjsv.exception.UTXOProviderException;
+import io.bitcoinsv.bitcoinjsv.exception.VerificationException;
+import io.bitcoinsv.bitcoinjsv.utils.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A {@link UTXOStore} persisted to an append-only log of segment files under the given directory, with an off-heap
+ * write-back cache in front of it.
+ * <p>
+ * Connecting a block only touches the cache.  The cache is flushed as one atomic batch, always on a block boundary,
+ * once it grows past its size limit or when {@link #flush()} or {@link #close()} is called, so after a crash the store
+ * reopens at the tip of the last flush.  Outputs created and spent between flushes are never written at all.
+ * <p>
+ * Undo data, the outputs each block spent, is kept for the last {@link #DEFAULT_UNDO_DEPTH} blocks by default so
+ * reorgs up to that depth can be reversed with {@link #disconnectBlock(FullBlock)}.
+ * <p>
+ * The index of every unspent output is kept in a file next to the log and only the pages of it in use are held in
+ * memory, up to {@code indexCacheBytes}, so memory doesn't grow with the UTXO set.  The index is checkpointed
+ * incrementally so reopening only replays what was written since the last checkpoint.
+ * <p>
+ * Lookups run concurrently with each other, connecting and disconnecting blocks take an exclusive lock.  Superseded
+ * records are compacted out of the log in the background, which only takes the exclusive lock to append the records
+ * it moves.
+ */
+public class PersistentUTXOStore implements UTXOStore {
+
+    private static final Logger log = LoggerFactory.getLogger(PersistentUTXOStore.class);
+
+    public static final long DEFAULT_CACHE_BYTES = 256L * 1024 * 1024;
+    public static final long DEFAULT_INDEX_CACHE_BYTES = 256L * 1024 * 1024;
+    public static final int DEFAULT_UNDO_DEPTH = 1000;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final UTXOLog utxoLog;
+    private final UTXOCache cache;
+    private final int undoDepth;
+
+    private final ExecutorService compactionExecutor =
+            Executors.newSingleThreadExecutor(new DaemonThreadFactory("utxo-compaction"));
+    private final AtomicBoolean compactionQueued = new AtomicBoolean();
+
+    //undo data of blocks connected since the last flush, and heights whose flushed undo data should be deleted
+    private final Map<Integer, byte[]> pendingUndo = new HashMap<>();
+    private final Set<Integer> pendingUndoDeletes = new HashSet<>();
+
+    private Sha256Hash bestBlock;
+    private int bestHeight;
+
+    public PersistentUTXOStore(File dir) throws BlockStoreException {
+        this(dir, DEFAULT_CACHE_BYTES, DEFAULT_UNDO_DEPTH);
+    }
+
+    /**
+     * @param cacheBytes direct memory the write-back cache may use before it is flushed
+     * @param undoDepth number of recent blocks whose undo data is kept
+     */
+    public PersistentUTXOStore(File dir, long cacheBytes, int undoDepth) throws BlockStoreException {
+        this(dir, cacheBytes, DEFAULT_INDEX_CACHE_BYTES, undoDepth);
+    }
+
+    /**
+     * @param cacheBytes direct memory the write-back cache may use before it is flushed
+     * @param indexCacheBytes memory the pages of the on-disk index may use
+     * @param undoDepth number of recent blocks whose undo data is kept
+     */
+    public PersistentUTXOStore(File dir, long cacheBytes, long indexCacheBytes, int undoDepth)
+            throws BlockStoreException {
+        this(dir, cacheBytes, indexCacheBytes, undoDepth, UTXOLog.DEFAULT_SEGMENT_SIZE);
+    }
+
+    PersistentUTXOStore(File dir, long cacheBytes, long indexCacheBytes, int undoDepth, long segmentSize)
+            throws BlockStoreException {
+        checkArgument(cacheBytes > 0, "cacheBytes must be positive");
+        checkArgument(undoDepth > 0, "undoDepth must be positive");
+        dir.mkdirs();
+        try {
+            this.utxoLog = new UTXOLog(dir, segmentSize, indexCacheBytes, lock);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        this.cache = new UTXOCache(cacheBytes);
+        this.undoDepth = undoDepth;
+        this.bestBlock = utxoLog.getBestBlock();
+        this.bestHeight = utxoLog.getBestHeight();
+        log.info("Opened UTXO store in {} at height {} with {} outputs", dir, bestHeight, utxoLog.coinCount());
+        queueCompaction();
+    }
+
+    @Override
+    public UTXO getUTXO(Sha256Hash hash, long index) throws UTXOProviderException {
+        byte[] key = UTXOCodec.key(hash, index);
+        byte[] value;
+        lock.readLock().lock();
+        try {
+            value = lookup(key);
+        } catch (IOException e) {
+            throw new UTXOProviderException(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (value == null)
+            return null;
+        try {
+            return UTXOCodec.decode(key, value);
+        } catch (VerificationException e) {
+            //a script that doesn't parse can't be spent
+            throw new UTXOProviderException(e);
+        }
+    }
+
+    @Override
+    public Sha256Hash getBestBlockHash() {
+        lock.readLock().lock();
+        try {
+            return bestBlock;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int getBestHeight() {
+        lock.readLock().lock();
+        try {
+            return bestHeight;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void connectBlock(FullBlock block, int height) throws BlockStoreException {
+        lock.writeLock().lock();
+        try {
+            if (!block.getPrevBlockHash().equals(bestBlock) || height != bestHeight + 1)
+                throw new BlockStoreException("Block " + block.getHash() + " at height " + height
+                        + " does not connect to " + bestBlock + " at height " + bestHeight);
+
+            //stage the whole block first so a missing input leaves the store untouched, null marks a spent output
+            Map<ByteBuffer, byte[]> staged = new HashMap<>();
+            Set<ByteBuffer> created = new HashSet<>();
+            UTXOCodec.BlockUndo undo = new UTXOCodec.BlockUndo(block.getHash());
+            for (Tx tx : block.getTransactions()) {
+                boolean coinbase = TxActor.isCoinBase(tx);
+                if (!coinbase) {
+                    for (TxInput input : tx.getInputs()) {
+                        TxOutPoint outPoint = input.getOutpoint();
+                        byte[] key = UTXOCodec.key(outPoint.getHash(), outPoint.getIndex());
+                        ByteBuffer stagedKey = ByteBuffer.wrap(key);
+                        byte[] value = staged.containsKey(stagedKey) ? staged.get(stagedKey) : lookup(key);
+                        if (value == null)
+                            throw new VerificationException("Transaction " + tx.getHash() + " spends missing output "
+                                    + outPoint.getHash() + ":" + outPoint.getIndex());
+                        staged.put(stagedKey, null);
+                        //outputs created within this block don't need restoring when it is disconnected
+                        if (!created.contains(stagedKey))
+                            undo.add(key, value);
+                    }
+                }
+                List<TxOutput> outputs = tx.getOutputs();
+                for (int i = 0; i < outputs.size(); i++) {
+                    TxOutput output = outputs.get(i);
+                    if (UTXOCodec.isUnspendable(output))
+                        continue;
+                    ByteBuffer key = ByteBuffer.wrap(UTXOCodec.key(tx.getHash(), i));
+                    staged.put(key, UTXOCodec.value(output, height, coinbase));
+                    created.add(key);
+                }
+            }
+
+            for (Map.Entry<ByteBuffer, byte[]> entry : staged.entrySet()) {
+                if (entry.getValue() == null)
+                    spend(entry.getKey().array());
+                else
+                    create(entry.getKey().array(), entry.getValue());
+            }
+            pendingUndo.put(height, UTXOCodec.encodeUndo(undo));
+            pendingUndoDeletes.remove(height);
+            if (height - undoDepth >= 0)
+                deleteUndo(height - undoDepth);
+            bestBlock = block.getHash();
+            bestHeight = height;
+
+            if (cache.isFull())
+                flushLocked();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void disconnectBlock(FullBlock block) throws BlockStoreException {
+        lock.writeLock().lock();
+        try {
+            if (!block.getHash().equals(bestBlock))
+                throw new BlockStoreException("Block " + block.getHash() + " is not the tip " + bestBlock);
+            int height = bestHeight;
+            byte[] undoBytes = pendingUndo.get(height);
+            if (undoBytes == null && !pendingUndoDeletes.contains(height))
+                undoBytes = utxoLog.getUndo(height);
+            if (undoBytes == null)
+                throw new BlockStoreException("No undo data for block " + block.getHash() + " at height " + height);
+            UTXOCodec.BlockUndo undo = UTXOCodec.decodeUndo(undoBytes);
+            if (!undo.blockHash.equals(block.getHash()))
+                throw new BlockStoreException("Undo data at height " + height + " is for block " + undo.blockHash
+                        + " not " + block.getHash());
+
+            for (Tx tx : block.getTransactions()) {
+                List<TxOutput> outputs = tx.getOutputs();
+                for (int i = 0; i < outputs.size(); i++) {
+                    if (!UTXOCodec.isUnspendable(outputs.get(i)))
+                        spend(UTXOCodec.key(tx.getHash(), i));
+                }
+            }
+            for (int i = 0; i < undo.size(); i++)
+                create(undo.keys.get(i), undo.values.get(i));
+            deleteUndo(height);
+            bestBlock = block.getPrevBlockHash();
+            bestHeight = height - 1;
+
+            if (cache.isFull())
+                flushLocked();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void flush() throws BlockStoreException {
+        lock.writeLock().lock();
+        try {
+            flushLocked();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Compacts the log on the calling thread if enough of it is superseded records, waiting for a compaction already
+     * running in the background to finish first.
+     */
+    public void compact() throws IOException {
+        utxoLog.compact();
+    }
+
+    @Override
+    public void close() throws IOException {
+        //compaction takes the lock, so wait for it to stop before taking it here
+        utxoLog.stopCompaction();
+        compactionExecutor.shutdown();
+        try {
+            compactionExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.writeLock().lock();
+        try {
+            flushLocked();
+            utxoLog.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return direct memory used by the write-back cache.
+     */
+    public long getCacheBytes() {
+        lock.readLock().lock();
+        try {
+            return cache.getBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return memory held by the pages of the on-disk index.
+     */
+    public long getIndexMemoryBytes() {
+        lock.readLock().lock();
+        try {
+            return utxoLog.indexMemoryBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private byte[] lookup(byte[] key) throws IOException {
+        int slot = cache.find(key);
+        if (slot >= 0)
+            return cache.isPresent(slot) ? cache.getValue(slot) : null;
+        return utxoLog.get(key);
+    }
+
+    private void create(byte[] key, byte[] value) throws IOException {
+        int slot = cache.find(key);
+        if (slot >= 0) {
+            int flags = cache.getFlags(slot);
+            if ((flags & UTXOCache.PRESENT) != 0 || (flags & UTXOCache.DIRTY) != 0) {
+                //an overwritten output, or one whose deletion hasn't been written, is still in the log
+                cache.put(key, value, UTXOCache.DIRTY | (flags & UTXOCache.FRESH));
+            } else {
+                //known not to be in the log
+                cache.put(key, value, UTXOCache.DIRTY | UTXOCache.FRESH);
+            }
+        } else {
+            int fresh = utxoLog.contains(key) ? 0 : UTXOCache.FRESH;
+            cache.put(key, value, UTXOCache.DIRTY | fresh);
+        }
+    }
+
+    private void spend(byte[] key) throws IOException {
+        int slot = cache.find(key);
+        if (slot >= 0) {
+            int flags = cache.getFlags(slot);
+            if ((flags & UTXOCache.FRESH) != 0)
+                cache.remove(slot);
+            else if ((flags & UTXOCache.PRESENT) != 0)
+                cache.putSpent(key);
+        } else if (utxoLog.contains(key)) {
+            cache.putSpent(key);
+        }
+    }
+
+    private void deleteUndo(int height) {
+        if (pendingUndo.remove(height) == null)
+            pendingUndoDeletes.add(height);
+    }
+
+    private void flushLocked() throws IOException {
+        UTXOLog.Batch batch = new UTXOLog.Batch();
+        for (int slot = 0; slot < cache.capacity(); slot++) {
+            if (!cache.isUsed(slot) || (cache.getFlags(slot) & UTXOCache.DIRTY) == 0)
+                continue;
+            if (cache.isPresent(slot))
+                batch.putCoin(cache.getKey(slot), cache.getValue(slot));
+            else
+                batch.deleteCoin(cache.getKey(slot));
+        }
+        for (Map.Entry<Integer, byte[]> entry : pendingUndo.entrySet())
+            batch.putUndo(entry.getKey(), entry.getValue());
+        for (int height : pendingUndoDeletes)
+            batch.deleteUndo(height);
+        if (batch.size() == 0 && bestBlock.equals(utxoLog.getBestBlock()))
+            return;
+
+        long start = System.currentTimeMillis();
+        utxoLog.write(batch, bestBlock, bestHeight);
+        pendingUndo.clear();
+        pendingUndoDeletes.clear();
+        if (cache.isFull()) {
+            cache.clear();
+        } else {
+            //keep the entries for reads, they now match the log
+            for (int slot = 0; slot < cache.capacity(); slot++) {
+                if (cache.isUsed(slot))
+                    cache.markClean(slot);
+            }
+        }
+        if (log.isDebugEnabled())
+            log.debug("Flushed {} UTXO changes at height {} in {}ms", batch.size(), bestHeight,
+                    System.currentTimeMillis() - start);
+        queueCompaction();
+    }
+
+    //called with the lock held, not once closing has begun
+    private void queueCompaction() {
+        if (compactionExecutor.isShutdown() || !utxoLog.needsCompaction()
+                || !compactionQueued.compareAndSet(false, true))
+            return;
+        compactionExecutor.execute(() -> {
+            compactionQueued.set(false);
+            try {
+                utxoLog.compact();
+            } catch (IOException e) {
+                log.warn("Failed to compact UTXO log", e);
+            }
+        });
+    }
+}
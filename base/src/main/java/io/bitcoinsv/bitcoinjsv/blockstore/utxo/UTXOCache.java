@@ -0,0 +1,135 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.blockstore.utxo;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write-back cache of UTXO changes that haven't been flushed to the {@link UTXOLog} yet.  Entries live in an
+ * {@link OutPointTable} and their values in direct memory chunks, so a cache of a few hundred MB adds nothing to the
+ * heap.
+ * <p>
+ * An entry is either a present output or a spent one whose deletion still has to be written.  Outputs created since
+ * the last flush are marked fresh, if they are spent before the next flush they are simply dropped and never reach
+ * the disk.
+ */
+class UTXOCache {
+
+    static final int PRESENT = 2;
+    static final int DIRTY = 4;
+    static final int FRESH = 8;
+
+    private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private final long maxBytes;
+    private final int chunkSize;
+    private final OutPointTable table;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private long chunkBytes;
+
+    UTXOCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.chunkSize = (int) Math.max(4096, Math.min(MAX_CHUNK_SIZE, maxBytes / 8));
+        this.table = new OutPointTable((int) Math.min(1 << 16, maxBytes / 8 / 48));
+    }
+
+    /**
+     * @return the slot for the key or -1 if the cache knows nothing about it.
+     */
+    int find(byte[] key) {
+        return table.find(key);
+    }
+
+    boolean isPresent(int slot) {
+        return (table.getFlags(slot) & PRESENT) != 0;
+    }
+
+    int getFlags(int slot) {
+        return table.getFlags(slot);
+    }
+
+    byte[] getKey(int slot) {
+        return table.getKey(slot);
+    }
+
+    byte[] getValue(int slot) {
+        long location = table.getValue(slot);
+        ByteBuffer chunk = chunks.get((int) (location >>> 32)).duplicate();
+        int offset = (int) location;
+        byte[] value = new byte[chunk.getInt(offset)];
+        chunk.position(offset + 4);
+        chunk.get(value);
+        return value;
+    }
+
+    void put(byte[] key, byte[] value, int flags) {
+        table.put(key, store(value), flags | PRESENT);
+    }
+
+    /**
+     * Records that a previously flushed output has been spent.
+     */
+    void putSpent(byte[] key) {
+        table.put(key, 0, DIRTY);
+    }
+
+    /**
+     * Clears the dirty and fresh flags once the entry has been written to the log.
+     */
+    void markClean(int slot) {
+        table.setFlags(slot, table.getFlags(slot) & PRESENT);
+    }
+
+    void remove(int slot) {
+        table.removeSlot(slot);
+    }
+
+    int capacity() {
+        return table.capacity();
+    }
+
+    boolean isUsed(int slot) {
+        return table.isUsed(slot);
+    }
+
+    int size() {
+        return table.size();
+    }
+
+    /**
+     * @return direct memory used by the entries and values.
+     */
+    long getBytes() {
+        return table.memoryBytes() + chunkBytes;
+    }
+
+    boolean isFull() {
+        return getBytes() > maxBytes;
+    }
+
+    /**
+     * Drops everything, the caller must have flushed dirty entries first.
+     */
+    void clear() {
+        table.clear();
+        chunks.clear();
+        chunkBytes = 0;
+    }
+
+    private long store(byte[] value) {
+        int needed = 4 + value.length;
+        ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (chunk == null || chunk.remaining() < needed) {
+            chunk = ByteBuffer.allocateDirect(Math.max(chunkSize, needed));
+            chunks.add(chunk);
+            chunkBytes += chunk.capacity();
+        }
+        int offset = chunk.position();
+        chunk.putInt(value.length).put(value);
+        return ((long) (chunks.size() - 1) << 32) | offset;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.blockstore.utxo;
+
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.TxOutput;
+import io.bitcoinsv.bitcoinjsv.core.Coin;
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+import io.bitcoinsv.bitcoinjsv.core.UTXO;
+import io.bitcoinsv.bitcoinjsv.core.Utils;
+import io.bitcoinsv.bitcoinjsv.core.VarInt;
+import io.bitcoinsv.bitcoinjsv.script.Script;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact encodings used by the UTXO store.
+ * <p>
+ * A key is the 32 byte tx hash followed by the output index as a 4 byte little endian int.  A value is
+ * varint(height &lt;&lt; 1 | coinbase), varint(satoshis) and then the script bytes, whose length is implied by the
+ * length of the value.  Undo data for a block is the block hash, a varint count and then each spent output as its key,
+ * a varint value length and the value.
+ */
+public final class UTXOCodec {
+
+    public static final int KEY_SIZE = 36;
+
+    private UTXOCodec() {
+    }
+
+    public static byte[] key(Sha256Hash hash, long index) {
+        byte[] key = new byte[KEY_SIZE];
+        System.arraycopy(hash.getBytes(), 0, key, 0, 32);
+        Utils.uint32ToByteArrayLE(index, key, 32);
+        return key;
+    }
+
+    public static Sha256Hash keyHash(byte[] key) {
+        byte[] hash = new byte[32];
+        System.arraycopy(key, 0, hash, 0, 32);
+        return Sha256Hash.wrap(hash);
+    }
+
+    public static long keyIndex(byte[] key) {
+        return Utils.readUint32(key, 32);
+    }
+
+    public static byte[] value(TxOutput output, int height, boolean coinbase) {
+        byte[] script = output.getScriptBytes();
+        long heightAndCoinbase = ((long) height << 1) | (coinbase ? 1 : 0);
+        long satoshis = output.getValue().value;
+        byte[] value = new byte[VarInt.sizeOf(heightAndCoinbase) + VarInt.sizeOf(satoshis) + script.length];
+        int offset = writeVarInt(heightAndCoinbase, value, 0);
+        offset = writeVarInt(satoshis, value, offset);
+        System.arraycopy(script, 0, value, offset, script.length);
+        return value;
+    }
+
+    public static UTXO decode(byte[] key, byte[] value) {
+        VarInt heightAndCoinbase = new VarInt(value, 0);
+        int offset = heightAndCoinbase.getOriginalSizeInBytes();
+        VarInt satoshis = new VarInt(value, offset);
+        offset += satoshis.getOriginalSizeInBytes();
+        byte[] script = new byte[value.length - offset];
+        System.arraycopy(value, offset, script, 0, script.length);
+        return new UTXO(keyHash(key), keyIndex(key), Coin.valueOf(satoshis.value),
+                (int) (heightAndCoinbase.value >>> 1), (heightAndCoinbase.value & 1) == 1, new Script(script));
+    }
+
+    /**
+     * Outputs starting with OP_FALSE OP_RETURN can never be spent so are not stored.
+     */
+    public static boolean isUnspendable(TxOutput output) {
+        byte[] script = output.getScriptBytes();
+        return script.length >= 2 && script[0] == 0 && script[1] == 0x6a;
+    }
+
+    /**
+     * The outputs a block spent, in the order they were spent.
+     */
+    public static class BlockUndo {
+        public final Sha256Hash blockHash;
+        public final List<byte[]> keys;
+        public final List<byte[]> values;
+
+        public BlockUndo(Sha256Hash blockHash) {
+            this(blockHash, new ArrayList<>(), new ArrayList<>());
+        }
+
+        private BlockUndo(Sha256Hash blockHash, List<byte[]> keys, List<byte[]> values) {
+            this.blockHash = blockHash;
+            this.keys = keys;
+            this.values = values;
+        }
+
+        public void add(byte[] key, byte[] value) {
+            keys.add(key);
+            values.add(value);
+        }
+
+        public int size() {
+            return keys.size();
+        }
+    }
+
+    public static byte[] encodeUndo(BlockUndo undo) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(undo.blockHash.getBytes(), 0, 32);
+        byte[] count = new VarInt(undo.size()).encode();
+        out.write(count, 0, count.length);
+        for (int i = 0; i < undo.size(); i++) {
+            byte[] value = undo.values.get(i);
+            byte[] length = new VarInt(value.length).encode();
+            out.write(undo.keys.get(i), 0, KEY_SIZE);
+            out.write(length, 0, length.length);
+            out.write(value, 0, value.length);
+        }
+        return out.toByteArray();
+    }
+
+    public static BlockUndo decodeUndo(byte[] bytes) {
+        byte[] hash = new byte[32];
+        System.arraycopy(bytes, 0, hash, 0, 32);
+        VarInt count = new VarInt(bytes, 32);
+        int offset = 32 + count.getOriginalSizeInBytes();
+        BlockUndo undo = new BlockUndo(Sha256Hash.wrap(hash));
+        for (long i = 0; i < count.value; i++) {
+            byte[] key = new byte[KEY_SIZE];
+            System.arraycopy(bytes, offset, key, 0, KEY_SIZE);
+            offset += KEY_SIZE;
+            VarInt length = new VarInt(bytes, offset);
+            offset += length.getOriginalSizeInBytes();
+            byte[] value = new byte[(int) length.value];
+            System.arraycopy(bytes, offset, value, 0, value.length);
+            offset += value.length;
+            undo.add(key, value);
+        }
+        return undo;
+    }
+
+    private static int writeVarInt(long value, byte[] out, int offset) {
+        byte[] encoded = new VarInt(value).encode();
+        System.arraycopy(encoded, 0, out, offset, encoded.length);
+        return offset + encoded.length;
+    }
+}
@@ -0,0 +1,981 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.blockstore.utxo;
+
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The persistent half of the UTXO store.  Changes are appended to a log of segment files as batches, each carrying
+ * the chain tip it brings the set up to and a CRC so a batch torn by a crash is detected and truncated on the next
+ * open.  A batch is therefore applied entirely or not at all.
+ * <p>
+ * Values stay in the log, the index of outpoint to log position is an {@link OutPointTable} in a file of its own of
+ * which only the pages in use are held in memory, up to the given budget.  The index is checkpointed incrementally:
+ * the pages changed since the last checkpoint go to a journal that is synced before they are written in place, so a
+ * crash part way through is finished from the journal on the next open.  A checkpoint is written whenever the changed
+ * pages reach half the budget, the log has grown by {@link #MIN_CHECKPOINT_GAP} since the last one and on close.  On
+ * open only the batches written after the checkpoint are replayed.  A checkpoint that is damaged or doesn't match the
+ * log is ignored and the index rebuilt from the whole log.
+ * <p>
+ * Once the log is more than twice the size of the records still live, {@link #compact()} moves the live records of the
+ * oldest segments to the head of the log and deletes them.  Always taking the oldest keeps the whole log replayable,
+ * a deletion dropped with a segment can't have anything left in an earlier one to delete.
+ * <p>
+ * The caller passes in the lock that guards the log and holds it, the read lock for reads and the write lock for
+ * writes.  Compaction takes it itself.
+ */
+class UTXOLog implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(UTXOLog.class);
+
+    private static final int BATCH_MAGIC = 0x5554584f;
+    //magic, payload length
+    private static final int BATCH_HEADER_SIZE = 8;
+    private static final int BATCH_TRAILER_SIZE = 8;
+
+    private static final byte PUT_COIN = 1;
+    private static final byte DELETE_COIN = 2;
+    private static final byte PUT_UNDO = 3;
+    private static final byte DELETE_UNDO = 4;
+
+    //a position is the segment number above the offset in it, a value's length is kept above its position in the
+    //index and larger values are read from the file
+    private static final int OFFSET_BITS = 32;
+    private static final int POSITION_BITS = 54;
+    private static final long MAX_INDEXED_LENGTH = (1L << (64 - POSITION_BITS)) - 1;
+    private static final int MAX_SEGMENT_NUM = (1 << (POSITION_BITS - OFFSET_BITS)) - 1;
+
+    static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    //compaction reads this much of a segment at a time and takes the write lock once for each
+    private static final int COMPACTION_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final int INITIAL_INDEX_CAPACITY = 2048;
+
+    private static final int CHECKPOINT_MAGIC = 0x55545843;
+    private static final int CHECKPOINT_VERSION = 2;
+    //magic, version, log position, last batch crc, live bytes, best block, best height, index capacity and count,
+    //undo count
+    private static final int CHECKPOINT_HEADER_SIZE = 80;
+    private static final int CHECKPOINT_UNDO_SIZE = 12;
+    static final long MIN_CHECKPOINT_GAP = 64 * 1024 * 1024;
+
+    private static final int JOURNAL_MAGIC = 0x5554584a;
+    //magic, index capacity, page count, checkpoint length
+    private static final int JOURNAL_HEADER_SIZE = 16;
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("utxo(\\d{7})\\.log");
+    private static final Pattern INDEX_NAME = Pattern.compile("utxo-(\\d+)\\.index");
+
+    private final File dir;
+    private final File checkpointFile;
+    private final File journalFile;
+    private final long maxSegmentSize;
+    private final long indexCacheBytes;
+    private final ReadWriteLock lock;
+
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private long totalSize;
+    private long liveBytes;
+    //the crc of the batch ending at the head of the log, a checkpoint only matches the log if that batch is still there
+    private long lastBatchCrc;
+    private long checkpointPosition = -1;
+    private long bytesSinceCheckpoint;
+
+    private FileChannel indexChannel;
+    private OutPointTable coins;
+    private Map<Integer, Long> undo = new HashMap<>();
+
+    private Sha256Hash bestBlock = Sha256Hash.ZERO_HASH;
+    private int bestHeight = -1;
+
+    //only one compaction runs at a time
+    private final ReentrantLock compactionLock = new ReentrantLock();
+    private volatile boolean stopCompaction;
+
+    /**
+     * @param maxSegmentSize a new segment is started once the head one would grow past this
+     * @param indexCacheBytes memory the index pages may take
+     * @param lock guards the log, see the class comment
+     */
+    UTXOLog(File dir, long maxSegmentSize, long indexCacheBytes, ReadWriteLock lock) throws IOException {
+        checkArgument(maxSegmentSize > BATCH_HEADER_SIZE + BATCH_TRAILER_SIZE && maxSegmentSize < 1L << OFFSET_BITS,
+                "maxSegmentSize is out of range");
+        checkArgument(indexCacheBytes > 0, "indexCacheBytes must be positive");
+        this.dir = dir;
+        this.checkpointFile = new File(dir, "utxo.checkpoint");
+        this.journalFile = new File(dir, "utxo.journal");
+        this.maxSegmentSize = maxSegmentSize;
+        this.indexCacheBytes = indexCacheBytes;
+        this.lock = lock;
+
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Matcher m = SEGMENT_NAME.matcher(file.getName());
+                if (m.matches()) {
+                    Segment segment = new Segment(Integer.parseInt(m.group(1)), file);
+                    segments.put(segment.num, segment);
+                    totalSize += segment.size;
+                }
+            }
+        }
+        if (segments.isEmpty())
+            newSegment(0);
+        active = segments.lastEntry().getValue();
+
+        finishJournal();
+        long position = loadCheckpoint();
+        if (position < 0) {
+            resetIndex();
+            position = position(segments.firstKey(), 0);
+        }
+        replay(position);
+        deleteStaleIndexes();
+    }
+
+    /**
+     * A set of changes applied atomically.
+     */
+    static class Batch {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private int ops;
+
+        void putCoin(byte[] key, byte[] value) throws IOException {
+            out.writeByte(PUT_COIN);
+            out.write(key);
+            out.writeInt(value.length);
+            out.write(value);
+            ops++;
+        }
+
+        void deleteCoin(byte[] key) throws IOException {
+            out.writeByte(DELETE_COIN);
+            out.write(key);
+            ops++;
+        }
+
+        void putUndo(int height, byte[] value) throws IOException {
+            out.writeByte(PUT_UNDO);
+            out.writeInt(height);
+            out.writeInt(value.length);
+            out.write(value);
+            ops++;
+        }
+
+        void deleteUndo(int height) throws IOException {
+            out.writeByte(DELETE_UNDO);
+            out.writeInt(height);
+            ops++;
+        }
+
+        int size() {
+            return ops;
+        }
+
+        int byteSize() {
+            return bytes.size();
+        }
+    }
+
+    private static class Segment {
+        final int num;
+        final File file;
+        final FileChannel channel;
+        //only changes while it is the head of the log
+        long size;
+
+        Segment(int num, File file) throws IOException {
+            this.num = num;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+    }
+
+    /**
+     * A record read from a segment being compacted.
+     */
+    private static class Record {
+        final byte type;
+        final byte[] key;
+        final int height;
+        final byte[] value;
+        final long location;
+
+        Record(byte type, byte[] key, int height, byte[] value, long location) {
+            this.type = type;
+            this.key = key;
+            this.height = height;
+            this.value = value;
+            this.location = location;
+        }
+    }
+
+    Sha256Hash getBestBlock() {
+        return bestBlock;
+    }
+
+    int getBestHeight() {
+        return bestHeight;
+    }
+
+    int coinCount() {
+        return coins.size();
+    }
+
+    /**
+     * @return total size of the log segments.
+     */
+    long fileSize() {
+        return totalSize;
+    }
+
+    /**
+     * @return memory held by the index.
+     */
+    long indexMemoryBytes() {
+        return coins.memoryBytes();
+    }
+
+    boolean contains(byte[] key) throws IOException {
+        try {
+            return coins.find(key) >= 0;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    byte[] get(byte[] key) throws IOException {
+        try {
+            int slot = coins.find(key);
+            return slot < 0 ? null : readValue(coins.getValue(slot));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    byte[] getUndo(int height) throws IOException {
+        Long location = undo.get(height);
+        return location == null ? null : readValue(location);
+    }
+
+    /**
+     * Appends the batch and forces it to disk.  The index is only updated once the write has succeeded.
+     */
+    void write(Batch batch, Sha256Hash bestBlock, int bestHeight) throws IOException {
+        batch.out.flush();
+        byte[] ops = batch.bytes.toByteArray();
+        ByteBuffer payload = ByteBuffer.allocate(32 + 8 + ops.length);
+        payload.put(bestBlock.getBytes()).putInt(bestHeight).putInt(batch.ops).put(ops);
+        long length = BATCH_HEADER_SIZE + payload.capacity() + BATCH_TRAILER_SIZE;
+        if (length >= 1L << OFFSET_BITS)
+            throw new IOException("Batch of " + length + " bytes is too large for " + dir);
+        try {
+            growIndex(batch.ops);
+            if (active.size > 0 && (active.size + length > maxSegmentSize || active.size + length >= 1L << OFFSET_BITS))
+                newSegment(active.num + 1);
+            long start = active.size;
+            long crc = appendBatch(active.channel, start, payload.array());
+            active.channel.force(false);
+            active.size += length;
+            totalSize += length;
+            bytesSinceCheckpoint += length;
+            lastBatchCrc = crc;
+            apply(payload.array(), position(active.num, start + BATCH_HEADER_SIZE));
+            if (coins.dirtyBytes() > indexCacheBytes / 2 || bytesSinceCheckpoint > MIN_CHECKPOINT_GAP)
+                writeCheckpoint();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @return true if enough of the log is superseded records for {@link #compact()} to do something.  Called with the
+     * lock held.
+     */
+    boolean needsCompaction() {
+        return segments.size() > 1 && totalSize > 2 * maxSegmentSize && totalSize > liveBytes * 2;
+    }
+
+    /**
+     * Moves the live records out of the oldest segments to the head of the log and deletes them, for as long as
+     * {@link #needsCompaction()}.  The calling thread mustn't hold the lock: a segment is read without it, the read
+     * lock is held while picking out the records that are still live and the write lock only while those are
+     * appended, a chunk of the segment at a time.  Waits for a compaction already running to finish first.
+     */
+    void compact() throws IOException {
+        compactionLock.lock();
+        try {
+            while (!stopCompaction) {
+                Segment oldest;
+                lock.readLock().lock();
+                try {
+                    if (!needsCompaction())
+                        return;
+                    oldest = segments.firstEntry().getValue();
+                } finally {
+                    lock.readLock().unlock();
+                }
+                compact(oldest);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Makes {@link #compact()} return soon, the log can't be compacted again once this is called.
+     */
+    void stopCompaction() {
+        stopCompaction = true;
+    }
+
+    //the segment is sealed and only compaction deletes segments, so it can be read without the lock
+    private void compact(Segment segment) throws IOException {
+        long before = totalSize;
+        long offset = 0;
+        while (offset < segment.size && !stopCompaction) {
+            List<Record> records = new ArrayList<>();
+            offset = readRecords(segment, offset, records);
+            lock.readLock().lock();
+            try {
+                records.removeIf(record -> !isLive(record));
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (records.isEmpty())
+                continue;
+            lock.writeLock().lock();
+            try {
+                if (stopCompaction)
+                    return;
+                //checked again now nothing can change them
+                Batch batch = new Batch();
+                for (Record record : records) {
+                    if (!isLive(record))
+                        continue;
+                    if (record.type == PUT_COIN)
+                        batch.putCoin(record.key, record.value);
+                    else
+                        batch.putUndo(record.height, record.value);
+                }
+                if (batch.size() > 0)
+                    write(batch, bestBlock, bestHeight);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            if (stopCompaction)
+                return;
+            //nothing in the index refers to the segment now, the checkpoint mustn't either
+            writeCheckpoint();
+            segments.remove(segment.num);
+            totalSize -= segment.size;
+            segment.channel.close();
+            Files.delete(segment.file.toPath());
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info("Compacted {} out of {}, log is down from {} to {} bytes", segment.file.getName(), dir, before,
+                totalSize);
+    }
+
+    private boolean isLive(Record record) {
+        if (record.type == PUT_COIN) {
+            int slot = coins.find(record.key);
+            return slot >= 0 && coins.getValue(slot) == record.location;
+        }
+        Long location = undo.get(record.height);
+        return location != null && location == record.location;
+    }
+
+    /**
+     * Reads the coin and undo records out of whole batches from the offset, about {@link #COMPACTION_CHUNK_SIZE}
+     * bytes of them.
+     *
+     * @return the offset after the last batch read.
+     */
+    private long readRecords(Segment segment, long offset, List<Record> records) throws IOException {
+        long start = offset;
+        ByteBuffer header = ByteBuffer.allocate(BATCH_HEADER_SIZE);
+        while (offset < segment.size && (offset == start || offset - start < COMPACTION_CHUNK_SIZE)) {
+            header.clear();
+            readFully(segment.channel, header, offset, segment.file);
+            int length = header.getInt(4);
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(segment.channel, payload, offset + BATCH_HEADER_SIZE, segment.file);
+            long payloadPosition = position(segment.num, offset + BATCH_HEADER_SIZE);
+            ByteBuffer in = ByteBuffer.wrap(payload.array());
+            in.position(36);
+            int ops = in.getInt();
+            for (int i = 0; i < ops; i++) {
+                byte type = in.get();
+                switch (type) {
+                    case PUT_COIN: {
+                        byte[] key = new byte[UTXOCodec.KEY_SIZE];
+                        in.get(key);
+                        long location = location(payloadPosition + in.position(), in.getInt(in.position()));
+                        byte[] value = new byte[in.getInt()];
+                        in.get(value);
+                        records.add(new Record(type, key, 0, value, location));
+                        break;
+                    }
+                    case DELETE_COIN:
+                        in.position(in.position() + UTXOCodec.KEY_SIZE);
+                        break;
+                    case PUT_UNDO: {
+                        int height = in.getInt();
+                        long location = location(payloadPosition + in.position(), in.getInt(in.position()));
+                        byte[] value = new byte[in.getInt()];
+                        in.get(value);
+                        records.add(new Record(type, null, height, value, location));
+                        break;
+                    }
+                    case DELETE_UNDO:
+                        in.getInt();
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown UTXO log op " + type + " in " + segment.file);
+                }
+            }
+            offset += BATCH_HEADER_SIZE + length + BATCH_TRAILER_SIZE;
+        }
+        return offset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        stopCompaction();
+        try {
+            if (headPosition() != checkpointPosition)
+                writeCheckpoint();
+        } finally {
+            for (Segment segment : segments.values())
+                segment.channel.close();
+            indexChannel.close();
+        }
+    }
+
+    private void newSegment(int num) throws IOException {
+        if (num > MAX_SEGMENT_NUM)
+            throw new IOException("Out of segment numbers in " + dir);
+        Segment segment = new Segment(num, new File(dir, String.format("utxo%07d.log", num)));
+        segments.put(num, segment);
+        active = segment;
+    }
+
+    private long headPosition() {
+        return position(active.num, active.size);
+    }
+
+    private static long position(int segment, long offset) {
+        return ((long) segment << OFFSET_BITS) | offset;
+    }
+
+    private File indexFile(int capacity) {
+        return new File(dir, "utxo-" + capacity + ".index");
+    }
+
+    /**
+     * @return the crc written in the batch's trailer.
+     */
+    private static long appendBatch(FileChannel channel, long position, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(BATCH_HEADER_SIZE + payload.length + BATCH_TRAILER_SIZE);
+        buffer.putInt(BATCH_MAGIC).putInt(payload.length).put(payload).putLong(crc.getValue()).flip();
+        writeFully(channel, buffer, position);
+        return crc.getValue();
+    }
+
+    /**
+     * Applies the batches from the given position, which must be the start of a batch, to the end of the log.
+     * Anything after the last complete batch is truncated, along with any later segments.
+     */
+    private void replay(long from) throws IOException {
+        int first = (int) (from >>> OFFSET_BITS);
+        boolean torn = false;
+        for (Segment segment : new ArrayList<>(segments.tailMap(first, true).values())) {
+            if (torn) {
+                log.warn("Deleting {} which follows an incomplete batch", segment.file);
+                segments.remove(segment.num);
+                totalSize -= segment.size;
+                segment.channel.close();
+                Files.delete(segment.file.toPath());
+                continue;
+            }
+            long fileSize = segment.size;
+            long position = segment.num == first ? from & ((1L << OFFSET_BITS) - 1) : 0;
+            //the head of the log moves through the segments as they are replayed, for any checkpoint written meanwhile
+            active = segment;
+            segment.size = position;
+            ByteBuffer header = ByteBuffer.allocate(BATCH_HEADER_SIZE);
+            while (position + BATCH_HEADER_SIZE + BATCH_TRAILER_SIZE <= fileSize) {
+                header.clear();
+                readFully(segment.channel, header, position, segment.file);
+                int magic = header.getInt(0);
+                int length = header.getInt(4);
+                if (magic != BATCH_MAGIC || length < 40
+                        || position + BATCH_HEADER_SIZE + length + BATCH_TRAILER_SIZE > fileSize)
+                    break;
+                ByteBuffer payload = ByteBuffer.allocate(length + BATCH_TRAILER_SIZE);
+                readFully(segment.channel, payload, position + BATCH_HEADER_SIZE, segment.file);
+                CRC32 crc = new CRC32();
+                crc.update(payload.array(), 0, length);
+                if (crc.getValue() != payload.getLong(length))
+                    break;
+                growIndex(payload.getInt(36));
+                apply(payload.array(), position(segment.num, position + BATCH_HEADER_SIZE));
+                lastBatchCrc = crc.getValue();
+                position += BATCH_HEADER_SIZE + length + BATCH_TRAILER_SIZE;
+                segment.size = position;
+                bytesSinceCheckpoint += BATCH_HEADER_SIZE + length + BATCH_TRAILER_SIZE;
+                if (coins.dirtyBytes() > indexCacheBytes / 2)
+                    writeCheckpoint();
+            }
+            if (position < fileSize) {
+                log.warn("Truncating incomplete batch at {} of {} in {}", position, fileSize, segment.file);
+                segment.channel.truncate(position);
+                segment.channel.force(true);
+                totalSize -= fileSize - position;
+                torn = true;
+            }
+        }
+        active = segments.lastEntry().getValue();
+    }
+
+    /**
+     * Moves the index to a larger file if the given number of puts could take it past its maximum load.  Only called
+     * between batches, the new index is checkpointed straight away.
+     */
+    private void growIndex(int puts) throws IOException {
+        if (coins.size() + (long) puts <= coins.capacity() * OutPointTable.MAX_LOAD)
+            return;
+        int capacity = Math.max(coins.capacity() << 1, OutPointTable.capacityFor(coins.size() + (long) puts));
+        long start = System.currentTimeMillis();
+        File file = indexFile(capacity);
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        File oldFile = indexFile(coins.capacity());
+        FileChannel oldChannel = indexChannel;
+        try {
+            OutPointTable grown = OutPointTable.open(channel, capacity, 0, indexCacheBytes);
+            coins.copyTo(grown);
+            grown.writeDirty();
+            channel.force(true);
+            coins = grown;
+            indexChannel = channel;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            Files.deleteIfExists(file.toPath());
+            throw e;
+        }
+        //the old index is current until the checkpoint says otherwise
+        writeCheckpoint();
+        oldChannel.close();
+        Files.deleteIfExists(oldFile.toPath());
+        log.info("Grew the UTXO index in {} to {} slots in {}ms", dir, capacity, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Starts an empty index, for replaying the whole log.
+     */
+    private void resetIndex() throws IOException {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (INDEX_NAME.matcher(file.getName()).matches())
+                    Files.delete(file.toPath());
+            }
+        }
+        indexChannel = FileChannel.open(indexFile(INITIAL_INDEX_CAPACITY).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        coins = OutPointTable.open(indexChannel, INITIAL_INDEX_CAPACITY, 0, indexCacheBytes);
+        undo = new HashMap<>();
+        liveBytes = 0;
+        lastBatchCrc = 0;
+        bestBlock = Sha256Hash.ZERO_HASH;
+        bestHeight = -1;
+    }
+
+    //index files left by a crash while growing
+    private void deleteStaleIndexes() throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            Matcher m = INDEX_NAME.matcher(file.getName());
+            if (m.matches() && Integer.parseInt(m.group(1)) != coins.capacity())
+                Files.delete(file.toPath());
+        }
+    }
+
+    /**
+     * Picks the index up from the last checkpoint if there is a usable one.  The checkpoint is ignored if its checksum
+     * doesn't match, its index file is missing or the log no longer ends a batch where the checkpoint does with the
+     * same crc.
+     *
+     * @return the log position to replay from or -1 if the whole log must be replayed.
+     */
+    private long loadCheckpoint() {
+        if (!checkpointFile.exists())
+            return -1;
+        FileChannel channel = null;
+        try {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(checkpointFile.toPath()));
+            if (in.remaining() < CHECKPOINT_HEADER_SIZE + 8)
+                throw new IOException("checkpoint is truncated");
+            if (in.getInt() != CHECKPOINT_MAGIC || in.getInt() != CHECKPOINT_VERSION)
+                throw new IOException("unrecognised checkpoint format");
+            long position = in.getLong();
+            long batchCrc = in.getLong();
+            long checkpointLiveBytes = in.getLong();
+            byte[] hash = new byte[32];
+            in.get(hash);
+            int height = in.getInt();
+            int capacity = in.getInt();
+            int count = in.getInt();
+            int undoCount = in.getInt();
+            if (undoCount < 0 || in.capacity() != CHECKPOINT_HEADER_SIZE + (long) undoCount * CHECKPOINT_UNDO_SIZE + 8)
+                throw new IOException("checkpoint is truncated");
+            CRC32 crc = new CRC32();
+            crc.update(in.array(), 0, in.capacity() - 8);
+            if (in.getLong(in.capacity() - 8) != crc.getValue())
+                throw new IOException("checksum mismatch");
+            Map<Integer, Long> checkpointUndo = new HashMap<>();
+            for (int i = 0; i < undoCount; i++)
+                checkpointUndo.put(in.getInt(), in.getLong());
+
+            Segment segment = segments.get((int) (position >>> OFFSET_BITS));
+            long offset = position & ((1L << OFFSET_BITS) - 1);
+            if (segment == null || offset > segment.size)
+                throw new IOException("log is shorter than the checkpoint");
+            if (offset > 0) {
+                ByteBuffer trailer = ByteBuffer.allocate(BATCH_TRAILER_SIZE);
+                readFully(segment.channel, trailer, offset - BATCH_TRAILER_SIZE, segment.file);
+                if (trailer.getLong(0) != batchCrc)
+                    throw new IOException("log does not match the checkpoint");
+            }
+            File file = indexFile(capacity);
+            if (!file.exists())
+                throw new IOException(file.getName() + " is missing");
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            coins = OutPointTable.open(channel, capacity, count, indexCacheBytes);
+            indexChannel = channel;
+            undo = checkpointUndo;
+            liveBytes = checkpointLiveBytes;
+            bestBlock = Sha256Hash.wrap(hash);
+            bestHeight = height;
+            lastBatchCrc = batchCrc;
+            checkpointPosition = position;
+            return position;
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Ignoring checkpoint {}, replaying the whole log: {}", checkpointFile, e.getMessage());
+            try {
+                if (channel != null)
+                    channel.close();
+            } catch (IOException ignored) {
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Checkpoints the index at the head of the log.  The changed index pages are written to a journal that is synced
+     * before they are written in place, then the checkpoint itself goes to a temporary file that is synced and
+     * atomically moved over the last one.  The log is already forced by {@link #write}.
+     */
+    private void writeCheckpoint() throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(CHECKPOINT_HEADER_SIZE + undo.size() * CHECKPOINT_UNDO_SIZE + 8);
+        record.putInt(CHECKPOINT_MAGIC).putInt(CHECKPOINT_VERSION).putLong(headPosition()).putLong(lastBatchCrc)
+                .putLong(liveBytes).put(bestBlock.getBytes()).putInt(bestHeight).putInt(coins.capacity())
+                .putInt(coins.size()).putInt(undo.size());
+        for (Map.Entry<Integer, Long> entry : undo.entrySet())
+            record.putInt(entry.getKey()).putLong(entry.getValue());
+        CRC32 recordCrc = new CRC32();
+        recordCrc.update(record.array(), 0, record.position());
+        record.putLong(recordCrc.getValue()).flip();
+
+        Map<Long, ByteBuffer> pages = coins.getDirtyPages();
+        if (!pages.isEmpty()) {
+            CRC32 crc = new CRC32();
+            try (FileChannel out = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER_SIZE);
+                header.putInt(JOURNAL_MAGIC).putInt(coins.capacity()).putInt(pages.size())
+                        .putInt(record.remaining()).flip();
+                crc.update(header.duplicate());
+                long position = writeFully(out, header, 0);
+                ByteBuffer pageHeader = ByteBuffer.allocate(12);
+                for (Map.Entry<Long, ByteBuffer> page : pages.entrySet()) {
+                    pageHeader.clear();
+                    pageHeader.putLong(page.getKey()).putInt(page.getValue().remaining()).flip();
+                    crc.update(pageHeader.duplicate());
+                    crc.update(page.getValue().duplicate());
+                    position = writeFully(out, pageHeader, position);
+                    position = writeFully(out, page.getValue().duplicate(), position);
+                }
+                crc.update(record.duplicate());
+                position = writeFully(out, record.duplicate(), position);
+                ByteBuffer checksum = ByteBuffer.allocate(8);
+                checksum.putLong(crc.getValue()).flip();
+                writeFully(out, checksum, position);
+                out.force(true);
+            }
+            coins.writeDirty();
+            indexChannel.force(true);
+        }
+        replaceCheckpoint(record);
+        Files.deleteIfExists(journalFile.toPath());
+        checkpointPosition = headPosition();
+        bytesSinceCheckpoint = 0;
+    }
+
+    private void replaceCheckpoint(ByteBuffer record) throws IOException {
+        File tmp = new File(checkpointFile.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(out, record.duplicate(), 0);
+            out.force(true);
+        }
+        Files.move(tmp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Finishes a checkpoint interrupted while its index pages were being written in place.  A journal that isn't
+     * complete was cut short before any page was written, so it is just dropped.
+     */
+    private void finishJournal() throws IOException {
+        if (!journalFile.exists())
+            return;
+        try (FileChannel in = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER_SIZE);
+            long[] pagePositions;
+            ByteBuffer record;
+            try {
+                pagePositions = checkJournal(in, header);
+                record = ByteBuffer.allocate(header.getInt(12));
+                readFully(in, record, in.size() - 8 - record.capacity(), journalFile);
+                record.flip();
+            } catch (IOException e) {
+                log.warn("Dropping incomplete checkpoint journal {}: {}", journalFile, e.getMessage());
+                pagePositions = null;
+                record = null;
+            }
+            if (record != null) {
+                try (FileChannel index = FileChannel.open(indexFile(header.getInt(4)).toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    ByteBuffer pageHeader = ByteBuffer.allocate(12);
+                    for (long pagePosition : pagePositions) {
+                        pageHeader.clear();
+                        readFully(in, pageHeader, pagePosition, journalFile);
+                        ByteBuffer page = ByteBuffer.allocate(pageHeader.getInt(8));
+                        readFully(in, page, pagePosition + 12, journalFile);
+                        page.flip();
+                        writeFully(index, page, pageHeader.getLong(0));
+                    }
+                    index.force(true);
+                }
+                replaceCheckpoint(record);
+                log.info("Finished an interrupted checkpoint of {} from its journal", dir);
+            }
+        }
+        Files.delete(journalFile.toPath());
+    }
+
+    /**
+     * Checks the whole journal before any of it is used.
+     *
+     * @param header filled with the journal's header
+     * @return the position of each page entry.
+     */
+    private long[] checkJournal(FileChannel in, ByteBuffer header) throws IOException {
+        long size = in.size();
+        if (size < JOURNAL_HEADER_SIZE + 8)
+            throw new IOException("journal is truncated");
+        readFully(in, header, 0, journalFile);
+        int pageCount = header.getInt(8);
+        int recordLength = header.getInt(12);
+        if (header.getInt(0) != JOURNAL_MAGIC || pageCount < 0 || recordLength < 0)
+            throw new IOException("unrecognised journal format");
+        CRC32 crc = new CRC32();
+        crc.update(header.array());
+        long position = JOURNAL_HEADER_SIZE;
+        long[] pagePositions = new long[pageCount];
+        ByteBuffer pageHeader = ByteBuffer.allocate(12);
+        for (int i = 0; i < pageCount; i++) {
+            pageHeader.clear();
+            readFully(in, pageHeader, position, journalFile);
+            int length = pageHeader.getInt(8);
+            if (length < 0 || position + 12 + length > size)
+                throw new IOException("journal is truncated");
+            ByteBuffer page = ByteBuffer.allocate(length);
+            readFully(in, page, position + 12, journalFile);
+            crc.update(pageHeader.array());
+            crc.update(page.array());
+            pagePositions[i] = position;
+            position += 12 + length;
+        }
+        if (position + recordLength + 8 != size)
+            throw new IOException("journal is truncated");
+        ByteBuffer rest = ByteBuffer.allocate(recordLength + 8);
+        readFully(in, rest, position, journalFile);
+        crc.update(rest.array(), 0, recordLength);
+        if (rest.getLong(recordLength) != crc.getValue())
+            throw new IOException("checksum mismatch");
+        return pagePositions;
+    }
+
+    /**
+     * Applies a batch payload to the index.
+     *
+     * @param payloadPosition log position of the first byte of the payload
+     */
+    private void apply(byte[] payload, long payloadPosition) {
+        ByteBuffer in = ByteBuffer.wrap(payload);
+        byte[] hash = new byte[32];
+        in.get(hash);
+        int height = in.getInt();
+        int ops = in.getInt();
+        byte[] key = new byte[UTXOCodec.KEY_SIZE];
+        for (int i = 0; i < ops; i++) {
+            byte type = in.get();
+            switch (type) {
+                case PUT_COIN: {
+                    in.get(key);
+                    int length = in.getInt();
+                    removeCoin(key);
+                    coins.put(key, location(payloadPosition + in.position() - 4, length), 0);
+                    liveBytes += 4 + length;
+                    in.position(in.position() + length);
+                    break;
+                }
+                case DELETE_COIN:
+                    in.get(key);
+                    removeCoin(key);
+                    break;
+                case PUT_UNDO: {
+                    int undoHeight = in.getInt();
+                    int length = in.getInt();
+                    removeUndo(undoHeight);
+                    undo.put(undoHeight, location(payloadPosition + in.position() - 4, length));
+                    liveBytes += 4 + length;
+                    in.position(in.position() + length);
+                    break;
+                }
+                case DELETE_UNDO:
+                    removeUndo(in.getInt());
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown UTXO log op " + type + " in " + dir);
+            }
+        }
+        bestBlock = Sha256Hash.wrap(hash);
+        bestHeight = height;
+    }
+
+    private void removeCoin(byte[] key) {
+        int slot = coins.find(key);
+        if (slot >= 0) {
+            liveBytes -= 4 + length(coins.getValue(slot));
+            coins.removeSlot(slot);
+        }
+    }
+
+    private void removeUndo(int height) {
+        Long location = undo.remove(height);
+        if (location != null)
+            liveBytes -= 4 + length(location);
+    }
+
+    private byte[] readValue(long location) throws IOException {
+        long position = location & ((1L << POSITION_BITS) - 1);
+        Segment segment = segments.get((int) (position >>> OFFSET_BITS));
+        long offset = position & ((1L << OFFSET_BITS) - 1);
+        int length = (int) (location >>> POSITION_BITS);
+        if (length == MAX_INDEXED_LENGTH) {
+            ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+            readFully(segment.channel, lengthBuffer, offset, segment.file);
+            length = lengthBuffer.getInt(0);
+        }
+        ByteBuffer value = ByteBuffer.allocate(length);
+        readFully(segment.channel, value, offset + 4, segment.file);
+        return value.array();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, File file)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new EOFException("Unexpected end of " + file);
+            position += read;
+        }
+    }
+
+    private static long writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+        return position;
+    }
+
+    /**
+     * @param position log position of the value's length prefix
+     */
+    private static long location(long position, int length) {
+        return (Math.min(length, MAX_INDEXED_LENGTH) << POSITION_BITS) | position;
+    }
+
+    private long length(long location) {
+        long length = location >>> POSITION_BITS;
+        if (length < MAX_INDEXED_LENGTH)
+            return length;
+        //only a large value's exact size isn't kept in the index
+        try {
+            long position = location & ((1L << POSITION_BITS) - 1);
+            Segment segment = segments.get((int) (position >>> OFFSET_BITS));
+            ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+            readFully(segment.channel, lengthBuffer, position & ((1L << OFFSET_BITS) - 1), segment.file);
+            return lengthBuffer.getInt(0);
+        } catch (IOException e) {
+            return length;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.blockstore.utxo;
+
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.FullBlock;
+import io.bitcoinsv.bitcoinjsv.blockchain.verify.UTXOLookup;
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+import io.bitcoinsv.bitcoinjsv.exception.BlockStoreException;
+
+import java.io.Closeable;
+
+/**
+ * The set of unspent outputs as of a chain tip.  Blocks are connected and disconnected one at a time on top of the
+ * tip, each block's changes are applied atomically.
+ * <p>
+ * As a {@link UTXOLookup} the store can be passed straight to
+ * {@link io.bitcoinsv.bitcoinjsv.blockchain.verify.ScriptVerificationService} to verify a block before connecting it.
+ */
+public interface UTXOStore extends UTXOLookup, Closeable {
+
+    /**
+     * @return hash of the last connected block or {@link Sha256Hash#ZERO_HASH} if no block has been connected.
+     */
+    Sha256Hash getBestBlockHash();
+
+    /**
+     * @return height of the last connected block or -1 if no block has been connected.
+     */
+    int getBestHeight();
+
+    /**
+     * Spends the inputs and adds the outputs of every transaction in the block.  Nothing is changed if an input
+     * can't be found.
+     *
+     * @param height height of the block, one more than {@link #getBestHeight()}
+     * @throws io.bitcoinsv.bitcoinjsv.exception.VerificationException if an input spends a missing output
+     * @throws BlockStoreException if the block doesn't connect to the tip or the store can't be written
+     */
+    void connectBlock(FullBlock block, int height) throws BlockStoreException;
+
+    /**
+     * Reverses {@link #connectBlock(FullBlock, int)} for the tip block using its undo data.
+     *
+     * @throws BlockStoreException if the block isn't the tip or its undo data is no longer kept
+     */
+    void disconnectBlock(FullBlock block) throws BlockStoreException;
+
+    /**
+     * Writes all buffered changes to disk.
+     */
+    void flush() throws BlockStoreException;
+
+}
@@ -0,0 +1,198 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.core;
+
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Double SHA-256 of many equal length messages, {@link #LANES} at a time with their states interleaved.
+ * <p>
+ * The rounds of each lane depend only on that lane, so stepping all lanes through a round together gives the CPU
+ * several independent chains to overlap where one message would stall on each round's result.  This pays off on
+ * JVMs whose {@link java.security.MessageDigest} has no SHA intrinsic; where the JIT does use the SHA instructions
+ * {@link Sha256Hash#hashTwice(ByteBuffer, int, int, ByteBuffer)} is usually faster, so measure with the benchmarks
+ * module before switching.
+ * <p>
+ * An instance holds its message schedule and states, so it is not thread safe.  {@link #hashTwice(ByteBuffer, int,
+ * int, ByteBuffer)} uses one instance per thread.
+ */
+public class MultiBufferSha256 {
+
+    public static final int LANES = 4;
+
+    private static final int[] K = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    private static final int[] INITIAL = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    private static final ThreadLocal<MultiBufferSha256> INSTANCES = ThreadLocal.withInitial(MultiBufferSha256::new);
+
+    //word i of lane l is at [i * LANES + l]
+    private final int[] state = new int[8 * LANES];
+    private final int[] schedule = new int[64 * LANES];
+    //the working variables of each lane
+    private final int[] a = new int[LANES], b = new int[LANES], c = new int[LANES], d = new int[LANES];
+    private final int[] e = new int[LANES], f = new int[LANES], g = new int[LANES], h = new int[LANES];
+
+    /**
+     * Double SHA-256 hashes {@code count} messages of {@code length} bytes laid end to end from the input's position,
+     * writing the 32 byte results end to end from the output's position, on this thread's instance.  Neither
+     * buffer's position or limit is changed.
+     */
+    public static void hashTwice(ByteBuffer input, int length, int count, ByteBuffer output) {
+        INSTANCES.get().hashTwiceAll(input, length, count, output);
+    }
+
+    /**
+     * As {@link #hashTwice(ByteBuffer, int, int, ByteBuffer)}, on this instance.
+     */
+    public void hashTwiceAll(ByteBuffer input, int length, int count, ByteBuffer output) {
+        checkArgument(length >= 0 && count >= 0, "negative length or count");
+        checkArgument(input.remaining() >= (long) length * count, "input holds fewer than count messages");
+        checkArgument(output.remaining() >= (long) Sha256Hash.LENGTH * count,
+                "output has room for fewer than count hashes");
+        int inputStart = input.position();
+        int outputStart = output.position();
+        //duplicates are big endian whatever order the callers' buffers are in
+        input = input.duplicate();
+        output = output.duplicate();
+        for (int first = 0; first < count; first += LANES) {
+            int lanes = Math.min(LANES, count - first);
+            hashGroup(input, inputStart + first * length, length, lanes);
+            for (int lane = 0; lane < lanes; lane++) {
+                int out = outputStart + (first + lane) * Sha256Hash.LENGTH;
+                for (int i = 0; i < 8; i++)
+                    output.putInt(out + i * 4, state[i * LANES + lane]);
+            }
+        }
+    }
+
+    //leaves the double hash of each lane's message in state
+    private void hashGroup(ByteBuffer input, int start, int length, int lanes) {
+        reset();
+        //the message, a 0x80 byte, zeros and the length in bits, rounded up to whole blocks
+        int blocks = (length + 9 + 63) / 64;
+        for (int block = 0; block < blocks; block++) {
+            for (int lane = 0; lane < lanes; lane++)
+                loadBlock(input, start + lane * length, length, block, blocks, lane);
+            compress(lanes);
+        }
+
+        //the first hash is a one block message of its own
+        for (int lane = 0; lane < lanes; lane++) {
+            for (int i = 0; i < 8; i++)
+                schedule[i * LANES + lane] = state[i * LANES + lane];
+            schedule[8 * LANES + lane] = 0x80000000;
+            for (int i = 9; i < 15; i++)
+                schedule[i * LANES + lane] = 0;
+            schedule[15 * LANES + lane] = Sha256Hash.LENGTH * 8;
+        }
+        reset();
+        compress(lanes);
+    }
+
+    private void reset() {
+        for (int i = 0; i < 8; i++)
+            for (int lane = 0; lane < LANES; lane++)
+                state[i * LANES + lane] = INITIAL[i];
+    }
+
+    //fills the first 16 words of a lane's schedule with one padded block of its message
+    private void loadBlock(ByteBuffer input, int message, int length, int block, int blocks, int lane) {
+        int offset = block * 64;
+        if (offset + 64 <= length) {
+            //a whole block of message, read as big endian words
+            for (int i = 0; i < 16; i++)
+                schedule[i * LANES + lane] = input.getInt(message + offset + i * 4);
+            return;
+        }
+        for (int i = 0; i < 16; i++) {
+            int word = 0;
+            for (int j = 0; j < 4; j++) {
+                int position = offset + i * 4 + j;
+                int value;
+                if (position < length)
+                    value = input.get(message + position) & 0xff;
+                else if (position == length)
+                    value = 0x80;
+                else
+                    value = 0;
+                word = (word << 8) | value;
+            }
+            schedule[i * LANES + lane] = word;
+        }
+        if (block == blocks - 1) {
+            long bits = (long) length * 8;
+            schedule[14 * LANES + lane] = (int) (bits >>> 32);
+            schedule[15 * LANES + lane] = (int) bits;
+        }
+    }
+
+    private void compress(int lanes) {
+        for (int t = 16; t < 64; t++) {
+            for (int lane = 0; lane < lanes; lane++) {
+                int w15 = schedule[(t - 15) * LANES + lane];
+                int w2 = schedule[(t - 2) * LANES + lane];
+                int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+                int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+                schedule[t * LANES + lane] = schedule[(t - 16) * LANES + lane] + s0
+                        + schedule[(t - 7) * LANES + lane] + s1;
+            }
+        }
+        for (int lane = 0; lane < lanes; lane++) {
+            a[lane] = state[lane];
+            b[lane] = state[LANES + lane];
+            c[lane] = state[2 * LANES + lane];
+            d[lane] = state[3 * LANES + lane];
+            e[lane] = state[4 * LANES + lane];
+            f[lane] = state[5 * LANES + lane];
+            g[lane] = state[6 * LANES + lane];
+            h[lane] = state[7 * LANES + lane];
+        }
+        for (int t = 0; t < 64; t++) {
+            int k = K[t];
+            //one round of every lane before the next round of any
+            for (int lane = 0; lane < lanes; lane++) {
+                int el = e[lane];
+                int al = a[lane];
+                int s1 = Integer.rotateRight(el, 6) ^ Integer.rotateRight(el, 11) ^ Integer.rotateRight(el, 25);
+                int ch = (el & f[lane]) ^ (~el & g[lane]);
+                int t1 = h[lane] + s1 + ch + k + schedule[t * LANES + lane];
+                int s0 = Integer.rotateRight(al, 2) ^ Integer.rotateRight(al, 13) ^ Integer.rotateRight(al, 22);
+                int maj = (al & b[lane]) ^ (al & c[lane]) ^ (b[lane] & c[lane]);
+                h[lane] = g[lane];
+                g[lane] = f[lane];
+                f[lane] = el;
+                e[lane] = d[lane] + t1;
+                d[lane] = c[lane];
+                c[lane] = b[lane];
+                b[lane] = al;
+                a[lane] = t1 + s0 + maj;
+            }
+        }
+        for (int lane = 0; lane < lanes; lane++) {
+            state[lane] += a[lane];
+            state[LANES + lane] += b[lane];
+            state[2 * LANES + lane] += c[lane];
+            state[3 * LANES + lane] += d[lane];
+            state[4 * LANES + lane] += e[lane];
+            state[5 * LANES + lane] += f[lane];
+            state[6 * LANES + lane] += g[lane];
+            state[7 * LANES + lane] += h[lane];
+        }
+    }
+}
@@ -25,6 +25,8 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -39,6 +41,10 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
     public static final int LENGTH = 32; // bytes
     public static final Sha256Hash ZERO_HASH = wrap(new byte[LENGTH]);
 
+    //MessageDigest.getInstance does a provider lookup, far more work than hashing a header.  Every use of one of
+    //these finishes with digest(), which leaves it reset for the next
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(Sha256Hash::newDigest);
+
     private final byte[] bytes;
 
     /**
@@ -180,7 +186,7 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * @return the hash (in big-endian order)
      */
     public static byte[] hash(byte[] input, int offset, int length) {
-        MessageDigest digest = newDigest();
+        MessageDigest digest = DIGESTS.get();
         digest.update(input, offset, length);
         return digest.digest();
     }
@@ -206,7 +212,7 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * @return the double-hash (in big-endian order)
      */
     public static byte[] hashTwice(byte[] input, int offset, int length) {
-        MessageDigest digest = newDigest();
+        MessageDigest digest = DIGESTS.get();
         digest.update(input, offset, length);
         return digest.digest(digest.digest());
     }
@@ -217,12 +223,102 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      */
     public static byte[] hashTwice(byte[] input1, int offset1, int length1,
                                    byte[] input2, int offset2, int length2) {
-        MessageDigest digest = newDigest();
+        MessageDigest digest = DIGESTS.get();
         digest.update(input1, offset1, length1);
-        digest.update(input2, offset2, length2);
+        try {
+            digest.update(input2, offset2, length2);
+        } catch (RuntimeException e) {
+            //don't leave the first range in this thread's digest for the next caller
+            digest.reset();
+            throw e;
+        }
         return digest.digest(digest.digest());
     }
 
+    /**
+     * Calculates the SHA-256 hash of the given buffer's remaining bytes, and then hashes the resulting hash again.
+     * The buffer's position is not changed.
+     *
+     * @return the double-hash (in big-endian order)
+     */
+    public static byte[] hashTwice(ByteBuffer input) {
+        byte[] out = new byte[LENGTH];
+        hashTwice(input, out, 0);
+        return out;
+    }
+
+    /**
+     * Calculates the hash of hash of the given buffer's remaining bytes into {@code out}, without allocating.  The
+     * buffer's position is not changed.
+     */
+    public static void hashTwice(ByteBuffer input, byte[] out, int outOffset) {
+        checkArgument(outOffset >= 0 && out.length - outOffset >= LENGTH, "no room for a hash at %s", outOffset);
+        MessageDigest digest = DIGESTS.get();
+        try {
+            digest.update(input.duplicate());
+            digest.digest(out, outOffset, LENGTH);
+            digest.update(out, outOffset, LENGTH);
+            digest.digest(out, outOffset, LENGTH);
+        } catch (DigestException e) {
+            digest.reset();
+            throw new RuntimeException(e);  // Can't happen, the room was checked above
+        } catch (RuntimeException e) {
+            //don't leave part of the message in this thread's digest for the next caller
+            digest.reset();
+            throw e;
+        }
+    }
+
+    /**
+     * Calculates the hash of hash of each of the given buffers' remaining bytes, writing them end to end into
+     * {@code out} from {@code outOffset}.  Suits messages of differing lengths, e.g. P2P payloads for checksums.  No
+     * buffer's position is changed.
+     */
+    public static void hashTwice(ByteBuffer[] inputs, byte[] out, int outOffset) {
+        checkArgument(outOffset >= 0 && out.length - outOffset >= (long) inputs.length * LENGTH,
+                "out has room for fewer hashes than inputs");
+        for (int i = 0; i < inputs.length; i++)
+            hashTwice(inputs[i], out, outOffset + i * LENGTH);
+    }
+
+    /**
+     * Calculates the hash of hash of {@code count} messages of {@code length} bytes laid end to end from the input's
+     * position, e.g. the concatenated pairs of a merkle level, writing the 32 byte results end to end from the
+     * output's position.  Neither buffer's position or limit is changed.
+     * <p>
+     * Hashing goes through this thread's {@link MessageDigest}, which uses the CPU's SHA instructions where the JVM
+     * supports them.  {@link MultiBufferSha256#hashTwice(ByteBuffer, int, int, ByteBuffer)} does the same with
+     * several messages interleaved, for JVMs that don't.
+     */
+    public static void hashTwice(ByteBuffer input, int length, int count, ByteBuffer output) {
+        checkArgument(length >= 0 && count >= 0, "negative length or count");
+        checkArgument(input.remaining() >= (long) length * count, "input holds fewer than count messages");
+        checkArgument(output.remaining() >= (long) LENGTH * count, "output has room for fewer than count hashes");
+        MessageDigest digest = DIGESTS.get();
+        ByteBuffer message = input.duplicate();
+        ByteBuffer hashes = output.duplicate();
+        int start = input.position();
+        byte[] hash = new byte[LENGTH];
+        try {
+            for (int i = 0; i < count; i++) {
+                int position = start + i * length;
+                message.limit(position + length).position(position);
+                digest.update(message);
+                digest.digest(hash, 0, LENGTH);
+                digest.update(hash);
+                digest.digest(hash, 0, LENGTH);
+                hashes.put(hash);
+            }
+        } catch (DigestException e) {
+            digest.reset();
+            throw new RuntimeException(e);  // Can't happen, the buffer is the digest's length
+        } catch (RuntimeException e) {
+            //don't leave part of a message in this thread's digest for the next caller
+            digest.reset();
+            throw e;
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -20,9 +20,11 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
 import io.bitcoinsv.bitcoinjsv.exception.HDDerivationException;
 
+import javax.annotation.Nullable;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
@@ -148,6 +150,29 @@ public class DeterministicHierarchy {
         return deriveChild(get(parentPath, relative, createParent), createChildNumber);
     }
 
+    /**
+     * Extends the tree by calculating {@code count} consecutive children of the given path in one batch, see
+     * {@link HDKeyDerivation#deriveChildKeys(DeterministicKey, ChildNumber, int, ForkJoinPool)}. The parent, and any
+     * ancestors it needs, are looked up or derived through this hierarchy so they are only derived once per path.
+     *
+     * @param parentPath the path to the parent
+     * @param relative whether the path is relative to the root path
+     * @param createParent whether the parent corresponding to path should be created (with any necessary ancestors) if it doesn't exist already
+     * @param first the first child number to derive, its hardened bit applies to all of them
+     * @param count the number of children to derive
+     * @param pool if not null, large batches are split across it
+     * @return the new keys, in order
+     * @throws IllegalArgumentException if the parent doesn't exist and createParent is false.
+     */
+    public List<DeterministicKey> deriveChildren(List<ChildNumber> parentPath, boolean relative, boolean createParent,
+                                                 ChildNumber first, int count, @Nullable ForkJoinPool pool) {
+        DeterministicKey parent = get(parentPath, relative, createParent);
+        List<DeterministicKey> children = HDKeyDerivation.deriveChildKeys(parent, first, count, pool);
+        for (DeterministicKey child : children)
+            putKey(child);
+        return children;
+    }
+
     private DeterministicKey deriveChild(DeterministicKey parent, ChildNumber createChildNumber) {
         DeterministicKey childKey = HDKeyDerivation.deriveChildKey(parent, createChildNumber);
         putKey(childKey);
@@ -100,6 +100,25 @@ public class DeterministicKey extends ECKeyLite {
         this.parentFingerprint = (parent != null) ? parent.getFingerprint() : 0;
     }
 
+    /**
+     * Constructs a child of {@code parent} whose fingerprint the caller already has, so that deriving many children
+     * of one parent hashes its public key once rather than once per child.
+     */
+    DeterministicKey(ImmutableList<ChildNumber> childNumberPath,
+                     byte[] chainCode,
+                     LazyECPoint publicAsPoint,
+                     @Nullable BigInteger priv,
+                     DeterministicKey parent,
+                     int parentFingerprint) {
+        super(priv, compressPoint(checkNotNull(publicAsPoint)));
+        checkArgument(chainCode.length == 32);
+        this.parent = checkNotNull(parent);
+        this.childNumberPath = checkNotNull(childNumberPath);
+        this.chainCode = Arrays.copyOf(chainCode, chainCode.length);
+        this.depth = parent.depth + 1;
+        this.parentFingerprint = parentFingerprint;
+    }
+
     /** Constructs a key from its components. This is not normally something you should use. */
     public DeterministicKey(ImmutableList<ChildNumber> childNumberPath,
                             byte[] chainCode,
@@ -264,6 +283,8 @@ public class DeterministicKey extends ECKeyLite {
     public DeterministicKey dropPrivateBytes() {
         if (isPubKeyOnly())
             return this;
+        else if (parent != null)
+            return new DeterministicKey(getPath(), getChainCode(), pub, null, parent, parentFingerprint);
         else
             return new DeterministicKey(getPath(), getChainCode(), pub, null, parent);
     }
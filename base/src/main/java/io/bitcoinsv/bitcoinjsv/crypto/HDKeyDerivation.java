@@ -21,12 +21,15 @@ import io.bitcoinsv.bitcoinjsv.ecc.ECDSA;
 import io.bitcoinsv.bitcoinjsv.exception.HDDerivationException;
 import io.bitcoinsv.bitcoinjsv.core.ECKeyLite;
 import io.bitcoinsv.bitcoinjsv.core.Utils;
+import org.spongycastle.crypto.macs.HMac;
 import org.spongycastle.math.ec.*;
 
+import javax.annotation.Nullable;
 import java.math.*;
 import java.nio.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -54,6 +57,12 @@ public final class HDKeyDerivation {
      */
     public static final int MAX_CHILD_DERIVATION_ATTEMPTS = 100;
 
+    /**
+     * Number of children each task derives when {@link #deriveChildKeys(DeterministicKey, ChildNumber, int,
+     * ForkJoinPool)} is given a pool.
+     */
+    public static final int DERIVATION_BATCH_SIZE = 256;
+
     /**
      * Generates a new deterministic key from the given seed, which can be any arbitrary byte array. However resist
      * the temptation to use a string as the seed - any key derived from a password is likely to be weak and easily
@@ -149,6 +158,135 @@ public final class HDKeyDerivation {
         }
     }
 
+    /**
+     * Derives {@code count} consecutive children of one parent, see {@link #deriveChildKeys(DeterministicKey,
+     * ChildNumber, int, ForkJoinPool)}.
+     */
+    public static List<DeterministicKey> deriveChildKeys(DeterministicKey parent, ChildNumber first, int count) {
+        return deriveChildKeys(parent, first, count, null);
+    }
+
+    /**
+     * Derives {@code count} consecutive children of one parent starting at {@code first}, all hardened or all not as
+     * {@code first} is.  The children have private keys if the parent does.  As with
+     * {@link #deriveThisOrNextChildKey(DeterministicKey, int)} a child number that gives an invalid key is skipped, so
+     * exactly {@code count} keys are returned, in order.
+     * <p>
+     * This gives the same keys as calling {@link #deriveChildKey(DeterministicKey, ChildNumber)} for each child, for a
+     * fraction of the work: the parent's encoded public key, fingerprint and HMAC key are set up once, each child's
+     * public key is I<sub>L</sub>·G from the precomputed comb tables plus the parent's public key, and the results are
+     * converted to affine coordinates together with a single field inversion.
+     *
+     * @param pool if not null, runs of {@link #DERIVATION_BATCH_SIZE} children are derived in parallel on it
+     * @throws IllegalArgumentException if hardened children are asked of a public-only parent, or the range runs past
+     * the last child number
+     */
+    public static List<DeterministicKey> deriveChildKeys(DeterministicKey parent, ChildNumber first, int count,
+                                                         @Nullable ForkJoinPool pool) {
+        checkArgument(count >= 0, "count must not be negative");
+        checkArgument(!first.isHardened() || parent.hasPrivKey(),
+                "Can't use private derivation with public keys only.");
+        checkArgument((long) first.num() + count <= (ChildNumber.HARDENED_BIT & 0xFFFFFFFFL),
+                "Child numbers out of range");
+        final ChildBatch batch = new ChildBatch(parent, first.isHardened());
+
+        DeterministicKey[] keys = new DeterministicKey[count];
+        if (pool == null || count <= DERIVATION_BATCH_SIZE) {
+            batch.derive(first.num(), count, keys, 0);
+        } else {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (int start = 0; start < count; start += DERIVATION_BATCH_SIZE) {
+                final int offset = start;
+                final int length = Math.min(DERIVATION_BATCH_SIZE, count - start);
+                tasks.add(pool.submit(() -> batch.derive(first.num() + offset, length, keys, offset)));
+            }
+            for (ForkJoinTask<?> task : tasks)
+                task.join();
+        }
+
+        List<DeterministicKey> result = new ArrayList<>(count);
+        for (DeterministicKey key : keys)
+            if (key != null)
+                result.add(key);
+        //children skipped as invalid are made up from beyond the range, one at a time as they are so rare
+        int next = first.num() + count;
+        while (result.size() < count) {
+            DeterministicKey key = deriveThisOrNextChildKey(parent, new ChildNumber(next, first.isHardened()).i());
+            result.add(key);
+            next = key.getChildNumber().num() + 1;
+        }
+        return result;
+    }
+
+    //what every child of one parent shares
+    private static class ChildBatch {
+        private final DeterministicKey parent;
+        private final boolean hardened;
+        private final byte[] prefix;
+        private final ECPoint parentPoint;
+        @Nullable private final BigInteger parentPriv;
+        private final int parentFingerprint;
+
+        ChildBatch(DeterministicKey parent, boolean hardened) {
+            this.parent = parent;
+            this.hardened = hardened;
+            this.parentPoint = parent.getPubKeyPoint();
+            this.parentPriv = parent.hasPrivKey() ? parent.getPrivKey() : null;
+            this.prefix = hardened ? parent.getPrivKeyBytes33() : parentPoint.getEncoded(true);
+            checkState(prefix.length == 33, "Parent key must be 33 bytes, but is " + prefix.length);
+            this.parentFingerprint = parent.getFingerprint();
+        }
+
+        //derives the children from first into keys from offset, leaving null where a child is invalid
+        void derive(int first, int count, DeterministicKey[] keys, int offset) {
+            HMac hmac = HDUtils.createHmacSha512Digest(parent.getChainCode());
+            byte[] data = Arrays.copyOf(prefix, 37);
+            BigInteger n = ECDSA.CURVE.getN();
+            ECPoint[] points = new ECPoint[count];
+            BigInteger[] privs = new BigInteger[count];
+            byte[][] chainCodes = new byte[count][];
+            int valid = 0;
+            for (int j = 0; j < count; j++) {
+                ChildNumber child = new ChildNumber(first + j, hardened);
+                Utils.uint32ToByteArrayBE(child.i() & 0xFFFFFFFFL, data, 33);
+                byte[] i = HDUtils.hmacSha512(hmac, data);
+                BigInteger ilInt = new BigInteger(1, Arrays.copyOfRange(i, 0, 32));
+                if (ilInt.compareTo(n) > 0)
+                    continue;
+                if (parentPriv != null) {
+                    privs[j] = parentPriv.add(ilInt).mod(n);
+                    if (privs[j].signum() == 0)
+                        continue;
+                }
+                //stays in projective coordinates until the batch is normalized
+                ECPoint point = ECKeyLite.publicPointFromPrivate(ilInt).add(parentPoint);
+                if (point.isInfinity())
+                    continue;
+                points[j] = point;
+                chainCodes[j] = Arrays.copyOfRange(i, 32, 64);
+                valid++;
+            }
+
+            ECPoint[] normalized = new ECPoint[valid];
+            for (int j = 0, k = 0; j < count; j++)
+                if (points[j] != null)
+                    normalized[k++] = points[j];
+            ECDSA.CURVE.getCurve().normalizeAll(normalized);
+            for (int j = 0, k = 0; j < count; j++) {
+                if (points[j] == null)
+                    continue;
+                ChildNumber child = new ChildNumber(first + j, hardened);
+                keys[offset + j] = new DeterministicKey(
+                        HDUtils.append(parent.getPath(), child),
+                        chainCodes[j],
+                        new LazyECPoint(ECKeyLite.compressPoint(normalized[k++])),
+                        privs[j],
+                        parent,
+                        parentFingerprint);
+            }
+        }
+    }
+
     public static RawKeyBytes deriveChildKeyBytesFromPrivate(DeterministicKey parent,
                                                               ChildNumber childNumber) throws HDDerivationException {
         checkArgument(parent.hasPrivKey(), "Parent key must have private key bytes for this method.");
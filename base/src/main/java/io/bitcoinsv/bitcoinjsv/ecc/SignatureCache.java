@@ -0,0 +1,236 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.ecc;
+
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+
+import javax.annotation.Nullable;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A cache of signatures that have already been verified, the equivalent of the sigcache in the reference
+ * implementation.  A transaction's signatures are usually verified when it is accepted to the mempool so when the
+ * same transaction turns up in a block the expensive ECDSA verification can be skipped.
+ *
+ * Only valid signatures are cached.  Entries are keyed by a salted SHA256 of (sighash, pubkey, signature), each
+ * field preceded by its length so no other split of the same bytes into a pubkey and signature gives the same key.
+ * The cache only holds 32 bytes of key per signature and an attacker can't construct colliding entries without
+ * knowing the salt, which is randomly generated for each cache instance.
+ *
+ * The cache is bounded by an approximate memory limit, when full the oldest entries are evicted first.  All methods
+ * are safe to call from multiple threads.
+ *
+ * No cache is used by the script interpreter unless one is installed with {@link #setDefault(SignatureCache)}.
+ */
+public class SignatureCache {
+
+    /** Matches the default maxsigcachesize of the reference implementation. */
+    public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    /**
+     * Estimated heap cost of an entry: the key object, the hash map node and table slot and the eviction queue node.
+     */
+    static final int BYTES_PER_ENTRY = 128;
+
+    @Nullable
+    private static volatile SignatureCache defaultCache;
+
+    private final byte[] salt = new byte[32];
+    private final int maxEntries;
+    //each key maps to itself, the instance queued when it was added, so a stale queue entry for a key that has since
+    //been evicted and added again can be told apart from the live one
+    private final ConcurrentHashMap<Key, Key> entries;
+    private final ConcurrentLinkedQueue<Key> insertionOrder = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxBytes approximate maximum heap used by the cache.
+     */
+    public SignatureCache(long maxBytes) {
+        checkArgument(maxBytes >= BYTES_PER_ENTRY, "maxBytes too small to hold any entries");
+        this.maxEntries = (int) Math.min(Integer.MAX_VALUE, maxBytes / BYTES_PER_ENTRY);
+        this.entries = new ConcurrentHashMap<>(Math.min(maxEntries, 1 << 16));
+        ECDSA.secureRandom.nextBytes(salt);
+    }
+
+    /**
+     * @return the cache consulted by the script interpreter or null if signature caching is disabled, which it is
+     * until a cache is set.
+     */
+    @Nullable
+    public static SignatureCache getDefault() {
+        return defaultCache;
+    }
+
+    /**
+     * Replaces the cache consulted by the script interpreter.
+     * @param cache the new cache or null to disable signature caching.
+     */
+    public static void setDefault(@Nullable SignatureCache cache) {
+        defaultCache = cache;
+    }
+
+    /**
+     * Verifies a signature, skipping the ECDSA verification if the same signature has been seen to be valid before.
+     *
+     * @param sigHash        Hash of the data to verify.
+     * @param signature      The decoded signature.
+     * @param signatureBytes The signature as it appears in the script, used for the cache key.
+     * @param pubKey         The public key bytes to use.
+     */
+    public boolean verify(byte[] sigHash, ECDSASignature signature, byte[] signatureBytes, byte[] pubKey) {
+        Key key = key(sigHash, pubKey, signatureBytes);
+        if (entries.containsKey(key)) {
+            hits.increment();
+            return true;
+        }
+        misses.increment();
+        boolean valid = ECDSA.verify(sigHash, signature, pubKey);
+        //don't pollute the cache with results that weren't actually checked
+        if (valid && !ECDSA.FAKE_SIGNATURES)
+            add(key);
+        return valid;
+    }
+
+    /**
+     * @return true if the signature is known to be valid.  Counts as a hit or a miss.
+     */
+    public boolean contains(byte[] sigHash, byte[] pubKey, byte[] signatureBytes) {
+        boolean found = entries.containsKey(key(sigHash, pubKey, signatureBytes));
+        if (found)
+            hits.increment();
+        else
+            misses.increment();
+        return found;
+    }
+
+    /**
+     * Records a signature that has been verified as valid.
+     */
+    public void add(byte[] sigHash, byte[] pubKey, byte[] signatureBytes) {
+        add(key(sigHash, pubKey, signatureBytes));
+    }
+
+    private void add(Key key) {
+        if (entries.putIfAbsent(key, key) != null)
+            return;
+        insertionOrder.add(key);
+        while (entries.size() > maxEntries) {
+            Key oldest = insertionOrder.poll();
+            if (oldest == null)
+                break;
+            if (removeIfCurrent(oldest))
+                evictions.increment();
+        }
+    }
+
+    //removes the entry only if it is still the one this queued key was added as
+    private boolean removeIfCurrent(final Key queued) {
+        final boolean[] removed = new boolean[1];
+        entries.computeIfPresent(queued, (k, current) -> {
+            if (current != queued)
+                return current;
+            removed[0] = true;
+            return null;
+        });
+        return removed[0];
+    }
+
+    public void clear() {
+        entries.clear();
+        insertionOrder.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "SignatureCache{size=" + size() + "/" + maxEntries + ", hits=" + getHits() + ", misses=" + getMisses()
+                + ", evictions=" + getEvictions() + "}";
+    }
+
+    private Key key(byte[] sigHash, byte[] pubKey, byte[] signatureBytes) {
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(salt);
+        update(digest, sigHash);
+        update(digest, pubKey);
+        update(digest, signatureBytes);
+        return new Key(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, byte[] field) {
+        int length = field.length;
+        digest.update((byte) (length >>> 24));
+        digest.update((byte) (length >>> 16));
+        digest.update((byte) (length >>> 8));
+        digest.update((byte) length);
+        digest.update(field);
+    }
+
+    /**
+     * A 32 byte hash held as primitives to avoid the overhead of a separate array per entry.
+     */
+    private static final class Key {
+
+        private final long a, b, c, d;
+
+        Key(byte[] hash) {
+            a = readLong(hash, 0);
+            b = readLong(hash, 8);
+            c = readLong(hash, 16);
+            d = readLong(hash, 24);
+        }
+
+        private static long readLong(byte[] bytes, int offset) {
+            long result = 0;
+            for (int i = 0; i < 8; i++)
+                result = (result << 8) | (bytes[offset + i] & 0xffL);
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return a == other.a && b == other.b && c == other.c && d == other.d;
+        }
+
+        @Override
+        public int hashCode() {
+            //already a salted hash so any bits will do
+            return (int) a;
+        }
+    }
+
+}
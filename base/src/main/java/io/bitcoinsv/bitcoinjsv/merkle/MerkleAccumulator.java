@@ -0,0 +1,274 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.merkle;
+
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+/**
+ * A merkle tree that is kept up to date as leaves are appended, replaced and removed, for block templates that change
+ * a few transactions at a time.
+ * <p>
+ * Every level of the tree is held as a flat run of 32 byte hashes in a (by default direct) {@link ByteBuffer} that
+ * grows by doubling.  Changes only mark their leaf dirty, the next call to {@link #getRoot()} or
+ * {@link #getBranch(int)} rehashes the parents of dirty nodes level by level, so each node is hashed at most once
+ * however many of its descendants changed.  Appending a leaf costs O(log n) hashes, as does replacing one, e.g.
+ * the coinbase when the extranonce rolls.  Removing a leaf other than the last shifts those after it, so everything
+ * to its right is rehashed.
+ * <p>
+ * Not thread safe.
+ */
+public class MerkleAccumulator {
+
+    private static final int HASH_LENGTH = Sha256Hash.LENGTH;
+
+    private final boolean direct;
+    //level 0 holds the leaves, each level above is half the size rounded up
+    private final List<ByteBuffer> levels = new ArrayList<>();
+    private int size;
+
+    //leaves changed since the last recalculation, and the spare set used for their parents
+    private BitSet dirty = new BitSet();
+    private BitSet dirtyParents = new BitSet();
+
+    private final MessageDigest digest = Sha256Hash.newDigest();
+    private final byte[] first = new byte[HASH_LENGTH];
+    private final byte[] node = new byte[HASH_LENGTH];
+    private int recalculations;
+
+    public MerkleAccumulator() {
+        this(1024, true);
+    }
+
+    /**
+     * @param initialCapacity number of leaves to allocate room for up front
+     * @param direct whether the levels are held off heap
+     */
+    public MerkleAccumulator(int initialCapacity, boolean direct) {
+        checkArgument(initialCapacity > 0, "initialCapacity must be positive");
+        this.direct = direct;
+        levels.add(allocate(initialCapacity));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Appends a leaf.
+     *
+     * @return the index of the new leaf
+     */
+    public int add(Sha256Hash hash) {
+        return add(hash.getReversedBytes());
+    }
+
+    /**
+     * Appends a leaf given in internal byte order.
+     *
+     * @return the index of the new leaf
+     */
+    public int add(byte[] hash) {
+        checkArgument(hash.length == HASH_LENGTH, "hash must be 32 bytes");
+        ByteBuffer leaves = ensureCapacity(0, size + 1);
+        int index = size++;
+        put(leaves, index, hash);
+        dirty.set(index);
+        return index;
+    }
+
+    /**
+     * Replaces a leaf, e.g. the coinbase when its extranonce changes.
+     */
+    public void set(int index, Sha256Hash hash) {
+        set(index, hash.getReversedBytes());
+    }
+
+    /**
+     * Replaces a leaf, given in internal byte order.
+     */
+    public void set(int index, byte[] hash) {
+        checkElementIndex(index, size);
+        checkArgument(hash.length == HASH_LENGTH, "hash must be 32 bytes");
+        put(levels.get(0), index, hash);
+        dirty.set(index);
+    }
+
+    /**
+     * Removes a leaf, moving every leaf after it down one place.
+     */
+    public void remove(int index) {
+        checkElementIndex(index, size);
+        ByteBuffer leaves = levels.get(0);
+        //moving towards the start in chunks is safe although the ranges overlap
+        byte[] chunk = new byte[Math.min(size - index - 1, 256) * HASH_LENGTH];
+        for (int from = (index + 1) * HASH_LENGTH, end = size * HASH_LENGTH; from < end; from += chunk.length) {
+            int length = Math.min(chunk.length, end - from);
+            leaves.limit(from + length).position(from);
+            leaves.get(chunk, 0, length);
+            leaves.limit(from - HASH_LENGTH + length).position(from - HASH_LENGTH);
+            leaves.put(chunk, 0, length);
+        }
+        truncate(size - 1);
+        if (index < size)
+            dirty.set(index, size);
+    }
+
+    /**
+     * Drops every leaf from {@code newSize} onwards.
+     */
+    public void truncate(int newSize) {
+        checkArgument(newSize >= 0 && newSize <= size, "newSize out of range: %s", newSize);
+        if (newSize == size)
+            return;
+        size = newSize;
+        dirty.clear(size, Integer.MAX_VALUE);
+        //the last parent on each level lost its right hand child
+        if (size > 0)
+            dirty.set(size - 1);
+    }
+
+    public void clear() {
+        truncate(0);
+    }
+
+    /**
+     * @return the leaf in internal byte order
+     */
+    public byte[] get(int index) {
+        checkElementIndex(index, size);
+        byte[] hash = new byte[HASH_LENGTH];
+        get(levels.get(0), index, hash);
+        return hash;
+    }
+
+    public Sha256Hash getHash(int index) {
+        return Sha256Hash.wrapReversed(get(index));
+    }
+
+    /**
+     * @return the merkle root, or null if there are no leaves
+     */
+    @Nullable
+    public Sha256Hash getRoot() {
+        if (size == 0)
+            return null;
+        recalculate();
+        byte[] root = new byte[HASH_LENGTH];
+        get(levels.get(levelCount() - 1), 0, root);
+        return Sha256Hash.wrapReversed(root);
+    }
+
+    /**
+     * @return the branch of a leaf against the current root.
+     */
+    public MerkleBranch getBranch(int index) {
+        checkElementIndex(index, size);
+        Sha256Hash root = getRoot();
+        List<Sha256Hash> branch = new ArrayList<>(levelCount() - 1);
+        int position = index;
+        int levelSize = size;
+        for (int level = 0; levelSize > 1; level++, levelSize = (levelSize + 1) / 2) {
+            byte[] sibling = new byte[HASH_LENGTH];
+            get(levels.get(level), Math.min(position ^ 1, levelSize - 1), sibling);
+            branch.add(Sha256Hash.wrapReversed(sibling));
+            position >>= 1;
+        }
+        return new MerkleBranch(index, getHash(index), root, branch);
+    }
+
+    /**
+     * @return the number of hashes done by the last recalculation
+     */
+    public int getRecalculations() {
+        return recalculations;
+    }
+
+    //rehashes the parents of dirty nodes one level at a time, up to the root
+    private void recalculate() {
+        recalculations = 0;
+        if (dirty.isEmpty())
+            return;
+        try {
+            int levelSize = size;
+            for (int level = 0; levelSize > 1; level++) {
+                int parentSize = (levelSize + 1) / 2;
+                ByteBuffer from = levels.get(level);
+                ByteBuffer to = ensureCapacity(level + 1, parentSize);
+                for (int i = dirty.nextSetBit(0); i >= 0 && i < levelSize; i = dirty.nextSetBit(i + 1)) {
+                    int parent = i >> 1;
+                    if (dirtyParents.get(parent))
+                        continue;
+                    int left = parent * 2;
+                    update(from, left);
+                    update(from, Math.min(left + 1, levelSize - 1));
+                    digest.digest(first, 0, HASH_LENGTH);
+                    digest.update(first);
+                    digest.digest(node, 0, HASH_LENGTH);
+                    put(to, parent, node);
+                    dirtyParents.set(parent);
+                    recalculations++;
+                }
+                BitSet done = dirty;
+                done.clear();
+                dirty = dirtyParents;
+                dirtyParents = done;
+                levelSize = parentSize;
+            }
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Can't happen, the buffers are the digest's length
+        }
+        dirty.clear();
+    }
+
+    private int levelCount() {
+        int count = 1;
+        for (int levelSize = size; levelSize > 1; levelSize = (levelSize + 1) / 2)
+            count++;
+        return count;
+    }
+
+    private ByteBuffer ensureCapacity(int level, int count) {
+        if (level == levels.size())
+            levels.add(allocate(Math.max(count, levels.get(level - 1).capacity() / HASH_LENGTH / 2)));
+        ByteBuffer buffer = levels.get(level);
+        if (buffer.capacity() >= count * HASH_LENGTH)
+            return buffer;
+        ByteBuffer grown = allocate(Math.max(count, buffer.capacity() / HASH_LENGTH * 2));
+        buffer.clear();
+        grown.put(buffer);
+        levels.set(level, grown);
+        return grown;
+    }
+
+    private ByteBuffer allocate(int count) {
+        return direct ? ByteBuffer.allocateDirect(count * HASH_LENGTH) : ByteBuffer.allocate(count * HASH_LENGTH);
+    }
+
+    private void update(ByteBuffer level, int index) {
+        level.limit(index * HASH_LENGTH + HASH_LENGTH).position(index * HASH_LENGTH);
+        digest.update(level);
+    }
+
+    private static void put(ByteBuffer level, int index, byte[] hash) {
+        level.limit(index * HASH_LENGTH + HASH_LENGTH).position(index * HASH_LENGTH);
+        level.put(hash);
+    }
+
+    private static void get(ByteBuffer level, int index, byte[] hash) {
+        level.limit(index * HASH_LENGTH + HASH_LENGTH).position(index * HASH_LENGTH);
+        level.get(hash);
+    }
+}
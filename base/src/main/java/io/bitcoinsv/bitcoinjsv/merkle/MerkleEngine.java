@@ -0,0 +1,357 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.merkle;
+
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Calculates bitcoin merkle roots over a flat run of 32 byte hashes, either a {@code byte[]} or a (possibly direct)
+ * {@link ByteBuffer}, in internal byte order i.e. as {@link Sha256Hash#hashTwice(byte[])} returns them.
+ * <p>
+ * Only one level of the tree exists at a time: each level is written over the one below it.  Levels with more than
+ * {@link #getParallelThreshold()} pairs are hashed in parallel on a fork join pool, which needs a scratch area half
+ * the size of the leaves to write into.  Hashing reuses one digest and one 32 byte buffer per task so nothing is
+ * allocated per node.
+ * <p>
+ * Merkle branches for chosen leaves can be collected in the same pass, see {@link #compute(byte[], int, int...)}.
+ */
+public class MerkleEngine {
+
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 4096;
+
+    private static final int HASH_LENGTH = Sha256Hash.LENGTH;
+
+    private static final MerkleEngine DEFAULT = new MerkleEngine(ForkJoinPool.commonPool(), DEFAULT_PARALLEL_THRESHOLD);
+
+    private final ForkJoinPool pool;
+    private final int parallelThreshold;
+
+    /**
+     * @param pool pool the pairs of large levels are hashed on
+     * @param parallelThreshold number of pairs in a level, and per task, above which the level is split across tasks
+     */
+    public MerkleEngine(ForkJoinPool pool, int parallelThreshold) {
+        checkArgument(parallelThreshold > 0, "parallelThreshold must be positive");
+        this.pool = pool;
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * @return an engine running on the common fork join pool.
+     */
+    public static MerkleEngine getDefault() {
+        return DEFAULT;
+    }
+
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * Convenience for hashes held as {@link Sha256Hash}es, copies them into a flat array first.
+     */
+    public Sha256Hash computeRoot(List<Sha256Hash> hashes) {
+        int count = hashes.size();
+        checkArgument(count > 0, "no hashes");
+        byte[] flat = new byte[count * HASH_LENGTH];
+        for (int i = 0; i < count; i++)
+            setLeaf(flat, i, hashes.get(i));
+        return Sha256Hash.wrapReversed(computeRoot(flat, count));
+    }
+
+    /**
+     * Copies a hash into a flat array of leaves in internal byte order.
+     */
+    public static void setLeaf(byte[] hashes, int index, Sha256Hash hash) {
+        //getBytes() is in display order, reversed as we copy
+        byte[] bytes = hash.getBytes();
+        int base = index * HASH_LENGTH + HASH_LENGTH - 1;
+        for (int j = 0; j < HASH_LENGTH; j++)
+            hashes[base - j] = bytes[j];
+    }
+
+    /**
+     * Calculates the merkle root of the first {@code count} hashes of the array, overwriting them.
+     *
+     * @return the root in internal byte order, wrap with {@link Sha256Hash#wrapReversed(byte[])}
+     */
+    public byte[] computeRoot(byte[] hashes, int count) {
+        return compute(hashes, count).getRoot();
+    }
+
+    /**
+     * Calculates the merkle root of the first {@code count} hashes of the buffer from its position, overwriting them.
+     * The buffer's position and limit aren't changed.
+     *
+     * @return the root in internal byte order, wrap with {@link Sha256Hash#wrapReversed(byte[])}
+     */
+    public byte[] computeRoot(ByteBuffer hashes, int count) {
+        return compute(hashes, count).getRoot();
+    }
+
+    /**
+     * Calculates the merkle root of the first {@code count} hashes of the array, overwriting them, along with the
+     * merkle branch of each of the given leaves.
+     */
+    public Result compute(byte[] hashes, int count, int... leaves) {
+        checkArgument(hashes.length >= (long) count * HASH_LENGTH, "array holds fewer than count hashes");
+        return compute(new ArrayHashes(hashes), count, leaves);
+    }
+
+    /**
+     * Calculates the merkle root of the first {@code count} hashes of the buffer from its position, overwriting them,
+     * along with the merkle branch of each of the given leaves.
+     */
+    public Result compute(ByteBuffer hashes, int count, int... leaves) {
+        checkArgument(hashes.remaining() >= (long) count * HASH_LENGTH, "buffer holds fewer than count hashes");
+        return compute(new BufferHashes(hashes.slice()), count, leaves);
+    }
+
+    private Result compute(Hashes level, int count, int[] leaves) {
+        checkArgument(count > 0, "no hashes");
+        int levels = 0;
+        for (int size = count; size > 1; size = (size + 1) / 2)
+            levels++;
+        byte[][][] branches = new byte[leaves.length][levels][];
+        int[] positions = new int[leaves.length];
+        for (int i = 0; i < leaves.length; i++) {
+            checkArgument(leaves[i] >= 0 && leaves[i] < count, "leaf out of range: %s", leaves[i]);
+            positions[i] = leaves[i];
+        }
+
+        Hashes scratch = null;
+        int depth = 0;
+        for (int size = count; size > 1; size = (size + 1) / 2, depth++) {
+            for (int i = 0; i < leaves.length; i++) {
+                //the pair of a node, the last node of an odd sized level is paired with itself
+                branches[i][depth] = level.get(Math.min(positions[i] ^ 1, size - 1));
+                positions[i] >>= 1;
+            }
+            int pairs = (size + 1) / 2;
+            if (pairs > parallelThreshold) {
+                //tasks would overwrite nodes other tasks have yet to read, so the next level goes in the other area
+                if (scratch == null)
+                    scratch = level.newScratch((count + 1) / 2);
+                pool.invoke(new PairsTask(level, scratch, size, 0, pairs));
+                Hashes next = scratch;
+                scratch = level;
+                level = next;
+            } else {
+                //in place is safe on one thread, node i is written after nodes 2i and 2i + 1 are read
+                new PairsTask(level, level, size, 0, pairs).compute();
+            }
+        }
+        return new Result(level.get(0), leaves, branches);
+    }
+
+    /**
+     * A merkle root and the branches requested alongside it.
+     */
+    public static class Result {
+        private final byte[] root;
+        private final int[] leaves;
+        private final byte[][][] branches;
+
+        Result(byte[] root, int[] leaves, byte[][][] branches) {
+            this.root = root;
+            this.leaves = leaves;
+            this.branches = branches;
+        }
+
+        /**
+         * @return the root in internal byte order
+         */
+        public byte[] getRoot() {
+            return root;
+        }
+
+        public Sha256Hash getRootHash() {
+            return Sha256Hash.wrapReversed(root);
+        }
+
+        /**
+         * @param i index into the leaves passed to compute, not the leaf itself
+         * @return the hashes the leaf is combined with on the way to the root, lowest level first, in internal
+         * byte order
+         */
+        public byte[][] getBranch(int i) {
+            return branches[i];
+        }
+
+        public int getLeaf(int i) {
+            return leaves[i];
+        }
+    }
+
+    /**
+     * Checks a branch produced by {@link #compute(byte[], int, int...)}.
+     *
+     * @param leaf hash of the leaf in internal byte order
+     * @param index position of the leaf in the tree
+     * @return the root the branch leads to, in internal byte order
+     */
+    public static byte[] rootFromBranch(byte[] leaf, int index, byte[][] branch) {
+        MessageDigest digest = Sha256Hash.newDigest();
+        byte[] node = leaf;
+        for (byte[] sibling : branch) {
+            if ((index & 1) == 0) {
+                digest.update(node);
+                digest.update(sibling);
+            } else {
+                digest.update(sibling);
+                digest.update(node);
+            }
+            node = digest.digest(digest.digest());
+            index >>= 1;
+        }
+        return node;
+    }
+
+    private class PairsTask extends RecursiveAction {
+        private final Hashes from;
+        private final Hashes to;
+        private final int size;
+        private final int start;
+        private final int end;
+
+        PairsTask(Hashes from, Hashes to, int size, int start, int end) {
+            this.from = from;
+            this.to = to;
+            this.size = size;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > parallelThreshold) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new PairsTask(from, to, size, start, middle), new PairsTask(from, to, size, middle, end));
+                return;
+            }
+            MessageDigest digest = Sha256Hash.newDigest();
+            byte[] first = new byte[HASH_LENGTH];
+            Hashes source = from.view();
+            Hashes target = to == from ? source : to.view();
+            try {
+                for (int pair = start; pair < end; pair++) {
+                    int left = pair * 2;
+                    source.update(digest, left);
+                    source.update(digest, Math.min(left + 1, size - 1));
+                    digest.digest(first, 0, HASH_LENGTH);
+                    digest.update(first);
+                    target.digestInto(digest, pair);
+                }
+            } catch (DigestException e) {
+                throw new RuntimeException(e);  // Can't happen, the buffers are the digest's length
+            }
+        }
+    }
+
+    //a run of hashes and the operations the tasks need on it
+    private abstract static class Hashes {
+        abstract void update(MessageDigest digest, int index);
+
+        abstract void digestInto(MessageDigest digest, int index) throws DigestException;
+
+        abstract byte[] get(int index);
+
+        abstract Hashes newScratch(int count);
+
+        //a copy that is safe to use from one task, sharing the same storage
+        abstract Hashes view();
+    }
+
+    private static class ArrayHashes extends Hashes {
+        private final byte[] bytes;
+
+        ArrayHashes(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        void update(MessageDigest digest, int index) {
+            digest.update(bytes, index * HASH_LENGTH, HASH_LENGTH);
+        }
+
+        @Override
+        void digestInto(MessageDigest digest, int index) throws DigestException {
+            digest.digest(bytes, index * HASH_LENGTH, HASH_LENGTH);
+        }
+
+        @Override
+        byte[] get(int index) {
+            byte[] hash = new byte[HASH_LENGTH];
+            System.arraycopy(bytes, index * HASH_LENGTH, hash, 0, HASH_LENGTH);
+            return hash;
+        }
+
+        @Override
+        Hashes newScratch(int count) {
+            return new ArrayHashes(new byte[count * HASH_LENGTH]);
+        }
+
+        @Override
+        Hashes view() {
+            return this;
+        }
+    }
+
+    private static class BufferHashes extends Hashes {
+        private final ByteBuffer buffer;
+        private final byte[] out = new byte[HASH_LENGTH];
+
+        //the buffer starts at the first hash
+        BufferHashes(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        void update(MessageDigest digest, int index) {
+            int position = index * HASH_LENGTH;
+            buffer.limit(position + HASH_LENGTH).position(position);
+            digest.update(buffer);
+        }
+
+        @Override
+        void digestInto(MessageDigest digest, int index) throws DigestException {
+            digest.digest(out, 0, HASH_LENGTH);
+            int position = index * HASH_LENGTH;
+            buffer.limit(position + HASH_LENGTH).position(position);
+            buffer.put(out);
+        }
+
+        @Override
+        byte[] get(int index) {
+            byte[] hash = new byte[HASH_LENGTH];
+            ByteBuffer view = buffer.duplicate();
+            view.limit(index * HASH_LENGTH + HASH_LENGTH).position(index * HASH_LENGTH);
+            view.get(hash);
+            return hash;
+        }
+
+        @Override
+        Hashes newScratch(int count) {
+            int size = count * HASH_LENGTH;
+            return new BufferHashes(buffer.isDirect() ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size));
+        }
+
+        @Override
+        Hashes view() {
+            ByteBuffer view = buffer.duplicate();
+            view.clear();
+            return new BufferHashes(view);
+        }
+    }
+}
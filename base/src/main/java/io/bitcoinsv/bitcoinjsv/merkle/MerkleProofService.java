@@ -0,0 +1,327 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.merkle;
+
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.HeaderReadOnly;
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+import io.bitcoinsv.bitcoinjsv.core.VarInt;
+import io.bitcoinsv.bitcoinjsv.exception.VerificationException;
+
+import javax.annotation.Nullable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Builds and checks merkle branches for many transactions of a block at once, for serving SPV proofs.
+ * <p>
+ * Proofs for any number of txids are collected in a single {@link MerkleEngine} pass over the block's leaves, so
+ * each internal node is hashed once, and a sibling shared by several branches is the same {@link Sha256Hash}
+ * instance in all of them.
+ * <p>
+ * Verification runs in batches of {@link #getVerifyBatchSize()} branches on a fork join pool, each batch reusing
+ * one digest.
+ */
+public class MerkleProofService {
+
+    public static final int DEFAULT_VERIFY_BATCH_SIZE = 256;
+
+    private static final int HASH_LENGTH = Sha256Hash.LENGTH;
+
+    private static final MerkleProofService DEFAULT = new MerkleProofService(MerkleEngine.getDefault(),
+            ForkJoinPool.commonPool(), DEFAULT_VERIFY_BATCH_SIZE);
+
+    private final MerkleEngine engine;
+    private final ForkJoinPool pool;
+    private final int verifyBatchSize;
+
+    /**
+     * @param engine engine the block's tree is hashed with
+     * @param pool pool branches are verified on
+     * @param verifyBatchSize number of branches above which a verification is split across tasks
+     */
+    public MerkleProofService(MerkleEngine engine, ForkJoinPool pool, int verifyBatchSize) {
+        checkArgument(verifyBatchSize > 0, "verifyBatchSize must be positive");
+        this.engine = engine;
+        this.pool = pool;
+        this.verifyBatchSize = verifyBatchSize;
+    }
+
+    /**
+     * @return a service using the default engine and the common fork join pool.
+     */
+    public static MerkleProofService getDefault() {
+        return DEFAULT;
+    }
+
+    public int getVerifyBatchSize() {
+        return verifyBatchSize;
+    }
+
+    /**
+     * Builds branches for the given txids of a block.
+     *
+     * @param txids every txid of the block, in block order
+     * @param wanted the txids to prove
+     * @return a branch for each wanted txid found in the block, in the order they were asked for
+     */
+    public Map<Sha256Hash, MerkleBranch> prove(List<Sha256Hash> txids, Collection<Sha256Hash> wanted) {
+        int count = txids.size();
+        checkArgument(count > 0, "no txids");
+        byte[] flat = new byte[count * HASH_LENGTH];
+        for (int i = 0; i < count; i++)
+            MerkleEngine.setLeaf(flat, i, txids.get(i));
+        return prove(ByteBuffer.wrap(flat), count, wanted);
+    }
+
+    /**
+     * Builds branches for the given txids from the leaves of a block, overwriting them.
+     *
+     * @param leaves every txid of the block from the buffer's position, in internal byte order
+     * @param count number of txids in the block
+     * @param wanted the txids to prove
+     * @return a branch for each wanted txid found in the block, in the order they were asked for
+     */
+    public Map<Sha256Hash, MerkleBranch> prove(ByteBuffer leaves, int count, Collection<Sha256Hash> wanted) {
+        return prove(leaves, count, wanted, null);
+    }
+
+    private Map<Sha256Hash, MerkleBranch> prove(ByteBuffer leaves, int count, Collection<Sha256Hash> wanted,
+                                                @Nullable Sha256Hash expectedRoot) {
+        checkArgument(leaves.remaining() >= (long) count * HASH_LENGTH, "buffer holds fewer than count hashes");
+        int[] indexes = locate(leaves, count, wanted);
+        int found = 0;
+        for (int index : indexes)
+            if (index >= 0)
+                found++;
+        int[] positions = new int[found];
+        Sha256Hash[] txids = new Sha256Hash[found];
+        int next = 0;
+        int i = 0;
+        for (Sha256Hash txid : wanted) {
+            if (indexes[i] >= 0) {
+                positions[next] = indexes[i];
+                txids[next++] = txid;
+            }
+            i++;
+        }
+
+        MerkleEngine.Result result = engine.compute(leaves, count, positions);
+        Sha256Hash root = result.getRootHash();
+        if (expectedRoot != null && !expectedRoot.equals(root))
+            throw new VerificationException("txids hash to " + root + " not the merkle root " + expectedRoot);
+        //nodes near the root are in most branches, keyed by level and position so each is wrapped once
+        Map<Long, Sha256Hash> siblings = new HashMap<>();
+        Map<Sha256Hash, MerkleBranch> branches = new LinkedHashMap<>();
+        for (int j = 0; j < found; j++) {
+            byte[][] nodes = result.getBranch(j);
+            List<Sha256Hash> branch = new ArrayList<>(nodes.length);
+            int position = positions[j];
+            for (int level = 0; level < nodes.length; level++, position >>= 1) {
+                long key = ((long) level << 32) | (position ^ 1);
+                Sha256Hash sibling = siblings.get(key);
+                if (sibling == null) {
+                    sibling = Sha256Hash.wrapReversed(nodes[level]);
+                    siblings.put(key, sibling);
+                }
+                branch.add(sibling);
+            }
+            branches.put(txids[j], new MerkleBranch(positions[j], txids[j], root, branch));
+        }
+        return branches;
+    }
+
+    /**
+     * Builds branches for the given txids from a txid file record, checking the txids against the record's header.
+     * Records are laid out as the txid files of {@link io.bitcoinsv.bitcoinjsv.blockstore.FullHeadersBlockStore}
+     * were: the 80 byte header, a varint count, then the txids in display byte order.  The store's writer for those
+     * is commented out so nothing writes them at the moment, which is why this isn't public.
+     *
+     * @param file txid file
+     * @param offset position of the record in the file
+     * @param wanted the txids to prove
+     * @return a branch for each wanted txid found in the block, in the order they were asked for
+     * @throws VerificationException if the txids don't hash to the header's merkle root
+     */
+    Map<Sha256Hash, MerkleBranch> prove(Path file, long offset, Collection<Sha256Hash> wanted)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer prefix = ByteBuffer.allocate(HeaderReadOnly.FIXED_MESSAGE_SIZE + 9);
+            readFully(channel, prefix, offset, HeaderReadOnly.FIXED_MESSAGE_SIZE + 1);
+            prefix.flip();
+            //the merkle root sits after the version and previous block hash, in internal byte order
+            byte[] headerRoot = new byte[HASH_LENGTH];
+            prefix.position(36);
+            prefix.get(headerRoot);
+            prefix.position(HeaderReadOnly.FIXED_MESSAGE_SIZE);
+            VarInt count = new VarInt(prefix);
+            if (count.value <= 0 || count.value > Integer.MAX_VALUE / HASH_LENGTH)
+                throw new IOException("Unexpected txid count " + count.value + " at offset " + offset + " of " + file);
+
+            int size = (int) count.value;
+            //heap rather than direct, a direct buffer per request would only be freed whenever a GC happens to collect it
+            ByteBuffer leaves = ByteBuffer.allocate(size * HASH_LENGTH);
+            readFully(channel, leaves, offset + HeaderReadOnly.FIXED_MESSAGE_SIZE + count.getOriginalSizeInBytes(),
+                    leaves.capacity());
+            leaves.flip();
+            reverseEach(leaves, size);
+
+            return prove(leaves, size, wanted, Sha256Hash.wrapReversed(headerRoot));
+        }
+    }
+
+    /**
+     * Checks branches against the merkle root of a header.
+     *
+     * @return the indexes into {@code branches} of those that are valid
+     */
+    public BitSet verify(HeaderReadOnly header, List<MerkleBranch> branches) {
+        return verify(branches, header.getMerkleRoot());
+    }
+
+    /**
+     * Checks each branch, using the node it was built with, against a merkle root.  Branches built without a node
+     * are treated as invalid.
+     *
+     * @return the indexes into {@code branches} of those that are valid
+     */
+    public BitSet verify(List<MerkleBranch> branches, Sha256Hash root) {
+        boolean[] valid = new boolean[branches.size()];
+        VerifyTask task = new VerifyTask(branches, root.getReversedBytes(), valid, 0, branches.size());
+        if (branches.size() > verifyBatchSize)
+            pool.invoke(task);
+        else
+            task.compute();
+        BitSet result = new BitSet(valid.length);
+        for (int i = 0; i < valid.length; i++)
+            if (valid[i])
+                result.set(i);
+        return result;
+    }
+
+    //the index of each wanted txid among the leaves, or -1.  A txid asked for twice is only located once
+    private static int[] locate(ByteBuffer leaves, int count, Collection<Sha256Hash> wanted) {
+        Map<ByteBuffer, Integer> slots = new HashMap<>();
+        int i = 0;
+        for (Sha256Hash txid : wanted)
+            slots.putIfAbsent(ByteBuffer.wrap(txid.getReversedBytes()), i++);
+        int[] indexes = new int[wanted.size()];
+        Arrays.fill(indexes, -1);
+
+        ByteBuffer view = leaves.duplicate();
+        byte[] hash = new byte[HASH_LENGTH];
+        ByteBuffer probe = ByteBuffer.wrap(hash);
+        int start = leaves.position();
+        for (int leaf = 0; leaf < count && !slots.isEmpty(); leaf++) {
+            view.limit(start + leaf * HASH_LENGTH + HASH_LENGTH).position(start + leaf * HASH_LENGTH);
+            view.get(hash);
+            //removed once found, a txid repeated in the block is proven at its first position
+            Integer slot = slots.remove(probe);
+            if (slot != null)
+                indexes[slot] = leaf;
+        }
+        return indexes;
+    }
+
+    //txid files hold display order, the engine wants internal order
+    private static void reverseEach(ByteBuffer leaves, int count) {
+        byte[] hash = new byte[HASH_LENGTH];
+        for (int i = 0; i < count; i++) {
+            int position = i * HASH_LENGTH;
+            leaves.position(position);
+            leaves.get(hash);
+            for (int j = 0; j < HASH_LENGTH / 2; j++) {
+                byte b = hash[j];
+                hash[j] = hash[HASH_LENGTH - 1 - j];
+                hash[HASH_LENGTH - 1 - j] = b;
+            }
+            leaves.position(position);
+            leaves.put(hash);
+        }
+        leaves.clear();
+    }
+
+    //reads until the buffer is full, or the end of the file once at least minimum bytes are in
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, int minimum)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                if (buffer.position() >= minimum)
+                    return;
+                throw new EOFException("Txid record truncated at " + (position + buffer.position()));
+            }
+        }
+    }
+
+    private class VerifyTask extends RecursiveAction {
+        private final List<MerkleBranch> branches;
+        private final byte[] root;
+        private final boolean[] valid;
+        private final int start;
+        private final int end;
+
+        VerifyTask(List<MerkleBranch> branches, byte[] root, boolean[] valid, int start, int end) {
+            this.branches = branches;
+            this.root = root;
+            this.valid = valid;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > verifyBatchSize) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new VerifyTask(branches, root, valid, start, middle),
+                        new VerifyTask(branches, root, valid, middle, end));
+                return;
+            }
+            MessageDigest digest = Sha256Hash.newDigest();
+            byte[] node = new byte[HASH_LENGTH];
+            try {
+                for (int i = start; i < end; i++) {
+                    MerkleBranch branch = branches.get(i);
+                    if (branch.getNode() == null)
+                        continue;
+                    System.arraycopy(branch.getNode().getReversedBytes(), 0, node, 0, HASH_LENGTH);
+                    int index = branch.getNodeIndex();
+                    for (Sha256Hash sibling : branch.getBranchNodes()) {
+                        if ((index & 1) == 0) {
+                            digest.update(node);
+                            digest.update(sibling.getReversedBytes());
+                        } else {
+                            digest.update(sibling.getReversedBytes());
+                            digest.update(node);
+                        }
+                        digest.digest(node, 0, HASH_LENGTH);
+                        digest.update(node);
+                        digest.digest(node, 0, HASH_LENGTH);
+                        index >>= 1;
+                    }
+                    valid[i] = Arrays.equals(node, root);
+                }
+            } catch (DigestException e) {
+                throw new RuntimeException(e);  // Can't happen, the buffers are the digest's length
+            }
+        }
+    }
+}
@@ -254,7 +254,8 @@ public class ScriptUtils {
         if (script.getProgram().length > 10000 || scriptPubKey.getProgram().length > 10000)
             throw new ScriptExecutionException("Script larger than 10,000 bytes");
 
-        ScriptStack stack = new ScriptStack();
+        //no listener can observe this stack so skip derivation and popped item tracking
+        ScriptStack stack = new ScriptStack(false);
         ScriptStack p2shStack = null;
 
         ScriptExecutionState state = new ScriptExecutionState();
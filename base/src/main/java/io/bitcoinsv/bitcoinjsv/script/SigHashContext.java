@@ -0,0 +1,148 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.script;
+
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.Tx;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.TxInput;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.TxOutput;
+import io.bitcoinsv.bitcoinjsv.bitcoin.bean.base.TxBean;
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+import io.bitcoinsv.bitcoinjsv.core.UnsafeByteArrayOutputStream;
+import io.bitcoinsv.bitcoinjsv.core.Utils;
+import io.bitcoinsv.bitcoinjsv.core.VarInt;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.List;
+
+/**
+ * Holds the per transaction parts of the BIP143 (forkid) signature hash: hashPrevouts, hashSequence and
+ * hashOutputs.  These are identical for every input of a transaction so computing them once and sharing them
+ * between all the inputs being signed or verified turns the O(n^2) hashing cost of a transaction with n inputs
+ * into O(n).
+ *
+ * Each of the midstates is calculated lazily on first use.  Calculation is idempotent so a context can be shared
+ * between threads verifying different inputs of the same transaction.
+ *
+ * A context is only valid for as long as the inputs, sequence numbers and outputs of the transaction it was created
+ * for don't change.  Use {@link #of(Tx)} rather than holding onto a context, for an immutable {@link TxBean} the
+ * context is cached on the transaction and discarded when it is made mutable or modified.
+ */
+public class SigHashContext {
+
+    private final Tx tx;
+
+    private volatile byte[] hashPrevouts;
+    private volatile byte[] hashSequence;
+    private volatile byte[] hashOutputs;
+
+    public SigHashContext(Tx tx) {
+        this.tx = tx;
+    }
+
+    /**
+     * Returns a context for the given transaction.  If the transaction is able to cache its own context it will
+     * be returned so all callers working on the same transaction share the same midstates, otherwise a new context
+     * is created.
+     */
+    public static SigHashContext of(Tx tx) {
+        if (tx instanceof TxBean)
+            return ((TxBean) tx).getSigHashContext();
+        return new SigHashContext(tx);
+    }
+
+    public Tx getTx() {
+        return tx;
+    }
+
+    /**
+     * @return double SHA256 of the serialized outpoints of all inputs.
+     */
+    public byte[] getHashPrevouts() {
+        byte[] hash = hashPrevouts;
+        if (hash == null) {
+            List<TxInput> inputs = tx.getInputs();
+            UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(inputs.size() * 36);
+            try {
+                for (int i = 0; i < inputs.size(); ++i) {
+                    TxInput input = inputs.get(i);
+                    bos.write(input.getOutpoint().getHash().getReversedBytes());
+                    Utils.uint32ToByteStreamLE(input.getOutpoint().getIndex(), bos);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);  // Cannot happen.
+            }
+            hash = Sha256Hash.hashTwice(bos.getBackingArray(), 0, bos.size());
+            hashPrevouts = hash;
+        }
+        return hash;
+    }
+
+    /**
+     * @return double SHA256 of the sequence numbers of all inputs.
+     */
+    public byte[] getHashSequence() {
+        byte[] hash = hashSequence;
+        if (hash == null) {
+            List<TxInput> inputs = tx.getInputs();
+            UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(inputs.size() * 4);
+            try {
+                for (int i = 0; i < inputs.size(); ++i) {
+                    Utils.uint32ToByteStreamLE(inputs.get(i).getSequenceNumber(), bos);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);  // Cannot happen.
+            }
+            hash = Sha256Hash.hashTwice(bos.getBackingArray(), 0, bos.size());
+            hashSequence = hash;
+        }
+        return hash;
+    }
+
+    /**
+     * @return double SHA256 of all the serialized outputs.
+     */
+    public byte[] getHashOutputs() {
+        byte[] hash = hashOutputs;
+        if (hash == null) {
+            List<TxOutput> outputs = tx.getOutputs();
+            UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(256);
+            try {
+                for (int i = 0; i < outputs.size(); ++i) {
+                    writeOutput(outputs.get(i), bos);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);  // Cannot happen.
+            }
+            hash = Sha256Hash.hashTwice(bos.getBackingArray(), 0, bos.size());
+            hashOutputs = hash;
+        }
+        return hash;
+    }
+
+    /**
+     * SIGHASH_SINGLE only commits to the output with the same index as the input being signed so this isn't
+     * shared between inputs.
+     * @return double SHA256 of the output at the given index or an all zero hash if there is no such output.
+     */
+    public byte[] getHashSingleOutput(int inputIndex) {
+        if (inputIndex >= tx.getOutputs().size())
+            return new byte[32];
+        UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(256);
+        try {
+            writeOutput(tx.getOutputs().get(inputIndex), bos);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        return Sha256Hash.hashTwice(bos.getBackingArray(), 0, bos.size());
+    }
+
+    private static void writeOutput(TxOutput output, UnsafeByteArrayOutputStream bos) throws IOException {
+        Utils.uint64ToByteStreamLE(BigInteger.valueOf(output.getValue().getValue()), bos);
+        bos.write(new VarInt(output.getScriptBytes().length).encode());
+        bos.write(output.getScriptBytes());
+    }
+
+}
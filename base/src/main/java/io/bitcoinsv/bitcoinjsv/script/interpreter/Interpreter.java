@@ -7,6 +7,7 @@ package io.bitcoinsv.bitcoinjsv.script.interpreter;
 
 import io.bitcoinsv.bitcoinjsv.ecc.TransactionSignature;
 import io.bitcoinsv.bitcoinjsv.ecc.ECDSA;
+import io.bitcoinsv.bitcoinjsv.ecc.SignatureCache;
 import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.Tx;
 import io.bitcoinsv.bitcoinjsv.core.*;
 import io.bitcoinsv.bitcoinjsv.script.*;
@@ -60,6 +61,8 @@ public class Interpreter {
     //initial state
     @Nullable
     Tx txContainingThis;
+    @Nullable
+    SigHashContext sigHashContext;
     long index;
     ScriptStream script;
     ScriptStack stack;
@@ -100,6 +103,7 @@ public class Interpreter {
                        ScriptExecutionState state,
                        boolean allowFakeChecksig, long fakeChecksigDelay) {
         this.txContainingThis = txContainingThis;
+        this.sigHashContext = txContainingThis == null ? null : SigHashContext.of(txContainingThis);
         this.index = index;
         this.script = script;
         this.stack = stack;
@@ -127,6 +131,10 @@ public class Interpreter {
         return castToBool(data.bytes());
     }
 
+    private static ScriptNum toScriptNum(boolean value) {
+        return value ? ScriptNum.ONE : ScriptNum.ZERO;
+    }
+
     public static boolean castToBool(byte[] data) {
         for (int i = 0; i < data.length; i++) {
             // "Can be negative zero" - Bitcoin Core (see OpenSSL's BN_bn2mpi)
@@ -176,6 +184,23 @@ public class Interpreter {
         return Utils.decodeMPI(Utils.reverseBytes(stackItem.bytes()), false);
     }
 
+    /**
+     * Cast a script chunk to a ScriptNum.  Applies the same size and minimal encoding checks as
+     * {@link #castToBigInteger(ScriptExecutionState, StackItem, int, boolean)} but values that fit in a long
+     * are decoded without allocating a BigInteger.
+     *
+     * @param maxLength the maximum length in bytes.
+     * @throws ScriptExecutionException if the chunk is longer than the specified maximum.
+     */
+    static ScriptNum castToScriptNum(ScriptExecutionState state, final StackItem stackItem, final int maxLength, boolean enforceMinimal) throws ScriptExecutionException {
+        if (stackItem.length() > maxLength)
+            throw new ScriptExecutionException(state, "Script attempted to use an integer larger than "
+                    + maxLength + " bytes: " + stackItem.length());
+        if (enforceMinimal && !Utils.checkMinimallyEncodedLE(stackItem.bytes(), maxLength))
+            throw new ScriptExecutionException(state, "Number is not minimally encoded: " + stackItem + " - [" + stackItem.toString(true, Type.BYTES) + "]");
+        return ScriptNum.decode(stackItem.bytes());
+    }
+
     /**
      * shift x right by n bits, implements OP_RSHIFT
      * see: https://github.com/bitcoin-sv/bitcoin-sv/commit/27d24de643dbd3cc852e1de7c90e752e19abb9d8
@@ -385,7 +410,7 @@ public class Interpreter {
             allowUnclosedIf = true;
         } else {
             //this is a normal invocation where the entire script is executed in one call.
-            altstack = new ScriptStack();
+            altstack = new ScriptStack(stack.isTracking());
             ifStack = new LinkedList<Boolean>();
         }
         //mark all stack items as derived if initial stack state is not known to this execution context
@@ -580,29 +605,24 @@ public class Interpreter {
                 case OP_2DUP:
                     if (stack.size() < 2)
                         throw new ScriptExecutionException(state, "Attempted OP_2DUP on a stack with size < 2");
-                    Iterator<StackItem> it2DUP = stack.descendingIterator();
-                    StackItem OP2DUPtmpChunk2 = it2DUP.next();
-                    stack.add(it2DUP.next());
+                    StackItem OP2DUPtmpChunk2 = stack.getFromTop(0);
+                    stack.add(stack.getFromTop(1));
                     stack.add(OP2DUPtmpChunk2);
                     break;
                 case OP_3DUP:
                     if (stack.size() < 3)
                         throw new ScriptExecutionException(state, "Attempted OP_3DUP on a stack with size < 3");
-                    Iterator<StackItem> it3DUP = stack.descendingIterator();
-                    StackItem OP3DUPtmpChunk3 = it3DUP.next();
-                    StackItem OP3DUPtmpChunk2 = it3DUP.next();
-                    stack.add(it3DUP.next());
+                    StackItem OP3DUPtmpChunk3 = stack.getFromTop(0);
+                    StackItem OP3DUPtmpChunk2 = stack.getFromTop(1);
+                    stack.add(stack.getFromTop(2));
                     stack.add(OP3DUPtmpChunk2);
                     stack.add(OP3DUPtmpChunk3);
                     break;
                 case OP_2OVER:
                     if (stack.size() < 4)
                         throw new ScriptExecutionException(state, "Attempted OP_2OVER on a stack with size < 4");
-                    Iterator<StackItem> it2OVER = stack.descendingIterator();
-                    it2OVER.next();
-                    it2OVER.next();
-                    StackItem OP2OVERtmpChunk2 = it2OVER.next();
-                    stack.add(it2OVER.next());
+                    StackItem OP2OVERtmpChunk2 = stack.getFromTop(2);
+                    stack.add(stack.getFromTop(3));
                     stack.add(OP2OVERtmpChunk2);
                     break;
                 case OP_2ROT:
@@ -664,9 +684,7 @@ public class Interpreter {
                 case OP_OVER:
                     if (stack.size() < 2)
                         throw new ScriptExecutionException(state, "Attempted OP_OVER on a stack with size < 2");
-                    Iterator<StackItem> itOVER = stack.descendingIterator();
-                    itOVER.next();
-                    stack.add(itOVER.next());
+                    stack.add(stack.getFromTop(1));
                     break;
                 case OP_PICK:
                 case OP_ROLL:
@@ -675,15 +693,10 @@ public class Interpreter {
 
                     StackItem rollVal = stack.pollLast();
 
-                    long val = castToBigInteger(state, rollVal, maxNumElementSize, enforceMinimal).longValue();
+                    long val = castToScriptNum(state, rollVal, maxNumElementSize, enforceMinimal).longValue();
                     if (val < 0 || val >= stack.size())
                         throw new ScriptExecutionException(state, "OP_PICK/OP_ROLL attempted to get data deeper than stack size");
-                    Iterator<StackItem> itPICK = stack.descendingIterator();
-                    for (long i = 0; i < val; i++)
-                        itPICK.next();
-                    StackItem OPROLLtmpChunk = itPICK.next();
-                    if (opcode == OP_ROLL)
-                        itPICK.remove();
+                    StackItem OPROLLtmpChunk = opcode == OP_ROLL ? stack.removeFromTop((int) val) : stack.getFromTop((int) val);
                     //whether the value is derived doesn't depend on where in the stack
                     //it's picked from so just add the original StackItem
                     stack.add(OPROLLtmpChunk);
@@ -925,39 +938,32 @@ public class Interpreter {
                     if (stack.size() < 1)
                         throw new ScriptExecutionException(state, "Attempted a numeric op on an empty stack");
                     StackItem numericOpItem = stack.pollLast();
-                    BigInteger numericOPnum = castToBigInteger(state, numericOpItem, maxNumElementSize, enforceMinimal);
+                    ScriptNum numericOPnum = castToScriptNum(state, numericOpItem, maxNumElementSize, enforceMinimal);
 
                     switch (opcode) {
                         case OP_1ADD:
-                            numericOPnum = numericOPnum.add(BigInteger.ONE);
+                            numericOPnum = numericOPnum.add(ScriptNum.ONE);
                             break;
                         case OP_1SUB:
-                            numericOPnum = numericOPnum.subtract(BigInteger.ONE);
+                            numericOPnum = numericOPnum.subtract(ScriptNum.ONE);
                             break;
                         case OP_NEGATE:
                             numericOPnum = numericOPnum.negate();
                             break;
                         case OP_ABS:
-                            if (numericOPnum.signum() < 0)
-                                numericOPnum = numericOPnum.negate();
+                            numericOPnum = numericOPnum.abs();
                             break;
                         case OP_NOT:
-                            if (numericOPnum.equals(BigInteger.ZERO))
-                                numericOPnum = BigInteger.ONE;
-                            else
-                                numericOPnum = BigInteger.ZERO;
+                            numericOPnum = numericOPnum.isZero() ? ScriptNum.ONE : ScriptNum.ZERO;
                             break;
                         case OP_0NOTEQUAL:
-                            if (numericOPnum.equals(BigInteger.ZERO))
-                                numericOPnum = BigInteger.ZERO;
-                            else
-                                numericOPnum = BigInteger.ONE;
+                            numericOPnum = numericOPnum.isZero() ? ScriptNum.ZERO : ScriptNum.ONE;
                             break;
                         default:
                             throw new AssertionError("Unreachable");
                     }
 
-                    stack.add(Type.INT, Utils.reverseBytes(Utils.encodeMPI(numericOPnum, false)), numericOpItem);
+                    stack.add(Type.INT, numericOPnum.encode(), numericOpItem);
                     break;
                 case OP_2MUL:
                 case OP_2DIV:
@@ -981,10 +987,10 @@ public class Interpreter {
                         throw new ScriptExecutionException(state, "Attempted a numeric op on a stack with size < 2");
                     StackItem numericOpItem2 = stack.pollLast();
                     StackItem numericOpItem1 = stack.pollLast();
-                    BigInteger numericOPnum2 = castToBigInteger(state, numericOpItem2, maxNumElementSize, enforceMinimal);
-                    BigInteger numericOPnum1 = castToBigInteger(state, numericOpItem1, maxNumElementSize, enforceMinimal);
+                    ScriptNum numericOPnum2 = castToScriptNum(state, numericOpItem2, maxNumElementSize, enforceMinimal);
+                    ScriptNum numericOPnum1 = castToScriptNum(state, numericOpItem1, maxNumElementSize, enforceMinimal);
 
-                    BigInteger numericOPresult;
+                    ScriptNum numericOPresult;
                     Type numericOPType = Type.INT;
                     switch (opcode) {
                         case OP_ADD:
@@ -999,79 +1005,50 @@ public class Interpreter {
                             break;
 
                         case OP_DIV:
-                            if (numericOPnum2.intValue() == 0)
+                            if (numericOPnum2.isZero())
                                 throw new ScriptExecutionException(state, "Division by zero error");
                             numericOPresult = numericOPnum1.divide(numericOPnum2);
                             break;
 
                         case OP_MOD:
-                            if (numericOPnum2.intValue() == 0)
+                            if (numericOPnum2.isZero())
                                 throw new ScriptExecutionException(state, "Modulo by zero error");
 
-                            /**
-                             * FIXME BigInteger doesn't behave the way we want for modulo operations.  Firstly it's
-                             * always garunteed to return a +ve result.  Secondly it will throw an exception
-                             * if the 2nd operand is negative.
-                             * The remainder method behaves as we expect
-                             */
+                            //the result takes the sign of the dividend, as with the reference implementation
                             numericOPresult = numericOPnum1.remainder(numericOPnum2);
 
                             break;
 
                         case OP_BOOLAND:
-                            if (!numericOPnum1.equals(BigInteger.ZERO) && !numericOPnum2.equals(BigInteger.ZERO))
-                                numericOPresult = BigInteger.ONE;
-                            else
-                                numericOPresult = BigInteger.ZERO;
+                            numericOPresult = toScriptNum(!numericOPnum1.isZero() && !numericOPnum2.isZero());
                             numericOPType = Type.BOOL;
                             break;
                         case OP_BOOLOR:
-                            if (!numericOPnum1.equals(BigInteger.ZERO) || !numericOPnum2.equals(BigInteger.ZERO))
-                                numericOPresult = BigInteger.ONE;
-                            else
-                                numericOPresult = BigInteger.ZERO;
+                            numericOPresult = toScriptNum(!numericOPnum1.isZero() || !numericOPnum2.isZero());
                             numericOPType = Type.BOOL;
                             break;
                         case OP_NUMEQUAL:
-                            if (numericOPnum1.equals(numericOPnum2))
-                                numericOPresult = BigInteger.ONE;
-                            else
-                                numericOPresult = BigInteger.ZERO;
+                            numericOPresult = toScriptNum(numericOPnum1.equals(numericOPnum2));
                             numericOPType = Type.BOOL;
                             break;
                         case OP_NUMNOTEQUAL:
-                            if (!numericOPnum1.equals(numericOPnum2))
-                                numericOPresult = BigInteger.ONE;
-                            else
-                                numericOPresult = BigInteger.ZERO;
+                            numericOPresult = toScriptNum(!numericOPnum1.equals(numericOPnum2));
                             numericOPType = Type.BOOL;
                             break;
                         case OP_LESSTHAN:
-                            if (numericOPnum1.compareTo(numericOPnum2) < 0)
-                                numericOPresult = BigInteger.ONE;
-                            else
-                                numericOPresult = BigInteger.ZERO;
+                            numericOPresult = toScriptNum(numericOPnum1.compareTo(numericOPnum2) < 0);
                             numericOPType = Type.BOOL;
                             break;
                         case OP_GREATERTHAN:
-                            if (numericOPnum1.compareTo(numericOPnum2) > 0)
-                                numericOPresult = BigInteger.ONE;
-                            else
-                                numericOPresult = BigInteger.ZERO;
+                            numericOPresult = toScriptNum(numericOPnum1.compareTo(numericOPnum2) > 0);
                             numericOPType = Type.BOOL;
                             break;
                         case OP_LESSTHANOREQUAL:
-                            if (numericOPnum1.compareTo(numericOPnum2) <= 0)
-                                numericOPresult = BigInteger.ONE;
-                            else
-                                numericOPresult = BigInteger.ZERO;
+                            numericOPresult = toScriptNum(numericOPnum1.compareTo(numericOPnum2) <= 0);
                             numericOPType = Type.BOOL;
                             break;
                         case OP_GREATERTHANOREQUAL:
-                            if (numericOPnum1.compareTo(numericOPnum2) >= 0)
-                                numericOPresult = BigInteger.ONE;
-                            else
-                                numericOPresult = BigInteger.ZERO;
+                            numericOPresult = toScriptNum(numericOPnum1.compareTo(numericOPnum2) >= 0);
                             numericOPType = Type.BOOL;
                             break;
                         case OP_MIN:
@@ -1090,13 +1067,13 @@ public class Interpreter {
                             throw new RuntimeException("Opcode switched at runtime?");
                     }
 
-                    stack.add(numericOPType, Utils.reverseBytes(Utils.encodeMPI(numericOPresult, false)), numericOpItem1, numericOpItem2);
+                    stack.add(numericOPType, numericOPresult.encode(), numericOpItem1, numericOpItem2);
                     break;
                 case OP_NUMEQUALVERIFY:
                     if (stack.size() < 2)
                         throw new ScriptExecutionException(state, "Attempted OP_NUMEQUALVERIFY on a stack with size < 2");
-                    BigInteger OPNUMEQUALVERIFYnum2 = castToBigInteger(state, stack.pollLast(), maxNumElementSize, enforceMinimal);
-                    BigInteger OPNUMEQUALVERIFYnum1 = castToBigInteger(state, stack.pollLast(), maxNumElementSize, enforceMinimal);
+                    ScriptNum OPNUMEQUALVERIFYnum2 = castToScriptNum(state, stack.pollLast(), maxNumElementSize, enforceMinimal);
+                    ScriptNum OPNUMEQUALVERIFYnum1 = castToScriptNum(state, stack.pollLast(), maxNumElementSize, enforceMinimal);
 
                     if (!OPNUMEQUALVERIFYnum1.equals(OPNUMEQUALVERIFYnum2))
                         throw new ScriptExecutionException(state, "OP_NUMEQUALVERIFY failed");
@@ -1107,16 +1084,11 @@ public class Interpreter {
                     StackItem OPWITHINitem3 = stack.pollLast();
                     StackItem OPWITHINitem2 = stack.pollLast();
                     StackItem OPWITHINitem1 = stack.pollLast();
-                    BigInteger OPWITHINnum3 = castToBigInteger(state, OPWITHINitem3, maxNumElementSize, enforceMinimal);
-                    BigInteger OPWITHINnum2 = castToBigInteger(state, OPWITHINitem2, maxNumElementSize, enforceMinimal);
-                    BigInteger OPWITHINnum1 = castToBigInteger(state, OPWITHINitem1, maxNumElementSize, enforceMinimal);
-                    byte[] OPWITHINresult;
-                    if (OPWITHINnum2.compareTo(OPWITHINnum1) <= 0 && OPWITHINnum1.compareTo(OPWITHINnum3) < 0)
-                        //normally we'd reverse bytes on output of encodeMPI but we are skipping because it's just one byte
-                        OPWITHINresult = Utils.encodeMPI(BigInteger.ONE, false);
-                    else
-                        OPWITHINresult = Utils.encodeMPI(BigInteger.ZERO, false);
-                    stack.add(Type.BOOL, Utils.reverseBytes(OPWITHINresult), OPWITHINitem1, OPWITHINitem2, OPWITHINitem3);
+                    ScriptNum OPWITHINnum3 = castToScriptNum(state, OPWITHINitem3, maxNumElementSize, enforceMinimal);
+                    ScriptNum OPWITHINnum2 = castToScriptNum(state, OPWITHINitem2, maxNumElementSize, enforceMinimal);
+                    ScriptNum OPWITHINnum1 = castToScriptNum(state, OPWITHINitem1, maxNumElementSize, enforceMinimal);
+                    boolean OPWITHINresult = OPWITHINnum2.compareTo(OPWITHINnum1) <= 0 && OPWITHINnum1.compareTo(OPWITHINnum3) < 0;
+                    stack.add(Type.BOOL, toScriptNum(OPWITHINresult).encode(), OPWITHINitem1, OPWITHINitem2, OPWITHINitem3);
                     break;
                 case OP_RIPEMD160:
                     if (stack.size() < 1)
@@ -1166,14 +1138,14 @@ public class Interpreter {
                     if (allowFakeChecksig) {
 
                     } else {
-                        executeCheckSig(state, txContainingThis, (int) index, script, stack, lastCodeSepLocation, opcode, value, verifyFlags, allowFakeChecksig);
+                        executeCheckSig(state, sigHashContext, (int) index, script, stack, lastCodeSepLocation, opcode, value, verifyFlags, allowFakeChecksig);
                     }
                     break;
                 case OP_CHECKMULTISIG:
                 case OP_CHECKMULTISIGVERIFY:
                     if (txContainingThis == null)
                         throw new IllegalStateException("Script attempted signature check but no tx was provided");
-                    opCount = executeMultiSig(state, txContainingThis, (int) index, script, stack, opCount, maxOpCount, maxMultisigKeys, lastCodeSepLocation, opcode, value, verifyFlags, allowFakeChecksig);
+                    opCount = executeMultiSig(state, sigHashContext, (int) index, script, stack, opCount, maxOpCount, maxMultisigKeys, lastCodeSepLocation, opcode, value, verifyFlags, allowFakeChecksig);
                     state.opCount = opCount;
                     break;
                 case OP_CHECKLOCKTIMEVERIFY:
@@ -1302,7 +1274,17 @@ public class Interpreter {
             throw new ScriptExecutionException(state, "Transaction contains a final transaction input for a CHECKLOCKTIMEVERIFY script.");
     }
 
-    private static void executeCheckSig(ScriptExecutionState state, Tx txContainingThis, int index, ScriptStream script, ScriptStack stack,
+    /**
+     * Verifies a signature, consulting the default {@link SignatureCache} first if there is one.
+     */
+    private static boolean verifySignature(Sha256Hash hash, TransactionSignature sig, byte[] sigBytes, byte[] pubKey) {
+        SignatureCache cache = SignatureCache.getDefault();
+        if (cache == null)
+            return ECDSA.verify(hash.getBytes(), sig, pubKey);
+        return cache.verify(hash.getBytes(), sig, sigBytes, pubKey);
+    }
+
+    private static void executeCheckSig(ScriptExecutionState state, SigHashContext sigHashContext, int index, ScriptStream script, ScriptStack stack,
                                         int lastCodeSepLocation, int opcode, Coin value,
                                         Set<ScriptVerifyFlag> verifyFlags, boolean allowFakeChecksig) throws ScriptExecutionException {
 
@@ -1337,9 +1319,9 @@ public class Interpreter {
 
             // TODO: Should check hash type is known
             Sha256Hash hash = sig.useForkId() ?
-                    SigHash.hashForForkIdSignature(txContainingThis, index, connectedScript, value, sig.sigHashMode(), sig.anyoneCanPay()) :
-                    SigHash.hashForLegacySignature(txContainingThis, index, connectedScript, (byte) sig.sighashFlags);
-            sigValid = allowFakeChecksig ? true : ECDSA.verify(hash.getBytes(), sig, pubKey.bytes());
+                    SigHash.hashForForkIdSignature(sigHashContext, index, connectedScript, value, sig.sigHashMode(), sig.anyoneCanPay()) :
+                    SigHash.hashForLegacySignature(sigHashContext.getTx(), index, connectedScript, (byte) sig.sighashFlags);
+            sigValid = allowFakeChecksig ? true : verifySignature(hash, sig, sigBytes.bytes(), pubKey.bytes());
         } catch (Exception e1) {
             // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
             // Because I can't verify there aren't more, we use a very generic Exception catch
@@ -1358,7 +1340,7 @@ public class Interpreter {
                 throw new ScriptExecutionException(state, "Script failed OP_CHECKSIGVERIFY");
     }
 
-    private static int executeMultiSig(ScriptExecutionState state, Tx txContainingThis, int index, ScriptStream script, ScriptStack stack,
+    private static int executeMultiSig(ScriptExecutionState state, SigHashContext sigHashContext, int index, ScriptStream script, ScriptStack stack,
                                        int opCount, int maxOpCount, int maxKeys, int lastCodeSepLocation, int opcode, Coin value,
                                        Set<ScriptVerifyFlag> verifyFlags, boolean allowFakeChecksig) throws ScriptExecutionException {
         final boolean requireCanonical = !allowFakeChecksig &&
@@ -1377,7 +1359,7 @@ public class Interpreter {
 
         //we'll allow the highest possible pubKeyCount as it's immediately check after and this ensures
         //we get a meaningful error message
-        int pubKeyCount = castToBigInteger(state, pubKeyCountItem, MAX_NUM_ELEMENT_SIZE_POST_GENESIS, enforceMinimal).intValue();
+        int pubKeyCount = castToScriptNum(state, pubKeyCountItem, MAX_NUM_ELEMENT_SIZE_POST_GENESIS, enforceMinimal).intValue();
         if (pubKeyCount < 0 || pubKeyCount > maxKeys)
             throw new ScriptExecutionException(state, "OP_CHECKMULTISIG(VERIFY) with pubkey count out of range");
         opCount += pubKeyCount;
@@ -1396,7 +1378,7 @@ public class Interpreter {
 
         StackItem sigCountItem = stack.pollLast();
         polledStackItems.add(sigCountItem);
-        int sigCount = castToBigInteger(state, sigCountItem, maxKeys, enforceMinimal).intValue();
+        int sigCount = castToScriptNum(state, sigCountItem, maxKeys, enforceMinimal).intValue();
         if (sigCount < 0 || sigCount > pubKeyCount)
             throw new ScriptExecutionException(state, "OP_CHECKMULTISIG(VERIFY) with sig count out of range");
         if (stack.size() < sigCount + 1)
@@ -1430,9 +1412,9 @@ public class Interpreter {
                 TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigs.getFirst().bytes(), requireCanonical,
                         verifyFlags.contains(ScriptVerifyFlag.LOW_S));
                 Sha256Hash hash = sig.useForkId() ?
-                        SigHash.hashForForkIdSignature(txContainingThis, index, connectedScript, value, sig.sigHashMode(), sig.anyoneCanPay()) :
-                        SigHash.hashForLegacySignature(txContainingThis, index, connectedScript, (byte) sig.sighashFlags);
-                if (allowFakeChecksig || ECDSA.verify(hash.getBytes(), sig, pubKey.bytes()))
+                        SigHash.hashForForkIdSignature(sigHashContext, index, connectedScript, value, sig.sigHashMode(), sig.anyoneCanPay()) :
+                        SigHash.hashForLegacySignature(sigHashContext.getTx(), index, connectedScript, (byte) sig.sighashFlags);
+                if (allowFakeChecksig || verifySignature(hash, sig, sigs.getFirst().bytes(), pubKey.bytes()))
                     sigs.pollFirst();
             } catch (Exception e) {
                 // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
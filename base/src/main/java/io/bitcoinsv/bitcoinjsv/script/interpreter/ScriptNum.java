@@ -0,0 +1,228 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.script.interpreter;
+
+import io.bitcoinsv.bitcoinjsv.core.Utils;
+
+import java.math.BigInteger;
+
+/**
+ * A script number, the equivalent of CScriptNum in the reference implementation.
+ *
+ * Script numbers are encoded on the stack as little endian sign-magnitude byte arrays.  Anything up to 8 bytes long
+ * fits in a long so values are held as a primitive and arithmetic is done without allocating.  Only when an operand
+ * or result is outside the range of a long (which requires post Genesis numbers longer than 8 bytes) is the value
+ * promoted to a BigInteger.
+ *
+ * Long.MIN_VALUE has no sign-magnitude representation in 8 bytes so it is never held as a long, this means negate
+ * and abs on the long path can never overflow.
+ */
+public final class ScriptNum implements Comparable<ScriptNum> {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    public static final ScriptNum ZERO = new ScriptNum(0);
+    public static final ScriptNum ONE = new ScriptNum(1);
+
+    private static final BigInteger MIN_LONG = BigInteger.valueOf(-Long.MAX_VALUE);
+    private static final BigInteger MAX_LONG = BigInteger.valueOf(Long.MAX_VALUE);
+
+    private final long value;
+    //only set if the value is outside the range of the long path
+    private final BigInteger big;
+
+    private ScriptNum(long value) {
+        this.value = value;
+        this.big = null;
+    }
+
+    private ScriptNum(BigInteger big) {
+        this.value = big.longValue();
+        this.big = big;
+    }
+
+    public static ScriptNum valueOf(long value) {
+        if (value == 0)
+            return ZERO;
+        if (value == 1)
+            return ONE;
+        if (value == Long.MIN_VALUE)
+            return new ScriptNum(BigInteger.valueOf(value));
+        return new ScriptNum(value);
+    }
+
+    public static ScriptNum valueOf(BigInteger value) {
+        if (value.compareTo(MIN_LONG) >= 0 && value.compareTo(MAX_LONG) <= 0)
+            return valueOf(value.longValue());
+        return new ScriptNum(value);
+    }
+
+    /**
+     * Decodes a little endian sign-magnitude number as stored on the stack.  No size or minimal encoding checks are
+     * performed.
+     */
+    public static ScriptNum decode(byte[] bytesLE) {
+        int length = bytesLE.length;
+        if (length == 0)
+            return ZERO;
+        if (length > 8)
+            return valueOf(Utils.decodeMPI(Utils.reverseBytes(bytesLE), false));
+
+        long result = 0;
+        for (int i = 0; i < length - 1; i++)
+            result |= (bytesLE[i] & 0xffL) << (8 * i);
+        int last = bytesLE[length - 1] & 0xff;
+        result |= ((long) (last & 0x7f)) << (8 * (length - 1));
+        return valueOf((last & 0x80) != 0 ? -result : result);
+    }
+
+    /**
+     * @return the minimal little endian sign-magnitude encoding of this number as stored on the stack.
+     */
+    public byte[] encode() {
+        if (big != null)
+            return Utils.reverseBytes(Utils.encodeMPI(big, false));
+        if (value == 0)
+            return EMPTY;
+
+        boolean negative = value < 0;
+        long abs = negative ? -value : value;
+        int magnitudeLength = (64 - Long.numberOfLeadingZeros(abs) + 7) / 8;
+        //an extra byte is needed if the top bit of the magnitude is already used
+        boolean extraByte = ((abs >>> (8 * magnitudeLength - 8)) & 0x80) != 0;
+        byte[] result = new byte[extraByte ? magnitudeLength + 1 : magnitudeLength];
+        for (int i = 0; i < magnitudeLength; i++) {
+            result[i] = (byte) abs;
+            abs >>>= 8;
+        }
+        if (extraByte)
+            result[magnitudeLength] = negative ? (byte) 0x80 : 0;
+        else if (negative)
+            result[magnitudeLength - 1] |= 0x80;
+        return result;
+    }
+
+    /**
+     * @return true if this number is held as a primitive long.
+     */
+    public boolean isSmall() {
+        return big == null;
+    }
+
+    public BigInteger toBigInteger() {
+        return big != null ? big : BigInteger.valueOf(value);
+    }
+
+    /**
+     * @return the low 64 bits of the two's complement value, the same as {@link BigInteger#longValue()}
+     */
+    public long longValue() {
+        return value;
+    }
+
+    /**
+     * @return the low 32 bits of the two's complement value, the same as {@link BigInteger#intValue()}
+     */
+    public int intValue() {
+        return (int) value;
+    }
+
+    public int signum() {
+        return big != null ? big.signum() : Long.signum(value);
+    }
+
+    public boolean isZero() {
+        return big == null && value == 0;
+    }
+
+    public ScriptNum add(ScriptNum other) {
+        if (big == null && other.big == null) {
+            long result = value + other.value;
+            //overflow if both operands have the opposite sign to the result
+            if (((value ^ result) & (other.value ^ result)) >= 0)
+                return valueOf(result);
+        }
+        return valueOf(toBigInteger().add(other.toBigInteger()));
+    }
+
+    public ScriptNum subtract(ScriptNum other) {
+        if (big == null && other.big == null) {
+            long result = value - other.value;
+            //overflow if the operands have different signs and the result has the sign of the subtrahend
+            if (((value ^ other.value) & (value ^ result)) >= 0)
+                return valueOf(result);
+        }
+        return valueOf(toBigInteger().subtract(other.toBigInteger()));
+    }
+
+    public ScriptNum multiply(ScriptNum other) {
+        if (big == null && other.big == null) {
+            long result = value * other.value;
+            //the high 64 bits must be the sign extension of the low 64 bits
+            if (Math.multiplyHigh(value, other.value) == (result >> 63))
+                return valueOf(result);
+        }
+        return valueOf(toBigInteger().multiply(other.toBigInteger()));
+    }
+
+    /**
+     * Division truncating towards zero.
+     * @throws ArithmeticException if other is zero
+     */
+    public ScriptNum divide(ScriptNum other) {
+        if (big == null && other.big == null)
+            return valueOf(value / other.value);
+        return valueOf(toBigInteger().divide(other.toBigInteger()));
+    }
+
+    /**
+     * Remainder with the sign of the dividend, the same as {@link BigInteger#remainder(BigInteger)}
+     * @throws ArithmeticException if other is zero
+     */
+    public ScriptNum remainder(ScriptNum other) {
+        if (big == null && other.big == null)
+            return valueOf(value % other.value);
+        return valueOf(toBigInteger().remainder(other.toBigInteger()));
+    }
+
+    public ScriptNum negate() {
+        return big == null ? valueOf(-value) : valueOf(big.negate());
+    }
+
+    public ScriptNum abs() {
+        return signum() < 0 ? negate() : this;
+    }
+
+    @Override
+    public int compareTo(ScriptNum other) {
+        if (big == null && other.big == null)
+            return Long.compare(value, other.value);
+        return toBigInteger().compareTo(other.toBigInteger());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof ScriptNum))
+            return false;
+        ScriptNum other = (ScriptNum) o;
+        //values are normalised so a small and a big number are never equal
+        if (big == null)
+            return other.big == null && value == other.value;
+        return big.equals(other.big);
+    }
+
+    @Override
+    public int hashCode() {
+        return big == null ? Long.hashCode(value) : big.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return big == null ? Long.toString(value) : big.toString();
+    }
+
+}
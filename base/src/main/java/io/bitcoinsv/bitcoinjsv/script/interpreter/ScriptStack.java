@@ -9,15 +9,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
-import java.util.function.Consumer;
-import java.util.function.Predicate;
-import java.util.function.UnaryOperator;
-import java.util.stream.Stream;
 
-public class ScriptStack extends LinkedList<StackItem> {
+/**
+ * The script stack.  Items are held in a growable array with the top of the stack at the highest index so
+ * pushing, popping and indexed access (OP_PICK, OP_ROLL, stackTop(int)) are all O(1) apart from the array copy
+ * when an item is rolled out of the middle of the stack.
+ *
+ * By default the stack tracks which items are derived from values that were on the stack before the script started
+ * and keeps a record of popped items for {@link ScriptStateListener}s.  When neither is required (e.g. plain script
+ * verification) create the stack with tracking disabled to skip this bookkeeping.
+ */
+public class ScriptStack extends AbstractList<StackItem> implements RandomAccess {
 
     private static final Logger log = LoggerFactory.getLogger(ScriptStack.class);
 
+    private static final int DEFAULT_CAPACITY = 16;
+
     /**
      * A global flag to turn on an extra check when getting stackmemoryusage. The extra
      * check manually iterates the entire stack and calculates the usage manually. This
@@ -27,15 +34,21 @@ public class ScriptStack extends LinkedList<StackItem> {
     public static boolean VERIFY_STACK_MEMEORY_USAGE = false;
 
     private final boolean verifyStackMemoryUsage;
+    private final boolean tracking;
     private long stackBytes = 0;
 
+    private StackItem[] items;
+    private int size = 0;
+
     //no opcode removes more than 4 items from the stack except CHECKMULTISIG
     private List<StackItem> poppedItems = new ArrayList(4);
 
     public ScriptStack(ScriptStack stack) {
-        super(stack);
+        items = Arrays.copyOf(stack.items, Math.max(stack.size, DEFAULT_CAPACITY));
+        size = stack.size;
         stackBytes = stack.stackBytes;
         verifyStackMemoryUsage = stack.verifyStackMemoryUsage;
+        tracking = stack.tracking;
     }
 
     public ScriptStack(Collection<? extends StackItem> c, boolean verifyStackMemoryUsage) {
@@ -44,21 +57,38 @@ public class ScriptStack extends LinkedList<StackItem> {
     }
 
     public ScriptStack() {
-        super();
+        this(true);
+    }
+
+    /**
+     * @param tracking whether to track derivation of stack items and record popped items.  Only required when
+     *                 the state of the script is being inspected, e.g. by a {@link ScriptStateListener}.
+     */
+    public ScriptStack(boolean tracking) {
         this.verifyStackMemoryUsage = VERIFY_STACK_MEMEORY_USAGE;
+        this.tracking = tracking;
+        this.items = new StackItem[DEFAULT_CAPACITY];
+    }
+
+    /**
+     * @return true if this stack tracks derivations and popped items
+     */
+    public boolean isTracking() {
+        return tracking;
     }
 
     /**
      * Set the stack state of all contained items to derived.
-     * TODO inefficient implementation since we are index accessing LinkedList, probably doesn't matter until we have very large scripts.
      *
      * @param derived whether the stack state should be considered known to the execution context.  If in doubt set to true
      * @return
      */
     public void setDerivations(boolean derived) {
-        for (int i = 0; i < this.size(); i++) {
-            StackItem old = this.get(i);
-            set(i, StackItem.wrapDerived(old.bytes(), old.getType(), derived));
+        if (!tracking)
+            return;
+        for (int i = 0; i < size; i++) {
+            StackItem old = items[i];
+            items[i] = StackItem.wrapDerived(old.bytes(), old.getType(), derived);
         }
     }
 
@@ -95,8 +125,8 @@ public class ScriptStack extends LinkedList<StackItem> {
      */
     public long calculateStackMemoryUsage() {
         long memoryUsage = 0;
-        for (StackItem item: this) {
-            memoryUsage += 32 + item.length();
+        for (int i = 0; i < size; i++) {
+            memoryUsage += 32 + items[i].length();
         }
         return memoryUsage;
     }
@@ -110,11 +140,13 @@ public class ScriptStack extends LinkedList<StackItem> {
     }
 
     public void clearPoppedItems() {
-        poppedItems.clear();
+        if (!poppedItems.isEmpty())
+            poppedItems.clear();
     }
 
     /**
-     * all items popped from the stack since the last time clearPoppedItems() was called
+     * all items popped from the stack since the last time clearPoppedItems() was called.  Always empty if
+     * the stack is not tracking.
      * @return
      */
     public List<StackItem> getPoppedItems() {
@@ -125,36 +157,98 @@ public class ScriptStack extends LinkedList<StackItem> {
         return Collections.unmodifiableList(this);
     }
 
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public StackItem get(int index) {
+        checkIndex(index);
+        return items[index];
+    }
+
+    /**
+     * @param depth 0 for the top of the stack, 1 for the item below it etc.
+     * @return the item at the given depth
+     */
+    public StackItem getFromTop(int depth) {
+        return get(size - 1 - depth);
+    }
+
+    /**
+     * Removes the item at the given depth, shifting the items above it down.
+     * @param depth 0 for the top of the stack, 1 for the item below it etc.
+     * @return the removed item
+     */
+    public StackItem removeFromTop(int depth) {
+        return removeAt(size - 1 - depth);
+    }
+
     public boolean add(StackItem item) {
+        if (size == items.length)
+            items = Arrays.copyOf(items, items.length << 1);
+        items[size++] = item;
         stackBytes += item.length();
-        return super.add(item);
+        modCount++;
+        return true;
     }
 
     public boolean add(StackItem from, StackItem ... derivedFrom) {
-        return add(StackItem.from(from, derivedFrom));
+        return add(tracking ? StackItem.from(from, derivedFrom) : from);
     }
 
     public boolean add(StackItem.Type type, byte[] bytes, StackItem ... derivedFrom) {
-        return add(StackItem.forBytes(bytes, type, derivedFrom));
+        return add(tracking ? StackItem.forBytes(bytes, type, derivedFrom) : StackItem.forBytes(bytes, type, false));
     }
 
-    @Override
-    public void addLast(StackItem stackItem) {
-        throw new UnsupportedOperationException();
-//        stackBytes += stackItem.length();
-//        super.addLast(stackItem);
+    public StackItem getFirst() {
+        if (size == 0)
+            throw new NoSuchElementException();
+        return items[0];
     }
 
-    @Override
     public StackItem getLast() {
-        return super.getLast();
+        if (size == 0)
+            throw new NoSuchElementException();
+        return items[size - 1];
+    }
+
+    public StackItem element() {
+        return getFirst();
+    }
+
+    public StackItem peekFirst() {
+        return size == 0 ? null : items[0];
+    }
+
+    public StackItem peekLast() {
+        return size == 0 ? null : items[size - 1];
     }
 
-    @Override
     public StackItem pollLast() {
-        StackItem item = super.pollLast();
+        if (size == 0)
+            return null;
+        StackItem item = items[--size];
+        items[size] = null;
         stackBytes -= item.length();
-        poppedItems.add(item);
+        modCount++;
+        if (tracking)
+            poppedItems.add(item);
+        return item;
+    }
+
+    private StackItem removeAt(int index) {
+        checkIndex(index);
+        StackItem item = items[index];
+        int moved = size - index - 1;
+        if (moved > 0)
+            System.arraycopy(items, index + 1, items, index, moved);
+        items[--size] = null;
+        stackBytes -= item.length();
+        modCount++;
+        if (tracking)
+            poppedItems.add(item);
         return item;
     }
 
@@ -168,22 +262,33 @@ public class ScriptStack extends LinkedList<StackItem> {
 
     @Override
     public void clear() {
-        super.clear();
+        Arrays.fill(items, 0, size, null);
+        size = 0;
         stackBytes = 0;
+        modCount++;
     }
 
     @Override
     public StackItem set(int index, StackItem element) {
-        StackItem old = super.set(index, element);
+        checkIndex(index);
+        StackItem old = items[index];
+        items[index] = element;
         if (old != null)
             stackBytes -= old.length();
         stackBytes += element.length();
         return old;
     }
 
-    @Override
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+
+    /**
+     * @return iterator from the top of the stack to the bottom.
+     */
     public Iterator<StackItem> descendingIterator() {
-        return new StackIterator(super.descendingIterator());
+        return new StackIterator(size - 1, -1);
     }
 
     public Iterator<StackItem> iterator() {
@@ -192,12 +297,12 @@ public class ScriptStack extends LinkedList<StackItem> {
 
     @Override
     public ListIterator<StackItem> listIterator() {
-        return new StackIterator(super.listIterator(0));
+        return new StackIterator(0, 1);
     }
 
     @Override
     public ListIterator<StackItem> listIterator(int index) {
-        return new StackIterator(super.listIterator(index));
+        return new StackIterator(index, 1);
     }
 
     public String toString() {
@@ -240,30 +345,44 @@ public class ScriptStack extends LinkedList<StackItem> {
 
     private class StackIterator implements ListIterator<StackItem> {
 
-        private final Iterator<StackItem> delegate;
-        private StackItem last;
+        private final int step;
+        private int next;
+        private int last = -1;
+        private int expectedModCount = modCount;
 
-        public StackIterator(Iterator<StackItem> delegate) {
-            this.delegate = delegate;
+        StackIterator(int start, int step) {
+            this.next = start;
+            this.step = step;
         }
 
         @Override
         public boolean hasNext() {
-            return delegate.hasNext();
+            return next >= 0 && next < size;
         }
 
         @Override
         public StackItem next() {
-            last = delegate.next();
-            return last;
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if (!hasNext())
+                throw new NoSuchElementException();
+            last = next;
+            next += step;
+            return items[last];
         }
 
         @Override
         public void remove() {
-            stackBytes -= last.length();
-            poppedItems.add(last);
-            delegate.remove();
-            last = null;
+            if (last < 0)
+                throw new IllegalStateException();
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            removeAt(last);
+            expectedModCount = modCount;
+            //ascending iteration needs to revisit the slot that was shifted down into the removed position
+            if (step > 0)
+                next = last;
+            last = -1;
         }
 
         @Override
@@ -296,27 +415,8 @@ public class ScriptStack extends LinkedList<StackItem> {
             throw new UnsupportedOperationException();
         }
 
-
-    }
-
-
-    @Override
-    public int indexOf(Object o) {
-        return super.indexOf(o);
     }
 
-    @Override
-    public int lastIndexOf(Object o) {
-        return super.lastIndexOf(o);
-    }
-
-    @Override
-    public StackItem element() {
-        return super.element();
-    }
-
-
-
     // NOT IMPLEMENTED
 
     @Override
@@ -324,21 +424,6 @@ public class ScriptStack extends LinkedList<StackItem> {
         throw new UnsupportedOperationException();
     }
 
-    @Override
-    public StackItem removeFirst() {
-        throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public StackItem removeLast() {
-        throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public void addFirst(StackItem stackItem) {
-        throw new UnsupportedOperationException();
-    }
-
     @Override
     public boolean remove(Object o) {
         throw new UnsupportedOperationException();
@@ -354,61 +439,6 @@ public class ScriptStack extends LinkedList<StackItem> {
         throw new UnsupportedOperationException();
     }
 
-    @Override
-    public StackItem poll() {
-        throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public StackItem remove() {
-        throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public boolean offer(StackItem stackItem) {
-        throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public boolean offerFirst(StackItem stackItem) {
-        throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public boolean offerLast(StackItem stackItem) {
-        throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public StackItem pollFirst() {
-        throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public void push(StackItem stackItem) {
-        throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public StackItem pop() {
-        throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public boolean removeFirstOccurrence(Object o) {
-        throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public boolean removeLastOccurrence(Object o) {
-        throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public Spliterator<StackItem> spliterator() {
-        throw new UnsupportedOperationException();
-    }
-
     @Override
     protected void removeRange(int fromIndex, int toIndex) {
         throw new UnsupportedOperationException();
@@ -424,28 +454,4 @@ public class ScriptStack extends LinkedList<StackItem> {
         throw new UnsupportedOperationException();
     }
 
-    @Override
-    public void replaceAll(UnaryOperator<StackItem> operator) {
-        throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public boolean removeIf(Predicate<? super StackItem> filter) {
-        return false;
-    }
-
-    @Override
-    public Stream<StackItem> stream() {
-        throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public Stream<StackItem> parallelStream() {
-        throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public void forEach(Consumer<? super StackItem> action) {
-    }
-
 }
@@ -10,10 +10,24 @@ import io.bitcoinsv.bitcoinjsv.bitcoin.bean.base.FullBlockBean;
 import io.bitcoinsv.bitcoinjsv.params.Net;
 import io.bitcoinsv.bitcoinjsv.params.NetworkParameters;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * A very quick and dirty block.dat parser.
@@ -21,11 +35,29 @@ import java.util.List;
  * Specify where your bitcoind data directory is (typically /home/user/.bitcoin/blocks)
  * and provide a BlockParsedListener to recieve the FullBlocks as they are parsed.
  *
+ * Constructing the parser with a decode executor selects mapped mode.  In mapped mode {@link #run()} memory maps each
+ * file instead of reading the whole of it into a heap buffer, scans the magic/length framing to find the blocks and
+ * decodes the blocks on the executor.  It is not zero copy: a {@link FullBlockBean} is parsed from, and keeps, a byte
+ * array, so each block is copied out of the mapping once, on the executor, just before it is decoded.  Listener
+ * callbacks are still made in file order on the thread calling {@link #run()} and progress is reported to a
+ * {@link BlockParseMetricsListener} rather than printed.
+ *
  * @author Steve Shadders
  */
 
 public class BlkDatParser {
 
+    private static final Logger log = LoggerFactory.getLogger(BlkDatParser.class);
+
+    public static final int DEFAULT_PROGRESS_INTERVAL = 5000;
+    public static final int DEFAULT_MAX_BLOCKS_IN_FLIGHT = 256;
+    public static final long DEFAULT_MAX_BYTES_IN_FLIGHT = 512 * 1024 * 1024;
+
+    /** Files larger than this are mapped in several windows. */
+    private static final int MAP_WINDOW_SIZE = 1 << 30;
+    /** Magic bytes followed by the little endian block length. */
+    private static final int FRAME_HEADER_SIZE = 8;
+
     private String dbLocation = "/home/shadders/.bitcoin/blocks";
 
     //NetworkParameters params;
@@ -53,8 +85,13 @@ public class BlkDatParser {
 
     private List<BlockParsedListener> listeners;
 
-    private boolean shutdown = false;
+    private volatile boolean shutdown = false;
 
+    private final ExecutorService decodeExecutor;
+    private BlockParseMetricsListener metricsListener;
+    private int progressInterval = DEFAULT_PROGRESS_INTERVAL;
+    private int maxBlocksInFlight = DEFAULT_MAX_BLOCKS_IN_FLIGHT;
+    private long maxBytesInFlight = DEFAULT_MAX_BYTES_IN_FLIGHT;
 
 
     public BlkDatParser(NetworkParameters params, String dbLocation, boolean buffered) throws FileNotFoundException {
@@ -66,7 +103,22 @@ public class BlkDatParser {
     }
 
     public BlkDatParser(NetworkParameters params, String dbLocation, boolean buffered, int blknum, BlockParsedListener listener) throws FileNotFoundException {
+        this(params, dbLocation, buffered, blknum, listener, null);
+    }
+
+    /**
+     * Creates a parser in mapped mode.  No listener is registered if listener is null.
+     *
+     * @param decodeExecutor executor the blocks are decoded on, e.g. a {@link java.util.concurrent.ForkJoinPool} sized
+     *                       to the number of cores.  It is not shut down by the parser.
+     */
+    public BlkDatParser(NetworkParameters params, String dbLocation, int blknum, BlockParsedListener listener, ExecutorService decodeExecutor) throws FileNotFoundException {
+        this(params, dbLocation, false, blknum, listener, checkNotNull(decodeExecutor));
+    }
+
+    private BlkDatParser(NetworkParameters params, String dbLocation, boolean buffered, int blknum, BlockParsedListener listener, ExecutorService decodeExecutor) throws FileNotFoundException {
         super();
+        this.decodeExecutor = decodeExecutor;
         if (dbLocation == null) {
             File home = new File(System.getProperty("user.home"));
             File f = new File(home, ".bitcoin/blocks/");
@@ -75,7 +127,7 @@ public class BlkDatParser {
         this.dbLocation = dbLocation;
         this.buffered = buffered;
         this.blkNum = blknum;
-        if (listener == null)
+        if (listener == null && !isMapped())
             listener = new StdOutBlockParsedListener();
         if (listener != null)
             registerBlockParsedListener(listener);
@@ -99,6 +151,9 @@ public class BlkDatParser {
             //params = TestNet3Params.get();
             net = Net.MAINNET;
         folder = new File(dbLocation);
+        if (isMapped())
+            //files are opened as they are reached by run()
+            return;
         try {
             newFile(blkNum);
         } catch (IOException e) {
@@ -169,7 +224,15 @@ public class BlkDatParser {
         return sb.toString();
     }
 
+    public boolean isMapped() {
+        return decodeExecutor != null;
+    }
+
     public void run() {
+        if (isMapped()) {
+            runMapped();
+            return;
+        }
         blocksParsed = 0;
         try {
             init();
@@ -231,6 +294,8 @@ public class BlkDatParser {
      * @throws IOException
      */
     public FullBlock nextBlock() throws IOException {
+        if (isMapped())
+            throw new IllegalStateException("nextBlock() is not available in mapped mode, use run()");
 
         long start = System.currentTimeMillis();
         if (!seekPastMagicBytes()) {
@@ -317,6 +382,310 @@ public class BlkDatParser {
         return false;
     }
 
+    /**
+     * Mapped mode version of {@link #run()}.  The calling thread finds the blocks in each file and submits them to
+     * the decode executor, then delivers the decoded blocks to the listeners in the order they were found.  At most
+     * {@link #getMaxBlocksInFlight()} blocks, or {@link #getMaxBytesInFlight()} bytes of blocks, are held between
+     * being found and being delivered.
+     */
+    private void runMapped() {
+        blocksParsed = 0;
+        long startTime = System.currentTimeMillis();
+        MappedRun run = new MappedRun(startTime);
+        try {
+            for (int fileNum = blkNum; !run.stopped; fileNum++) {
+                File file = new File(folder, buildFileName(fileNum));
+                if (!file.exists())
+                    //run out of files this is all the blocks we have.
+                    break;
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    MappedBlkFile blkFile = new MappedBlkFile(file, fileNum, channel);
+                    long offset = 0;
+                    while (!run.stopped && (offset = blkFile.nextFrame(offset)) >= 0) {
+                        long length = blkFile.frameLength;
+                        ByteBuffer payload = blkFile.payload(offset + FRAME_HEADER_SIZE, length);
+                        run.submit(new PendingBlock(file, fileNum, offset, FRAME_HEADER_SIZE + length, payload));
+                        offset += FRAME_HEADER_SIZE + length;
+                    }
+                }
+            }
+            while (!run.stopped && !run.pending.isEmpty())
+                run.deliverNext();
+        } catch (IOException e) {
+            log.error("Failed to parse block files", e);
+            return;
+        } finally {
+            for (PendingBlock pendingBlock : run.pending)
+                pendingBlock.future.cancel(false);
+            run.pending.clear();
+        }
+        run.finish();
+    }
+
+    /**
+     * State of a single mapped mode run, only used by the thread calling {@link #run()}.
+     */
+    private class MappedRun {
+
+        final ArrayDeque<PendingBlock> pending = new ArrayDeque<>();
+        final long startTime;
+        long bytesInFlight;
+        long bytesParsed;
+        boolean stopped;
+
+        //the file currently being delivered
+        PendingBlock fileFirstBlock;
+        long fileStartTime;
+        long fileBytes;
+
+        MappedRun(long startTime) {
+            this.startTime = startTime;
+        }
+
+        void submit(PendingBlock block) throws IOException {
+            while (!stopped && !pending.isEmpty() && (pending.size() >= maxBlocksInFlight
+                    || bytesInFlight + block.length > maxBytesInFlight))
+                deliverNext();
+            if (stopped)
+                return;
+            block.future = decodeExecutor.submit(block::decode);
+            block.foundTime = System.currentTimeMillis();
+            pending.add(block);
+            bytesInFlight += block.length;
+        }
+
+        void deliverNext() throws IOException {
+            if (shutdown || (stopHeight > 0 && height >= stopHeight)) {
+                stopped = true;
+                return;
+            }
+            PendingBlock next = pending.poll();
+            bytesInFlight -= next.length;
+            FullBlock block = next.get();
+
+            if (fileFirstBlock == null || fileFirstBlock.fileNum != next.fileNum) {
+                fileComplete();
+                fileFirstBlock = next;
+                fileStartTime = next.foundTime;
+                fileBlocks = 0;
+                fileBytes = 0;
+                f = next.file;
+                blkNum = next.fileNum;
+                if (listeners != null) {
+                    for (BlockParsedListener listener : listeners) {
+                        listener.onNewFile(next.file, next.fileNum);
+                    }
+                }
+            }
+
+            if (listeners != null) {
+                for (BlockParsedListener listener : listeners) {
+                    listener.onBlockParsed(block, height, next.file, next.start, next.length);
+                }
+            }
+
+            height++;
+            blocksParsed++;
+            fileBlocks++;
+            fileBytes += next.length;
+            bytesParsed += next.length;
+            lastBlock = block;
+
+            if (metricsListener != null && blocksParsed % progressInterval == 0)
+                metricsListener.onProgress(blocksParsed, bytesParsed, System.currentTimeMillis() - startTime,
+                        pending.size(), bytesInFlight);
+        }
+
+        void fileComplete() {
+            if (fileFirstBlock != null && metricsListener != null)
+                metricsListener.onFileComplete(fileFirstBlock.file, fileFirstBlock.fileNum, fileBlocks, fileBytes,
+                        System.currentTimeMillis() - fileStartTime);
+        }
+
+        void finish() {
+            fileComplete();
+            long millis = System.currentTimeMillis() - startTime;
+            if (metricsListener != null)
+                metricsListener.onProgress(blocksParsed, bytesParsed, millis, 0, 0);
+            if (listeners != null) {
+                for (BlockParsedListener listener : listeners) {
+                    try {
+                        listener.onComplete(millis / 1000);
+                    } catch (IOException e) {
+                        log.error("Listener failed to complete", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A block that has been found in a file but not yet delivered to the listeners.
+     */
+    private static class PendingBlock {
+
+        final File file;
+        final int fileNum;
+        final long start;
+        final long length;
+        //slice of the mapped file holding just the serialized block
+        ByteBuffer payload;
+        Future<FullBlock> future;
+        long foundTime;
+
+        PendingBlock(File file, int fileNum, long start, long length, ByteBuffer payload) {
+            this.file = file;
+            this.fileNum = fileNum;
+            this.start = start;
+            this.length = length;
+            this.payload = payload;
+        }
+
+        FullBlock decode() {
+            //the bean parses from and keeps a byte array, this is the one copy of the block out of the mapping
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            //release the mapping as soon as possible
+            payload = null;
+            return new FullBlockBean(bytes);
+        }
+
+        FullBlock get() throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for block at " + start + " in " + file);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                if (e.getCause() instanceof Error)
+                    throw (Error) e.getCause();
+                throw new IOException("Failed to decode block at " + start + " in " + file, e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Finds the blocks in a memory mapped blkNNNNN.dat file.  Files up to {@link #MAP_WINDOW_SIZE} are mapped
+     * once, larger files are mapped in windows as the scan progresses.
+     */
+    private class MappedBlkFile {
+
+        final File file;
+        final int fileNum;
+        final FileChannel channel;
+        final long size;
+        final int packetMagic;
+        final int oldPacketMagic;
+
+        MappedByteBuffer window;
+        long windowStart;
+        //payload length of the frame last found by nextFrame
+        long frameLength;
+
+        MappedBlkFile(File file, int fileNum, FileChannel channel) throws IOException {
+            this.file = file;
+            this.fileNum = fileNum;
+            this.channel = channel;
+            this.size = channel.size();
+            this.packetMagic = (int) net.params().getPacketMagic();
+            //networks without an old magic leave it as zero, which would match the padding
+            long oldMagic = net.params().getOldPacketMagic();
+            this.oldPacketMagic = oldMagic == 0 ? packetMagic : (int) oldMagic;
+        }
+
+        /**
+         * Finds the next block frame at or after offset.  bitcoind writes blocks back to back so usually the magic
+         * is right at offset, otherwise the file is scanned for it, e.g. over the zero padding at the end of a
+         * preallocated file.
+         *
+         * @return the offset of the magic bytes or -1 if there are no more complete blocks in the file.
+         */
+        long nextFrame(long offset) throws IOException {
+            while (offset + FRAME_HEADER_SIZE <= size) {
+                if (offset < windowStart || offset + FRAME_HEADER_SIZE > windowStart + (window == null ? 0 : window.limit()))
+                    mapWindow(offset);
+                int limit = window.limit() - FRAME_HEADER_SIZE;
+                for (int i = (int) (offset - windowStart); i <= limit; i++) {
+                    int magic = window.getInt(i);
+                    if (magic == packetMagic || magic == oldPacketMagic) {
+                        long frameStart = windowStart + i;
+                        frameLength = Integer.toUnsignedLong(Integer.reverseBytes(window.getInt(i + 4)));
+                        if (frameStart + FRAME_HEADER_SIZE + frameLength > size) {
+                            log.warn("Truncated block at {} in {}", frameStart, file);
+                            return -1;
+                        }
+                        return frameStart;
+                    }
+                }
+                //continue from the first offset that couldn't be checked in this window
+                offset = windowStart + limit + 1;
+            }
+            return -1;
+        }
+
+        /**
+         * @return a buffer holding the serialized block.  Blocks that lie within the current window share its
+         * mapping, the bytes are only copied out when the block is decoded.
+         */
+        ByteBuffer payload(long offset, long length) throws IOException {
+            if (length > Integer.MAX_VALUE - 8)
+                throw new IOException("Block at " + (offset - FRAME_HEADER_SIZE) + " in " + file + " is " + length
+                        + " bytes, too large to decode into a FullBlockBean, read it with a StreamingBlockParser");
+            int windowOffset = (int) (offset - windowStart);
+            if (offset >= windowStart && offset + length <= windowStart + window.limit()) {
+                ByteBuffer slice = window.duplicate();
+                slice.position(windowOffset);
+                slice.limit(windowOffset + (int) length);
+                return slice.slice();
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        }
+
+        private void mapWindow(long offset) throws IOException {
+            windowStart = offset;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MAP_WINDOW_SIZE, size - offset));
+        }
+    }
+
+    public void setMetricsListener(BlockParseMetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+    }
+
+    public int getProgressInterval() {
+        return progressInterval;
+    }
+
+    /**
+     * @param progressInterval number of blocks between {@link BlockParseMetricsListener#onProgress} calls.
+     */
+    public void setProgressInterval(int progressInterval) {
+        checkArgument(progressInterval > 0, "progressInterval must be positive");
+        this.progressInterval = progressInterval;
+    }
+
+    public int getMaxBlocksInFlight() {
+        return maxBlocksInFlight;
+    }
+
+    public void setMaxBlocksInFlight(int maxBlocksInFlight) {
+        checkArgument(maxBlocksInFlight > 0, "maxBlocksInFlight must be positive");
+        this.maxBlocksInFlight = maxBlocksInFlight;
+    }
+
+    public long getMaxBytesInFlight() {
+        return maxBytesInFlight;
+    }
+
+    /**
+     * A single block larger than this is still decoded, on its own.
+     */
+    public void setMaxBytesInFlight(long maxBytesInFlight) {
+        checkArgument(maxBytesInFlight > 0, "maxBytesInFlight must be positive");
+        this.maxBytesInFlight = maxBytesInFlight;
+    }
+
     public void setBuffered(boolean buffered) {
         this.buffered = buffered;
     }
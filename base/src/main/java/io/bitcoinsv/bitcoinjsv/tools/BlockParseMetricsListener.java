@@ -0,0 +1,38 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.tools;
+
+import java.io.File;
+
+/**
+ * Receives progress reports from a {@link BlkDatParser} running in mapped mode.  Callbacks are made on the thread
+ * calling {@link BlkDatParser#run()}, in the same order as the {@link BlockParsedListener} callbacks.
+ */
+public interface BlockParseMetricsListener {
+
+    /**
+     * Called every {@link BlkDatParser#setProgressInterval(int)} blocks.
+     *
+     * @param blocksParsed   blocks delivered to listeners so far.
+     * @param bytesParsed    serialized size of the blocks delivered so far.
+     * @param elapsedMillis  time since the run started.
+     * @param blocksInFlight blocks found in the files that are queued or being decoded.
+     * @param bytesInFlight  serialized size of the blocks in flight.
+     */
+    default void onProgress(long blocksParsed, long bytesParsed, long elapsedMillis, int blocksInFlight,
+                            long bytesInFlight) {}
+
+    /**
+     * Called once the last block in a blkNNNNN.dat file has been delivered to listeners.
+     *
+     * @param file        the completed file.
+     * @param fileNum     number of the file, not a block height.
+     * @param blocks      number of blocks in the file.
+     * @param bytes       serialized size of the blocks in the file.
+     * @param elapsedMillis time from the first block of the file being found to the last being delivered.
+     */
+    default void onFileComplete(File file, int fileNum, int blocks, long bytes, long elapsedMillis) {}
+
+}
@@ -1,7 +1,9 @@
 package io.bitcoinsv.bitcoinjsv.bitcoin;
 
 import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.FullBlock;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.Tx;
 import io.bitcoinsv.bitcoinjsv.bitcoin.bean.base.FullBlockBean;
+import io.bitcoinsv.bitcoinjsv.bitcoin.bean.base.LazyFullBlockBean;
 import io.bitcoinsv.bitcoinjsv.core.UnsafeByteArrayOutputStream;
 import io.bitcoinsv.bitcoinjsv.params.UnitTestParams;
 import org.junit.jupiter.api.Test;
@@ -38,4 +40,68 @@ public class FullBlockBeanTest {
         }
 
     }
+
+    @Test
+    public void testLazyFullBlockBean() throws Exception {
+        //genesis header and coinbase followed by two more transactions
+        byte[] genesis = Genesis.getFor(UnitTestParams.get().getNet()).serialize();
+        ByteArrayOutputStream out = new UnsafeByteArrayOutputStream();
+        out.write(genesis, 0, 80);
+        out.write(3);
+        out.write(genesis, 81, genesis.length - 81);
+        out.write(TxBeanTestBase.txBytes);
+        out.write(TxBeanTestBase.txBytes);
+        byte[] blockBytes = out.toByteArray();
+
+        FullBlockBean eager = new FullBlockBean(blockBytes);
+        FullBlockBean lazy = new LazyFullBlockBean(blockBytes);
+
+        assertEquals(eager.getHash(), lazy.getHash());
+        assertEquals(3, lazy.getTransactions().size());
+        assertEquals(blockBytes.length, lazy.getMessageSize());
+        int i = 0;
+        for (Tx tx : lazy.getTransactions()) {
+            assertEquals(eager.getTransactions().get(i).getHash(), tx.getHash());
+            assertEquals(eager.getTxHash(i), lazy.getTxHash(i));
+            i++;
+        }
+        assertEquals(TxBeanTestBase.txHash, lazy.getTxHash(2));
+        assertEquals(eager.calculateMerkleRoot(), lazy.calculateMerkleRoot());
+        assertArrayEquals(blockBytes, lazy.serialize());
+
+        ByteArrayOutputStream reserialized = new UnsafeByteArrayOutputStream();
+        lazy.serializeTo(reserialized);
+        assertArrayEquals(blockBytes, reserialized.toByteArray());
+
+        //making it mutable materializes the transactions
+        lazy.makeMutable();
+        eager.makeMutable();
+        assertEquals(3, lazy.getTransactions().size());
+        assertSame(lazy.getTransactions().get(1), lazy.getTransactions().get(1));
+        assertArrayEquals(eager.serialize(), lazy.serialize());
+    }
+
+    @Test
+    public void testLazyTxEditedBeforeBlockMutableIsKept() throws Exception {
+        byte[] genesis = Genesis.getFor(UnitTestParams.get().getNet()).serialize();
+        ByteArrayOutputStream out = new UnsafeByteArrayOutputStream();
+        out.write(genesis, 0, 80);
+        out.write(2);
+        out.write(genesis, 81, genesis.length - 81);
+        out.write(TxBeanTestBase.txBytes);
+        FullBlockBean lazy = new LazyFullBlockBean(out.toByteArray());
+
+        //fetched while the block is still immutable, the same instance comes back while it is held
+        Tx tx = lazy.getTransactions().get(1);
+        assertSame(tx, lazy.getTransactions().get(1));
+        long lockTime = tx.getLockTime() + 1;
+
+        //making the tx mutable makes the block mutable, which copies the transaction list
+        tx.makeMutable();
+        tx.setLockTime(lockTime);
+        assertSame(tx, lazy.getTransactions().get(1));
+        assertEquals(lockTime, lazy.getTransactions().get(1).getLockTime());
+        FullBlockBean reparsed = new FullBlockBean(lazy.serialize());
+        assertEquals(lockTime, reparsed.getTransactions().get(1).getLockTime());
+    }
 }
@@ -0,0 +1,88 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.bitcoin;
+
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.Tx;
+import io.bitcoinsv.bitcoinjsv.bitcoin.bean.base.FullBlockBean;
+import io.bitcoinsv.bitcoinjsv.bitcoin.bean.base.StreamingBlockParser;
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+import io.bitcoinsv.bitcoinjsv.core.UnsafeByteArrayOutputStream;
+import io.bitcoinsv.bitcoinjsv.core.VarInt;
+import io.bitcoinsv.bitcoinjsv.params.Net;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StreamingBlockParserTest {
+
+    /**
+     * The genesis header and coinbase followed by extraTxs copies of a standard transaction.
+     */
+    private static byte[] buildBlock(int extraTxs) throws IOException {
+        byte[] genesis = Genesis.getFor(Net.UNITTEST).serialize();
+        ByteArrayOutputStream out = new UnsafeByteArrayOutputStream();
+        out.write(genesis, 0, 80);
+        out.write(new VarInt(extraTxs + 1).encode());
+        out.write(genesis, 81, genesis.length - 81);
+        for (int i = 0; i < extraTxs; i++)
+            out.write(TxBeanTestBase.txBytes);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testMatchesFullBlockBean() throws IOException {
+        for (int extraTxs : new int[] {0, 1, 2, 4, 6, 300}) {
+            byte[] blockBytes = buildBlock(extraTxs);
+            FullBlockBean block = new FullBlockBean(blockBytes);
+
+            //a tiny buffer exercises compaction and growth
+            StreamingBlockParser parser = new StreamingBlockParser(
+                    Channels.newChannel(new ByteArrayInputStream(blockBytes)), 100);
+            assertEquals(block.getHeader(), parser.readHeader());
+            assertEquals(extraTxs + 1, parser.getTxCount());
+
+            List<Tx> txs = new ArrayList<>();
+            Sha256Hash merkleRoot = parser.parse(txs::add);
+
+            assertEquals(block.getTransactions().size(), txs.size());
+            for (int i = 0; i < txs.size(); i++) {
+                assertEquals(block.getTransactions().get(i).getHash(), txs.get(i).getHash());
+                assertArrayEquals(block.getTransactions().get(i).serialize(), txs.get(i).serialize());
+            }
+            assertEquals(block.calculateMerkleRoot(), merkleRoot);
+            assertEquals(blockBytes.length, parser.getBytesRead());
+        }
+    }
+
+    @Test
+    public void testGenesisMerkleRoot() throws IOException {
+        byte[] genesis = Genesis.getFor(Net.UNITTEST).serialize();
+        StreamingBlockParser parser = new StreamingBlockParser(new ByteArrayInputStream(genesis));
+        List<Sha256Hash> hashes = parser.transactions().map(Tx::getHash).collect(Collectors.toList());
+        assertEquals(1, hashes.size());
+        assertTrue(parser.isMerkleRootValid());
+    }
+
+    @Test
+    public void testTruncatedBlock() throws IOException {
+        byte[] blockBytes = buildBlock(3);
+        byte[] truncated = Arrays.copyOf(blockBytes, blockBytes.length - 10);
+        StreamingBlockParser parser = new StreamingBlockParser(new ByteArrayInputStream(truncated));
+        assertThrows(EOFException.class, () -> parser.parse(tx -> {}));
+        assertEquals(3, parser.getTxsRead());
+        assertThrows(IllegalStateException.class, parser::getMerkleRoot);
+    }
+
+}
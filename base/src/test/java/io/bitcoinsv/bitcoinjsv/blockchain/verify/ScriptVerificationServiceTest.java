@@ -0,0 +1,163 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.blockchain.verify;
+
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.BitcoinObject;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.Tx;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.TxInput;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.TxOutPoint;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.TxOutput;
+import io.bitcoinsv.bitcoinjsv.bitcoin.bean.base.TxBean;
+import io.bitcoinsv.bitcoinjsv.bitcoin.bean.base.TxInputBean;
+import io.bitcoinsv.bitcoinjsv.bitcoin.bean.base.TxOutPointBean;
+import io.bitcoinsv.bitcoinjsv.bitcoin.bean.base.TxOutputBean;
+import io.bitcoinsv.bitcoinjsv.blockchain.verify.InputVerificationResult.Status;
+import io.bitcoinsv.bitcoinjsv.core.Coin;
+import io.bitcoinsv.bitcoinjsv.core.ECKeyLite;
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+import io.bitcoinsv.bitcoinjsv.core.UTXO;
+import io.bitcoinsv.bitcoinjsv.ecc.TransactionSignature;
+import io.bitcoinsv.bitcoinjsv.params.MainNetParams;
+import io.bitcoinsv.bitcoinjsv.params.Net;
+import io.bitcoinsv.bitcoinjsv.params.NetworkParameters;
+import io.bitcoinsv.bitcoinjsv.script.Script;
+import io.bitcoinsv.bitcoinjsv.script.ScriptBuilder;
+import io.bitcoinsv.bitcoinjsv.script.ScriptVerifyFlag;
+import io.bitcoinsv.bitcoinjsv.script.SigHash;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ScriptVerificationServiceTest {
+
+    private static final NetworkParameters PARAMS = new MainNetParams(Net.MAINNET);
+
+    private ForkJoinPool pool;
+    private ScriptVerificationService service;
+    private ECKeyLite key;
+    private Script scriptPubKey;
+    private Map<String, UTXO> utxos;
+
+    @BeforeEach
+    public void setUp() {
+        pool = new ForkJoinPool(4);
+        //small tasks so even these tiny batches are spread across threads
+        service = new ScriptVerificationService(pool, 2);
+        key = new ECKeyLite();
+        scriptPubKey = ScriptBuilder.createOutputScript(key.toAddress(PARAMS));
+        utxos = new HashMap<>();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    private UTXO addUtxo(int index) {
+        Sha256Hash hash = Sha256Hash.of(new byte[]{(byte) index});
+        UTXO utxo = new UTXO(hash, 0, Coin.COIN, 1, false, scriptPubKey);
+        utxos.put(hash + ":0", utxo);
+        return utxo;
+    }
+
+    private UTXOLookup lookup() {
+        return (hash, index) -> utxos.get(hash + ":" + index);
+    }
+
+    /**
+     * builds a transaction spending the given outputs to a single output paying back to our key.
+     */
+    private Tx spend(List<Sha256Hash> hashes, List<Long> indexes, List<Coin> values) {
+        Tx tx = new TxBean((BitcoinObject) null);
+        List<TxInput> inputs = new ArrayList<>();
+        for (int i = 0; i < hashes.size(); i++) {
+            TxInput input = new TxInputBean(tx);
+            TxOutPoint outPoint = new TxOutPointBean(input);
+            outPoint.setHash(hashes.get(i));
+            outPoint.setIndex(indexes.get(i));
+            input.setOutpoint(outPoint);
+            input.setScriptBytes(new byte[0]);
+            input.setSequenceNumber(TxInput.NO_SEQUENCE);
+            inputs.add(input);
+        }
+        TxOutput output = new TxOutputBean(tx);
+        output.setValue(Coin.COIN);
+        output.setScriptPubKey(scriptPubKey);
+        tx.setInputs(inputs);
+        tx.setOutputs(new ArrayList<>(Arrays.asList(output)));
+
+        for (int i = 0; i < inputs.size(); i++) {
+            Sha256Hash sigHash = SigHash.hashForForkIdSignature(tx, i, scriptPubKey.getProgram(), values.get(i), SigHash.Flags.ALL, false);
+            TransactionSignature sig = new TransactionSignature(key.sign(sigHash), SigHash.Flags.ALL, false, true);
+            inputs.get(i).setScriptSig(ScriptBuilder.createInputScript(sig, key));
+        }
+        return new TxBean(tx.serialize());
+    }
+
+    private Tx spendUtxos(int from, int count) {
+        List<Sha256Hash> hashes = new ArrayList<>();
+        List<Long> indexes = new ArrayList<>();
+        List<Coin> values = new ArrayList<>();
+        for (int i = from; i < from + count; i++) {
+            hashes.add(addUtxo(i).getHash());
+            indexes.add(0L);
+            values.add(Coin.COIN);
+        }
+        return spend(hashes, indexes, values);
+    }
+
+    @Test
+    public void verifiesAllInputsAndInBatchSpends() throws Exception {
+        Tx tx1 = spendUtxos(0, 5);
+        Tx tx2 = spendUtxos(5, 3);
+        //spends the output of tx1 which is only available in the batch
+        Tx tx3 = spend(Arrays.asList(tx1.getHash()), Arrays.asList(0L), Arrays.asList(Coin.COIN));
+
+        ScriptVerificationResult result = service.verifyTransactions(Arrays.asList(tx1, tx2, tx3), lookup(), ScriptVerifyFlag.ALL_VERIFY_FLAGS);
+
+        assertTrue(result.isValid());
+        assertEquals(3, result.getTransactionCount());
+        assertEquals(9, result.getResults().size());
+        assertEquals(3, result.getResults(1).size());
+        for (InputVerificationResult input : result.getResults())
+            assertEquals(Status.VALID, input.getStatus());
+    }
+
+    @Test
+    public void missingInput() throws Exception {
+        Tx tx = spendUtxos(0, 4);
+        utxos.remove(tx.getInputs().get(2).getOutpoint().getHash() + ":0");
+
+        ScriptVerificationResult result = service.verifyTransaction(tx, lookup(), ScriptVerifyFlag.ALL_VERIFY_FLAGS);
+
+        assertFalse(result.isValid());
+        assertEquals(Status.MISSING_INPUT, result.getFirstFailure().getStatus());
+        assertEquals(2, result.getFirstFailure().getInputIndex());
+    }
+
+    @Test
+    public void invalidSignatureFailsBatch() throws Exception {
+        Tx tx = spendUtxos(0, 20);
+        //wrong value changes the forkid sighash so every signature is invalid
+        for (UTXO utxo : new ArrayList<>(utxos.values()))
+            utxos.put(utxo.getHash() + ":0", new UTXO(utxo.getHash(), 0, Coin.SATOSHI, 1, false, scriptPubKey));
+
+        ScriptVerificationResult result = service.verifyTransaction(tx, lookup(), ScriptVerifyFlag.ALL_VERIFY_FLAGS);
+
+        assertFalse(result.isValid());
+        assertEquals(Status.INVALID, result.getFirstFailure().getStatus());
+        for (InputVerificationResult input : result.getResults())
+            assertNotEquals(Status.VALID, input.getStatus());
+    }
+}
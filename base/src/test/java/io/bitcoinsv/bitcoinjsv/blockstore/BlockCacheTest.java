@@ -0,0 +1,144 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.blockstore;
+
+import io.bitcoinsv.bitcoinjsv.bitcoin.Genesis;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.FullBlock;
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+import io.bitcoinsv.bitcoinjsv.params.Net;
+import org.junit.jupiter.api.Test;
+import test.utils.TestBlockGenerator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BlockCacheTest {
+
+    private static List<FullBlock> chain(int length) {
+        List<FullBlock> blocks = new ArrayList<>();
+        FullBlock prev = Genesis.getFor(Net.UNITTEST);
+        for (int i = 0; i < length; i++) {
+            prev = TestBlockGenerator.nextFullBlock(Net.UNITTEST, prev, true);
+            blocks.add(prev);
+        }
+        return blocks;
+    }
+
+    @Test
+    public void testEvictsBySize() {
+        List<FullBlock> blocks = chain(50);
+        int blockSize = blocks.get(0).serialize().length;
+        BlockCache cache = new BlockCache(blockSize * 20L);
+        for (FullBlock block : blocks) {
+            cache.put(block.getHash(), block);
+            assertTrue(cache.getBytes() <= cache.getMaxBytes());
+        }
+        assertTrue(cache.size() < blocks.size());
+        assertTrue(cache.getEvictionCount() > 0);
+        assertTrue(cache.getEvictedBytes() >= cache.getEvictionCount() * (blockSize - 8));
+
+        //the most recent block survives
+        FullBlock last = blocks.get(blocks.size() - 1);
+        assertSame(last, cache.getIfPresent(last.getHash()));
+
+        //a block that doesn't fit at all isn't retained
+        BlockCache small = new BlockCache(blockSize / 2);
+        small.put(last.getHash(), last);
+        assertFalse(small.contains(last.getHash()));
+        assertEquals(0, small.getBytes());
+    }
+
+    @Test
+    public void testCachesBlockLargerThanAQuarterOfTheBudget() {
+        List<FullBlock> blocks = chain(2);
+        int blockSize = blocks.get(0).serialize().length;
+        //each block takes most of the budget, only the most recent one fits
+        BlockCache cache = new BlockCache(blockSize * 3L / 2);
+        cache.put(blocks.get(0).getHash(), blocks.get(0));
+        assertSame(blocks.get(0), cache.getIfPresent(blocks.get(0).getHash()));
+        assertEquals(blockSize, cache.getBytes());
+
+        cache.put(blocks.get(1).getHash(), blocks.get(1));
+        assertSame(blocks.get(1), cache.getIfPresent(blocks.get(1).getHash()));
+        assertFalse(cache.contains(blocks.get(0).getHash()));
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testMetricsAndRemove() throws IOException {
+        FullBlock block = chain(1).get(0);
+        BlockCache cache = new BlockCache();
+        AtomicInteger loads = new AtomicInteger();
+        BlockCache.Loader loader = hash -> {
+            loads.incrementAndGet();
+            return hash.equals(block.getHash()) ? block : null;
+        };
+
+        assertSame(block, cache.get(block.getHash(), loader));
+        assertSame(block, cache.get(block.getHash(), loader));
+        assertNull(cache.get(Sha256Hash.ZERO_HASH, loader));
+        assertFalse(cache.contains(Sha256Hash.ZERO_HASH));
+        assertEquals(2, loads.get());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(block.serialize().length, cache.getBytes());
+
+        assertSame(block, cache.remove(block.getHash()));
+        assertEquals(0, cache.getBytes());
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testConcurrentMissesLoadOnce() throws Exception {
+        FullBlock block = chain(1).get(0);
+        BlockCache cache = new BlockCache();
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        BlockCache.Loader loader = hash -> {
+            loads.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return block;
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<FullBlock>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return cache.get(block.getHash(), loader);
+                }));
+            }
+            start.countDown();
+            for (Future<FullBlock> result : results)
+                assertSame(block, result.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testLoaderExceptionIsRethrown() {
+        BlockCache cache = new BlockCache();
+        assertThrows(IOException.class, () -> cache.get(Sha256Hash.ZERO_HASH, hash -> {
+            throw new IOException("disk error");
+        }));
+        assertEquals(0, cache.size());
+    }
+}
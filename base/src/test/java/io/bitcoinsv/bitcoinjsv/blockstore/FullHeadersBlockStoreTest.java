@@ -2,17 +2,26 @@ package io.bitcoinsv.bitcoinjsv.blockstore;
 
 import io.bitcoinsv.bitcoinjsv.bitcoin.Genesis;
 import io.bitcoinsv.bitcoinjsv.bitcoin.api.extended.LiteBlock;
+import io.bitcoinsv.bitcoinjsv.blockchain.ChainUtils;
 import io.bitcoinsv.bitcoinjsv.exception.BlockStoreException;
 import io.bitcoinsv.bitcoinjsv.params.UnitTestParams;
+import io.bitcoinsv.bitcoinjsv.utils.FileUtil;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import test.utils.TestBlockGenerator;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
-import static org.junit.jupiter.api.Assertions.assertNotNull;
-import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.*;
 
 /**
  * @author m.fletcher@nchain.com
@@ -72,6 +81,230 @@ public class FullHeadersBlockStoreTest {
         assertTrue(blockStore.getChainHead().equals(blockOne));
     }
 
+    @Test
+    public void testReloadRebuildsIndex() throws BlockStoreException, IOException {
+        List<LiteBlock> chain = buildChain(Genesis.getHeaderFor(blockStore.getParams().getNet()), 20);
+        blockStore.setChainHead(chain.get(chain.size() - 1));
+
+        reloadBlockchainWithCurrentstate();
+
+        assertEquals(chain.get(chain.size() - 1), blockStore.getChainHead());
+        for (int height = 0; height < chain.size(); height++) {
+            LiteBlock expected = chain.get(height);
+            assertEquals(expected, blockStore.get(expected.getHash()));
+            assertEquals(expected.getChainInfo().getChainWork(), blockStore.get(expected.getHash()).getChainWork());
+            assertEquals(expected, blockStore.getByHeight(height));
+            assertEquals(height, blockStore.getByHeight(height).getHeight());
+        }
+        assertNull(blockStore.getByHeight(chain.size()));
+    }
+
+    @Test
+    public void testHeightIndexFollowsReorg() throws BlockStoreException {
+        List<LiteBlock> chainA = buildChain(Genesis.getHeaderFor(blockStore.getParams().getNet()), 10);
+        List<LiteBlock> chainB = new ArrayList<>(chainA.subList(0, 6));
+        chainB.addAll(buildChain(chainA.get(5), 7).subList(1, 8));
+
+        blockStore.setChainHead(chainA.get(10));
+        assertEquals(chainA.get(10), blockStore.getByHeight(10));
+
+        blockStore.setChainHead(chainB.get(12));
+        for (int height = 0; height <= 12; height++)
+            assertEquals(chainB.get(height), blockStore.getByHeight(height));
+
+        blockStore.setChainHead(chainA.get(10));
+        for (int height = 0; height <= 10; height++)
+            assertEquals(chainA.get(height), blockStore.getByHeight(height));
+        assertNull(blockStore.getByHeight(11));
+    }
+
+    @Test
+    public void testMedianTimestamp() throws BlockStoreException {
+        List<LiteBlock> chain = buildChain(Genesis.getHeaderFor(blockStore.getParams().getNet()), 20);
+        List<LiteBlock> fork = buildChain(chain.get(15), 2);
+        blockStore.setChainHead(chain.get(20));
+
+        //blocks are 10 minutes apart so the median of the last 11 is 5 blocks back
+        assertEquals(chain.get(15).getTime(), ChainUtils.getMedianTimestampOfRecentBlocks(chain.get(20), blockStore));
+        assertEquals(chain.get(2).getTime(), ChainUtils.getMedianTimestampOfRecentBlocks(chain.get(4), blockStore));
+        //off the active chain falls back to walking back through the store
+        assertEquals(chain.get(12).getTime(), ChainUtils.getMedianTimestampOfRecentBlocks(fork.get(2), blockStore));
+    }
+
+    @Test
+    public void testReloadReplaysOnlyHeadersAfterCheckpoint() throws BlockStoreException, IOException {
+        List<LiteBlock> chain = buildChain(Genesis.getHeaderFor(blockStore.getParams().getNet()), 20);
+        blockStore.setChainHead(chain.get(20));
+        reloadBlockchainWithCurrentstate();
+        assertEquals(0, blockStore.getRecordsReplayedOnOpen());
+
+        //keep the checkpoint from before the next 5 headers to simulate a crash before the next one is written
+        File checkpoint = checkpointFile();
+        File oldCheckpoint = new File(blockchainDataFile, "old-checkpoint");
+        Files.copy(checkpoint.toPath(), oldCheckpoint.toPath());
+        chain.addAll(buildChain(chain.get(20), 5).subList(1, 6));
+        blockStore.setChainHead(chain.get(25));
+        blockStore.close();
+        Files.move(oldCheckpoint.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        blockStore = new FullHeadersBlockStore(UnitTestParams.get().getNet(), blockchainDataFile, true, false, true);
+        assertEquals(5, blockStore.getRecordsReplayedOnOpen());
+        assertEquals(chain.get(25), blockStore.getChainHead());
+        for (int height = 0; height < chain.size(); height++) {
+            assertEquals(chain.get(height), blockStore.get(chain.get(height).getHash()));
+            assertEquals(chain.get(height), blockStore.getByHeight(height));
+        }
+    }
+
+    @Test
+    public void testCorruptCheckpointIsIgnored() throws BlockStoreException, IOException {
+        List<LiteBlock> chain = buildChain(Genesis.getHeaderFor(blockStore.getParams().getNet()), 10);
+        blockStore.setChainHead(chain.get(10));
+        blockStore.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(checkpointFile(), "rw")) {
+            raf.seek(raf.length() / 2);
+            int b = raf.read();
+            raf.seek(raf.length() / 2);
+            raf.write(b ^ 0xff);
+        }
+
+        blockStore = new FullHeadersBlockStore(UnitTestParams.get().getNet(), blockchainDataFile, true, false, true);
+        assertEquals(chain.size(), blockStore.getRecordsReplayedOnOpen());
+        assertEquals(chain.get(10), blockStore.getChainHead());
+        for (int height = 0; height < chain.size(); height++)
+            assertEquals(chain.get(height), blockStore.getByHeight(height));
+    }
+
+    @Test
+    public void testCorruptIndexFileIsNotRestored() throws BlockStoreException, IOException {
+        List<LiteBlock> chain = buildChain(Genesis.getHeaderFor(blockStore.getParams().getNet()), 10);
+        blockStore.setChainHead(chain.get(10));
+        blockStore.close();
+
+        File records = new File(blockchainDataFile, "header-store-" + blockStore.getNet().name() + "-index.dat");
+        try (RandomAccessFile raf = new RandomAccessFile(records, "rw")) {
+            raf.seek(5 * (32 + HeaderIndex.RECORD_SIZE) + 40);
+            int b = raf.read();
+            raf.seek(5 * (32 + HeaderIndex.RECORD_SIZE) + 40);
+            raf.write(b ^ 0xff);
+        }
+
+        blockStore = new FullHeadersBlockStore(UnitTestParams.get().getNet(), blockchainDataFile, true, false, true);
+        assertEquals(chain.size(), blockStore.getRecordsReplayedOnOpen());
+        for (int height = 0; height < chain.size(); height++)
+            assertEquals(chain.get(height), blockStore.getByHeight(height));
+    }
+
+    @Test
+    public void testCheckpointBeforeReorgRebuildsHeights() throws BlockStoreException, IOException {
+        List<LiteBlock> chainA = buildChain(Genesis.getHeaderFor(blockStore.getParams().getNet()), 10);
+        blockStore.setChainHead(chainA.get(10));
+        blockStore.writeCheckpoint();
+        File checkpoint = checkpointFile();
+        File oldCheckpoint = new File(blockchainDataFile, "old-checkpoint");
+        Files.copy(checkpoint.toPath(), oldCheckpoint.toPath());
+
+        //the reorg rewrites heights the old checkpoint covers
+        List<LiteBlock> chainB = new ArrayList<>(chainA.subList(0, 4));
+        chainB.addAll(buildChain(chainA.get(3), 9).subList(1, 10));
+        blockStore.setChainHead(chainB.get(12));
+        blockStore.close();
+        Files.move(oldCheckpoint.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        blockStore = new FullHeadersBlockStore(UnitTestParams.get().getNet(), blockchainDataFile, true, false, true);
+        assertEquals(9, blockStore.getRecordsReplayedOnOpen());
+        assertEquals(chainB.get(12), blockStore.getChainHead());
+        for (int height = 0; height <= 12; height++)
+            assertEquals(chainB.get(height), blockStore.getByHeight(height));
+        for (LiteBlock block : chainA)
+            assertEquals(block, blockStore.get(block.getHash()));
+    }
+
+    @Test
+    public void testCheckpointsWrittenInBackground() throws Exception {
+        blockStore.setCheckpointInterval(8);
+        List<LiteBlock> chain = buildChain(Genesis.getHeaderFor(blockStore.getParams().getNet()), 30);
+        blockStore.setChainHead(chain.get(30));
+        //puts don't wait for checkpoints, give the first one time to land
+        for (int wait = 0; wait < 100 && !checkpointFile().exists(); wait++)
+            Thread.sleep(100);
+        assertTrue(checkpointFile().exists());
+        //a crash now leaves the last background checkpoint
+        File copy = new File(blockchainDataFile.getParentFile(), blockchainDataFile.getName() + "-copy");
+        copy.mkdirs();
+        for (File file : blockchainDataFile.listFiles()) {
+            if (file.isFile())
+                Files.copy(file.toPath(), new File(copy, file.getName()).toPath());
+        }
+        blockStore.close();
+
+        blockStore = new FullHeadersBlockStore(UnitTestParams.get().getNet(), copy, true, false, true);
+        assertTrue(blockStore.getRecordsReplayedOnOpen() < 31);
+        assertEquals(chain.get(30), blockStore.getChainHead());
+        for (int height = 0; height <= 30; height++)
+            assertEquals(chain.get(height), blockStore.getByHeight(height));
+        blockStore.close();
+        FileUtil.deleteDir(copy);
+    }
+
+    @Test
+    public void testReadsRunAlongsideWrites() throws Exception {
+        LiteBlock genesis = Genesis.getHeaderFor(blockStore.getParams().getNet());
+        blockStore.put(genesis);
+        //enough headers to make the index grow its hash table while the readers are probing it
+        List<LiteBlock> chain = new ArrayList<>();
+        chain.add(genesis);
+        for (int i = 0; i < 40000; i++)
+            chain.add(TestBlockGenerator.nextLiteBlock(blockStore.getParams().getNet(), chain.get(chain.size() - 1)));
+
+        AtomicInteger published = new AtomicInteger(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < 3; r++) {
+            Thread reader = new Thread(() -> {
+                Random random = new Random();
+                try {
+                    while (published.get() < chain.size()) {
+                        LiteBlock expected = chain.get(random.nextInt(published.get()));
+                        if (!expected.equals(blockStore.get(expected.getHash())))
+                            throw new AssertionError("lost block " + expected.getHash());
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        for (int i = 1; i < chain.size(); i++) {
+            blockStore.put(chain.get(i));
+            published.set(i + 1);
+        }
+        for (Thread reader : readers)
+            reader.join();
+        assertNull(failure.get());
+    }
+
+    /**
+     * Puts count blocks on top of start, returns start followed by the new blocks.
+     */
+    private List<LiteBlock> buildChain(LiteBlock start, int count) throws BlockStoreException {
+        List<LiteBlock> chain = new ArrayList<>();
+        chain.add(start);
+        blockStore.put(start);
+        for (int i = 0; i < count; i++) {
+            LiteBlock next = TestBlockGenerator.nextLiteBlock(blockStore.getParams().getNet(), chain.get(chain.size() - 1));
+            blockStore.put(next);
+            chain.add(next);
+        }
+        return chain;
+    }
+
+    private File checkpointFile() {
+        return new File(blockchainDataFile, "header-store-" + blockStore.getNet().name() + "-checkpoint.dat");
+    }
+
     /*
      * Reloads a previously initialised and populated blockchain
      */
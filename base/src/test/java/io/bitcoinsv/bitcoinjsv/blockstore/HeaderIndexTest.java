@@ -0,0 +1,145 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.blockstore;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HeaderIndexTest {
+    @TempDir
+    File dir;
+    private HeaderIndex index;
+    private final Random random = new Random(1);
+    private final List<byte[]> hashes = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        index = new HeaderIndex(dir, "test");
+        index.clear();
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        index.close();
+    }
+
+    //a record on top of the last one added, only the fields the index reads are filled in
+    private void addRecord() throws IOException {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        ByteBuffer record = ByteBuffer.allocate(HeaderIndex.RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        if (!hashes.isEmpty()) {
+            record.position(4);
+            record.put(hashes.get(hashes.size() - 1));
+        }
+        record.putInt(104, hashes.size());
+        assertEquals(hashes.size(), index.add(hash, record.array()));
+        hashes.add(hash);
+    }
+
+    private byte[] checkpoint() throws IOException {
+        HeaderIndex.Checkpoint checkpoint = index.checkpoint();
+        checkpoint.force();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        checkpoint.writeTo(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    //reopens the files as a crash would leave them and restores the checkpoint
+    private void reopen(byte[] checkpoint, boolean trustHeights) throws IOException {
+        index.close();
+        index = new HeaderIndex(dir, "test");
+        index.restore(HeaderIndex.Checkpoint.readFrom(new DataInputStream(new ByteArrayInputStream(checkpoint))),
+                trustHeights);
+    }
+
+    private void flipByte(String file, long position) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(new File(dir, file), "rw")) {
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0xff);
+        }
+    }
+
+    @Test
+    public void testRepeatedRestoresDontFillTheTable() throws IOException {
+        addRecord();
+        byte[] checkpoint = checkpoint();
+        //each round writes most of what the table holds before growing, slots left over from earlier rounds would
+        //fill it and leave inserts probing forever
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 30000; i++)
+                addRecord();
+            reopen(checkpoint, true);
+            assertEquals(1, index.size());
+            for (int i = 1; i < hashes.size(); i++)
+                assertEquals(-1, index.find(hashes.get(i)));
+            hashes.subList(1, hashes.size()).clear();
+        }
+        assertEquals(0, index.find(hashes.get(0)));
+    }
+
+    @Test
+    public void testRestoreKeepsTheCheckpointedChain() throws IOException {
+        for (int i = 0; i < 20; i++)
+            addRecord();
+        index.setChainHead(19);
+        byte[] checkpoint = checkpoint();
+        for (int i = 0; i < 5; i++)
+            addRecord();
+        index.setChainHead(24);
+
+        reopen(checkpoint, true);
+        assertEquals(20, index.size());
+        assertEquals(19, index.getChainHeight());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, index.find(hashes.get(i)));
+            assertEquals(i, index.getRecordAtHeight(i));
+        }
+    }
+
+    @Test
+    public void testCorruptRecordsAreDetected() throws IOException {
+        for (int i = 0; i < 20; i++)
+            addRecord();
+        byte[] checkpoint = checkpoint();
+        flipByte("test-index.dat", 10L * (32 + HeaderIndex.RECORD_SIZE) + 40);
+        assertThrows(IOException.class, () -> reopen(checkpoint, false));
+    }
+
+    @Test
+    public void testCorruptHeightsAreOnlyCheckedWhenTrusted() throws IOException {
+        for (int i = 0; i < 20; i++)
+            addRecord();
+        index.setChainHead(19);
+        byte[] checkpoint = checkpoint();
+        flipByte("test-heights.dat", 19 * 4);
+        assertThrows(IOException.class, () -> reopen(checkpoint, true));
+
+        reopen(checkpoint, false);
+        assertEquals(-1, index.getChainHeight());
+        index.setChainHead(19);
+        for (int i = 0; i < 20; i++)
+            assertEquals(i, index.getRecordAtHeight(i));
+    }
+}
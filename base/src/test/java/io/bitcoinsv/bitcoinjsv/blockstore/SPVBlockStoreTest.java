@@ -11,6 +11,12 @@ import test.utils.TestBlockGenerator;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -70,5 +76,51 @@ public class SPVBlockStoreTest {
         assertNotNull(blockStore.get(blockOne.getHash()));
     }
 
+    @Test
+    public void testConcurrentGetsDuringPuts() throws Exception {
+        List<LiteBlock> chain = new ArrayList<>();
+        chain.add(Genesis.getHeaderFor(unitTestParams.getNet()));
+        for (int i = 0; i < 400; i++)
+            chain.add(TestBlockGenerator.nextLiteBlock(unitTestParams.getNet(), chain.get(i)));
+        for (int i = 0; i < 200; i++)
+            blockStore.put(chain.get(i));
+        //a fresh store so reads go to the ring rather than the cache populated by put
+        blockStore.close();
+        blockStore = new SPVBlockStore(unitTestParams, blockchainDataFile);
 
+        AtomicInteger written = new AtomicInteger(200);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> readers = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int seed = t;
+                readers.add(executor.submit(() -> {
+                    for (int i = 0; i < 2000; i++) {
+                        int index = (i * 31 + seed) % written.get();
+                        LiteBlock block = chain.get(index);
+                        assertEquals(block, blockStore.get(block.getHash()));
+                    }
+                    return null;
+                }));
+            }
+            for (int i = 200; i < chain.size(); i++) {
+                blockStore.put(chain.get(i));
+                written.incrementAndGet();
+            }
+            for (Future<?> reader : readers)
+                reader.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testMissIsForgottenOncePut() throws BlockStoreException {
+        LiteBlock genesisBlock = Genesis.getHeaderFor(unitTestParams.getNet());
+        LiteBlock blockOne = TestBlockGenerator.nextLiteBlock(unitTestParams.getNet(), genesisBlock);
+
+        assertNull(blockStore.get(blockOne.getHash()));
+        blockStore.put(blockOne);
+        assertEquals(blockOne, blockStore.get(blockOne.getHash()));
+    }
 }
@@ -0,0 +1,286 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.blockstore;
+
+import io.bitcoinsv.bitcoinjsv.bitcoin.Genesis;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.FullBlock;
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+import io.bitcoinsv.bitcoinjsv.params.Net;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SegmentedBlockArchiveTest {
+
+    @TempDir
+    File dir;
+
+    private final Random random = new Random(1);
+
+    private byte[] randomBlock() {
+        byte[] block = new byte[200 + random.nextInt(800)];
+        random.nextBytes(block);
+        return block;
+    }
+
+    private int segmentCount() {
+        return dir.listFiles((d, name) -> name.endsWith(".seg")).length;
+    }
+
+    @Test
+    public void testPutReadAndReopen() throws IOException {
+        List<byte[]> blocks = new ArrayList<>();
+        SegmentedBlockArchive archive = new SegmentedBlockArchive(dir, 4096);
+        for (int i = 0; i < 50; i++) {
+            byte[] block = randomBlock();
+            blocks.add(block);
+            assertTrue(archive.put(Sha256Hash.of(block), block));
+        }
+        assertFalse(archive.put(Sha256Hash.of(blocks.get(0)), blocks.get(0)));
+        assertTrue(segmentCount() > 1);
+        archive.close();
+
+        archive = new SegmentedBlockArchive(dir, 4096);
+        assertEquals(blocks.size(), archive.size());
+        for (byte[] block : blocks) {
+            assertArrayEquals(block, archive.read(Sha256Hash.of(block)));
+            assertEquals(block.length, archive.getBlockSize(Sha256Hash.of(block)));
+        }
+        assertNull(archive.read(Sha256Hash.ZERO_HASH));
+        archive.close();
+    }
+
+    @Test
+    public void testTransferBlockAndTransactionRange() throws IOException {
+        FullBlock genesis = Genesis.getFor(Net.UNITTEST);
+        byte[] serialized = genesis.serialize();
+        SegmentedBlockArchive archive = new SegmentedBlockArchive(dir);
+        archive.put(genesis.getHash(), serialized);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(serialized.length, archive.transferTo(genesis.getHash(), Channels.newChannel(out)));
+        assertArrayEquals(serialized, out.toByteArray());
+
+        //the coinbase starts after the header and the one byte tx count
+        byte[] coinbase = genesis.getTransactions().get(0).serialize();
+        out.reset();
+        assertEquals(coinbase.length, archive.transferTo(genesis.getHash(), 81, coinbase.length, Channels.newChannel(out)));
+        assertArrayEquals(coinbase, out.toByteArray());
+
+        assertEquals(-1, archive.transferTo(Sha256Hash.ZERO_HASH, Channels.newChannel(out)));
+        archive.close();
+    }
+
+    @Test
+    public void testDeleteCompactsSegments() throws IOException {
+        List<byte[]> blocks = new ArrayList<>();
+        SegmentedBlockArchive archive = new SegmentedBlockArchive(dir, 4096);
+        for (int i = 0; i < 60; i++) {
+            byte[] block = randomBlock();
+            blocks.add(block);
+            archive.put(Sha256Hash.of(block), block);
+        }
+        int segmentsBefore = segmentCount();
+
+        //delete two thirds of the blocks, spread across every segment
+        List<byte[]> kept = new ArrayList<>();
+        long reclaimed = 0;
+        for (int i = 0; i < blocks.size(); i++) {
+            if (i % 3 == 0) {
+                kept.add(blocks.get(i));
+            } else {
+                reclaimed += archive.delete(Sha256Hash.of(blocks.get(i)));
+            }
+        }
+        assertTrue(reclaimed > 0);
+        assertEquals(-1, archive.delete(Sha256Hash.of(blocks.get(1))));
+        archive.compactPending();
+        assertTrue(segmentCount() < segmentsBefore);
+        for (byte[] block : kept)
+            assertArrayEquals(block, archive.read(Sha256Hash.of(block)));
+        archive.close();
+
+        archive = new SegmentedBlockArchive(dir, 4096);
+        assertEquals(kept.size(), archive.size());
+        for (int i = 0; i < blocks.size(); i++) {
+            byte[] expected = i % 3 == 0 ? blocks.get(i) : null;
+            assertArrayEquals(expected, archive.read(Sha256Hash.of(blocks.get(i))));
+        }
+        archive.close();
+    }
+
+    @Test
+    public void testDeadSegmentsAreCompactedAfterReopen() throws IOException {
+        List<byte[]> blocks = new ArrayList<>();
+        SegmentedBlockArchive archive = new SegmentedBlockArchive(dir, 4096);
+        for (int i = 0; i < 30; i++) {
+            byte[] block = randomBlock();
+            blocks.add(block);
+            archive.put(Sha256Hash.of(block), block);
+        }
+        //below the default threshold so nothing is queued before closing
+        archive.setCompactionThreshold(1);
+        for (int i = 1; i < 6; i++)
+            archive.delete(Sha256Hash.of(blocks.get(i)));
+        archive.compactPending();
+        archive.close();
+        File firstSegment = new File(dir, "blocks000000.seg");
+        assertTrue(firstSegment.exists());
+
+        archive = new SegmentedBlockArchive(dir, 4096);
+        archive.compactPending();
+        assertFalse(firstSegment.exists());
+        assertArrayEquals(blocks.get(0), archive.read(Sha256Hash.of(blocks.get(0))));
+        assertNull(archive.read(Sha256Hash.of(blocks.get(1))));
+        assertEquals(blocks.size() - 5, archive.size());
+        archive.close();
+    }
+
+    @Test
+    public void testTransferToFullTargetReturnsPartialCount() throws IOException {
+        byte[] block = randomBlock();
+        SegmentedBlockArchive archive = new SegmentedBlockArchive(dir);
+        archive.put(Sha256Hash.of(block), block);
+
+        //a non-blocking socket takes what fits in its send buffer and then nothing until it is writable again
+        int room = block.length / 3;
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        WritableByteChannel full = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                int n = Math.min(src.remaining(), room - received.size());
+                byte[] bytes = new byte[n];
+                src.get(bytes);
+                received.write(bytes, 0, n);
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        assertEquals(room, archive.transferTo(Sha256Hash.of(block), full));
+
+        //the caller picks up where it left off
+        ByteArrayOutputStream rest = new ByteArrayOutputStream();
+        long remaining = block.length - room;
+        assertEquals(remaining, archive.transferTo(Sha256Hash.of(block), room, remaining, Channels.newChannel(rest)));
+        received.write(rest.toByteArray(), 0, rest.size());
+        assertArrayEquals(block, received.toByteArray());
+        archive.close();
+    }
+
+    @Test
+    public void testSlowReaderDoesNotHoldUpCompaction() throws Exception {
+        List<byte[]> blocks = new ArrayList<>();
+        SegmentedBlockArchive archive = new SegmentedBlockArchive(dir, 4096);
+        for (int i = 0; i < 20; i++) {
+            byte[] block = randomBlock();
+            blocks.add(block);
+            archive.put(Sha256Hash.of(block), block);
+        }
+        byte[] first = blocks.get(0);
+
+        //a target that stalls on its first write, like a slow peer socket
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        WritableByteChannel slow = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                writing.countDown();
+                try {
+                    resume.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                int n = src.remaining();
+                byte[] bytes = new byte[n];
+                src.get(bytes);
+                received.write(bytes, 0, n);
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Long> transfer = executor.submit(() -> archive.transferTo(Sha256Hash.of(first), slow));
+            assertTrue(writing.await(10, TimeUnit.SECONDS));
+
+            //compact the first segment while the transfer out of it is stalled
+            archive.setCompactionThreshold(0.2);
+            for (int i = 1; i < 6; i++)
+                archive.delete(Sha256Hash.of(blocks.get(i)));
+            archive.compactPending();
+            File firstSegment = new File(dir, "blocks000000.seg");
+            //its file stays until the transfer is done with it
+            assertTrue(firstSegment.exists());
+            assertArrayEquals(first, archive.read(Sha256Hash.of(first)));
+
+            resume.countDown();
+            assertEquals(first.length, (long) transfer.get(10, TimeUnit.SECONDS));
+            assertArrayEquals(first, received.toByteArray());
+            assertFalse(firstSegment.exists());
+        } finally {
+            executor.shutdownNow();
+        }
+        archive.close();
+    }
+
+    @Test
+    public void testPartialRecordIsTruncated() throws IOException {
+        byte[] first = randomBlock();
+        byte[] second = randomBlock();
+        SegmentedBlockArchive archive = new SegmentedBlockArchive(dir);
+        archive.put(Sha256Hash.of(first), first);
+        archive.put(Sha256Hash.of(second), second);
+        archive.close();
+
+        File segment = dir.listFiles((d, name) -> name.endsWith(".seg"))[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.setLength(raf.length() - 10);
+        }
+
+        archive = new SegmentedBlockArchive(dir);
+        assertArrayEquals(first, archive.read(Sha256Hash.of(first)));
+        assertFalse(archive.contains(Sha256Hash.of(second)));
+        //appends continue from the end of the last whole record
+        assertTrue(archive.put(Sha256Hash.of(second), second));
+        archive.close();
+        archive = new SegmentedBlockArchive(dir);
+        assertArrayEquals(second, archive.read(Sha256Hash.of(second)));
+        archive.close();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.blockstore.utxo;
+
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OutPointTableTest {
+
+    @Test
+    public void testMatchesHashMapUnderRandomOperations() {
+        Random random = new Random(7);
+        OutPointTable table = new OutPointTable(16);
+        Map<ByteBuffer, Long> expected = new HashMap<>();
+        List<byte[]> keys = new ArrayList<>();
+        //few distinct hashes with many indexes so probe runs get long and wrap around
+        for (int i = 0; i < 400; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            for (int index = 0; index < 5; index++)
+                keys.add(UTXOCodec.key(Sha256Hash.wrap(hash), index));
+        }
+
+        for (int i = 0; i < 20000; i++) {
+            byte[] key = keys.get(random.nextInt(keys.size()));
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(ByteBuffer.wrap(key)) != null, table.remove(key));
+            } else {
+                long value = random.nextLong();
+                table.put(key, value, 2);
+                expected.put(ByteBuffer.wrap(key), value);
+            }
+        }
+
+        assertEquals(expected.size(), table.size());
+        for (byte[] key : keys) {
+            Long value = expected.get(ByteBuffer.wrap(key));
+            int slot = table.find(key);
+            if (value == null) {
+                assertEquals(-1, slot);
+            } else {
+                assertEquals(value.longValue(), table.getValue(slot));
+                assertEquals(2, table.getFlags(slot));
+                assertArrayEquals(key, table.getKey(slot));
+            }
+        }
+
+        table.clear();
+        assertEquals(0, table.size());
+        assertEquals(-1, table.find(keys.get(0)));
+    }
+
+    @Test
+    public void testFileTableKeepsItsPagesWithinBudget(@TempDir Path dir) throws Exception {
+        Random random = new Random(9);
+        Map<ByteBuffer, Long> expected = new HashMap<>();
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            keys.add(UTXOCodec.key(Sha256Hash.wrap(hash), i));
+        }
+
+        int capacity = OutPointTable.capacityFor(keys.size());
+        long pageBytes = OutPointTable.PAGE_SLOTS * OutPointTable.ENTRY_SIZE;
+        long budget = 4 * pageBytes;
+        Path file = dir.resolve("table");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+             FileChannel grownChannel = FileChannel.open(dir.resolve("grown"), StandardOpenOption.CREATE,
+                     StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            OutPointTable table = OutPointTable.open(channel, capacity, 0, budget);
+            for (int i = 0; i < 20000; i++) {
+                byte[] key = keys.get(random.nextInt(keys.size()));
+                if (random.nextInt(3) == 0) {
+                    assertEquals(expected.remove(ByteBuffer.wrap(key)) != null, table.remove(key));
+                } else {
+                    long value = random.nextLong();
+                    table.put(key, value, 2);
+                    expected.put(ByteBuffer.wrap(key), value);
+                }
+                //written out as the owner would checkpoint it
+                if (table.dirtyBytes() > budget)
+                    table.writeDirty();
+                assertTrue(table.memoryBytes() <= Math.max(budget, table.dirtyBytes()) + pageBytes);
+            }
+            //changes only reach the file when written
+            assertFalse(table.getDirtyPages().isEmpty());
+            table.writeDirty();
+            assertTrue(table.getDirtyPages().isEmpty());
+            assertTrue(table.memoryBytes() <= budget);
+
+            OutPointTable reopened = OutPointTable.open(channel, capacity, table.size(), budget);
+            OutPointTable grown = OutPointTable.open(grownChannel, capacity * 2, 0, budget);
+            reopened.copyTo(grown);
+            OutPointTable inMemory = new OutPointTable(16);
+            grown.copyTo(inMemory);
+            for (OutPointTable copy : Arrays.asList(reopened, grown, inMemory)) {
+                assertEquals(expected.size(), copy.size());
+                for (byte[] key : keys) {
+                    Long value = expected.get(ByteBuffer.wrap(key));
+                    int slot = copy.find(key);
+                    if (value == null) {
+                        assertEquals(-1, slot);
+                    } else {
+                        assertEquals(value.longValue(), copy.getValue(slot));
+                        assertEquals(2, copy.getFlags(slot));
+                    }
+                }
+            }
+        }
+    }
+}
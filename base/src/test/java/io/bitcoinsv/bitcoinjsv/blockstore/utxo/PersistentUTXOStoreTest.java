@@ -0,0 +1,431 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.blockstore.utxo;
+
+import io.bitcoinsv.bitcoinjsv.bitcoin.Genesis;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.FullBlock;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.Tx;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.TxInput;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.TxOutPoint;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.TxOutput;
+import io.bitcoinsv.bitcoinjsv.bitcoin.bean.base.TxBean;
+import io.bitcoinsv.bitcoinjsv.bitcoin.bean.base.TxInputBean;
+import io.bitcoinsv.bitcoinjsv.bitcoin.bean.base.TxOutPointBean;
+import io.bitcoinsv.bitcoinjsv.bitcoin.bean.base.TxOutputBean;
+import io.bitcoinsv.bitcoinjsv.core.Coin;
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+import io.bitcoinsv.bitcoinjsv.core.UTXO;
+import io.bitcoinsv.bitcoinjsv.exception.BlockStoreException;
+import io.bitcoinsv.bitcoinjsv.exception.VerificationException;
+import io.bitcoinsv.bitcoinjsv.params.Net;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import test.utils.TestBlockGenerator;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PersistentUTXOStoreTest {
+
+    @TempDir
+    File dir;
+
+    private int salt;
+
+    private Tx coinbase(FullBlock block) {
+        return tx(block, new ArrayList<>(), 2, true);
+    }
+
+    private static class Out {
+        final Tx tx;
+        final long index;
+
+        Out(Tx tx, long index) {
+            this.tx = tx;
+            this.index = index;
+        }
+    }
+
+    private Tx tx(FullBlock block, List<Out> spends, int outputs, boolean coinbase) {
+        Tx tx = new TxBean(block);
+        List<TxInput> inputs = new ArrayList<>();
+        if (coinbase)
+            spends = Arrays.asList(new Out(null, TxOutPoint.UNCONNECTED));
+        for (Out spend : spends) {
+            TxInput input = new TxInputBean(tx);
+            TxOutPoint outPoint = new TxOutPointBean(input);
+            outPoint.setHash(spend.tx == null ? Sha256Hash.ZERO_HASH : spend.tx.getHash());
+            outPoint.setIndex(spend.index);
+            input.setOutpoint(outPoint);
+            input.setScriptBytes(new byte[]{(byte) salt, (byte) (salt >> 8)});
+            input.setSequenceNumber(TxInput.NO_SEQUENCE);
+            inputs.add(input);
+        }
+        salt++;
+        List<TxOutput> outs = new ArrayList<>();
+        for (int i = 0; i < outputs; i++) {
+            TxOutput output = new TxOutputBean(tx);
+            output.setValue(Coin.valueOf(1000 + i));
+            output.setScriptBytes(new byte[]{0x51, (byte) (0x51 + i)});
+            outs.add(output);
+        }
+        tx.setInputs(inputs);
+        tx.setOutputs(outs);
+        tx.setVersion(1);
+        tx.setLockTime(0);
+        return tx;
+    }
+
+    private static Out out(Tx tx, int index) {
+        return new Out(tx, index);
+    }
+
+    private FullBlock nextBlock(FullBlock prev) {
+        FullBlock block = TestBlockGenerator.nextFullBlock(Net.UNITTEST, prev, false);
+        block.setTransactions(new ArrayList<>(Arrays.asList(coinbase(block))));
+        return block;
+    }
+
+    @Test
+    public void testConnectSpendAndReopen() throws Exception {
+        FullBlock genesis = Genesis.getFor(Net.UNITTEST);
+        FullBlock b1 = nextBlock(genesis);
+        Tx cb1 = b1.getTransactions().get(0);
+
+        FullBlock b2 = TestBlockGenerator.nextFullBlock(Net.UNITTEST, b1, false);
+        Tx cb2 = coinbase(b2);
+        Tx spend = tx(b2, Arrays.asList(out(cb1, 0)), 3, false);
+        //spends an output created earlier in the same block
+        Tx child = tx(b2, Arrays.asList(out(spend, 1)), 1, false);
+        b2.setTransactions(new ArrayList<>(Arrays.asList(cb2, spend, child)));
+
+        PersistentUTXOStore store = new PersistentUTXOStore(dir);
+        assertEquals(-1, store.getBestHeight());
+        store.connectBlock(genesis, 0);
+        store.connectBlock(b1, 1);
+        store.connectBlock(b2, 2);
+
+        UTXO utxo = store.getUTXO(cb1.getHash(), 1);
+        assertEquals(Coin.valueOf(1001), utxo.getValue());
+        assertEquals(1, utxo.getHeight());
+        assertTrue(utxo.isCoinbase());
+        assertArrayEquals(new byte[]{0x51, 0x52}, utxo.getScript().getProgram());
+        assertNull(store.getUTXO(cb1.getHash(), 0));
+        assertNull(store.getUTXO(spend.getHash(), 1));
+        assertFalse(store.getUTXO(spend.getHash(), 2).isCoinbase());
+        assertEquals(2, store.getUTXO(child.getHash(), 0).getHeight());
+        store.close();
+
+        store = new PersistentUTXOStore(dir);
+        assertEquals(2, store.getBestHeight());
+        assertEquals(b2.getHash(), store.getBestBlockHash());
+        assertNull(store.getUTXO(cb1.getHash(), 0));
+        assertNull(store.getUTXO(spend.getHash(), 1));
+        assertEquals(Coin.valueOf(1001), store.getUTXO(cb1.getHash(), 1).getValue());
+        assertNotNull(store.getUTXO(spend.getHash(), 0));
+        assertNotNull(store.getUTXO(child.getHash(), 0));
+        store.close();
+    }
+
+    @Test
+    public void testMissingInputLeavesStoreUntouched() throws Exception {
+        FullBlock genesis = Genesis.getFor(Net.UNITTEST);
+        FullBlock b1 = nextBlock(genesis);
+        Tx cb1 = b1.getTransactions().get(0);
+
+        FullBlock b2 = TestBlockGenerator.nextFullBlock(Net.UNITTEST, b1, false);
+        Tx cb2 = coinbase(b2);
+        Tx good = tx(b2, Arrays.asList(out(cb1, 0)), 1, false);
+        Tx doubleSpend = tx(b2, Arrays.asList(out(cb1, 0)), 1, false);
+        b2.setTransactions(new ArrayList<>(Arrays.asList(cb2, good, doubleSpend)));
+
+        try (PersistentUTXOStore store = new PersistentUTXOStore(dir)) {
+            store.connectBlock(genesis, 0);
+            store.connectBlock(b1, 1);
+            assertThrows(VerificationException.class, () -> store.connectBlock(b2, 2));
+            assertEquals(1, store.getBestHeight());
+            assertNotNull(store.getUTXO(cb1.getHash(), 0));
+            assertNull(store.getUTXO(cb2.getHash(), 0));
+            assertNull(store.getUTXO(good.getHash(), 0));
+
+            //blocks must connect to the tip
+            FullBlock orphan = nextBlock(b2);
+            assertThrows(BlockStoreException.class, () -> store.connectBlock(orphan, 2));
+        }
+    }
+
+    @Test
+    public void testDisconnectRestoresSpentOutputs() throws Exception {
+        FullBlock genesis = Genesis.getFor(Net.UNITTEST);
+        FullBlock b1 = nextBlock(genesis);
+        Tx cb1 = b1.getTransactions().get(0);
+        FullBlock b2 = TestBlockGenerator.nextFullBlock(Net.UNITTEST, b1, false);
+        Tx spend = tx(b2, Arrays.asList(out(cb1, 0)), 2, false);
+        Tx child = tx(b2, Arrays.asList(out(spend, 0)), 1, false);
+        b2.setTransactions(new ArrayList<>(Arrays.asList(coinbase(b2), spend, child)));
+        FullBlock b3 = TestBlockGenerator.nextFullBlock(Net.UNITTEST, b2, false);
+        Tx spend3 = tx(b3, Arrays.asList(out(cb1, 1), out(spend, 1)), 1, false);
+        b3.setTransactions(new ArrayList<>(Arrays.asList(coinbase(b3), spend3)));
+
+        PersistentUTXOStore store = new PersistentUTXOStore(dir);
+        store.connectBlock(genesis, 0);
+        store.connectBlock(b1, 1);
+        store.connectBlock(b2, 2);
+        //b3's undo data is only in the cache, b2's has been written
+        store.flush();
+        store.connectBlock(b3, 3);
+
+        assertThrows(BlockStoreException.class, () -> store.disconnectBlock(b2));
+        store.disconnectBlock(b3);
+        assertEquals(b2.getHash(), store.getBestBlockHash());
+        assertNull(store.getUTXO(spend3.getHash(), 0));
+        assertEquals(Coin.valueOf(1001), store.getUTXO(cb1.getHash(), 1).getValue());
+        assertNotNull(store.getUTXO(spend.getHash(), 1));
+
+        store.disconnectBlock(b2);
+        assertEquals(1, store.getBestHeight());
+        assertEquals(1, store.getUTXO(cb1.getHash(), 0).getHeight());
+        assertNull(store.getUTXO(spend.getHash(), 0));
+        assertNull(store.getUTXO(spend.getHash(), 1));
+        assertNull(store.getUTXO(child.getHash(), 0));
+        store.close();
+
+        PersistentUTXOStore reopened = new PersistentUTXOStore(dir);
+        assertEquals(b1.getHash(), reopened.getBestBlockHash());
+        assertNotNull(reopened.getUTXO(cb1.getHash(), 0));
+        assertNotNull(reopened.getUTXO(cb1.getHash(), 1));
+        assertNull(reopened.getUTXO(spend.getHash(), 1));
+        //undo data of disconnected blocks is gone, the chain can be extended again
+        reopened.connectBlock(b2, 2);
+        assertNotNull(reopened.getUTXO(child.getHash(), 0));
+        reopened.close();
+    }
+
+    @Test
+    public void testUndoDepthAndUnspendableOutputs() throws Exception {
+        FullBlock genesis = Genesis.getFor(Net.UNITTEST);
+        FullBlock b1 = TestBlockGenerator.nextFullBlock(Net.UNITTEST, genesis, false);
+        Tx cb1 = coinbase(b1);
+        cb1.getOutputs().get(1).setScriptBytes(new byte[]{0x00, 0x6a, 0x01, 0x02});
+        b1.setTransactions(new ArrayList<>(Arrays.asList(cb1)));
+        FullBlock b2 = nextBlock(b1);
+        FullBlock b3 = nextBlock(b2);
+
+        try (PersistentUTXOStore store = new PersistentUTXOStore(dir, PersistentUTXOStore.DEFAULT_CACHE_BYTES, 2)) {
+            store.connectBlock(genesis, 0);
+            store.connectBlock(b1, 1);
+            assertNotNull(store.getUTXO(cb1.getHash(), 0));
+            assertNull(store.getUTXO(cb1.getHash(), 1));
+            store.connectBlock(b2, 2);
+            store.connectBlock(b3, 3);
+            store.disconnectBlock(b3);
+            store.disconnectBlock(b2);
+            //b1 is deeper than the undo depth
+            assertThrows(BlockStoreException.class, () -> store.disconnectBlock(b1));
+        }
+    }
+
+    @Test
+    public void testSmallCacheFlushesAndTornBatchIsDropped() throws Exception {
+        FullBlock prev = Genesis.getFor(Net.UNITTEST);
+        List<FullBlock> blocks = new ArrayList<>();
+        blocks.add(prev);
+        for (int i = 0; i < 50; i++) {
+            FullBlock block = TestBlockGenerator.nextFullBlock(Net.UNITTEST, prev, false);
+            List<Tx> txs = new ArrayList<>();
+            txs.add(coinbase(block));
+            //spend the previous block's coinbase so outputs are deleted as well as added
+            if (i > 0)
+                txs.add(tx(block, Arrays.asList(out(prev.getTransactions().get(0), 0)), 100, false));
+            block.setTransactions(txs);
+            blocks.add(block);
+            prev = block;
+        }
+
+        File log = new File(dir, "utxo0000000.log");
+        PersistentUTXOStore store = new PersistentUTXOStore(dir, 256 * 1024, 10);
+        for (int i = 0; i < blocks.size(); i++)
+            store.connectBlock(blocks.get(i), i);
+        assertTrue(log.length() > 0);
+        store.close();
+
+        long complete = log.length();
+        store = new PersistentUTXOStore(dir, 256 * 1024, 10);
+        FullBlock extra = nextBlock(prev);
+        store.connectBlock(extra, blocks.size());
+        store.close();
+        assertTrue(log.length() > complete);
+
+        //a crash part way through the last batch
+        try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+            raf.setLength(raf.length() - 5);
+        }
+        store = new PersistentUTXOStore(dir, 256 * 1024, 10);
+        assertEquals(prev.getHash(), store.getBestBlockHash());
+        assertEquals(complete, log.length());
+        assertNull(store.getUTXO(extra.getTransactions().get(0).getHash(), 0));
+        for (int i = 2; i < blocks.size(); i++) {
+            assertNull(store.getUTXO(blocks.get(i - 1).getTransactions().get(0).getHash(), 0));
+            assertNotNull(store.getUTXO(blocks.get(i).getTransactions().get(1).getHash(), 99));
+        }
+        store.connectBlock(extra, blocks.size());
+        store.close();
+    }
+
+    @Test
+    public void testReopenStartsFromCheckpoint() throws Exception {
+        FullBlock prev = Genesis.getFor(Net.UNITTEST);
+        List<FullBlock> blocks = new ArrayList<>();
+        blocks.add(prev);
+        for (int i = 0; i < 20; i++) {
+            FullBlock block = TestBlockGenerator.nextFullBlock(Net.UNITTEST, prev, false);
+            block.setTransactions(new ArrayList<>(Arrays.asList(coinbase(block),
+                    tx(block, Arrays.asList(out(prev.getTransactions().get(0), 0)), 50, false))));
+            blocks.add(block);
+            prev = block;
+        }
+
+        File log = new File(dir, "utxo0000000.log");
+        File checkpoint = new File(dir, "utxo.checkpoint");
+        PersistentUTXOStore store = new PersistentUTXOStore(dir, 256 * 1024, 10);
+        for (int i = 0; i < 10; i++)
+            store.connectBlock(blocks.get(i), i);
+        store.close();
+        assertTrue(checkpoint.exists());
+
+        store = new PersistentUTXOStore(dir, 256 * 1024, 10);
+        for (int i = 10; i < blocks.size(); i++)
+            store.connectBlock(blocks.get(i), i);
+        store.close();
+
+        //the first batch is covered by the checkpoint so it isn't read again, a full replay would stop at it
+        byte[] firstBatch;
+        try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+            firstBatch = new byte[4];
+            raf.readFully(firstBatch);
+            raf.seek(0);
+            raf.writeInt(0);
+        }
+        store = new PersistentUTXOStore(dir, 256 * 1024, 10);
+        assertEquals(prev.getHash(), store.getBestBlockHash());
+        assertNotNull(store.getUTXO(blocks.get(1).getTransactions().get(1).getHash(), 49));
+        store.close();
+        try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+            raf.write(firstBatch);
+        }
+
+        //a journal cut short by a crash was written before any index page, so it is dropped
+        File journal = new File(dir, "utxo.journal");
+        Files.write(journal.toPath(), new byte[]{0x55, 0x54, 0x58, 0x4a, 0, 0, 0, 1});
+        store = new PersistentUTXOStore(dir, 256 * 1024, 10);
+        assertFalse(journal.exists());
+        assertEquals(prev.getHash(), store.getBestBlockHash());
+        for (int i = 2; i < blocks.size(); i++) {
+            assertNull(store.getUTXO(blocks.get(i - 1).getTransactions().get(0).getHash(), 0));
+            assertNotNull(store.getUTXO(blocks.get(i).getTransactions().get(1).getHash(), 49));
+        }
+        store.close();
+
+        //a damaged checkpoint is ignored
+        try (RandomAccessFile raf = new RandomAccessFile(checkpoint, "rw")) {
+            raf.seek(raf.length() / 2);
+            int b = raf.read();
+            raf.seek(raf.length() / 2);
+            raf.write(b ^ 1);
+        }
+        store = new PersistentUTXOStore(dir, 256 * 1024, 10);
+        assertEquals(prev.getHash(), store.getBestBlockHash());
+        assertNotNull(store.getUTXO(prev.getTransactions().get(0).getHash(), 0));
+        store.close();
+    }
+
+    private List<FullBlock> chainSpendingEachCoinbase(int length, int outputs) {
+        FullBlock prev = Genesis.getFor(Net.UNITTEST);
+        List<FullBlock> blocks = new ArrayList<>();
+        blocks.add(prev);
+        for (int i = 0; i < length; i++) {
+            FullBlock block = TestBlockGenerator.nextFullBlock(Net.UNITTEST, prev, false);
+            block.setTransactions(new ArrayList<>(Arrays.asList(coinbase(block),
+                    tx(block, Arrays.asList(out(prev.getTransactions().get(0), 0)), outputs, false))));
+            blocks.add(block);
+            prev = block;
+        }
+        return blocks;
+    }
+
+    @Test
+    public void testIndexIsPagedWithinItsBudget() throws Exception {
+        List<FullBlock> blocks = chainSpendingEachCoinbase(80, 100);
+        long budget = 64 * 1024;
+        PersistentUTXOStore store = new PersistentUTXOStore(dir, 256 * 1024, budget, 10);
+        for (int i = 0; i < blocks.size(); i++)
+            store.connectBlock(blocks.get(i), i);
+        store.close();
+
+        store = new PersistentUTXOStore(dir, 256 * 1024, budget, 10);
+        for (int i = 1; i < blocks.size(); i++) {
+            Tx tx = blocks.get(i).getTransactions().get(1);
+            for (int index = 0; index < 100; index++)
+                assertNotNull(store.getUTXO(tx.getHash(), index));
+        }
+        //8000 outputs take far more index than that
+        assertTrue(store.getIndexMemoryBytes() <= budget);
+        store.close();
+    }
+
+    @Test
+    public void testCompactionDropsTheOldestSegments() throws Exception {
+        List<FullBlock> blocks = chainSpendingEachCoinbase(60, 20);
+        PersistentUTXOStore store = new PersistentUTXOStore(dir, 256 * 1024, 64 * 1024, 10, 4096);
+        for (int i = 0; i < blocks.size(); i++) {
+            store.connectBlock(blocks.get(i), i);
+            store.flush();
+        }
+        //spend almost everything so most of the log is superseded
+        FullBlock prev = blocks.get(blocks.size() - 1);
+        FullBlock sweep = TestBlockGenerator.nextFullBlock(Net.UNITTEST, prev, false);
+        List<Out> spends = new ArrayList<>();
+        for (int i = 1; i < blocks.size() - 1; i++) {
+            for (int index = 1; index < 20; index++)
+                spends.add(out(blocks.get(i).getTransactions().get(1), index));
+        }
+        sweep.setTransactions(new ArrayList<>(Arrays.asList(coinbase(sweep), tx(sweep, spends, 1, false))));
+        store.connectBlock(sweep, blocks.size());
+        store.flush();
+        store.compact();
+        assertFalse(new File(dir, "utxo0000000.log").exists());
+        store.close();
+
+        //from the checkpoint and from the whole log that is left
+        for (int reopen = 0; reopen < 2; reopen++) {
+            if (reopen == 1)
+                assertTrue(new File(dir, "utxo.checkpoint").delete());
+            store = new PersistentUTXOStore(dir, 256 * 1024, 64 * 1024, 10, 4096);
+            assertEquals(sweep.getHash(), store.getBestBlockHash());
+            for (int i = 1; i < blocks.size() - 1; i++) {
+                Tx tx = blocks.get(i).getTransactions().get(1);
+                assertNotNull(store.getUTXO(tx.getHash(), 0));
+                assertNull(store.getUTXO(tx.getHash(), 1));
+                assertNotNull(store.getUTXO(blocks.get(i).getTransactions().get(0).getHash(), 1));
+            }
+            assertNotNull(store.getUTXO(sweep.getTransactions().get(1).getHash(), 0));
+            //the undo data moved as well
+            store.disconnectBlock(sweep);
+            assertNotNull(store.getUTXO(blocks.get(1).getTransactions().get(1).getHash(), 1));
+            store.close();
+            if (reopen == 0) {
+                store = new PersistentUTXOStore(dir, 256 * 1024, 64 * 1024, 10, 4096);
+                store.connectBlock(sweep, blocks.size());
+                store.close();
+            }
+        }
+    }
+}
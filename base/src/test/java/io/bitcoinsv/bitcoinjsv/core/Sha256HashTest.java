@@ -0,0 +1,84 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class Sha256HashTest {
+
+    @Test
+    public void testByteBufferMatchesArray() {
+        byte[] data = new byte[300];
+        new Random(1).nextBytes(data);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        direct.position(17);
+        assertArrayEquals(Sha256Hash.hashTwice(data, 17, data.length - 17), Sha256Hash.hashTwice(direct));
+        assertEquals(17, direct.position());
+
+        ByteBuffer[] inputs = {ByteBuffer.wrap(data, 0, 0), ByteBuffer.wrap(data, 5, 80), ByteBuffer.wrap(data)};
+        byte[] out = new byte[3 * 32 + 1];
+        Sha256Hash.hashTwice(inputs, out, 1);
+        assertArrayEquals(Sha256Hash.hashTwice(new byte[0]), Arrays.copyOfRange(out, 1, 33));
+        assertArrayEquals(Sha256Hash.hashTwice(data, 5, 80), Arrays.copyOfRange(out, 33, 65));
+        assertArrayEquals(Sha256Hash.hashTwice(data), Arrays.copyOfRange(out, 65, 97));
+    }
+
+    @Test
+    public void testFailedHashDoesNotCorruptLaterHashes() {
+        byte[] data = new byte[100];
+        new Random(3).nextBytes(data);
+        byte[] expected = Sha256Hash.hashTwice(data);
+
+        //the first range is in the thread's digest by the time the second is found to be out of bounds
+        assertThrows(IllegalArgumentException.class, () -> Sha256Hash.hashTwice(data, 0, 50, data, 90, 50));
+        assertArrayEquals(expected, Sha256Hash.hashTwice(data));
+
+        //no room for the hash is found before anything is hashed
+        byte[] out = new byte[40];
+        assertThrows(IllegalArgumentException.class, () -> Sha256Hash.hashTwice(ByteBuffer.wrap(data), out, 20));
+        assertThrows(IllegalArgumentException.class, () -> Sha256Hash.hashTwice(ByteBuffer.wrap(data), out, -1));
+        assertArrayEquals(new byte[40], out);
+        assertArrayEquals(expected, Sha256Hash.hashTwice(ByteBuffer.wrap(data)));
+    }
+
+    @Test
+    public void testFixedLengthBatchesMatchSingleHashes() {
+        Random random = new Random(2);
+        //lengths either side of each padding boundary, counts that leave partly filled lane groups
+        for (int length : new int[] {0, 1, 32, 55, 56, 63, 64, 80, 119, 120, 128, 1000}) {
+            for (int count : new int[] {1, 3, 4, 9}) {
+                byte[] data = new byte[length * count + 3];
+                random.nextBytes(data);
+                byte[] expected = new byte[count * 32];
+                for (int i = 0; i < count; i++)
+                    System.arraycopy(Sha256Hash.hashTwice(data, 3 + i * length, length), 0, expected, i * 32, 32);
+
+                ByteBuffer input = ByteBuffer.wrap(data);
+                input.position(3);
+                ByteBuffer output = ByteBuffer.allocate(count * 32);
+                Sha256Hash.hashTwice(input, length, count, output);
+                assertArrayEquals(expected, output.array(), "digest " + length + " x " + count);
+                assertEquals(3, input.position());
+                assertEquals(0, output.position());
+
+                //byte order set on the caller's buffers must not leak into the words
+                input.order(ByteOrder.LITTLE_ENDIAN);
+                ByteBuffer direct = ByteBuffer.allocateDirect(count * 32).order(ByteOrder.LITTLE_ENDIAN);
+                MultiBufferSha256.hashTwice(input, length, count, direct);
+                byte[] interleaved = new byte[count * 32];
+                direct.get(interleaved);
+                assertArrayEquals(expected, interleaved, "interleaved " + length + " x " + count);
+            }
+        }
+    }
+}
@@ -29,6 +29,9 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.spongycastle.crypto.params.*;
 
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
@@ -288,6 +291,39 @@ public class ChildKeyDerivationTest {
 
     }
 
+    @Test
+    public void batchDerivationMatchesSingle() {
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey("batch derivation test seed".getBytes());
+        DeterministicKey watching = master.dropPrivateBytes().dropParent();
+        int count = HDKeyDerivation.DERIVATION_BATCH_SIZE * 2 + 7;
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            for (DeterministicKey parent : new DeterministicKey[] {master, watching}) {
+                List<DeterministicKey> serial =
+                        HDKeyDerivation.deriveChildKeys(parent, new ChildNumber(5, false), count);
+                List<DeterministicKey> parallel =
+                        HDKeyDerivation.deriveChildKeys(parent, new ChildNumber(5, false), count, pool);
+                assertEquals(count, serial.size());
+                for (int i = 0; i < count; i++) {
+                    DeterministicKey expected = HDKeyDerivation.deriveChildKey(parent, new ChildNumber(5 + i, false));
+                    for (DeterministicKey key : new DeterministicKey[] {serial.get(i), parallel.get(i)}) {
+                        assertEquals(expected, key);
+                        assertEquals(expected.getParentFingerprint(), key.getParentFingerprint());
+                        assertEquals(parent.hasPrivKey(), key.hasPrivKey());
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        List<DeterministicKey> hardened = HDKeyDerivation.deriveChildKeys(master, ChildNumber.ZERO_HARDENED, 3);
+        for (int i = 0; i < 3; i++)
+            assertEquals(HDKeyDerivation.deriveChildKey(master, new ChildNumber(i, true)), hardened.get(i));
+        assertThrows(IllegalArgumentException.class,
+                () -> HDKeyDerivation.deriveChildKeys(watching, ChildNumber.ZERO_HARDENED, 1));
+    }
+
     private static String hexEncodePub(DeterministicKey pubKey) {
         return Utils.HEX.encode(pubKey.getPubKey());
     }
@@ -0,0 +1,101 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.ecc;
+
+import io.bitcoinsv.bitcoinjsv.core.ECKeyLite;
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SignatureCacheTest {
+
+    @Test
+    public void testOnlyValidSignaturesCached() {
+        SignatureCache cache = new SignatureCache(SignatureCache.DEFAULT_MAX_BYTES);
+        ECKeyLite key = new ECKeyLite();
+        Sha256Hash hash = Sha256Hash.of(new byte[] {1});
+        ECDSASignature sig = key.sign(hash);
+        byte[] sigBytes = sig.encodeToDER();
+
+        assertTrue(cache.verify(hash.getBytes(), sig, sigBytes, key.getPubKey()));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertTrue(cache.verify(hash.getBytes(), sig, sigBytes, key.getPubKey()));
+        assertEquals(1, cache.getHits());
+
+        // Same signature against a different hash is not a hit and is not cached.
+        assertFalse(cache.verify(Sha256Hash.ZERO_HASH.getBytes(), sig, sigBytes, key.getPubKey()));
+        assertFalse(cache.contains(Sha256Hash.ZERO_HASH.getBytes(), key.getPubKey(), sigBytes));
+        assertEquals(1, cache.size());
+
+        // A different cache has a different salt but the same entries are valid.
+        SignatureCache other = new SignatureCache(SignatureCache.DEFAULT_MAX_BYTES);
+        assertFalse(other.contains(hash.getBytes(), key.getPubKey(), sigBytes));
+        other.add(hash.getBytes(), key.getPubKey(), sigBytes);
+        assertTrue(other.contains(hash.getBytes(), key.getPubKey(), sigBytes));
+    }
+
+    @Test
+    public void testEviction() {
+        SignatureCache cache = new SignatureCache(SignatureCache.BYTES_PER_ENTRY * 10);
+        assertEquals(10, cache.getMaxEntries());
+        byte[] pubKey = new byte[33];
+        byte[] sig = new byte[72];
+        for (int i = 0; i < 25; i++)
+            cache.add(Sha256Hash.of(new byte[] {(byte) i}).getBytes(), pubKey, sig);
+
+        assertEquals(10, cache.size());
+        assertEquals(15, cache.getEvictions());
+        // oldest first
+        assertFalse(cache.contains(Sha256Hash.of(new byte[] {0}).getBytes(), pubKey, sig));
+        assertTrue(cache.contains(Sha256Hash.of(new byte[] {24}).getBytes(), pubKey, sig));
+    }
+
+    @Test
+    public void testFieldBoundariesArePartOfTheKey() {
+        SignatureCache cache = new SignatureCache(SignatureCache.DEFAULT_MAX_BYTES);
+        byte[] hash = Sha256Hash.of(new byte[] {1}).getBytes();
+        byte[] pubKey = new byte[33];
+        byte[] sig = new byte[72];
+        cache.add(hash, pubKey, sig);
+
+        // The same run of bytes split differently between the pubkey and the signature is a different entry.
+        assertFalse(cache.contains(hash, new byte[34], new byte[71]));
+        assertFalse(cache.contains(hash, new byte[32], new byte[73]));
+        assertTrue(cache.contains(hash, pubKey, sig));
+    }
+
+    @Test
+    public void testReaddedEntryIsEvictedInTurn() {
+        SignatureCache cache = new SignatureCache(SignatureCache.BYTES_PER_ENTRY * 3);
+        byte[] pubKey = new byte[33];
+        byte[] sig = new byte[72];
+        byte[][] hashes = new byte[5][];
+        for (int i = 0; i < hashes.length; i++)
+            hashes[i] = Sha256Hash.of(new byte[] {(byte) i}).getBytes();
+
+        for (int i = 0; i < 4; i++)
+            cache.add(hashes[i], pubKey, sig);
+        // 0 was evicted, adding it again makes it the newest entry.
+        assertFalse(cache.contains(hashes[0], pubKey, sig));
+        cache.add(hashes[0], pubKey, sig);
+        cache.add(hashes[4], pubKey, sig);
+
+        // 1 and 2 go before 0 does.
+        assertFalse(cache.contains(hashes[1], pubKey, sig));
+        assertFalse(cache.contains(hashes[2], pubKey, sig));
+        assertTrue(cache.contains(hashes[3], pubKey, sig));
+        assertTrue(cache.contains(hashes[0], pubKey, sig));
+        assertTrue(cache.contains(hashes[4], pubKey, sig));
+        assertEquals(3, cache.getEvictions());
+    }
+
+    @Test
+    public void testNoDefaultCacheUnlessSet() {
+        assertNull(SignatureCache.getDefault());
+    }
+
+}
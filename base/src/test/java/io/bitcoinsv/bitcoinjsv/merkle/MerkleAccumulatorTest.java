@@ -0,0 +1,111 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.merkle;
+
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MerkleAccumulatorTest {
+
+    private static Sha256Hash randomHash(Random random) {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return Sha256Hash.wrap(bytes);
+    }
+
+    private static void assertRootMatches(List<Sha256Hash> expected, MerkleAccumulator accumulator) {
+        assertEquals(expected.size(), accumulator.size());
+        if (expected.isEmpty())
+            assertNull(accumulator.getRoot());
+        else
+            assertEquals(MerkleEngine.getDefault().computeRoot(expected), accumulator.getRoot());
+    }
+
+    @Test
+    public void testRootAfterEveryAppend() {
+        Random random = new Random(1);
+        List<Sha256Hash> hashes = new ArrayList<>();
+        //tiny capacity so every level grows several times
+        MerkleAccumulator accumulator = new MerkleAccumulator(1, false);
+        for (int i = 0; i < 300; i++) {
+            Sha256Hash hash = randomHash(random);
+            hashes.add(hash);
+            assertEquals(i, accumulator.add(hash));
+            assertRootMatches(hashes, accumulator);
+            assertEquals(hash, accumulator.getHash(i));
+        }
+    }
+
+    @Test
+    public void testUpdatesOnlyRehashTheirPath() {
+        Random random = new Random(2);
+        MerkleAccumulator accumulator = new MerkleAccumulator();
+        for (int i = 0; i < 1024; i++)
+            accumulator.add(randomHash(random));
+        accumulator.getRoot();
+        assertEquals(1023, accumulator.getRecalculations());
+
+        accumulator.set(0, randomHash(random));
+        accumulator.getRoot();
+        assertEquals(10, accumulator.getRecalculations());
+
+        accumulator.add(randomHash(random));
+        accumulator.getRoot();
+        assertEquals(11, accumulator.getRecalculations());
+
+        accumulator.getRoot();
+        assertEquals(0, accumulator.getRecalculations());
+    }
+
+    @Test
+    public void testRandomEditsMatchFullRebuild() {
+        Random random = new Random(3);
+        List<Sha256Hash> hashes = new ArrayList<>();
+        MerkleAccumulator accumulator = new MerkleAccumulator(16, true);
+        for (int step = 0; step < 2000; step++) {
+            int op = random.nextInt(10);
+            if (hashes.isEmpty() || op < 5) {
+                Sha256Hash hash = randomHash(random);
+                hashes.add(hash);
+                accumulator.add(hash);
+            } else if (op < 7) {
+                int index = random.nextInt(hashes.size());
+                Sha256Hash hash = randomHash(random);
+                hashes.set(index, hash);
+                accumulator.set(index, hash);
+            } else if (op < 9) {
+                int index = random.nextInt(hashes.size());
+                hashes.remove(index);
+                accumulator.remove(index);
+            } else {
+                int newSize = random.nextInt(hashes.size() + 1);
+                hashes.subList(newSize, hashes.size()).clear();
+                accumulator.truncate(newSize);
+            }
+            //checking only now and then lets changes pile up between recalculations
+            if (step % 7 == 0)
+                assertRootMatches(hashes, accumulator);
+        }
+        assertRootMatches(hashes, accumulator);
+    }
+
+    @Test
+    public void testBranchesValidate() {
+        Random random = new Random(4);
+        MerkleAccumulator accumulator = new MerkleAccumulator(4, false);
+        for (int i = 0; i < 21; i++)
+            accumulator.add(randomHash(random));
+        for (int i = 0; i < accumulator.size(); i++) {
+            MerkleBranch branch = accumulator.getBranch(i);
+            assertTrue(branch.validate(accumulator.getHash(i), accumulator.getRoot()), "leaf " + i);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.merkle;
+
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MerkleEngineTest {
+
+    //the straightforward list of levels, as MerkleBuilder used to build
+    private static byte[] referenceRoot(byte[] flat, int count) {
+        List<byte[]> level = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] hash = new byte[32];
+            System.arraycopy(flat, i * 32, hash, 0, 32);
+            level.add(hash);
+        }
+        while (level.size() > 1) {
+            List<byte[]> next = new ArrayList<>();
+            for (int left = 0; left < level.size(); left += 2) {
+                byte[] right = level.get(Math.min(left + 1, level.size() - 1));
+                next.add(Sha256Hash.hashTwice(level.get(left), 0, 32, right, 0, 32));
+            }
+            level = next;
+        }
+        return level.get(0);
+    }
+
+    private static byte[] randomLeaves(int count, long seed) {
+        byte[] flat = new byte[count * 32];
+        new Random(seed).nextBytes(flat);
+        return flat;
+    }
+
+    @Test
+    public void testMatchesReferenceForSmallTrees() {
+        MerkleEngine engine = MerkleEngine.getDefault();
+        for (int count = 1; count <= 100; count++) {
+            byte[] flat = randomLeaves(count, count);
+            byte[] expected = referenceRoot(flat, count);
+            assertArrayEquals(expected, engine.computeRoot(flat, count), "count " + count);
+        }
+    }
+
+    @Test
+    public void testParallelLevelsMatchReference() {
+        //a tiny threshold forces the scratch ping-pong and task splitting on most levels
+        MerkleEngine engine = new MerkleEngine(new ForkJoinPool(4), 3);
+        for (int count : new int[] {7, 8, 9, 1000, 4097, 10001}) {
+            byte[] flat = randomLeaves(count, count);
+            byte[] expected = referenceRoot(flat, count);
+            assertArrayEquals(expected, engine.computeRoot(flat.clone(), count), "array " + count);
+
+            ByteBuffer heap = ByteBuffer.wrap(flat.clone());
+            assertArrayEquals(expected, engine.computeRoot(heap, count), "heap buffer " + count);
+            assertEquals(0, heap.position());
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(flat.length + 10);
+            direct.position(10);
+            direct.put(flat).position(10);
+            assertArrayEquals(expected, engine.computeRoot(direct, count), "direct buffer " + count);
+            assertEquals(10, direct.position());
+        }
+    }
+
+    @Test
+    public void testSha256HashListIsInDisplayOrder() {
+        byte[] flat = randomLeaves(5, 1);
+        List<Sha256Hash> hashes = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            byte[] hash = new byte[32];
+            System.arraycopy(flat, i * 32, hash, 0, 32);
+            hashes.add(Sha256Hash.wrapReversed(hash));
+        }
+        assertEquals(Sha256Hash.wrapReversed(referenceRoot(flat, 5)), MerkleEngine.getDefault().computeRoot(hashes));
+    }
+
+    @Test
+    public void testBranchesLeadToRoot() {
+        MerkleEngine engine = new MerkleEngine(ForkJoinPool.commonPool(), 2);
+        int count = 37;
+        byte[] flat = randomLeaves(count, 99);
+        byte[] original = flat.clone();
+        int[] leaves = {0, 1, 17, 35, 36};
+        MerkleEngine.Result result = engine.compute(flat, count, leaves);
+        assertArrayEquals(referenceRoot(original, count), result.getRoot());
+        for (int i = 0; i < leaves.length; i++) {
+            byte[] leaf = new byte[32];
+            System.arraycopy(original, leaves[i] * 32, leaf, 0, 32);
+            assertEquals(leaves[i], result.getLeaf(i));
+            assertEquals(6, result.getBranch(i).length);
+            assertArrayEquals(result.getRoot(), MerkleEngine.rootFromBranch(leaf, leaves[i], result.getBranch(i)));
+        }
+    }
+
+    @Test
+    public void testRejectsEmptyAndShortInput() {
+        MerkleEngine engine = MerkleEngine.getDefault();
+        assertThrows(IllegalArgumentException.class, () -> engine.computeRoot(new byte[0], 0));
+        assertThrows(IllegalArgumentException.class, () -> engine.computeRoot(new byte[64], 3));
+        assertThrows(IllegalArgumentException.class, () -> engine.compute(new byte[64], 2, 2));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.merkle;
+
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+import io.bitcoinsv.bitcoinjsv.core.VarInt;
+import io.bitcoinsv.bitcoinjsv.exception.VerificationException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MerkleProofServiceTest {
+
+    private static List<Sha256Hash> randomTxids(int count, long seed) {
+        Random random = new Random(seed);
+        List<Sha256Hash> txids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[32];
+            random.nextBytes(bytes);
+            txids.add(Sha256Hash.wrap(bytes));
+        }
+        return txids;
+    }
+
+    //a txid file record: header, varint count, txids in display order
+    private static byte[] txidRecord(Sha256Hash merkleRoot, List<Sha256Hash> txids) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] header = new byte[80];
+        System.arraycopy(merkleRoot.getReversedBytes(), 0, header, 36, 32);
+        out.write(header, 0, header.length);
+        byte[] count = new VarInt(txids.size()).encode();
+        out.write(count, 0, count.length);
+        for (Sha256Hash txid : txids)
+            out.write(txid.getBytes(), 0, 32);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testProveAndVerifyMany() {
+        MerkleProofService service = new MerkleProofService(MerkleEngine.getDefault(), new ForkJoinPool(4), 16);
+        List<Sha256Hash> txids = randomTxids(1001, 1);
+        Sha256Hash root = MerkleEngine.getDefault().computeRoot(txids);
+        List<Sha256Hash> wanted = new ArrayList<>();
+        for (int i = 0; i < txids.size(); i += 3)
+            wanted.add(txids.get(i));
+        wanted.add(Sha256Hash.ZERO_HASH);
+
+        Map<Sha256Hash, MerkleBranch> proofs = service.prove(txids, wanted);
+        assertEquals(wanted.size() - 1, proofs.size());
+        assertFalse(proofs.containsKey(Sha256Hash.ZERO_HASH));
+        for (Map.Entry<Sha256Hash, MerkleBranch> entry : proofs.entrySet()) {
+            assertEquals(txids.indexOf(entry.getKey()), entry.getValue().getNodeIndex());
+            assertTrue(entry.getValue().validate(entry.getKey(), root));
+        }
+
+        List<MerkleBranch> branches = new ArrayList<>(proofs.values());
+        BitSet valid = service.verify(branches, root);
+        assertEquals(branches.size(), valid.cardinality());
+
+        //a branch claiming another leaf's position no longer leads to the root
+        MerkleBranch first = branches.get(0);
+        branches.set(0, new MerkleBranch(first.getNodeIndex() + 1, first.getNode(), root, first.getBranchNodes()));
+        valid = service.verify(branches, root);
+        assertFalse(valid.get(0));
+        assertEquals(branches.size() - 1, valid.cardinality());
+    }
+
+    @Test
+    public void testProveFromTxidFile(@TempDir Path dir) throws Exception {
+        List<Sha256Hash> txids = randomTxids(77, 2);
+        Sha256Hash root = MerkleEngine.getDefault().computeRoot(txids);
+        byte[] other = txidRecord(Sha256Hash.ZERO_HASH, randomTxids(3, 3));
+        byte[] record = txidRecord(root, txids);
+        Path file = dir.resolve("liteblk00000.dat");
+        byte[] bytes = Arrays.copyOf(other, other.length + record.length);
+        System.arraycopy(record, 0, bytes, other.length, record.length);
+        Files.write(file, bytes);
+
+        MerkleProofService service = MerkleProofService.getDefault();
+        List<Sha256Hash> wanted = Arrays.asList(txids.get(76), txids.get(0), txids.get(40));
+        Map<Sha256Hash, MerkleBranch> proofs = service.prove(file, other.length, wanted);
+        assertEquals(wanted, new ArrayList<>(proofs.keySet()));
+        for (MerkleBranch branch : proofs.values()) {
+            assertEquals(root, branch.getRoot());
+            assertTrue(branch.validate());
+        }
+
+        //the first record's header doesn't commit to its txids
+        assertThrows(VerificationException.class, () -> service.prove(file, 0, wanted));
+    }
+}
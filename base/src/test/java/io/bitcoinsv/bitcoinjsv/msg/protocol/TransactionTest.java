@@ -46,6 +46,9 @@ import java.util.stream.IntStream;
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.replay;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 /**
@@ -523,4 +526,31 @@ public class TransactionTest {
 
 
     }
+
+    @Test
+    public void testSigHashContextSharedAndInvalidated() {
+        String txData = "020000000284ff1fbdee5aeeaf7976ddfb395e00066c150d4ed90da089f5b47e46215dc23c010000006b4830450221008e1f85698b5130f2dd56236541f2b2c1f7676721acebbbdc3c8711a345d2f96b022065f1f2ea915b8844319b3e81e33cb6a26ecee838dc0060248b10039e994ab1e641210248dd879c54147390a12f8e8a7aa8f23ce2659a996fa7bf756d6b2187d8ed624ffeffffffefd0db693d73d8087eb1f44916be55ee025f25d7a3dbcf82e3318e56e6ccded9000000006a4730440221009c6ba90ca215ce7ad270e6688940aa6d97be6c901a430969d9d88bef7c8dc607021f51d088dadcaffbd88e5514afedfa9e2cac61a1024aaa4c88873361193e4da24121039cc4a69e1e93ebadab2870c69cb4feb0c1c2bfad38be81dda2a72c57d8b14e11feffffff0230c80700000000001976a914517abefd39e71c633bd5a23fd75b5dbd47bc461b88acc8911400000000001976a9147b983c4efaf519e9caebde067b6495e5dcc491cb88acba4f0700";
+        TxBean tx = new TxBean(Utils.HEX.decode(txData));
+        byte[] script = tx.getOutputs().get(0).getScriptBytes();
+
+        SigHashContext context = SigHashContext.of(tx);
+        assertSame(context, SigHashContext.of(tx));
+
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            for (SigHash.Flags type : new SigHash.Flags[]{SigHash.Flags.ALL, SigHash.Flags.NONE, SigHash.Flags.SINGLE}) {
+                Sha256Hash expected = SigHash.hashForForkIdSignature(new SigHashContext(tx), i, script, Coin.COIN, type, false);
+                assertEquals(expected, SigHash.hashForForkIdSignature(context, i, script, Coin.COIN, type, false));
+            }
+        }
+
+        Sha256Hash before = SigHash.hashForForkIdSignature(tx, 1, script, Coin.COIN, SigHash.Flags.ALL, false);
+        tx.makeMutable();
+        tx.getOutputs().get(0).setValue(Coin.SATOSHI);
+        tx.makeImmutable();
+        assertNotSame(context, SigHashContext.of(tx));
+
+        Sha256Hash after = SigHash.hashForForkIdSignature(tx, 1, script, Coin.COIN, SigHash.Flags.ALL, false);
+        assertNotEquals(before, after);
+        assertEquals(SigHash.hashForForkIdSignature(new TxBean(tx.serialize()), 1, script, Coin.COIN, SigHash.Flags.ALL, false), after);
+    }
 }
@@ -0,0 +1,95 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.script.interpreter;
+
+import io.bitcoinsv.bitcoinjsv.core.Utils;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ScriptNumTest {
+
+    private static byte[] encodeBig(BigInteger value) {
+        return Utils.reverseBytes(Utils.encodeMPI(value, false));
+    }
+
+    private static BigInteger decodeBig(byte[] bytesLE) {
+        return Utils.decodeMPI(Utils.reverseBytes(bytesLE), false);
+    }
+
+    private static BigInteger randomOperand(Random random) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return BigInteger.valueOf(random.nextInt(256) - 128);
+            case 1:
+                return BigInteger.valueOf(random.nextInt());
+            case 2:
+                return BigInteger.valueOf(random.nextLong());
+            default:
+                //around the boundary of the long path
+                return BigInteger.valueOf(Long.MAX_VALUE).subtract(BigInteger.valueOf(random.nextInt(4)))
+                        .multiply(BigInteger.valueOf(random.nextBoolean() ? 1 : -1));
+        }
+    }
+
+    @Test
+    public void testEncodingMatchesMPI() {
+        long[] values = {0, 1, -1, 127, -127, 128, -128, 255, -255, 256, 0x7fffffffL, -0x80000000L,
+                Long.MAX_VALUE, -Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long v : values) {
+            BigInteger big = BigInteger.valueOf(v);
+            ScriptNum num = ScriptNum.valueOf(v);
+            assertArrayEquals(encodeBig(big), num.encode(), "encode " + v);
+            assertEquals(num, ScriptNum.decode(encodeBig(big)), "decode " + v);
+            assertEquals(big, ScriptNum.decode(num.encode()).toBigInteger());
+        }
+        //negative zero
+        assertTrue(ScriptNum.decode(new byte[] {(byte) 0x80}).isZero());
+        assertTrue(ScriptNum.decode(new byte[] {0, 0, (byte) 0x80}).isZero());
+        assertFalse(ScriptNum.valueOf(Long.MIN_VALUE).isSmall());
+    }
+
+    @Test
+    public void testArithmeticMatchesBigInteger() {
+        Random random = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            BigInteger a = randomOperand(random);
+            BigInteger b = randomOperand(random);
+            ScriptNum na = ScriptNum.decode(encodeBig(a));
+            ScriptNum nb = ScriptNum.decode(encodeBig(b));
+
+            assertArrayEquals(encodeBig(a.add(b)), na.add(nb).encode());
+            assertArrayEquals(encodeBig(a.subtract(b)), na.subtract(nb).encode());
+            assertArrayEquals(encodeBig(a.multiply(b)), na.multiply(nb).encode());
+            assertArrayEquals(encodeBig(a.negate()), na.negate().encode());
+            assertArrayEquals(encodeBig(a.abs()), na.abs().encode());
+            assertEquals(Integer.signum(a.compareTo(b)), Integer.signum(na.compareTo(nb)));
+            assertEquals(a.equals(b), na.equals(nb));
+            if (b.signum() != 0) {
+                assertArrayEquals(encodeBig(a.divide(b)), na.divide(nb).encode());
+                assertArrayEquals(encodeBig(a.remainder(b)), na.remainder(nb).encode());
+            }
+        }
+    }
+
+    @Test
+    public void testPromotionBeyondEightBytes() {
+        BigInteger large = BigInteger.ONE.shiftLeft(100).add(BigInteger.valueOf(12345));
+        ScriptNum num = ScriptNum.decode(encodeBig(large));
+        assertFalse(num.isSmall());
+        assertEquals(large, num.toBigInteger());
+        assertEquals(large.longValue(), num.longValue());
+        assertEquals(large.intValue(), num.intValue());
+
+        ScriptNum back = num.subtract(ScriptNum.decode(encodeBig(BigInteger.ONE.shiftLeft(100))));
+        assertTrue(back.isSmall());
+        assertEquals(12345, back.longValue());
+        assertEquals(decodeBig(encodeBig(large.multiply(large))), num.multiply(num).toBigInteger());
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.script.interpreter;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Iterator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ScriptStackTest {
+
+    private static StackItem item(int value, int length) {
+        byte[] bytes = new byte[length];
+        if (length > 0)
+            bytes[0] = (byte) value;
+        return StackItem.forBytes(bytes, StackItem.Type.BYTES, false);
+    }
+
+    @Test
+    public void testTopRelativeAccessAndGrowth() {
+        ScriptStack stack = new ScriptStack();
+        for (int i = 0; i < 100; i++)
+            stack.add(item(i, 1 + (i % 3)));
+
+        assertEquals(100, stack.size());
+        assertEquals(99, stack.getFromTop(0).bytes()[0]);
+        assertEquals(90, stack.getFromTop(9).bytes()[0]);
+        assertSame(stack.getLast(), stack.getFromTop(0));
+        assertEquals(stack.calculateStackMemoryUsage(), stack.getStackMemoryUsage());
+
+        StackItem rolled = stack.removeFromTop(9);
+        assertEquals(90, rolled.bytes()[0]);
+        assertEquals(99, stack.size());
+        assertEquals(89, stack.getFromTop(9).bytes()[0]);
+        assertEquals(91, stack.getFromTop(8).bytes()[0]);
+        assertEquals(stack.calculateStackMemoryUsage(), stack.getStackMemoryUsage());
+        assertEquals(1, stack.getPoppedItems().size());
+
+        Iterator<StackItem> it = stack.descendingIterator();
+        assertEquals(99, it.next().bytes()[0]);
+        assertEquals(98, it.next().bytes()[0]);
+        it.remove();
+        assertEquals(97, it.next().bytes()[0]);
+        assertEquals(97, stack.getFromTop(1).bytes()[0]);
+        assertEquals(stack.calculateStackMemoryUsage(), stack.getStackMemoryUsage());
+
+        assertThrows(IndexOutOfBoundsException.class, () -> stack.getFromTop(stack.size()));
+    }
+
+    @Test
+    public void testUntrackedStack() {
+        ScriptStack stack = new ScriptStack(false);
+        StackItem a = item(1, 1);
+        stack.add(a);
+        stack.add(StackItem.Type.BYTES, new byte[] {2}, a);
+        assertFalse(stack.getLast().isDerived());
+        stack.pollLast();
+        stack.pollLast();
+        assertNull(stack.pollLast());
+        assertTrue(stack.getPoppedItems().isEmpty());
+        assertEquals(0, stack.getStackMemoryUsage());
+
+        ScriptStack copy = new ScriptStack(stack);
+        assertFalse(copy.isTracking());
+    }
+
+}
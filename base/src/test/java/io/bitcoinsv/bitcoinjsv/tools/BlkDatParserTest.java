@@ -0,0 +1,155 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.tools;
+
+import io.bitcoinsv.bitcoinjsv.bitcoin.Genesis;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.FullBlock;
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+import io.bitcoinsv.bitcoinjsv.core.Utils;
+import io.bitcoinsv.bitcoinjsv.params.Net;
+import io.bitcoinsv.bitcoinjsv.params.NetworkParameters;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BlkDatParserTest {
+
+    private static final NetworkParameters PARAMS = Net.MAINNET.params();
+
+    @TempDir
+    File dir;
+
+    /**
+     * Writes blocks to blk00000.dat and blk00001.dat the way bitcoind does, with zero padding at the end of each file.
+     * The first file uses the old packet magic, the second the current one.
+     * Returns the hashes of the blocks in the order written.
+     */
+    private List<Sha256Hash> writeBlockFiles(int blocksPerFile) throws IOException {
+        byte[] genesis = Genesis.getFor(Net.MAINNET).serialize();
+        List<Sha256Hash> hashes = new ArrayList<>();
+        for (int fileNum = 0; fileNum < 2; fileNum++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (int i = 0; i < blocksPerFile; i++) {
+                byte[] block = genesis.clone();
+                //a different nonce gives each block a different hash
+                Utils.uint32ToByteArrayLE(hashes.size(), block, 76);
+                hashes.add(Sha256Hash.wrapReversed(Sha256Hash.hashTwice(block, 0, 80)));
+                byte[] frameHeader = new byte[8];
+                Utils.uint32ToByteArrayBE(fileNum == 0 ? PARAMS.getOldPacketMagic() : PARAMS.getPacketMagic(), frameHeader, 0);
+                Utils.uint32ToByteArrayLE(block.length, frameHeader, 4);
+                out.write(frameHeader);
+                out.write(block);
+            }
+            out.write(new byte[1000]);
+            try (FileOutputStream file = new FileOutputStream(new File(dir, String.format("blk%05d.dat", fileNum)))) {
+                out.writeTo(file);
+            }
+        }
+        return hashes;
+    }
+
+    private static class RecordingListener implements BlockParsedListener, BlockParseMetricsListener {
+
+        final List<Sha256Hash> hashes = new ArrayList<>();
+        final List<Integer> heights = new ArrayList<>();
+        final List<Integer> newFiles = new ArrayList<>();
+        final List<Integer> completedFiles = new ArrayList<>();
+        long lastProgressBlocks;
+        boolean complete;
+
+        @Override
+        public void onBlockParsed(FullBlock block, int numParsed, File currentFile, long start, long len) {
+            hashes.add(block.getHash());
+            heights.add(numParsed);
+        }
+
+        @Override
+        public void onNewFile(File currentFile, int fileNum) {
+            newFiles.add(fileNum);
+        }
+
+        @Override
+        public void onComplete(long timeToProcess) {
+            complete = true;
+        }
+
+        @Override
+        public void onProgress(long blocksParsed, long bytesParsed, long elapsedMillis, int blocksInFlight, long bytesInFlight) {
+            lastProgressBlocks = blocksParsed;
+        }
+
+        @Override
+        public void onFileComplete(File file, int fileNum, int blocks, long bytes, long elapsedMillis) {
+            completedFiles.add(fileNum);
+        }
+    }
+
+    @Test
+    public void testMappedModeDeliversBlocksInOrder() throws IOException {
+        List<Sha256Hash> expected = writeBlockFiles(50);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            RecordingListener listener = new RecordingListener();
+            BlkDatParser parser = new BlkDatParser(PARAMS, dir.getAbsolutePath(), 0, listener, executor);
+            parser.setMetricsListener(listener);
+            parser.setProgressInterval(10);
+            parser.setMaxBlocksInFlight(8);
+            parser.run();
+
+            assertEquals(expected, listener.hashes);
+            for (int i = 0; i < expected.size(); i++)
+                assertEquals(i, (int) listener.heights.get(i));
+            assertEquals(List.of(0, 1), listener.newFiles);
+            assertEquals(List.of(0, 1), listener.completedFiles);
+            assertEquals(expected.size(), listener.lastProgressBlocks);
+            assertTrue(listener.complete);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testMappedModeMatchesBufferedMode() throws IOException {
+        writeBlockFiles(20);
+        RecordingListener buffered = new RecordingListener();
+        new BlkDatParser(PARAMS, dir.getAbsolutePath(), true, 0, buffered).run();
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            RecordingListener mapped = new RecordingListener();
+            new BlkDatParser(PARAMS, dir.getAbsolutePath(), 0, mapped, executor).run();
+            assertEquals(buffered.hashes, mapped.hashes);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testMappedModeStopHeight() throws IOException {
+        writeBlockFiles(20);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            RecordingListener listener = new RecordingListener();
+            BlkDatParser parser = new BlkDatParser(PARAMS, dir.getAbsolutePath(), 0, listener, executor);
+            parser.setStopHeight(25);
+            parser.run();
+            assertEquals(25, listener.hashes.size());
+            assertTrue(listener.complete);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.benchmarks;
+
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.extended.LiteBlock;
+import io.bitcoinsv.bitcoinjsv.blockstore.BlockStore;
+import io.bitcoinsv.bitcoinjsv.blockstore.FullHeadersBlockStore;
+import io.bitcoinsv.bitcoinjsv.blockstore.SPVBlockStore;
+import io.bitcoinsv.bitcoinjsv.exception.BlockStoreException;
+import io.bitcoinsv.bitcoinjsv.utils.FileUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Header puts and gets against {@link SPVBlockStore} and {@link FullHeadersBlockStore}.  Both stores are backed by
+ * a temporary directory that is deleted at the end of the run.
+ *
+ * Puts are measured by loading the whole synthetic chain into a fresh store, so the result is the time per header.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockStoreBenchmark {
+
+    static final int CHAIN_LENGTH = 2000;
+
+    public enum StoreType {
+        SPV, FULL_HEADERS
+    }
+
+    @State(Scope.Benchmark)
+    public static class Chain {
+
+        List<LiteBlock> headers;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            headers = new SyntheticChain(1).headerChain(CHAIN_LENGTH);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Store {
+
+        @Param({"SPV", "FULL_HEADERS"})
+        StoreType type;
+
+        File dir;
+        BlockStore<LiteBlock> store;
+
+        BlockStore<LiteBlock> open() throws IOException, BlockStoreException {
+            dir = Files.createTempDirectory("blockstore-benchmark").toFile();
+            if (type == StoreType.SPV)
+                return new SPVBlockStore(SyntheticChain.NET.params(), new File(dir, "spvchain"));
+            return new FullHeadersBlockStore(SyntheticChain.NET, new File(dir, "headers"));
+        }
+
+        void close() throws BlockStoreException {
+            store.close();
+            FileUtil.deleteDir(dir);
+        }
+    }
+
+    /** A store that already holds the whole chain. */
+    @State(Scope.Thread)
+    public static class PopulatedStore extends Store {
+
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(Chain chain) throws IOException, BlockStoreException {
+            store = open();
+            for (LiteBlock header : chain.headers)
+                store.put(header);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws BlockStoreException {
+            close();
+        }
+    }
+
+    /** An empty store for each invocation. */
+    @State(Scope.Thread)
+    public static class EmptyStore extends Store {
+
+        @Setup(Level.Invocation)
+        public void setUp() throws IOException, BlockStoreException {
+            store = open();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws BlockStoreException {
+            close();
+        }
+    }
+
+    @Benchmark
+    public LiteBlock get(Chain chain, PopulatedStore store) throws BlockStoreException {
+        LiteBlock header = chain.headers.get(store.next);
+        store.next = (store.next + 1) % CHAIN_LENGTH;
+        return store.store.get(header.getHash());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHAIN_LENGTH)
+    public void putChain(Chain chain, EmptyStore store) throws BlockStoreException {
+        for (LiteBlock header : chain.headers)
+            store.store.put(header);
+    }
+
+}
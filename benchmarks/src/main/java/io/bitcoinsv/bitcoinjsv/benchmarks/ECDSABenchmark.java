@@ -0,0 +1,75 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.benchmarks;
+
+import io.bitcoinsv.bitcoinjsv.core.ECKeyLite;
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+import io.bitcoinsv.bitcoinjsv.ecc.ECDSA;
+import io.bitcoinsv.bitcoinjsv.ecc.ECDSASignature;
+import org.bitcoin.NativeSecp256k1;
+import org.bitcoin.NativeSecp256k1Util;
+import org.bitcoin.Secp256k1Context;
+import org.openjdk.jmh.annotations.*;
+import org.spongycastle.crypto.params.ECPublicKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ECDSA signature verification.  {@link #verify()} uses whichever implementation {@link ECDSA} selects, the other
+ * single signature benchmarks pin the implementation.  The native benchmark fails at setup if libsecp256k1 isn't
+ * on the library path, run with -Djava.library.path to include it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ECDSABenchmark {
+
+    byte[] hash;
+    ECDSASignature signature;
+    byte[] derSignature;
+    byte[] pubKey;
+
+    @Setup
+    public void setUp() {
+        SyntheticChain chain = new SyntheticChain(1);
+        ECKeyLite key = chain.getKey();
+        hash = chain.randomBytes(32);
+        signature = key.sign(Sha256Hash.wrap(hash));
+        derSignature = signature.encodeToDER();
+        pubKey = key.getPubKey();
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return ECDSA.verify(hash, signature, pubKey);
+    }
+
+    @Benchmark
+    public boolean verifyBouncyCastle() {
+        ECDSASigner signer = new ECDSASigner();
+        signer.init(false, new ECPublicKeyParameters(ECDSA.CURVE.getCurve().decodePoint(pubKey), ECDSA.CURVE));
+        return signer.verifySignature(hash, signature.r, signature.s);
+    }
+
+    @Benchmark
+    public boolean verifyNative(NativeState state) throws NativeSecp256k1Util.AssertFailException {
+        return NativeSecp256k1.verify(hash, derSignature, pubKey);
+    }
+
+    @State(Scope.Benchmark)
+    public static class NativeState {
+
+        @Setup
+        public void setUp() {
+            if (!Secp256k1Context.isEnabled())
+                throw new IllegalStateException("libsecp256k1 is not loaded, set -Djava.library.path to include it");
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.benchmarks;
+
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.Tx;
+import io.bitcoinsv.bitcoinjsv.core.Coin;
+import io.bitcoinsv.bitcoinjsv.core.ECKeyLite;
+import io.bitcoinsv.bitcoinjsv.ecc.SignatureCache;
+import io.bitcoinsv.bitcoinjsv.script.Script;
+import io.bitcoinsv.bitcoinjsv.script.ScriptBuilder;
+import io.bitcoinsv.bitcoinjsv.script.ScriptUtils;
+import io.bitcoinsv.bitcoinjsv.script.ScriptVerifyFlag;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full script verification of a P2PKH and a bare multisig input, including signature hashing and ECDSA verification.
+ * With the signature cache enabled every invocation after the first is a cache hit, which approximates connecting
+ * a block whose transactions were already accepted to the mempool.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InterpreterBenchmark {
+
+    @Param({"false", "true"})
+    boolean signatureCache;
+
+    @Param({"2"})
+    int multisigThreshold;
+
+    @Param({"3"})
+    int multisigKeys;
+
+    Set<ScriptVerifyFlag> flags = ScriptVerifyFlag.ALL_VERIFY_FLAGS;
+
+    Tx p2pkhTx;
+    Script p2pkhScript;
+
+    Tx multisigTx;
+    Script multisigScript;
+
+    SignatureCache previousCache;
+
+    @Setup
+    public void setUp() {
+        previousCache = SignatureCache.getDefault();
+        SignatureCache.setDefault(signatureCache ? new SignatureCache(SignatureCache.DEFAULT_MAX_BYTES) : null);
+
+        SyntheticChain chain = new SyntheticChain(1);
+        p2pkhTx = chain.signedP2pkhTransaction(1, 2);
+        p2pkhScript = chain.getP2pkhScript();
+
+        List<ECKeyLite> keys = chain.newKeys(multisigKeys);
+        multisigScript = ScriptBuilder.createMultiSigOutputScript(multisigThreshold, keys);
+        multisigTx = chain.signedMultisigTransaction(multisigScript, keys, multisigThreshold);
+    }
+
+    @TearDown
+    public void tearDown() {
+        SignatureCache.setDefault(previousCache);
+    }
+
+    @Benchmark
+    public void p2pkh() {
+        ScriptUtils.correctlySpends(p2pkhTx.getInputs().get(0).getScriptSig(), p2pkhTx, 0, p2pkhScript, Coin.COIN, flags);
+    }
+
+    @Benchmark
+    public void multisig() {
+        ScriptUtils.correctlySpends(multisigTx.getInputs().get(0).getScriptSig(), multisigTx, 0, multisigScript, Coin.COIN, flags);
+    }
+
+}
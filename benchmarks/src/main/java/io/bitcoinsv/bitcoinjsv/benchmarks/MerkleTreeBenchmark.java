@@ -0,0 +1,43 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.benchmarks;
+
+import io.bitcoinsv.bitcoinjsv.merkle.ByteArrayLayeredMerkleTree;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calculating the merkle root of a block's transaction hashes with {@link ByteArrayLayeredMerkleTree}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MerkleTreeBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    int leaves;
+
+    List<byte[]> txHashes;
+
+    @Setup
+    public void setUp() {
+        SyntheticChain chain = new SyntheticChain(1);
+        txHashes = new ArrayList<>(leaves);
+        for (int i = 0; i < leaves; i++)
+            txHashes.add(chain.randomBytes(32));
+    }
+
+    @Benchmark
+    public byte[] root() {
+        return new ByteArrayLayeredMerkleTree(txHashes).getRoot();
+    }
+
+}
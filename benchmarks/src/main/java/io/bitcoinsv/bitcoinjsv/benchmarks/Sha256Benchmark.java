@@ -0,0 +1,63 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.benchmarks;
+
+import io.bitcoinsv.bitcoinjsv.core.MultiBufferSha256;
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Double SHA256 over the sizes that matter most: a hash (merkle nodes), a header and larger transaction payloads.
+ * The batch benchmarks hash {@link #BATCH} messages of each size through the digest and interleaved paths.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Sha256Benchmark {
+
+    @Param({"64", "80", "1024", "1048576"})
+    int size;
+
+    static final int BATCH = 64;
+
+    byte[] data;
+    ByteBuffer batch;
+    ByteBuffer hashes;
+
+    @Setup
+    public void setUp() {
+        SyntheticChain chain = new SyntheticChain(1);
+        data = chain.randomBytes(size);
+        //the large size would be 64 MB as a batch, a few messages show the per byte cost just as well
+        int count = size > 65536 ? 4 : BATCH;
+        batch = ByteBuffer.allocateDirect(size * count);
+        batch.put(chain.randomBytes(size * count)).flip();
+        hashes = ByteBuffer.allocateDirect(32 * count);
+    }
+
+    @Benchmark
+    public byte[] hashTwice() {
+        return Sha256Hash.hashTwice(data);
+    }
+
+    @Benchmark
+    public ByteBuffer hashTwiceBatch() {
+        Sha256Hash.hashTwice(batch, size, batch.remaining() / size, hashes);
+        return hashes;
+    }
+
+    @Benchmark
+    public ByteBuffer hashTwiceInterleaved() {
+        MultiBufferSha256.hashTwice(batch, size, batch.remaining() / size, hashes);
+        return hashes;
+    }
+
+}
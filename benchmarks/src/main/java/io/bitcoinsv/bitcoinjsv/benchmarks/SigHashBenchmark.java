@@ -0,0 +1,56 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.benchmarks;
+
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.Tx;
+import io.bitcoinsv.bitcoinjsv.core.Coin;
+import io.bitcoinsv.bitcoinjsv.script.SigHash;
+import io.bitcoinsv.bitcoinjsv.script.SigHashContext;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BIP143 (forkid) signature hashes for every input of a transaction.  Each invocation starts from a fresh
+ * {@link SigHashContext} so the cost of the shared midstates is included once per transaction, as it is when a
+ * transaction is first verified.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SigHashBenchmark {
+
+    @Param({"1", "100", "1000"})
+    int inputs;
+
+    Tx tx;
+    byte[] connectedScript;
+
+    @Setup
+    public void setUp() {
+        SyntheticChain chain = new SyntheticChain(1);
+        tx = chain.transaction(inputs, 2);
+        connectedScript = chain.getP2pkhScript().getProgram();
+    }
+
+    @Benchmark
+    public void allInputsSighashAll(Blackhole bh) {
+        SigHashContext context = new SigHashContext(tx);
+        for (int i = 0; i < inputs; i++)
+            bh.consume(SigHash.hashForForkIdSignature(context, i, connectedScript, Coin.COIN, SigHash.Flags.ALL, false));
+    }
+
+    @Benchmark
+    public void allInputsSighashSingleAnyoneCanPay(Blackhole bh) {
+        SigHashContext context = new SigHashContext(tx);
+        for (int i = 0; i < inputs; i++)
+            bh.consume(SigHash.hashForForkIdSignature(context, i, connectedScript, Coin.COIN, SigHash.Flags.SINGLE, true));
+    }
+
+}
@@ -0,0 +1,217 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.benchmarks;
+
+import io.bitcoinsv.bitcoinjsv.bitcoin.Genesis;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.BitcoinObject;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.FullBlock;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.Tx;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.TxInput;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.TxOutPoint;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.TxOutput;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.extended.LiteBlock;
+import io.bitcoinsv.bitcoinjsv.bitcoin.bean.base.FullBlockBean;
+import io.bitcoinsv.bitcoinjsv.bitcoin.bean.base.HeaderBean;
+import io.bitcoinsv.bitcoinjsv.bitcoin.bean.base.TxBean;
+import io.bitcoinsv.bitcoinjsv.bitcoin.bean.base.TxInputBean;
+import io.bitcoinsv.bitcoinjsv.bitcoin.bean.base.TxOutPointBean;
+import io.bitcoinsv.bitcoinjsv.bitcoin.bean.base.TxOutputBean;
+import io.bitcoinsv.bitcoinjsv.bitcoin.bean.extended.LiteBlockBean;
+import io.bitcoinsv.bitcoinjsv.blockchain.ChainUtils;
+import io.bitcoinsv.bitcoinjsv.core.Coin;
+import io.bitcoinsv.bitcoinjsv.core.ECKeyLite;
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+import io.bitcoinsv.bitcoinjsv.core.Utils;
+import io.bitcoinsv.bitcoinjsv.ecc.ECDSA;
+import io.bitcoinsv.bitcoinjsv.ecc.TransactionSignature;
+import io.bitcoinsv.bitcoinjsv.params.Net;
+import io.bitcoinsv.bitcoinjsv.script.Script;
+import io.bitcoinsv.bitcoinjsv.script.ScriptBuilder;
+import io.bitcoinsv.bitcoinjsv.script.SigHash;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates deterministic synthetic keys, transactions, blocks and header chains so the benchmarks can run offline
+ * without any chain data.  All generated data is derived from the seed so every run of a benchmark sees the same
+ * inputs.
+ *
+ * Methods named build* return mutable object graphs, all other methods return immutable objects parsed from their
+ * serialized form, the same as objects read from the network or disk.
+ */
+public class SyntheticChain {
+
+    public static final Net NET = Net.UNITTEST;
+
+    /** Typical size of a P2PKH scriptSig: DER signature + sighash byte + compressed pubkey and push opcodes. */
+    public static final int P2PKH_SCRIPT_SIG_SIZE = 107;
+
+    private final Random random;
+    private final ECKeyLite key;
+    private final Script p2pkhScript;
+
+    public SyntheticChain(long seed) {
+        this.random = new Random(seed);
+        this.key = newKey();
+        this.p2pkhScript = ScriptBuilder.createOutputScript(key.toAddress(NET.params()));
+    }
+
+    public ECKeyLite getKey() {
+        return key;
+    }
+
+    public Script getP2pkhScript() {
+        return p2pkhScript;
+    }
+
+    public byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    public Sha256Hash randomHash() {
+        return Sha256Hash.wrap(randomBytes(32));
+    }
+
+    public ECKeyLite newKey() {
+        BigInteger priv;
+        do {
+            priv = new BigInteger(256, random);
+        } while (priv.signum() == 0 || priv.compareTo(ECDSA.CURVE.getN()) >= 0);
+        return ECKeyLite.fromPrivate(priv);
+    }
+
+    public List<ECKeyLite> newKeys(int count) {
+        List<ECKeyLite> keys = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            keys.add(newKey());
+        return keys;
+    }
+
+    /**
+     * Builds a transaction spending random outpoints to P2PKH outputs.  Each input has a random scriptSig of
+     * typical P2PKH size so it serializes like a real transaction but won't pass script verification.
+     */
+    public Tx buildTransaction(int inputCount, int outputCount) {
+        Tx tx = new TxBean((BitcoinObject) null);
+        List<TxInput> inputs = new ArrayList<>(inputCount);
+        for (int i = 0; i < inputCount; i++) {
+            TxInput input = new TxInputBean(tx);
+            TxOutPoint outPoint = new TxOutPointBean(input);
+            outPoint.setHash(randomHash());
+            outPoint.setIndex(random.nextInt(4));
+            input.setOutpoint(outPoint);
+            input.setScriptBytes(randomBytes(P2PKH_SCRIPT_SIG_SIZE));
+            input.setSequenceNumber(TxInput.NO_SEQUENCE);
+            inputs.add(input);
+        }
+        List<TxOutput> outputs = new ArrayList<>(outputCount);
+        for (int i = 0; i < outputCount; i++) {
+            TxOutput output = new TxOutputBean(tx);
+            output.setValue(Coin.valueOf(1000 + random.nextInt(1000000)));
+            output.setScriptPubKey(p2pkhScript);
+            outputs.add(output);
+        }
+        tx.setVersion(1);
+        tx.setLockTime(0);
+        tx.setInputs(inputs);
+        tx.setOutputs(outputs);
+        return tx;
+    }
+
+    public Tx transaction(int inputCount, int outputCount) {
+        return new TxBean(buildTransaction(inputCount, outputCount).serialize());
+    }
+
+    /**
+     * A transaction whose inputs all spend outputs of {@link #getP2pkhScript()} worth {@link Coin#COIN} and
+     * are correctly signed with SIGHASH_ALL | SIGHASH_FORKID.
+     */
+    public Tx signedP2pkhTransaction(int inputCount, int outputCount) {
+        Tx tx = buildTransaction(inputCount, outputCount);
+        List<TxInput> inputs = tx.getInputs();
+        for (int i = 0; i < inputs.size(); i++) {
+            Sha256Hash sigHash = SigHash.hashForForkIdSignature(tx, i, p2pkhScript.getProgram(), Coin.COIN,
+                    SigHash.Flags.ALL, false);
+            TransactionSignature sig = new TransactionSignature(key.sign(sigHash), SigHash.Flags.ALL, false, true);
+            inputs.get(i).setScriptSig(ScriptBuilder.createInputScript(sig, key));
+        }
+        return new TxBean(tx.serialize());
+    }
+
+    /**
+     * A single input transaction spending a bare multisig output worth {@link Coin#COIN}, signed by the first
+     * threshold keys.
+     */
+    public Tx signedMultisigTransaction(Script multisigScript, List<ECKeyLite> keys, int threshold) {
+        Tx tx = buildTransaction(1, 1);
+        Sha256Hash sigHash = SigHash.hashForForkIdSignature(tx, 0, multisigScript.getProgram(), Coin.COIN,
+                SigHash.Flags.ALL, false);
+        List<TransactionSignature> sigs = new ArrayList<>(threshold);
+        for (int i = 0; i < threshold; i++)
+            sigs.add(new TransactionSignature(keys.get(i).sign(sigHash), SigHash.Flags.ALL, false, true));
+        tx.getInputs().get(0).setScriptSig(ScriptBuilder.createMultiSigInputScript(sigs));
+        return new TxBean(tx.serialize());
+    }
+
+    /**
+     * Builds a block with a coinbase followed by txCount - 1 transactions.  The header isn't solved and the merkle
+     * root is not calculated, these blocks are for parsing and serialization only.
+     */
+    public FullBlock buildBlock(int txCount, int inputsPerTx, int outputsPerTx) {
+        FullBlockBean block = new FullBlockBean();
+        block.setVersion(1);
+        block.setPrevBlockHash(randomHash());
+        block.setMerkleRoot(Sha256Hash.ZERO_HASH);
+        block.setTime(Genesis.getHeaderFor(NET).getTime());
+        block.setDifficultyTarget(Utils.encodeCompactBits(NET.params().getMaxTarget()));
+        block.setNonce(random.nextInt() & 0xffffffffL);
+
+        List<Tx> txs = new ArrayList<>(txCount);
+        Tx coinbase = buildTransaction(1, 1);
+        TxOutPoint coinbaseOutPoint = coinbase.getInputs().get(0).getOutpoint();
+        coinbaseOutPoint.setHash(Sha256Hash.ZERO_HASH);
+        coinbaseOutPoint.setIndex(TxInput.NO_SEQUENCE);
+        coinbase.getInputs().get(0).setScriptBytes(randomBytes(16));
+        txs.add(coinbase);
+        for (int i = 1; i < txCount; i++)
+            txs.add(buildTransaction(inputsPerTx, outputsPerTx));
+        block.setTransactions(txs);
+        return block;
+    }
+
+    public byte[] serializedBlock(int txCount, int inputsPerTx, int outputsPerTx) {
+        return buildBlock(txCount, inputsPerTx, outputsPerTx).serialize();
+    }
+
+    /**
+     * A chain of solved headers starting at the genesis block of {@link #NET}, including genesis.
+     */
+    public List<LiteBlock> headerChain(int length) {
+        List<LiteBlock> chain = new ArrayList<>(length);
+        LiteBlock prev = Genesis.getHeaderFor(NET);
+        chain.add(prev);
+        for (int i = 1; i < length; i++) {
+            LiteBlock next = new LiteBlockBean();
+            next.setHeader(new HeaderBean(next));
+            next.setVersion(prev.getVersion());
+            next.setPrevBlockHash(prev.getHash());
+            next.setMerkleRoot(randomHash());
+            next.setTime(prev.getTime() + TimeUnit.MINUTES.toSeconds(10));
+            next.setDifficultyTarget(Utils.encodeCompactBits(NET.params().getMaxTarget()));
+            next.setNonce(random.nextInt() & 0xffffffffL);
+            next.solve(NET);
+            prev = ChainUtils.buildNextInChain(prev, next);
+            chain.add(prev);
+        }
+        return chain;
+    }
+
+}
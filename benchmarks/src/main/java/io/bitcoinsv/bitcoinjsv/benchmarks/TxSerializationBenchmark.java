@@ -0,0 +1,79 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.benchmarks;
+
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.FullBlock;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.Tx;
+import io.bitcoinsv.bitcoinjsv.bitcoin.bean.base.FullBlockBean;
+import io.bitcoinsv.bitcoinjsv.bitcoin.bean.base.TxBean;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and serialization of {@link TxBean} and {@link FullBlockBean}.  Serialization benchmarks use mutable
+ * objects, an immutable object that was parsed from bytes just returns its payload.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TxSerializationBenchmark {
+
+    @Param({"1", "10", "100"})
+    int inputs;
+
+    @Param({"2"})
+    int outputs;
+
+    @Param({"1000"})
+    int blockTxCount;
+
+    byte[] txBytes;
+    Tx mutableTx;
+    byte[] blockBytes;
+    FullBlock mutableBlock;
+
+    @Setup
+    public void setUp() {
+        SyntheticChain chain = new SyntheticChain(1);
+        mutableTx = chain.buildTransaction(inputs, outputs);
+        txBytes = mutableTx.serialize();
+        mutableBlock = chain.buildBlock(blockTxCount, inputs, outputs);
+        blockBytes = mutableBlock.serialize();
+    }
+
+    @Benchmark
+    public Tx parseTx() {
+        return new TxBean(txBytes);
+    }
+
+    @Benchmark
+    public byte[] serializeTx() {
+        return mutableTx.serialize();
+    }
+
+    @Benchmark
+    public Tx parseTxAndHash() {
+        Tx tx = new TxBean(txBytes);
+        tx.getHash();
+        return tx;
+    }
+
+    @Benchmark
+    public void parseBlock(Blackhole bh) {
+        FullBlock block = new FullBlockBean(blockBytes);
+        bh.consume(block.getTransactions().size());
+    }
+
+    @Benchmark
+    public byte[] serializeBlock() {
+        return mutableBlock.serialize();
+    }
+
+}
@@ -0,0 +1,244 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.chain_legacy;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.Tx;
+import io.bitcoinsv.bitcoinjsv.core.Coin;
+import io.bitcoinsv.bitcoinjsv.exception.VerificationException;
+import io.bitcoinsv.bitcoinjsv.msg.Translate;
+import io.bitcoinsv.bitcoinjsv.msg.protocol.Transaction;
+import io.bitcoinsv.bitcoinjsv.msg.protocol.TransactionOutput;
+import io.bitcoinsv.bitcoinjsv.script.Script;
+import io.bitcoinsv.bitcoinjsv.script.ScriptUtils;
+import io.bitcoinsv.bitcoinjsv.script.ScriptVerifyFlag;
+import io.bitcoinsv.bitcoinjsv.utils.ContextPropagatingThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Runs the script checks of the blocks connected by {@link FullPrunedBlockChain_legacy} on a pool of threads that
+ * lives as long as the chain, rather than a pool per block.
+ * <p>
+ * Work is handed out in tasks of roughly {@link #getInputsPerTask()} inputs.  Small transactions are grouped together
+ * into one task and a transaction with more inputs than that is split across several tasks, so neither a block of
+ * thousands of one input transactions nor a single huge consolidation transaction leaves threads idle.
+ * <p>
+ * Once a task finds a failure the tasks queued after it stop, but the ones queued before it carry on so the failure
+ * reported is always the first in block order, however the tasks were scheduled.
+ */
+public class ScriptVerificationScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerificationScheduler.class);
+
+    public static final int DEFAULT_INPUTS_PER_TASK = 32;
+
+    private final ExecutorService executor;
+    private final int inputsPerTask;
+
+    public ScriptVerificationScheduler() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_INPUTS_PER_TASK);
+    }
+
+    /**
+     * @param threads number of verification threads
+     * @param inputsPerTask number of inputs verified by each task
+     */
+    public ScriptVerificationScheduler(int threads, int inputsPerTask) {
+        this(newPool(threads), inputsPerTask);
+    }
+
+    ScriptVerificationScheduler(ExecutorService executor, int inputsPerTask) {
+        checkArgument(inputsPerTask > 0, "inputsPerTask must be positive");
+        this.executor = executor;
+        this.inputsPerTask = inputsPerTask;
+    }
+
+    private static ExecutorService newPool(int threads) {
+        checkArgument(threads > 0, "threads must be positive");
+        return Executors.newFixedThreadPool(threads, new ContextPropagatingThreadFactory("Script verification"));
+    }
+
+    public int getInputsPerTask() {
+        return inputsPerTask;
+    }
+
+    /**
+     * Starts collecting the script checks of one block.
+     */
+    public Batch newBatch() {
+        return new Batch();
+    }
+
+    /**
+     * Stops the verification threads, batches can't be run afterwards.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * The script checks of one block.  Checks start running as they are added and {@link #await()} waits for all of
+     * them.  Not thread safe, a batch is filled and awaited by the thread connecting the block.
+     */
+    public class Batch {
+
+        private final List<Future<VerificationException>> futures = new ArrayList<>();
+        //the index of the earliest task that has found a failure, tasks after it needn't run
+        private final AtomicInteger firstFailure = new AtomicInteger(Integer.MAX_VALUE);
+
+        private List<InputRange> pending = new ArrayList<>();
+        private int pendingInputs;
+
+        /**
+         * Queues the inputs of the transaction for verification.  The transaction must not be modified afterwards.
+         *
+         * @param prevOutScripts the scripts of the outputs spent by each input, in input order
+         */
+        public void add(Transaction tx, List<Script> prevOutScripts, Set<ScriptVerifyFlag> verifyFlags) {
+            int inputs = prevOutScripts.size();
+            Coin[] values = new Coin[inputs];
+            for (int index = 0; index < inputs; index++) {
+                TransactionOutput connected = tx.getInput(index).getConnectedOutput();
+                values[index] = connected != null ? connected.getValue() : Coin.ZERO;
+            }
+            TxJob job = new TxJob(tx, prevOutScripts.toArray(new Script[0]), values, verifyFlags);
+
+            if (inputs > inputsPerTask) {
+                for (int start = 0; start < inputs; start += inputsPerTask) {
+                    List<InputRange> ranges = new ArrayList<>(1);
+                    ranges.add(new InputRange(job, start, Math.min(start + inputsPerTask, inputs)));
+                    submit(ranges);
+                }
+                return;
+            }
+            pending.add(new InputRange(job, 0, inputs));
+            pendingInputs += inputs;
+            if (pendingInputs >= inputsPerTask)
+                submitPending();
+        }
+
+        /**
+         * Waits for every queued check.
+         *
+         * @throws VerificationException the failure of the first failing input, in the order they were added
+         */
+        public void await() throws VerificationException {
+            submitPending();
+            for (Future<VerificationException> future : futures) {
+                VerificationException e;
+                try {
+                    e = future.get();
+                } catch (InterruptedException thrownE) {
+                    throw new RuntimeException(thrownE); // Shouldn't happen
+                } catch (ExecutionException thrownE) {
+                    cancel();
+                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
+                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
+                }
+                if (e != null) {
+                    cancel();
+                    throw e;
+                }
+            }
+        }
+
+        /**
+         * Abandons the checks that haven't run yet, e.g. when the block has failed for another reason.
+         */
+        public void cancel() {
+            firstFailure.set(-1);
+            pending.clear();
+            pendingInputs = 0;
+            for (Future<VerificationException> future : futures)
+                future.cancel(false);
+        }
+
+        private void submitPending() {
+            if (pending.isEmpty())
+                return;
+            submit(pending);
+            pending = new ArrayList<>();
+            pendingInputs = 0;
+        }
+
+        private void submit(List<InputRange> ranges) {
+            futures.add(executor.submit(new Task(ranges, futures.size(), firstFailure)));
+        }
+    }
+
+    private static class TxJob {
+        final Transaction tx;
+        final Script[] prevOutScripts;
+        final Coin[] values;
+        final Set<ScriptVerifyFlag> verifyFlags;
+        //translated once and shared by every task working on the transaction
+        final Supplier<Tx> translated;
+
+        TxJob(Transaction tx, Script[] prevOutScripts, Coin[] values, Set<ScriptVerifyFlag> verifyFlags) {
+            this.tx = tx;
+            this.prevOutScripts = prevOutScripts;
+            this.values = values;
+            this.verifyFlags = verifyFlags;
+            this.translated = Suppliers.memoize(() -> Translate.toTx(tx));
+        }
+    }
+
+    private static class InputRange {
+        final TxJob job;
+        final int start;
+        final int end;
+
+        InputRange(TxJob job, int start, int end) {
+            this.job = job;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static class Task implements Callable<VerificationException> {
+        private final List<InputRange> ranges;
+        private final int index;
+        private final AtomicInteger firstFailure;
+
+        Task(List<InputRange> ranges, int index, AtomicInteger firstFailure) {
+            this.ranges = ranges;
+            this.index = index;
+            this.firstFailure = firstFailure;
+        }
+
+        @Override
+        public VerificationException call() {
+            for (InputRange range : ranges) {
+                Tx tx = range.job.translated.get();
+                for (int input = range.start; input < range.end; input++) {
+                    if (firstFailure.get() < index)
+                        return null;
+                    try {
+                        ScriptUtils.correctlySpends(tx.getInputs().get(input).getScriptSig(), tx, input,
+                                range.job.prevOutScripts[input], range.job.values[input], range.job.verifyFlags);
+                    } catch (VerificationException e) {
+                        firstFailure.accumulateAndGet(index, Math::min);
+                        return e;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,703 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.core;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableScheduledFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import io.bitcoinsv.bitcoinjsv.chain_legacy.AbstractBlockChain_legacy;
+import io.bitcoinsv.bitcoinjsv.chain_legacy.StoredBlock_legacy;
+import io.bitcoinsv.bitcoinjsv.core.listeners.PeerConnectedEventListener;
+import io.bitcoinsv.bitcoinjsv.core.listeners.PeerDisconnectedEventListener;
+import io.bitcoinsv.bitcoinjsv.core.listeners.PreMessageReceivedEventListener;
+import io.bitcoinsv.bitcoinjsv.exception.BlockStoreException;
+import io.bitcoinsv.bitcoinjsv.exception.PrunedException;
+import io.bitcoinsv.bitcoinjsv.exception.VerificationException;
+import io.bitcoinsv.bitcoinjsv.msg.Genesis_legacy;
+import io.bitcoinsv.bitcoinjsv.msg.Message;
+import io.bitcoinsv.bitcoinjsv.msg.p2p.GetHeadersMessage;
+import io.bitcoinsv.bitcoinjsv.msg.p2p.HeadersMessage;
+import io.bitcoinsv.bitcoinjsv.msg.protocol.Block;
+import io.bitcoinsv.bitcoinjsv.params.Net;
+import io.bitcoinsv.bitcoinjsv.store_legacy.BlockStore_legacy;
+import io.bitcoinsv.bitcoinjsv.utils.ContextPropagatingThreadFactory;
+import io.bitcoinsv.bitcoinjsv.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Downloads the block chain from every connected peer at once rather than from the single download peer.
+ * <p>
+ * The header chain is fetched first from one peer with getheaders.  Block bodies are then requested from all peers
+ * whose best height covers them, but only inside a window of {@link #getWindowSize()} blocks ahead of the next block
+ * the chain needs, and with at most {@link #getMaxInFlightPerPeer()} blocks outstanding per peer.  Blocks that arrive
+ * out of order are held until the blocks before them have arrived and are then added to the chain in order from a
+ * single thread.
+ * <p>
+ * A request that hasn't been answered within the stall timeout is handed to another peer and the slow peer isn't given
+ * new work for a while.  Requests of a peer that disconnects or replies notfound are re-assigned straight away.
+ * <p>
+ * A block the chain rejects is blamed on the peer that sent it: that peer is disconnected and only that block is
+ * requested again from another peer.  If the block is rejected a second time the headers chain itself is wrong, so the
+ * peers that supplied the headers are dropped as header peers and the download restarts from the chain head.
+ * <p>
+ * Created and driven by {@link PeerGroup#startParallelBlockChainDownload()}.
+ */
+public class ParallelBlockDownloader {
+
+    private static final Logger log = LoggerFactory.getLogger(ParallelBlockDownloader.class);
+
+    public static final int DEFAULT_WINDOW_SIZE = 1024;
+    public static final int DEFAULT_MAX_IN_FLIGHT_PER_PEER = 16;
+    public static final long DEFAULT_STALL_TIMEOUT_MILLIS = 20000;
+
+    private final PeerGroup peerGroup;
+    private final AbstractBlockChain_legacy chain;
+    private final Net net;
+    private final int windowSize;
+    private final int maxInFlightPerPeer;
+    private final long stallTimeoutMillis;
+
+    private final ReentrantLock lock = Threading.lock("paralleldownload");
+
+    //hashes of the headers chain after the chain head we started from, headers[i] is at height baseHeight + i + 1
+    @GuardedBy("lock") private final List<Sha256Hash> headers = new ArrayList<>();
+    @GuardedBy("lock") private int baseHeight;
+    //index in headers of the next block to hand to the chain
+    @GuardedBy("lock") private int nextToDeliver;
+    @GuardedBy("lock") private Sha256Hash lastHeaderHash;
+    @Nullable @GuardedBy("lock") private Peer headerPeer;
+    @GuardedBy("lock") private long headersRequestedAt;
+    @GuardedBy("lock") private boolean headersComplete;
+    //every peer that sent headers we're downloading, blamed if a block the headers lead to is rejected twice
+    @GuardedBy("lock") private final Set<Peer> headerSources = new HashSet<>();
+
+    @GuardedBy("lock") private final Map<Sha256Hash, Request> inFlight = new HashMap<>();
+    @GuardedBy("lock") private final Map<Peer, Integer> inFlightPerPeer = new IdentityHashMap<>();
+    @GuardedBy("lock") private final Map<Peer, Long> stalledUntil = new IdentityHashMap<>();
+    @GuardedBy("lock") private final Set<Peer> badHeaderPeers = new HashSet<>();
+    //blocks waiting for the blocks before them, with the request they answered so we know who sent them
+    @GuardedBy("lock") private final Map<Sha256Hash, Request> received = new HashMap<>();
+    //the last block the chain rejected, if another peer's copy is rejected too the headers are to blame
+    @Nullable @GuardedBy("lock") private Sha256Hash rejectedHash;
+    @GuardedBy("lock") private boolean running;
+
+    private final ExecutorService deliveryExecutor;
+    private final AtomicBoolean deliveryScheduled = new AtomicBoolean();
+    private final SettableFuture<Integer> future = SettableFuture.create();
+    @Nullable private volatile ListenableScheduledFuture<?> stallCheckTask;
+
+    private final PreMessageReceivedEventListener headersListener = new PreMessageReceivedEventListener() {
+        @Override
+        public Message onPreMessageReceived(Peer peer, Message m) {
+            if (m instanceof HeadersMessage && processHeaders(peer, (HeadersMessage) m))
+                return null;
+            return m;
+        }
+    };
+
+    private final PeerConnectedEventListener connectedListener = new PeerConnectedEventListener() {
+        @Override
+        public void onPeerConnected(Peer peer, int peerCount) {
+            peer.setDownloadData(false);
+            lock.lock();
+            try {
+                if (headerPeer == null && !headersComplete)
+                    requestHeaders();
+                schedule();
+            } finally {
+                lock.unlock();
+            }
+        }
+    };
+
+    private final PeerDisconnectedEventListener disconnectedListener = new PeerDisconnectedEventListener() {
+        @Override
+        public void onPeerDisconnected(Peer peer, int peerCount) {
+            peerGone(peer);
+        }
+    };
+
+    private static class Request {
+        final Peer peer;
+        final Sha256Hash hash;
+        final long sentAt;
+        ListenableFuture<Block> future;
+        @Nullable Block block;
+
+        Request(Peer peer, Sha256Hash hash, long sentAt) {
+            this.peer = peer;
+            this.hash = hash;
+            this.sentAt = sentAt;
+        }
+    }
+
+    public ParallelBlockDownloader(PeerGroup peerGroup, AbstractBlockChain_legacy chain) {
+        this(peerGroup, chain, DEFAULT_WINDOW_SIZE, DEFAULT_MAX_IN_FLIGHT_PER_PEER, DEFAULT_STALL_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param windowSize how many blocks past the next block the chain needs may be requested
+     * @param maxInFlightPerPeer how many blocks each peer may be asked for before it has delivered any of them
+     * @param stallTimeoutMillis how long a request may go unanswered before it is given to another peer
+     */
+    public ParallelBlockDownloader(PeerGroup peerGroup, AbstractBlockChain_legacy chain, int windowSize,
+                                   int maxInFlightPerPeer, long stallTimeoutMillis) {
+        checkArgument(windowSize > 0, "windowSize must be positive");
+        checkArgument(maxInFlightPerPeer > 0, "maxInFlightPerPeer must be positive");
+        checkArgument(stallTimeoutMillis > 0, "stallTimeoutMillis must be positive");
+        this.peerGroup = peerGroup;
+        this.chain = chain;
+        this.net = peerGroup.net;
+        this.windowSize = windowSize;
+        this.maxInFlightPerPeer = maxInFlightPerPeer;
+        this.stallTimeoutMillis = stallTimeoutMillis;
+        this.deliveryExecutor = Executors.newSingleThreadExecutor(new ContextPropagatingThreadFactory("Block delivery"));
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public int getMaxInFlightPerPeer() {
+        return maxInFlightPerPeer;
+    }
+
+    public long getStallTimeoutMillis() {
+        return stallTimeoutMillis;
+    }
+
+    /**
+     * @return completes with the chain height once every block announced by the header peer has been added to the
+     * chain, or fails if the chain rejects a block.
+     */
+    public ListenableFuture<Integer> getFuture() {
+        return future;
+    }
+
+    /**
+     * Starts downloading from the current chain head.
+     */
+    public void start() {
+        lock.lock();
+        try {
+            checkState(!running, "already started");
+            running = true;
+            resetLocked();
+        } finally {
+            lock.unlock();
+        }
+        peerGroup.addPreMessageReceivedEventListener(Threading.SAME_THREAD, headersListener);
+        peerGroup.addConnectedEventListener(Threading.SAME_THREAD, connectedListener);
+        peerGroup.addDisconnectedEventListener(Threading.SAME_THREAD, disconnectedListener);
+        for (Peer peer : peerGroup.getConnectedPeers())
+            peer.setDownloadData(false);
+        long period = Math.max(stallTimeoutMillis / 4, 1);
+        stallCheckTask = peerGroup.executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkStalls();
+                } catch (Throwable e) {
+                    log.error("Exception in stall check", e);  // The executor swallows exceptions :(
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+        lock.lock();
+        try {
+            requestHeaders();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Abandons the download, blocks already added to the chain stay there.
+     */
+    public void stop() {
+        lock.lock();
+        try {
+            if (!running)
+                return;
+            shutdownLocked();
+        } finally {
+            lock.unlock();
+        }
+        releaseListeners();
+    }
+
+    private void shutdownLocked() {
+        running = false;
+        cancelAllLocked();
+        received.clear();
+    }
+
+    private void cancelAllLocked() {
+        //cleared first so the failure callbacks of the cancelled futures find nothing to re-assign
+        List<Request> requests = new ArrayList<>(inFlight.values());
+        inFlight.clear();
+        inFlightPerPeer.clear();
+        for (Request request : requests)
+            request.future.cancel(false);
+    }
+
+    private void releaseListeners() {
+        ListenableScheduledFuture<?> task = stallCheckTask;
+        if (task != null)
+            task.cancel(false);
+        peerGroup.removePreMessageReceivedEventListener(headersListener);
+        peerGroup.removeConnectedEventListener(connectedListener);
+        peerGroup.removeDisconnectedEventListener(disconnectedListener);
+        deliveryExecutor.shutdown();
+    }
+
+    /**
+     * @return number of blocks requested from peers that haven't arrived yet
+     */
+    public int getBlocksInFlight() {
+        lock.lock();
+        try {
+            return inFlight.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //forgets everything about the headers chain and starts again from the chain head
+    private void resetLocked() {
+        cancelAllLocked();
+        received.clear();
+        headers.clear();
+        nextToDeliver = 0;
+        StoredBlock_legacy head = chain.getChainHead();
+        baseHeight = head.getHeight();
+        lastHeaderHash = head.getHeader().getHash();
+        headerPeer = null;
+        headersComplete = false;
+        headerSources.clear();
+        rejectedHash = null;
+    }
+
+    private void requestHeaders() {
+        checkState(lock.isHeldByCurrentThread());
+        if (!running)
+            return;
+        long knownHeight = baseHeight + headers.size();
+        Peer best = null;
+        for (Peer peer : peerGroup.getConnectedPeers()) {
+            if (badHeaderPeers.contains(peer) || peer.getBestHeight() <= knownHeight)
+                continue;
+            if (best == null || peer.getBestHeight() > best.getBestHeight())
+                best = peer;
+        }
+        headerPeer = best;
+        if (best == null) {
+            //nobody knows of more blocks, we're done once everything requested so far is in the chain
+            headersComplete = true;
+            maybeFinish();
+            return;
+        }
+        headersComplete = false;
+        headersRequestedAt = Utils.currentTimeMillis();
+        best.sendMessage(new GetHeadersMessage(net, buildLocator(), Sha256Hash.ZERO_HASH));
+    }
+
+    private List<Sha256Hash> buildLocator() {
+        //the tip of the headers we already have followed by the top 100 blocks of the chain, as Peer does
+        List<Sha256Hash> locator = new ArrayList<>(102);
+        if (!headers.isEmpty())
+            locator.add(lastHeaderHash);
+        BlockStore_legacy store = chain.getBlockStore();
+        StoredBlock_legacy cursor = chain.getChainHead();
+        for (int i = 100; cursor != null && i > 0; i--) {
+            locator.add(cursor.getHeader().getHash());
+            try {
+                cursor = cursor.getPrev(store);
+            } catch (BlockStoreException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (cursor != null)
+            locator.add(Genesis_legacy.getFor(net).getHash());
+        return locator;
+    }
+
+    /**
+     * @return true if the message was the reply to our getheaders and has been consumed
+     */
+    private boolean processHeaders(Peer peer, HeadersMessage m) {
+        lock.lock();
+        try {
+            if (!running || peer != headerPeer)
+                return false;
+            List<Block> blockHeaders = m.getBlockHeaders();
+            for (Block header : blockHeaders) {
+                Sha256Hash prev = header.getPrevBlockHash();
+                if (!prev.equals(lastHeaderHash)) {
+                    if (headers.isEmpty() && isInChainStore(prev)) {
+                        //we're on a fork, the peer's chain branches off below our head
+                        log.info("{}: headers fork from our chain at {}", peer, prev);
+                        lastHeaderHash = prev;
+                        baseHeight = heightOf(prev);
+                    } else {
+                        log.warn("{}: sent headers that don't connect, choosing another header peer", peer);
+                        badHeaderPeers.add(peer);
+                        requestHeaders();
+                        return true;
+                    }
+                }
+                try {
+                    header.verifyHeader(net);
+                } catch (VerificationException e) {
+                    log.warn("{}: sent an invalid header, choosing another header peer", peer, e);
+                    badHeaderPeers.add(peer);
+                    requestHeaders();
+                    return true;
+                }
+                lastHeaderHash = header.getHash();
+                headers.add(lastHeaderHash);
+            }
+            if (!blockHeaders.isEmpty())
+                headerSources.add(peer);
+            if (blockHeaders.size() >= HeadersMessage.MAX_HEADERS) {
+                headersRequestedAt = Utils.currentTimeMillis();
+                peer.sendMessage(new GetHeadersMessage(net, buildLocator(), Sha256Hash.ZERO_HASH));
+            } else {
+                headerPeer = null;
+                headersComplete = true;
+                log.info("Headers downloaded up to height {}", baseHeight + headers.size());
+            }
+            schedule();
+            maybeFinish();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isInChainStore(Sha256Hash hash) {
+        try {
+            return chain.getBlockStore().get(hash) != null;
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private int heightOf(Sha256Hash hash) {
+        try {
+            return chain.getBlockStore().get(hash).getHeight();
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //fills free peer slots with the unrequested blocks of the window, lowest height first
+    private void schedule() {
+        checkState(lock.isHeldByCurrentThread());
+        if (!running)
+            return;
+        long now = Utils.currentTimeMillis();
+        List<Peer> peers = new ArrayList<>();
+        for (Peer peer : peerGroup.getConnectedPeers()) {
+            Long until = stalledUntil.get(peer);
+            if (until != null && until > now)
+                continue;
+            if (inFlightCount(peer) < maxInFlightPerPeer)
+                peers.add(peer);
+        }
+        if (peers.isEmpty())
+            return;
+
+        Map<Peer, List<Sha256Hash>> batches = new IdentityHashMap<>();
+        int end = Math.min(headers.size(), nextToDeliver + windowSize);
+        for (int i = nextToDeliver; i < end && !peers.isEmpty(); i++) {
+            Sha256Hash hash = headers.get(i);
+            if (inFlight.containsKey(hash) || received.containsKey(hash))
+                continue;
+            int height = baseHeight + i + 1;
+            Peer chosen = null;
+            for (Peer peer : peers) {
+                if (peer.getBestHeight() < height)
+                    continue;
+                if (chosen == null || inFlightCount(peer) < inFlightCount(chosen))
+                    chosen = peer;
+            }
+            if (chosen == null)
+                continue;
+            inFlight.put(hash, new Request(chosen, hash, now));
+            int count = inFlightCount(chosen) + 1;
+            inFlightPerPeer.put(chosen, count);
+            if (count >= maxInFlightPerPeer)
+                peers.remove(chosen);
+            List<Sha256Hash> batch = batches.get(chosen);
+            if (batch == null) {
+                batch = new ArrayList<>();
+                batches.put(chosen, batch);
+            }
+            batch.add(hash);
+        }
+
+        for (Map.Entry<Peer, List<Sha256Hash>> entry : batches.entrySet()) {
+            final Peer peer = entry.getKey();
+            List<Sha256Hash> hashes = entry.getValue();
+            List<ListenableFuture<Block>> futures = peer.getBlocks(hashes);
+            for (int i = 0; i < hashes.size(); i++) {
+                final Request request = inFlight.get(hashes.get(i));
+                request.future = futures.get(i);
+                Futures.addCallback(request.future, new FutureCallback<Block>() {
+                    @Override
+                    public void onSuccess(Block block) {
+                        blockReceived(request, block);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        requestFailed(request, t);
+                    }
+                }, MoreExecutors.directExecutor());
+            }
+        }
+    }
+
+    private int inFlightCount(Peer peer) {
+        Integer count = inFlightPerPeer.get(peer);
+        return count == null ? 0 : count;
+    }
+
+    //removes the request if it's still the live one for its hash
+    private boolean removeRequest(Request request) {
+        if (inFlight.get(request.hash) != request)
+            return false;
+        inFlight.remove(request.hash);
+        int count = inFlightCount(request.peer) - 1;
+        if (count > 0)
+            inFlightPerPeer.put(request.peer, count);
+        else
+            inFlightPerPeer.remove(request.peer);
+        return true;
+    }
+
+    private void blockReceived(Request request, Block block) {
+        lock.lock();
+        try {
+            if (!running)
+                return;
+            removeRequest(request);
+            stalledUntil.remove(request.peer);
+            //a re-assigned request may be answered by both peers, keep whichever arrives first
+            if (!received.containsKey(request.hash) && isInWindow(request.hash)) {
+                request.block = block;
+                received.put(request.hash, request);
+            }
+            schedule();
+        } finally {
+            lock.unlock();
+        }
+        if (deliveryScheduled.compareAndSet(false, true))
+            deliveryExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    deliver();
+                }
+            });
+    }
+
+    private boolean isInWindow(Sha256Hash hash) {
+        int end = Math.min(headers.size(), nextToDeliver + windowSize);
+        for (int i = nextToDeliver; i < end; i++) {
+            if (headers.get(i).equals(hash))
+                return true;
+        }
+        return false;
+    }
+
+    private void requestFailed(Request request, Throwable t) {
+        lock.lock();
+        try {
+            if (!running || !removeRequest(request))
+                return;
+            if (t instanceof CancellationException)
+                log.info("{}: does not have block {}, re-assigning", request.peer, request.hash);
+            else
+                log.warn("{}: request for block {} failed, re-assigning", request.peer, request.hash, t);
+            //don't ask the same peer again straight away
+            stalledUntil.put(request.peer, Utils.currentTimeMillis() + stallTimeoutMillis);
+            schedule();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void peerGone(Peer peer) {
+        lock.lock();
+        try {
+            stalledUntil.remove(peer);
+            badHeaderPeers.remove(peer);
+            headerSources.remove(peer);
+            if (!running)
+                return;
+            List<Request> orphaned = new ArrayList<>();
+            for (Request request : inFlight.values()) {
+                if (request.peer == peer)
+                    orphaned.add(request);
+            }
+            for (Request request : orphaned) {
+                removeRequest(request);
+                request.future.cancel(false);
+            }
+            if (!orphaned.isEmpty())
+                log.info("{}: disconnected with {} blocks in flight, re-assigning", peer, orphaned.size());
+            if (peer == headerPeer)
+                requestHeaders();
+            schedule();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkStalls() {
+        lock.lock();
+        try {
+            if (!running)
+                return;
+            long now = Utils.currentTimeMillis();
+            if (headerPeer != null && now - headersRequestedAt > stallTimeoutMillis) {
+                log.info("{}: stalled sending headers, choosing another header peer", headerPeer);
+                badHeaderPeers.add(headerPeer);
+                requestHeaders();
+            }
+            List<Request> stalled = new ArrayList<>();
+            for (Request request : inFlight.values()) {
+                if (now - request.sentAt > stallTimeoutMillis)
+                    stalled.add(request);
+            }
+            for (Request request : stalled) {
+                log.info("{}: stalled on block {}, re-assigning", request.peer, request.hash);
+                removeRequest(request);
+                request.future.cancel(false);
+                stalledUntil.put(request.peer, now + stallTimeoutMillis);
+            }
+            schedule();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //runs on the delivery thread only
+    private void deliver() {
+        deliveryScheduled.set(false);
+        while (true) {
+            Request request;
+            lock.lock();
+            try {
+                if (!running || nextToDeliver >= headers.size())
+                    return;
+                request = received.remove(headers.get(nextToDeliver));
+                if (request == null)
+                    return;
+                nextToDeliver++;
+                //let the window move on before the chain spends time on the block
+                schedule();
+            } finally {
+                lock.unlock();
+            }
+            Block block = request.block;
+            try {
+                if (!chain.add(block)) {
+                    rejected(request, "it does not connect to the chain");
+                    return;
+                }
+            } catch (VerificationException e) {
+                log.warn("Block {} failed verification", block.getHashAsString(), e);
+                rejected(request, "it failed verification");
+                return;
+            } catch (PrunedException e) {
+                stop();
+                future.setException(e);
+                return;
+            }
+            lock.lock();
+            try {
+                if (request.hash.equals(rejectedHash))
+                    rejectedHash = null;
+                maybeFinish();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    //called from the delivery thread with the block just taken off the front of the window
+    private void rejected(Request request, String reason) {
+        lock.lock();
+        try {
+            if (!running)
+                return;
+            if (request.hash.equals(rejectedHash)) {
+                restart("block " + request.hash + " was rejected again, " + reason);
+                return;
+            }
+            log.warn("{}: sent block {} that the chain rejected as {}, disconnecting and asking another peer",
+                    request.peer, request.hash, reason);
+            rejectedHash = request.hash;
+            //the block goes back to the front of the window and is requested again from whoever is left
+            nextToDeliver--;
+            stalledUntil.put(request.peer, Utils.currentTimeMillis() + stallTimeoutMillis);
+            schedule();
+        } finally {
+            lock.unlock();
+        }
+        //the peer's requests are re-assigned by the disconnect listener
+        request.peer.close();
+    }
+
+    private void restart(String reason) {
+        checkState(lock.isHeldByCurrentThread());
+        log.warn("Restarting parallel download from the chain head: {}", reason);
+        //the header peers fed us a chain the block chain won't take
+        badHeaderPeers.addAll(headerSources);
+        resetLocked();
+        requestHeaders();
+    }
+
+    private void maybeFinish() {
+        checkState(lock.isHeldByCurrentThread());
+        if (!running || !headersComplete || nextToDeliver < headers.size())
+            return;
+        final int height = chain.getBestChainHeight();
+        log.info("Parallel block download complete at height {}", height);
+        shutdownLocked();
+        //removing listeners takes the PeerGroup lock, so it's done off our lock
+        peerGroup.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                releaseListeners();
+                future.set(height);
+            }
+        });
+    }
+}
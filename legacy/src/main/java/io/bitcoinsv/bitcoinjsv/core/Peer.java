@@ -1330,6 +1330,26 @@ public class Peer extends PeerSocketHandler {
         return sendSingleGetData(getdata);
     }
 
+    /**
+     * Asks the connected peer for several blocks in a single getdata. The returned futures are in the same order as
+     * the hashes, a future is cancelled if the peer replies that it doesn't have the block.
+     */
+    @SuppressWarnings("unchecked")
+    // See getBlock() for why the unchecked conversion is fine.
+    public List<ListenableFuture<Block>> getBlocks(List<Sha256Hash> blockHashes) {
+        // This does not need to be locked.
+        GetDataMessage getdata = new GetDataMessage(net);
+        List<ListenableFuture<Block>> futures = new ArrayList<ListenableFuture<Block>>(blockHashes.size());
+        for (Sha256Hash hash : blockHashes) {
+            getdata.addBlock(hash);
+            GetDataRequest req = new GetDataRequest(hash, SettableFuture.create());
+            getDataFutures.add(req);
+            futures.add(req.future);
+        }
+        sendMessage(getdata);
+        return futures;
+    }
+
     /**
      * Asks the connected peer for the given transaction from its memory pool. Transactions in the chain cannot be
      * retrieved this way because peers don't have a transaction ID to transaction-pos-on-disk index, and besides,
@@ -136,6 +136,8 @@ public class PeerGroup implements TransactionBroadcaster {
     @GuardedBy("lock") private Peer downloadPeer;
     // Callback for events related to chain download.
     @Nullable @GuardedBy("lock") private PeerDataEventListener downloadListener;
+    // Downloads from all peers at once while set, the download peer only follows the chain once it's done.
+    @Nullable @GuardedBy("lock") private ParallelBlockDownloader parallelDownloader;
     private final CopyOnWriteArrayList<ListenerRegistration<BlocksDownloadedEventListener>> peersBlocksDownloadedEventListeners
         = new CopyOnWriteArrayList<ListenerRegistration<BlocksDownloadedEventListener>>();
     private final CopyOnWriteArrayList<ListenerRegistration<ChainDownloadStartedEventListener>> peersChainDownloadStartedEventListeners
@@ -1108,6 +1110,16 @@ public class PeerGroup implements TransactionBroadcaster {
     public ListenableFuture stopAsync() {
         checkState(vRunning);
         vRunning = false;
+        ParallelBlockDownloader downloader;
+        lock.lock();
+        try {
+            downloader = parallelDownloader;
+            parallelDownloader = null;
+        } finally {
+            lock.unlock();
+        }
+        if (downloader != null)
+            downloader.stop();
         ListenableFuture future = executor.submit(new Runnable() {
             @Override
             public void run() {
@@ -1529,6 +1541,57 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    /**
+     * <p>Downloads the blocks between the chain head and the best height of the connected peers from all of them at
+     * once using a {@link ParallelBlockDownloader}, rather than from the single download peer.</p>
+     *
+     * <p>Once the download completes (or fails) the download peer takes over as usual to follow new blocks.</p>
+     *
+     * @return a future that completes with the chain height reached
+     */
+    public ListenableFuture<Integer> startParallelBlockChainDownload() {
+        checkState(chain != null, "No block chain to download into");
+        final ParallelBlockDownloader downloader;
+        lock.lock();
+        try {
+            checkState(parallelDownloader == null, "Parallel block chain download already running");
+            downloader = new ParallelBlockDownloader(this, chain);
+            parallelDownloader = downloader;
+        } finally {
+            lock.unlock();
+        }
+        downloader.start();
+        downloader.getFuture().addListener(new Runnable() {
+            @Override
+            public void run() {
+                lock.lock();
+                try {
+                    if (parallelDownloader != downloader)
+                        return;
+                    parallelDownloader = null;
+                    if (downloadPeer != null && vRunning)
+                        startBlockChainDownloadFromPeer(downloadPeer);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }, executor);
+        return downloader.getFuture();
+    }
+
+    /**
+     * Blocking version of {@link #startParallelBlockChainDownload()}.
+     *
+     * @return the chain height reached
+     */
+    public int downloadBlockChainInParallel() {
+        try {
+            return startParallelBlockChainDownload().get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     protected void handleNewPeer(final Peer peer) {
         int newSize = -1;
         lock.lock();
@@ -1552,7 +1615,7 @@ public class PeerGroup implements TransactionBroadcaster {
             if (downloadPeer == null) {
                 // Kick off chain download if we aren't already doing it.
                 setDownloadPeer(selectDownloadPeer(peers));
-                boolean shouldDownloadChain = downloadListener != null && chain != null;
+                boolean shouldDownloadChain = downloadListener != null && chain != null && parallelDownloader == null;
                 if (shouldDownloadChain) {
                     startBlockChainDownloadFromPeer(downloadPeer);
                 }
@@ -1639,7 +1702,7 @@ public class PeerGroup implements TransactionBroadcaster {
                 if (downloadListener != null) {
                     addDataEventListenerToPeer(Threading.SAME_THREAD, peer, downloadListener);
                 }
-                downloadPeer.setDownloadData(true);
+                downloadPeer.setDownloadData(parallelDownloader == null);
                 if (chain != null)
                     downloadPeer.setDownloadParameters(fastCatchupTimeSecs, bloomFilterMerger.getLastFilter() != null);
             }
@@ -1708,7 +1771,7 @@ public class PeerGroup implements TransactionBroadcaster {
                 final Peer newDownloadPeer = selectDownloadPeer(peers);
                 if (newDownloadPeer != null) {
                     setDownloadPeer(newDownloadPeer);
-                    if (downloadListener != null) {
+                    if (downloadListener != null && parallelDownloader == null) {
                         startBlockChainDownloadFromPeer(newDownloadPeer);
                     }
                 }
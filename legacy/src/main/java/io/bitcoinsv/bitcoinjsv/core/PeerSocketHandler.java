@@ -32,6 +32,7 @@ import io.bitcoinsv.bitcoinjsv.net.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
@@ -40,6 +41,7 @@ import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.NotYetConnectedException;
+import java.security.MessageDigest;
 import java.util.concurrent.locks.Lock;
 
 import static com.google.common.base.Preconditions.*;
@@ -62,9 +64,15 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
     // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
+    // The buffer becomes the message's payload, and the checksum is hashed as the bytes arrive, so the payload isn't
+    // copied or hashed again once it's complete. Unless the serializer keeps payloads for lazy parsing the buffer is
+    // taken from the shared payload pool, as the message is done with it by the time it's deserialized, so a large
+    // block doesn't cost a new array of its size every time.
     private byte[] largeReadBuffer;
+    @Nullable private PooledBuffer largeReadPooled;
     private int largeReadBufferPos;
     private BitcoinSerializer.BitcoinPacketHeader header;
+    private final MessageDigest largeReadDigest = Sha256Hash.newDigest();
 
     private Lock lock = Threading.lock("PeerSocketHandler");
 
@@ -158,15 +166,20 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     // This can only happen in the first iteration
                     checkState(firstMessage);
                     // Read new bytes into the largeReadBuffer
-                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
-                    buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
-                    largeReadBufferPos += bytesToGet;
+                    int bytesToGet = Math.min(buff.remaining(), header.size - largeReadBufferPos);
+                    readIntoLargeBuffer(buff, bytesToGet);
                     // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
+                    if (largeReadBufferPos == header.size) {
                         // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
-                        largeReadBuffer = null;
+                        byte[] hash = Sha256Hash.hash(largeReadDigest.digest());
+                        Message message;
+                        try {
+                            message = serializer.deserializePayload(header, largeReadBuffer, hash);
+                        } finally {
+                            releaseLargeBuffer();
+                        }
                         header = null;
+                        processMessage(message);
                         firstMessage = false;
                     } else // ...or just returning if we don't have enough bytes yet
                         return buff.position();
@@ -186,9 +199,10 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                             header = serializer.deserializeHeader(buff);
                             // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
                             // left in buff
-                            largeReadBuffer = new byte[header.size];
-                            largeReadBufferPos = buff.remaining();
-                            buff.get(largeReadBuffer, 0, largeReadBufferPos);
+                            acquireLargeBuffer(header.size);
+                            largeReadBufferPos = 0;
+                            largeReadDigest.reset();
+                            readIntoLargeBuffer(buff, buff.remaining());
                         } catch (BufferUnderflowException e1) {
                             // If we went through a whole buffer's worth of bytes without getting a header, give up
                             // In cases where the buff is just really small, we could create a second largeReadBuffer
@@ -208,11 +222,37 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                 firstMessage = false;
             }
         } catch (Exception e) {
+            releaseLargeBuffer();
             exceptionCaught(e);
             return -1; // Returning -1 also throws an IllegalStateException upstream and kills the connection
         }
     }
 
+    private void acquireLargeBuffer(int size) {
+        if (serializer.isParseLazyMode() || serializer.isParseRetainMode()) {
+            // the message keeps its payload array
+            largeReadBuffer = new byte[size];
+            return;
+        }
+        largeReadPooled = BufferPool.getPayloadPool().acquireAtLeast(size);
+        largeReadBuffer = largeReadPooled.buffer().array();
+    }
+
+    private void releaseLargeBuffer() {
+        largeReadBuffer = null;
+        if (largeReadPooled != null) {
+            largeReadPooled.release();
+            largeReadPooled = null;
+        }
+    }
+
+    // copies the next bytes of a large message out of the network buffer and adds them to its checksum
+    private void readIntoLargeBuffer(ByteBuffer buff, int length) {
+        buff.get(largeReadBuffer, largeReadBufferPos, length);
+        largeReadDigest.update(largeReadBuffer, largeReadBufferPos, length);
+        largeReadBufferPos += length;
+    }
+
     /**
      * Sets the {@link MessageWriteTarget} used to write messages to the peer. This should almost never be called, it is
      * called automatically by {@link NioClient} or
@@ -35,6 +35,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -201,10 +202,17 @@ public class BitcoinSerializer extends MessageSerializer {
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
         byte[] payloadBytes = new byte[header.size];
         in.get(payloadBytes, 0, header.size);
+        return deserializePayload(header, payloadBytes, Sha256Hash.hashTwice(payloadBytes));
+    }
 
+    /**
+     * Deserialize a payload whose hash has already been computed. Blocks and transactions are parsed straight from the
+     * array, which may be longer than the payload. Other messages are small enough that they are given a copy of
+     * their exact size when it is.
+     */
+    @Override
+    public Message deserializePayload(BitcoinPacketHeader header, byte[] payloadBytes, byte[] hash) throws ProtocolException {
         // Verify the checksum.
-        byte[] hash;
-        hash = Sha256Hash.hashTwice(payloadBytes);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -212,16 +220,28 @@ public class BitcoinSerializer extends MessageSerializer {
                     " vs " + Utils.HEX.encode(header.checksum));
         }
 
+        boolean oversized = payloadBytes.length != header.size;
+        if (oversized && !header.command.equals("block") && !header.command.equals("tx")) {
+            payloadBytes = Arrays.copyOf(payloadBytes, header.size);
+            oversized = false;
+        }
+
         if (log.isDebugEnabled()) {
             log.debug("Received {} byte '{}' message: {}", header.size, header.command,
-                    Utils.HEX.encode(payloadBytes));
+                    Utils.HEX.encode(payloadBytes, 0, header.size));
         }
 
+        Message message;
         try {
-            return makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
+            message = makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
         } catch (Exception e) {
-            throw new ProtocolException("Error deserializing message " + Utils.HEX.encode(payloadBytes) + "\n", e);
+            throw new ProtocolException("Error deserializing message " + Utils.HEX.encode(payloadBytes, 0, header.size) + "\n", e);
         }
+        // with an exact array reading past the payload fails, with a longer one it has to be caught here
+        if (oversized && message.getMessageSize() > header.size)
+            throw new ProtocolException("'" + header.command + "' message of " + header.size + " bytes parsed as "
+                    + message.getMessageSize());
+        return message;
     }
 
     private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] hash, byte[] checksum) throws ProtocolException {
@@ -52,6 +52,20 @@ public abstract class MessageSerializer {
      */
     public abstract Message deserializePayload(BitcoinSerializer.BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException, UnsupportedOperationException;
 
+    /**
+     * Deserialize a payload that has already been read in full, e.g. by a connection that hashed it as the bytes
+     * arrived. The payload is the first {@code header.size} bytes of the array, which may be longer. Unless
+     * {@link #isParseLazyMode()} or {@link #isParseRetainMode()} the caller may reuse the array once this returns.
+     * <p>
+     * This implementation hands the payload to {@link #deserializePayload(BitcoinSerializer.BitcoinPacketHeader,
+     * ByteBuffer)}, which copies and hashes it again. Serializers that can take the array as it is override it.
+     *
+     * @param hash the double SHA-256 of the payload, checked against the header checksum
+     */
+    public Message deserializePayload(BitcoinSerializer.BitcoinPacketHeader header, byte[] payloadBytes, byte[] hash) throws ProtocolException, UnsupportedOperationException {
+        return deserializePayload(header, ByteBuffer.wrap(payloadBytes, 0, header.size));
+    }
+
     /**
      * Whether the serializeMode will produce lazy parse mode Messages
      */
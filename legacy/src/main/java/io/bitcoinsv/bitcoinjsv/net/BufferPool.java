@@ -0,0 +1,237 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A pool of equally sized network buffers.
+ * <p>
+ * Buffers are carved out of larger slabs so a burst of new connections costs one allocation per slab rather than one
+ * per connection, and released buffers are reused instead of leaving their (direct) memory to be reclaimed whenever
+ * the garbage collector gets round to it.  At most {@link #getMaxPooled()} free buffers are kept, any beyond that are
+ * dropped and their slab is freed once none of its buffers are referenced.
+ * <p>
+ * Buffers of a power of two multiple of {@link #getChunkSize()} are pooled too, each allocated on its own, and
+ * {@link #acquireAtLeast(int)} rounds a request up to one of those sizes.  At most {@code maxPooled} chunks' worth of
+ * these larger buffers is kept free.  Requests for any other size are served with a plain unpooled buffer.
+ */
+public class BufferPool {
+
+    public static final int DEFAULT_CHUNK_SIZE = 65536;
+    public static final int DEFAULT_CHUNKS_PER_SLAB = 16;
+    public static final int DEFAULT_MAX_POOLED = 1024;
+
+    private static final BufferPool DEFAULT = new BufferPool(DEFAULT_CHUNK_SIZE, DEFAULT_CHUNKS_PER_SLAB,
+            DEFAULT_MAX_POOLED, true);
+
+    public static final int PAYLOAD_CHUNK_SIZE = 1024 * 1024;
+    public static final int PAYLOAD_MAX_POOLED = 512;
+
+    private static final BufferPool PAYLOADS = new BufferPool(PAYLOAD_CHUNK_SIZE, 1, PAYLOAD_MAX_POOLED, false);
+
+    private final int chunkSize;
+    private final int chunksPerSlab;
+    private final int maxPooled;
+    private final boolean direct;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger freeCount = new AtomicInteger();
+    //larger buffers by size class, free[k] holds buffers of chunkSize << k, free[0] is unused
+    private final ConcurrentLinkedQueue<ByteBuffer>[] freeLarge;
+    private final AtomicLong freeLargeBytes = new AtomicLong();
+    private final AtomicLong slabsAllocated = new AtomicLong();
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    /**
+     * @param chunkSize size of each buffer
+     * @param chunksPerSlab number of buffers carved out of each allocation
+     * @param maxPooled maximum number of free buffers kept for reuse
+     * @param direct whether to allocate direct rather than heap buffers
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(int chunkSize, int chunksPerSlab, int maxPooled, boolean direct) {
+        checkArgument(chunkSize > 0, "chunkSize must be positive");
+        checkArgument(chunksPerSlab > 0, "chunksPerSlab must be positive");
+        checkArgument((long) chunkSize * chunksPerSlab <= Integer.MAX_VALUE, "slab too large");
+        checkArgument(maxPooled >= 0, "maxPooled must not be negative");
+        this.chunkSize = chunkSize;
+        this.chunksPerSlab = chunksPerSlab;
+        this.maxPooled = maxPooled;
+        this.direct = direct;
+        int classes = 1;
+        while (((long) chunkSize << classes) <= Integer.MAX_VALUE)
+            classes++;
+        this.freeLarge = new ConcurrentLinkedQueue[classes];
+        for (int k = 1; k < classes; k++)
+            freeLarge[k] = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * @return the pool shared by the network connections, of direct 64KB buffers.
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return the pool large message payloads are read into, of heap buffers in 1MB size classes.
+     */
+    public static BufferPool getPayloadPool() {
+        return PAYLOADS;
+    }
+
+    /**
+     * Takes a cleared buffer of exactly {@code size} bytes, with a reference count of one.
+     */
+    public PooledBuffer acquire(int size) {
+        checkArgument(size > 0, "size must be positive");
+        acquired.incrementAndGet();
+        if (size != chunkSize) {
+            int sizeClass = sizeClass(size);
+            if (sizeClass < 0)
+                return new PooledBuffer(allocate(size), null);
+            return acquireLarge(sizeClass);
+        }
+        ByteBuffer buffer = free.poll();
+        if (buffer != null) {
+            freeCount.decrementAndGet();
+            reused.incrementAndGet();
+        } else {
+            buffer = allocateSlab();
+        }
+        buffer.clear();
+        return new PooledBuffer(buffer, this);
+    }
+
+    /**
+     * Takes a buffer of at least {@code size} bytes, rounded up to the next pooled size, with its limit set to
+     * {@code size} and a reference count of one.  Sizes too large to round up are served exactly and unpooled.
+     */
+    public PooledBuffer acquireAtLeast(int size) {
+        checkArgument(size > 0, "size must be positive");
+        int rounded = size <= chunkSize ? chunkSize : roundUp(size);
+        PooledBuffer buffer = acquire(rounded < 0 ? size : rounded);
+        buffer.buffer().limit(size);
+        return buffer;
+    }
+
+    //the smallest chunkSize << k holding size, or -1 if that would overflow
+    private int roundUp(int size) {
+        for (int k = 1; k < freeLarge.length; k++) {
+            if (chunkSize << k >= size)
+                return chunkSize << k;
+        }
+        return -1;
+    }
+
+    //k for a size of chunkSize << k, k > 0, or -1 for any other size
+    private int sizeClass(int size) {
+        for (int k = 1; k < freeLarge.length; k++) {
+            if (chunkSize << k == size)
+                return k;
+        }
+        return -1;
+    }
+
+    private PooledBuffer acquireLarge(int sizeClass) {
+        ByteBuffer buffer = freeLarge[sizeClass].poll();
+        if (buffer != null) {
+            freeLargeBytes.addAndGet(-buffer.capacity());
+            reused.incrementAndGet();
+        } else {
+            buffer = allocate(chunkSize << sizeClass);
+        }
+        buffer.clear();
+        return new PooledBuffer(buffer, this);
+    }
+
+    //returns the first chunk of a new slab and puts the others on the free list
+    private ByteBuffer allocateSlab() {
+        ByteBuffer slab = allocate(chunkSize * chunksPerSlab);
+        slabsAllocated.incrementAndGet();
+        ByteBuffer first = null;
+        for (int i = 0; i < chunksPerSlab; i++) {
+            slab.limit((i + 1) * chunkSize);
+            slab.position(i * chunkSize);
+            ByteBuffer chunk = slab.slice();
+            if (first == null)
+                first = chunk;
+            else
+                recycle(chunk);
+        }
+        return first;
+    }
+
+    private ByteBuffer allocate(int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    void recycle(ByteBuffer buffer) {
+        if (buffer.capacity() != chunkSize) {
+            recycleLarge(buffer);
+            return;
+        }
+        if (freeCount.incrementAndGet() > maxPooled) {
+            freeCount.decrementAndGet();
+            return;
+        }
+        free.offer(buffer);
+    }
+
+    private void recycleLarge(ByteBuffer buffer) {
+        int sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass < 0)
+            return;
+        if (freeLargeBytes.addAndGet(buffer.capacity()) > (long) maxPooled * chunkSize) {
+            freeLargeBytes.addAndGet(-buffer.capacity());
+            return;
+        }
+        freeLarge[sizeClass].offer(buffer);
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getMaxPooled() {
+        return maxPooled;
+    }
+
+    /**
+     * @return number of free chunk sized buffers waiting to be reused.
+     */
+    public int getPooledCount() {
+        return freeCount.get();
+    }
+
+    /**
+     * @return total size of the free buffers larger than a chunk waiting to be reused.
+     */
+    public long getPooledLargeBytes() {
+        return freeLargeBytes.get();
+    }
+
+    public long getSlabsAllocated() {
+        return slabsAllocated.get();
+    }
+
+    /**
+     * @return number of {@link #acquire(int)} calls served from the free list.
+     */
+    public long getReusedCount() {
+        return reused.get();
+    }
+
+    public long getAcquiredCount() {
+        return acquired.get();
+    }
+}
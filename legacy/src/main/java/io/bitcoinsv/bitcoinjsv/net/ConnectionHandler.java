@@ -18,6 +18,7 @@ package io.bitcoinsv.bitcoinjsv.net;
 
 import io.bitcoinsv.bitcoinjsv.msg.Message;
 import io.bitcoinsv.bitcoinjsv.utils.Threading;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
 import org.slf4j.LoggerFactory;
 
@@ -29,15 +30,17 @@ import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 // TODO: The locking in all this class is horrible and not really necessary. We should just run all network stuff on one thread.
+// Reads and writes now only happen on the connection's selector thread and writeBytes() doesn't lock, the lock is left
+// guarding the close flag.
 
 /**
  * A simple NIO MessageWriteTarget which handles all the business logic of a connection (reading+writing bytes).
@@ -52,18 +55,25 @@ public class ConnectionHandler implements MessageWriteTarget {
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
     private static final long OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24L; // 24 byte message header
+    // Most buffers handed to a single gathering write
+    private static final int MAX_GATHER_BUFFERS = 64;
 
-    // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
+    // We lock when touching local flags, but NEVER when calling any methods which leave this
     // class into non-Java classes.
     private final ReentrantLock lock = Threading.lock("nioConnectionHandler");
-    @GuardedBy("lock") private final ByteBuffer readBuff;
+    // Taken from the shared BufferPool and handed back when the connection closes
+    @GuardedBy("lock") private final PooledBuffer readBuff;
     @GuardedBy("lock") private final SocketChannel channel;
     @GuardedBy("lock") private final SelectionKey key;
     @GuardedBy("lock") StreamConnection connection;
     @GuardedBy("lock") private boolean closeCalled = false;
 
-    @GuardedBy("lock") private long bytesToWriteRemaining = 0;
-    @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<ByteBuffer>();
+    // Most bytes that may be queued for writing before the connection is dropped, lowered by tests
+    @VisibleForTesting long outboundBufferByteCount = OUTBOUND_BUFFER_BYTE_COUNT;
+    // Filled by any thread, drained only by the selector thread
+    private final AtomicLong bytesToWriteRemaining = new AtomicLong();
+    private final ConcurrentLinkedQueue<ByteBuffer> bytesToWrite = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER_BUFFERS];
 
     private Set<ConnectionHandler> connectedHandlers;
 
@@ -81,7 +91,7 @@ public class ConnectionHandler implements MessageWriteTarget {
             return;
         }
         this.connection = connection;
-        readBuff = ByteBuffer.allocateDirect(Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        readBuff = BufferPool.getDefault().acquire(Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
         connection.setWriteTarget(this); // May callback into us (eg closeConnection() now)
         connectedHandlers = null;
     }
@@ -102,7 +112,6 @@ public class ConnectionHandler implements MessageWriteTarget {
         }
     }
 
-    @GuardedBy("lock")
     private void setWriteOps() {
         // Make sure we are registered to get updated when writing is available again
         key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
@@ -110,63 +119,68 @@ public class ConnectionHandler implements MessageWriteTarget {
         key.selector().wakeup();
     }
 
-    // Tries to write any outstanding write bytes, runs in any thread (possibly unlocked)
+    // Writes as many of the outstanding write bytes as the socket takes, only runs on the selector thread
     private void tryWriteBytes() throws IOException {
-        lock.lock();
-        try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
-                    setWriteOps();
+        while (true) {
+            // Gather the head of the outbound queue into one write, so a burst of small messages costs one syscall
+            int count = 0;
+            for (ByteBuffer buff : bytesToWrite) {
+                gatherBuffers[count++] = buff;
+                if (count == MAX_GATHER_BUFFERS)
+                    break;
+            }
+            if (count == 0)
+                break;
+            long written = channel.write(gatherBuffers, 0, count);
+            bytesToWriteRemaining.addAndGet(-written);
+            boolean drained = true;
+            for (int i = 0; i < count; i++) {
+                if (gatherBuffers[i].hasRemaining()) {
+                    drained = false;
                     break;
                 }
+                bytesToWrite.poll();
+            }
+            Arrays.fill(gatherBuffers, 0, count, null);
+            if (!drained) {
+                // The OS buffer is full, wait to be selected as writable again
+                setWriteOps();
+                return;
             }
-            // If we are done writing, clear the OP_WRITE interestOps
-            if (bytesToWrite.isEmpty())
-                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
-            // Don't bother waking up the selector here, since we're just removing an op, not adding
-        } finally {
-            lock.unlock();
         }
+        // If we are done writing, clear the OP_WRITE interestOps
+        // Don't bother waking up the selector here, since we're just removing an op, not adding
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        // A writer may have queued bytes between our last look at the queue and clearing the op
+        if (!bytesToWrite.isEmpty())
+            setWriteOps();
     }
 
     @Override
     public void writeBytes(byte[] message) throws IOException {
-        boolean andUnlock = true;
-        lock.lock();
+        // Network buffers are not unlimited (and are often smaller than some messages we may wish to send), and
+        // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers and just
+        // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
+        // register our SelectionKey to wakeup when we have free outbound buffer space available.
         try {
-            // Network buffers are not unlimited (and are often smaller than some messages we may wish to send), and
-            // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers and just
-            // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
-            // register our SelectionKey to wakeup when we have free outbound buffer space available.
-
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
-                throw new IOException("Outbound buffer overflowed");
+            long remaining;
+            do {
+                remaining = bytesToWriteRemaining.get();
+                if (remaining + message.length > outboundBufferByteCount)
+                    throw new IOException("Outbound buffer overflowed");
+            } while (!bytesToWriteRemaining.compareAndSet(remaining, remaining + message.length));
             // Just dump the message onto the write buffer and call tryWriteBytes
             // TODO: Kill the needless message duplication when the write completes right away
             bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
             setWriteOps();
         } catch (IOException e) {
-            lock.unlock();
-            andUnlock = false;
             log.warn("Error writing message to connection, closing connection");
             closeConnection();
             throw e;
         } catch (CancelledKeyException e) {
-            lock.unlock();
-            andUnlock = false;
             log.warn("Error writing message to connection, closing connection");
             closeConnection();
             throw new IOException(e);
-        } finally {
-            if (andUnlock)
-                lock.unlock();
         }
     }
 
@@ -194,6 +208,8 @@ public class ConnectionHandler implements MessageWriteTarget {
         if (callClosed) {
             checkState(connectedHandlers == null || connectedHandlers.remove(this));
             connection.connectionClosed();
+            if (readBuff != null)
+                readBuff.release();
         }
     }
 
@@ -210,23 +226,31 @@ public class ConnectionHandler implements MessageWriteTarget {
                 return;
             }
             if (key.isReadable()) {
-                // Do a socket read and invoke the connection's receiveBytes message
-                int read = handler.channel.read(handler.readBuff);
-                if (read == 0)
-                    return; // Was probably waiting on a write
-                else if (read == -1) { // Socket was closed
-                    key.cancel();
-                    handler.closeConnection();
+                // Hold our own reference so a close from another thread can't recycle the buffer mid-read
+                if (!handler.readBuff.retain())
                     return;
+                try {
+                    ByteBuffer readBuff = handler.readBuff.buffer();
+                    // Do a socket read and invoke the connection's receiveBytes message
+                    int read = handler.channel.read(readBuff);
+                    if (read == 0)
+                        return; // Was probably waiting on a write
+                    else if (read == -1) { // Socket was closed
+                        key.cancel();
+                        handler.closeConnection();
+                        return;
+                    }
+                    // "flip" the buffer - setting the limit to the current position and setting position to 0
+                    readBuff.flip();
+                    // Use connection.receiveBytes's return value as a check that it stopped reading at the right location
+                    int bytesConsumed = checkNotNull(handler.connection).receiveBytes(readBuff);
+                    checkState(readBuff.position() == bytesConsumed);
+                    // Now drop the bytes which were read by compacting readBuff (resetting limit and keeping relative
+                    // position)
+                    readBuff.compact();
+                } finally {
+                    handler.readBuff.release();
                 }
-                // "flip" the buffer - setting the limit to the current position and setting position to 0
-                handler.readBuff.flip();
-                // Use connection.receiveBytes's return value as a check that it stopped reading at the right location
-                int bytesConsumed = checkNotNull(handler.connection).receiveBytes(handler.readBuff);
-                checkState(handler.readBuff.position() == bytesConsumed);
-                // Now drop the bytes which were read by compacting readBuff (resetting limit and keeping relative
-                // position)
-                handler.readBuff.compact();
             }
             if (key.isWritable())
                 handler.tryWriteBytes();
@@ -28,15 +28,23 @@ import java.nio.channels.*;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
- * single network processing thread.
+ * single network processing thread by default, or spread across several selector threads when created with
+ * {@link #NioClientManager(int)}. A connection stays on the selector it was opened on for its lifetime. If one of the
+ * extra selector threads dies the manager stops and fails with its exception.
  */
 public class NioClientManager extends AbstractExecutionThreadService implements ClientConnectionManager {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
     private final Selector selector;
+    // Extra selector threads beyond the service thread, which runs selector itself
+    private final SelectorLoop[] workers;
+    private final AtomicInteger nextSelector = new AtomicInteger();
 
     class PendingConnect {
         SocketChannel sc;
@@ -45,6 +53,17 @@ public class NioClientManager extends AbstractExecutionThreadService implements
         SettableFuture<SocketAddress> future = SettableFuture.create();
 
         PendingConnect(SocketChannel sc, StreamConnection connection, SocketAddress address) { this.sc = sc; this.connection = connection; this.address = address; }
+
+        // The manager stopped before the connect finished
+        void abandon() {
+            try {
+                sc.close();
+            } catch (IOException e) {
+                log.warn("Error closing channel", e);
+            }
+            if (future != null)
+                future.setException(new ClosedChannelException());
+        }
     }
     final Queue<PendingConnect> newConnectionChannels = new LinkedBlockingQueue<PendingConnect>();
 
@@ -82,6 +101,8 @@ public class NioClientManager extends AbstractExecutionThreadService implements
                 data.future.setException(cause);
                 data.future = null;
             }
+        } else if (key.attachment() instanceof PendingConnect) { // cancelled while shutting down
+            ((PendingConnect) key.attachment()).abandon();
         } else // Process bytes read
             ConnectionHandler.handleKey(key);
     }
@@ -91,27 +112,70 @@ public class NioClientManager extends AbstractExecutionThreadService implements
      * calls.
      */
     public NioClientManager() {
+        this(1);
+    }
+
+    /**
+     * Creates a new client manager which spreads its connections across the given number of selector threads.
+     */
+    public NioClientManager(int selectorThreads) {
+        checkArgument(selectorThreads > 0, "selectorThreads must be positive");
         try {
             selector = SelectorProvider.provider().openSelector();
         } catch (IOException e) {
             throw new RuntimeException(e); // Shouldn't ever happen
         }
+        workers = new SelectorLoop[selectorThreads - 1];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new SelectorLoop("NioClientManager selector " + (i + 1), new SelectorLoop.KeyHandler() {
+                @Override
+                public void handleKey(SelectionKey key) throws IOException {
+                    NioClientManager.this.handleKey(key);
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    stopAsync();
+                }
+            });
+        }
+    }
+
+    public int getSelectorThreads() {
+        return workers.length + 1;
+    }
+
+    private static void register(PendingConnect conn, Selector selector) {
+        try {
+            SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
+            key.attach(conn);
+        } catch (ClosedChannelException e) {
+            log.warn("SocketChannel was closed before it could be registered");
+            conn.future.setException(e);
+        }
     }
 
     @Override
     public void run() {
+        runSelector();
+        for (SelectorLoop worker : workers) {
+            if (worker.getFailure() != null)
+                throw new IllegalStateException("Selector thread died", worker.getFailure());
+        }
+    }
+
+    private void runSelector() {
         try {
-            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+            // With a single thread, networking stays out of the way of the rest of the app. Once there are several the
+            // network is expected to be the bulk of the work.
+            if (workers.length == 0)
+                Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+            for (SelectorLoop worker : workers)
+                worker.start();
             while (isRunning()) {
                 PendingConnect conn;
-                while ((conn = newConnectionChannels.poll()) != null) {
-                    try {
-                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
-                        key.attach(conn);
-                    } catch (ClosedChannelException e) {
-                        log.warn("SocketChannel was closed before it could be registered");
-                    }
-                }
+                while ((conn = newConnectionChannels.poll()) != null)
+                    register(conn, selector);
 
                 selector.select();
 
@@ -125,6 +189,8 @@ public class NioClientManager extends AbstractExecutionThreadService implements
         } catch (Exception e) {
             log.warn("Error trying to open/read from connection: ", e);
         } finally {
+            for (SelectorLoop worker : workers)
+                worker.shutdown();
             // Go through and close everything, without letting IOExceptions get in our way
             for (SelectionKey key : selector.keys()) {
                 try {
@@ -133,14 +199,28 @@ public class NioClientManager extends AbstractExecutionThreadService implements
                     log.warn("Error closing channel", e);
                 }
                 key.cancel();
-                if (key.attachment() instanceof ConnectionHandler)
-                    ConnectionHandler.handleKey(key); // Close connection if relevant
+                try {
+                    handleKey(key); // Close connection if relevant
+                } catch (IOException e) {
+                    log.warn("Error closing selection key", e);
+                }
             }
             try {
                 selector.close();
             } catch (IOException e) {
                 log.warn("Error closing client manager selector", e);
             }
+            PendingConnect conn;
+            while ((conn = newConnectionChannels.poll()) != null)
+                conn.abandon();
+            for (SelectorLoop worker : workers) {
+                try {
+                    worker.awaitTermination();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
         }
     }
 
@@ -153,9 +233,29 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             SocketChannel sc = SocketChannel.open();
             sc.configureBlocking(false);
             sc.connect(serverAddress);
-            PendingConnect data = new PendingConnect(sc, connection, serverAddress);
-            newConnectionChannels.offer(data);
-            selector.wakeup();
+            final PendingConnect data = new PendingConnect(sc, connection, serverAddress);
+            // Round robin, the connection then stays on that selector
+            int index = Math.floorMod(nextSelector.getAndIncrement(), workers.length + 1);
+            if (index == 0) {
+                newConnectionChannels.offer(data);
+                selector.wakeup();
+                // Connects queued after the selector closed are abandoned here, earlier ones when it closes
+                if (!selector.isOpen() && newConnectionChannels.remove(data))
+                    data.abandon();
+            } else {
+                final SelectorLoop worker = workers[index - 1];
+                worker.execute(new SelectorLoop.Task() {
+                    @Override
+                    public void run() {
+                        register(data, worker.selector);
+                    }
+
+                    @Override
+                    public void reject() {
+                        data.abandon();
+                    }
+                });
+            }
             return data.future;
         } catch (Throwable e) {
             return Futures.immediateFailedFuture(e);
@@ -165,6 +265,8 @@ public class NioClientManager extends AbstractExecutionThreadService implements
     @Override
     public void triggerShutdown() {
         selector.wakeup();
+        for (SelectorLoop worker : workers)
+            worker.shutdown();
     }
 
     @Override
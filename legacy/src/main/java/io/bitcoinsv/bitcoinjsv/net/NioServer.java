@@ -27,9 +27,13 @@ import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
 import org.slf4j.LoggerFactory;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * Creates a simple server listener which listens for incoming client connections and uses a {@link StreamConnection} to
- * process data.
+ * process data. Accepted connections are handled on the listening thread, or spread across extra selector threads when
+ * created with {@link #NioServer(StreamConnectionFactory, InetSocketAddress, int)}. If one of those selector threads
+ * dies the server stops and fails with its exception.
  */
 @Deprecated     // to be replaced
 @SuppressWarnings("GuardedBy")      // we're not going to fix this legacy class
@@ -40,28 +44,58 @@ public class NioServer extends AbstractExecutionThreadService {
 
     private final ServerSocketChannel sc;
     @VisibleForTesting final Selector selector;
+    // Selector threads for accepted connections, none means they share the listening selector
+    private final SelectorLoop[] workers;
+    private int nextWorker;
 
     // Handle a SelectionKey which was selected
     private void handleKey(Selector selector, SelectionKey key) throws IOException {
         if (key.isValid() && key.isAcceptable()) {
             // Accept a new connection, give it a stream connection as an attachment
-            SocketChannel newChannel = sc.accept();
+            final SocketChannel newChannel = sc.accept();
             newChannel.configureBlocking(false);
-            SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
-            try {
-                ConnectionHandler handler = new ConnectionHandler(connectionFactory, newKey);
-                newKey.attach(handler);
-                handler.connection.connectionOpened();
-            } catch (IOException e) {
-                // This can happen if ConnectionHandler's call to get a new handler returned null
-                log.error("Error handling new connection", Throwables.getRootCause(e).getMessage());
-                newKey.channel().close();
+            if (workers.length == 0) {
+                register(newChannel, selector);
+            } else {
+                final SelectorLoop worker = workers[nextWorker++ % workers.length];
+                worker.execute(new SelectorLoop.Task() {
+                    @Override
+                    public void run() {
+                        try {
+                            register(newChannel, worker.selector);
+                        } catch (IOException e) {
+                            log.error("Error registering new connection", e);
+                        }
+                    }
+
+                    @Override
+                    public void reject() {
+                        try {
+                            newChannel.close();
+                        } catch (IOException e) {
+                            log.error("Error closing new connection", e);
+                        }
+                    }
+                });
             }
         } else { // Got a closing channel or a channel to a client connection
             ConnectionHandler.handleKey(key);
         }
     }
 
+    private void register(SocketChannel newChannel, Selector selector) throws IOException {
+        SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
+        try {
+            ConnectionHandler handler = new ConnectionHandler(connectionFactory, newKey);
+            newKey.attach(handler);
+            handler.connection.connectionOpened();
+        } catch (IOException e) {
+            // This can happen if ConnectionHandler's call to get a new handler returned null
+            log.error("Error handling new connection", Throwables.getRootCause(e).getMessage());
+            newKey.channel().close();
+        }
+    }
+
     /**
      * Creates a new server which is capable of listening for incoming connections and processing client provided data
      * using {@link StreamConnection}s created by the given {@link StreamConnectionFactory}
@@ -69,7 +103,33 @@ public class NioServer extends AbstractExecutionThreadService {
      * @throws IOException If there is an issue opening the server socket or binding fails for some reason
      */
     public NioServer(final StreamConnectionFactory connectionFactory, InetSocketAddress bindAddress) throws IOException {
+        this(connectionFactory, bindAddress, 0);
+    }
+
+    /**
+     * Creates a new server whose accepted connections are spread across the given number of selector threads, in
+     * addition to the thread listening for connections.
+     *
+     * @throws IOException If there is an issue opening the server socket or binding fails for some reason
+     */
+    public NioServer(final StreamConnectionFactory connectionFactory, InetSocketAddress bindAddress,
+                     int selectorThreads) throws IOException {
+        checkArgument(selectorThreads >= 0, "selectorThreads must not be negative");
         this.connectionFactory = connectionFactory;
+        workers = new SelectorLoop[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++) {
+            workers[i] = new SelectorLoop("NioServer selector " + (i + 1), new SelectorLoop.KeyHandler() {
+                @Override
+                public void handleKey(SelectionKey key) {
+                    ConnectionHandler.handleKey(key);
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    stopAsync();
+                }
+            });
+        }
 
         sc = ServerSocketChannel.open();
         sc.configureBlocking(false);
@@ -80,7 +140,17 @@ public class NioServer extends AbstractExecutionThreadService {
 
     @Override
     protected void run() throws Exception {
+        runSelector();
+        for (SelectorLoop worker : workers) {
+            if (worker.getFailure() != null)
+                throw new IllegalStateException("Selector thread died", worker.getFailure());
+        }
+    }
+
+    private void runSelector() {
         try {
+            for (SelectorLoop worker : workers)
+                worker.start();
             while (isRunning()) {
                 selector.select();
 
@@ -95,6 +165,8 @@ public class NioServer extends AbstractExecutionThreadService {
         } catch (Exception e) {
             log.error("Error trying to open/read from connection: {}", e);
         } finally {
+            for (SelectorLoop worker : workers)
+                worker.shutdown();
             // Go through and close everything, without letting IOExceptions get in our way
             for (SelectionKey key : selector.keys()) {
                 try {
@@ -119,6 +191,14 @@ public class NioServer extends AbstractExecutionThreadService {
             } catch (IOException e) {
                 log.error("Error closing server channel", e);
             }
+            for (SelectorLoop worker : workers) {
+                try {
+                    worker.awaitTermination();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
         }
     }
 
@@ -131,5 +211,7 @@ public class NioServer extends AbstractExecutionThreadService {
     public void triggerShutdown() {
         // Wake up the selector and let the selection thread break its loop as the ExecutionService !isRunning()
         selector.wakeup();
+        for (SelectorLoop worker : workers)
+            worker.shutdown();
     }
 }
@@ -0,0 +1,66 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.net;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A buffer taken from a {@link BufferPool}, returned to the pool when its reference count drops to zero.
+ * <p>
+ * Whoever acquires the buffer holds the first reference.  Code that may still be using the buffer after the owner lets
+ * go of it, e.g. a selector thread part way through a read when another thread closes the connection, takes its own
+ * reference with {@link #retain()} for the duration.
+ */
+public class PooledBuffer {
+
+    private final ByteBuffer buffer;
+    @Nullable private final BufferPool pool;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    PooledBuffer(ByteBuffer buffer, @Nullable BufferPool pool) {
+        this.buffer = buffer;
+        this.pool = pool;
+    }
+
+    /**
+     * @return the underlying buffer, which must not be used once the last reference is released.
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Takes another reference.
+     *
+     * @return false if the buffer has already been released and must not be used
+     */
+    public boolean retain() {
+        while (true) {
+            int count = refCount.get();
+            if (count <= 0)
+                return false;
+            if (refCount.compareAndSet(count, count + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Drops a reference, handing the buffer back to its pool if it was the last one.
+     */
+    public void release() {
+        int count = refCount.decrementAndGet();
+        checkState(count >= 0, "buffer released too many times");
+        if (count == 0 && pool != null)
+            pool.recycle(buffer);
+    }
+
+    public int refCount() {
+        return refCount.get();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.net;
+
+import io.bitcoinsv.bitcoinjsv.utils.ContextPropagatingThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector and the thread that services it.  {@link NioClientManager} and {@link NioServer} spread their
+ * connections across several of these, each connection staying on the loop it was registered with for its lifetime so
+ * its reads and writes are only ever done by one thread.
+ * <p>
+ * Channels must be registered from the loop's own thread (registering from elsewhere blocks until the next select
+ * returns), so registration is queued with {@link #execute(Task)}.  A task the loop stops before running is rejected
+ * instead, so whatever it would have registered can be closed.
+ * <p>
+ * If the loop dies of an exception it closes its channels and calls its owner's failure callback, the owner is expected
+ * to stop as the connections it hands the loop would otherwise never be serviced.
+ */
+class SelectorLoop implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(SelectorLoop.class);
+
+    interface KeyHandler {
+        /** Also called with each key the loop cancels when it stops, so the key's attachment can be closed. */
+        void handleKey(SelectionKey key) throws IOException;
+    }
+
+    interface Task extends Runnable {
+        /** Called instead of {@link #run()} if the loop stops first. */
+        void reject();
+    }
+
+    private final String name;
+    private final KeyHandler handler;
+    private final Runnable onFailure;
+    final Selector selector;
+    private final Queue<Task> tasks = new ConcurrentLinkedQueue<Task>();
+    private volatile boolean running = true;
+    @Nullable private volatile Throwable failure;
+    @Nullable private Thread thread;
+
+    SelectorLoop(String name, KeyHandler handler, Runnable onFailure) {
+        this.name = name;
+        this.handler = handler;
+        this.onFailure = onFailure;
+        try {
+            selector = SelectorProvider.provider().openSelector();
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Shouldn't ever happen
+        }
+    }
+
+    /** Starts the loop on a thread of its own. */
+    void start() {
+        thread = new ContextPropagatingThreadFactory(name).newThread(this);
+        thread.start();
+    }
+
+    /** Runs the task on the loop's thread before its next select, or rejects it if the loop has stopped. */
+    void execute(Task task) {
+        tasks.offer(task);
+        selector.wakeup();
+        //the loop rejects what is queued after closing its selector, anything queued after that is rejected here
+        if (!selector.isOpen() && tasks.remove(task))
+            task.reject();
+    }
+
+    /** The exception the loop died of, or null if it is running or was shut down. */
+    @Nullable
+    Throwable getFailure() {
+        return failure;
+    }
+
+    int getKeyCount() {
+        return selector.keys().size();
+    }
+
+    /** Stops the loop, which closes all of its channels on the way out. */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    void awaitTermination() throws InterruptedException {
+        if (thread != null)
+            thread.join();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                Task task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+
+                selector.select();
+
+                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+                    handler.handleKey(key);
+                }
+            }
+        } catch (Throwable t) {
+            log.error("{} died, stopping its owner", name, t);
+            failure = t;
+            running = false;
+            onFailure.run();
+        } finally {
+            // Go through and close everything, without letting IOExceptions get in our way
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    log.warn("Error closing channel", e);
+                }
+                key.cancel();
+                try {
+                    handler.handleKey(key); // Close connection if relevant
+                } catch (Exception e) {
+                    log.warn("Error closing selection key", e);
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.warn("Error closing selector", e);
+            }
+            Task task;
+            while ((task = tasks.poll()) != null)
+                task.reject();
+        }
+    }
+}
@@ -18,16 +18,20 @@ package io.bitcoinsv.bitcoinjsv.signers;
 
 import java.util.EnumSet;
 
+import io.bitcoinsv.bitcoinjsv.bitcoin.api.base.Tx;
 import io.bitcoinsv.bitcoinjsv.core.ECKey;
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
 import io.bitcoinsv.bitcoinjsv.crypto.DeterministicKey;
 import io.bitcoinsv.bitcoinjsv.ecc.TransactionSignature;
+import io.bitcoinsv.bitcoinjsv.msg.Translate;
 import io.bitcoinsv.bitcoinjsv.msg.protocol.Transaction;
 import io.bitcoinsv.bitcoinjsv.msg.protocol.TransactionInput;
 import io.bitcoinsv.bitcoinjsv.msg.protocol.TxHelper;
 import io.bitcoinsv.bitcoinjsv.script.Script;
 import io.bitcoinsv.bitcoinjsv.script.SigHash;
+import io.bitcoinsv.bitcoinjsv.script.SigHashContext;
 import io.bitcoinsv.bitcoinjsv.script.interpreter.ScriptExecutionException;
-import io.bitcoinsv.bitcoinjsv.script.ScriptUtils_legacy;
+import io.bitcoinsv.bitcoinjsv.script.ScriptUtils;
 import io.bitcoinsv.bitcoinjsv.script.ScriptVerifyFlag;
 import io.bitcoinsv.bitcoinjsv.temp.KeyBag;
 import io.bitcoinsv.bitcoinjsv.temp.RedeemData;
@@ -65,6 +69,10 @@ public class LocalTransactionSigner extends StatelessTransactionSigner {
     public boolean signInputs(ProposedTransaction propTx, KeyBag keyBag) {
         Transaction tx = propTx.partialTx;
         int numInputs = tx.getInputs().size();
+        // Translate once and share the forkid sighash midstates between all inputs.  Neither the
+        // check for already signed inputs nor the sighash depend on the scriptSigs we set below.
+        Tx translatedTx = Translate.toTx(tx);
+        SigHashContext sigHashContext = SigHashContext.of(translatedTx);
         for (int i = 0; i < numInputs; i++) {
             TransactionInput txIn = tx.getInput(i);
             if (txIn.getConnectedOutput() == null) {
@@ -76,7 +84,7 @@ public class LocalTransactionSigner extends StatelessTransactionSigner {
                 // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
                 // we sign missing pieces (to check this would require either assuming any signatures are signing
                 // standard output types or a way to get processed signatures out of script execution)
-                ScriptUtils_legacy.correctlySpends(txIn.getScriptSig(), tx, i, txIn.getConnectedOutput().getScriptPubKey(), txIn.getConnectedOutput().getValue(), MINIMUM_VERIFY_FLAGS);
+                ScriptUtils.correctlySpends(txIn.getScriptSig(), translatedTx, i, txIn.getConnectedOutput().getScriptPubKey(), txIn.getConnectedOutput().getValue(), MINIMUM_VERIFY_FLAGS);
                 log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", i);
                 continue;
             } catch (ScriptExecutionException e) {
@@ -108,9 +116,13 @@ public class LocalTransactionSigner extends StatelessTransactionSigner {
             // a CHECKMULTISIG program for P2SH inputs
             byte[] script = redeemData.redeemScript.getProgram();
             try {
-                TransactionSignature signature = propTx.useForkId ?
-                        tx.calculateForkIdSignature(i, key, script, tx.getInput(i).getConnectedOutput().getValue(), SigHash.Flags.ALL, false) :
-                        tx.calculateLegacySignature(i, key, script, SigHash.Flags.ALL, false);
+                TransactionSignature signature;
+                if (propTx.useForkId) {
+                    Sha256Hash hash = SigHash.hashForForkIdSignature(sigHashContext, i, script, txIn.getConnectedOutput().getValue(), SigHash.Flags.ALL, false);
+                    signature = new TransactionSignature(key.sign(hash), SigHash.Flags.ALL, false, true);
+                } else {
+                    signature = tx.calculateLegacySignature(i, key, script, SigHash.Flags.ALL, false);
+                }
 
                 // at this point we have incomplete inputScript with OP_0 in place of one or more signatures. We already
                 // have calculated the signature using the local key and now need to insert it in the correct place
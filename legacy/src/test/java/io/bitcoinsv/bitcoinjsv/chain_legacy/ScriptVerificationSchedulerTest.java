@@ -0,0 +1,211 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.chain_legacy;
+
+import io.bitcoinsv.bitcoinjsv.core.Coin;
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
+import io.bitcoinsv.bitcoinjsv.exception.VerificationException;
+import io.bitcoinsv.bitcoinjsv.msg.protocol.Transaction;
+import io.bitcoinsv.bitcoinjsv.params.Net;
+import io.bitcoinsv.bitcoinjsv.script.Script;
+import io.bitcoinsv.bitcoinjsv.script.ScriptVerifyFlag;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ScriptVerificationSchedulerTest {
+
+    private static final Net NET = Net.UNITTEST;
+    private static final Set<ScriptVerifyFlag> FLAGS = EnumSet.noneOf(ScriptVerifyFlag.class);
+    private static final Script PASS = new Script(new byte[]{0x51});
+    private static final Script FAIL = new Script(new byte[]{0x00});
+
+    /**
+     * Holds submitted tasks until the test runs them, or runs them straight away once {@link #runOnSubmit} is set.
+     */
+    private static class ManualExecutor extends AbstractExecutorService {
+        final List<Runnable> tasks = new ArrayList<>();
+        boolean runOnSubmit;
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            if (runOnSubmit)
+                task.run();
+        }
+
+        void run(int task) {
+            tasks.get(task).run();
+        }
+
+        Future<?> future(int task) {
+            return (Future<?>) tasks.get(task);
+        }
+
+        Object result(int task) throws Exception {
+            return future(task).get();
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+
+    private int salt;
+
+    //a transaction whose inputs have empty script sigs, the spent output scripts decide whether each passes
+    private Transaction tx(int inputs) {
+        Transaction tx = new Transaction(NET);
+        byte[] hash = new byte[32];
+        hash[0] = (byte) ++salt;
+        hash[1] = (byte) (salt >> 8);
+        for (int i = 0; i < inputs; i++)
+            tx.addInput(Sha256Hash.wrap(hash), i, new Script(new byte[0]));
+        tx.addOutput(Coin.COIN, PASS);
+        return tx;
+    }
+
+    private static List<Script> scripts(int inputs, int... failing) {
+        List<Script> scripts = new ArrayList<>(Collections.nCopies(inputs, PASS));
+        for (int input : failing)
+            scripts.set(input, FAIL);
+        return scripts;
+    }
+
+    @Test
+    public void testGroupsSmallTransactions() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        executor.runOnSubmit = true;
+        ScriptVerificationScheduler.Batch batch = new ScriptVerificationScheduler(executor, 4).newBatch();
+        for (int i = 0; i < 10; i++)
+            batch.add(tx(1), scripts(1), FLAGS);
+        //a task goes out each time four inputs have been queued
+        assertEquals(2, executor.tasks.size());
+        batch.add(tx(3), scripts(3), FLAGS);
+        assertEquals(3, executor.tasks.size());
+        batch.add(tx(1), scripts(1), FLAGS);
+        assertEquals(3, executor.tasks.size());
+        //and the remainder when the batch is awaited
+        batch.await();
+        assertEquals(4, executor.tasks.size());
+    }
+
+    @Test
+    public void testSplitsLargeTransactions() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        executor.runOnSubmit = true;
+        ScriptVerificationScheduler.Batch batch = new ScriptVerificationScheduler(executor, 4).newBatch();
+        batch.add(tx(1), scripts(1), FLAGS);
+        //ten inputs go out straight away as tasks of four, four and two, the small transaction keeps waiting
+        batch.add(tx(10), scripts(10), FLAGS);
+        assertEquals(3, executor.tasks.size());
+        batch.await();
+        assertEquals(4, executor.tasks.size());
+
+        //the last input of a split transaction is checked as well as the first
+        executor = new ManualExecutor();
+        executor.runOnSubmit = true;
+        batch = new ScriptVerificationScheduler(executor, 4).newBatch();
+        batch.add(tx(10), scripts(10, 9), FLAGS);
+        assertNull(executor.result(0));
+        assertNull(executor.result(1));
+        assertNotNull(executor.result(2));
+        try {
+            batch.await();
+            fail();
+        } catch (VerificationException e) {
+            assertSame(executor.result(2), e);
+        }
+    }
+
+    @Test
+    public void testReportsFirstFailureInBlockOrder() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        ScriptVerificationScheduler.Batch batch = new ScriptVerificationScheduler(executor, 1).newBatch();
+        batch.add(tx(1), scripts(1), FLAGS);
+        batch.add(tx(1), scripts(1, 0), FLAGS);
+        batch.add(tx(1), scripts(1), FLAGS);
+        batch.add(tx(1), scripts(1, 0), FLAGS);
+        assertEquals(4, executor.tasks.size());
+
+        //the later failure is found first but the tasks before it still run
+        for (int task = 3; task >= 0; task--)
+            executor.run(task);
+        assertNotNull(executor.result(3));
+        assertNotNull(executor.result(1));
+        try {
+            batch.await();
+            fail();
+        } catch (VerificationException e) {
+            assertSame(executor.result(1), e);
+        }
+    }
+
+    @Test
+    public void testStopsAfterFirstFailure() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        ScriptVerificationScheduler.Batch batch = new ScriptVerificationScheduler(executor, 1).newBatch();
+        for (int i = 0; i < 6; i++)
+            batch.add(tx(1), scripts(1, 0), FLAGS);
+
+        //tasks after a failure return without checking their inputs
+        executor.run(0);
+        executor.run(1);
+        executor.run(2);
+        assertNotNull(executor.result(0));
+        assertNull(executor.result(1));
+        assertNull(executor.result(2));
+
+        //and the ones that haven't started are cancelled once the failure is reported
+        try {
+            batch.await();
+            fail();
+        } catch (VerificationException e) {
+            assertSame(executor.result(0), e);
+        }
+        for (int task = 3; task < 6; task++)
+            assertTrue(executor.future(task).isCancelled());
+    }
+
+    @Test
+    public void testCancelStopsQueuedChecks() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        ScriptVerificationScheduler.Batch batch = new ScriptVerificationScheduler(executor, 1).newBatch();
+        batch.add(tx(1), scripts(1, 0), FLAGS);
+        batch.add(tx(1), scripts(1, 0), FLAGS);
+        executor.run(0);
+        batch.cancel();
+        assertTrue(executor.future(1).isCancelled());
+    }
+}
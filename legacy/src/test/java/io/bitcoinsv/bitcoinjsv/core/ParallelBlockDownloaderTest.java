@@ -0,0 +1,341 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.core;
+
+import io.bitcoinsv.bitcoinjsv.chain_legacy.SPVBlockChain_legacy;
+import io.bitcoinsv.bitcoinjsv.exception.BlockStoreException;
+import io.bitcoinsv.bitcoinjsv.exception.PrunedException;
+import io.bitcoinsv.bitcoinjsv.exception.VerificationException;
+import io.bitcoinsv.bitcoinjsv.msg.Message;
+import io.bitcoinsv.bitcoinjsv.msg.p2p.GetDataMessage;
+import io.bitcoinsv.bitcoinjsv.msg.p2p.GetHeadersMessage;
+import io.bitcoinsv.bitcoinjsv.msg.p2p.HeadersMessage;
+import io.bitcoinsv.bitcoinjsv.msg.p2p.InventoryItem;
+import io.bitcoinsv.bitcoinjsv.msg.p2p.NotFoundMessage;
+import io.bitcoinsv.bitcoinjsv.msg.p2p.VersionAck;
+import io.bitcoinsv.bitcoinjsv.msg.p2p.VersionMessage;
+import io.bitcoinsv.bitcoinjsv.msg.protocol.Block;
+import io.bitcoinsv.bitcoinjsv.net.NioClientManager;
+import io.bitcoinsv.bitcoinjsv.net.NioServer;
+import io.bitcoinsv.bitcoinjsv.net.StreamConnection;
+import io.bitcoinsv.bitcoinjsv.net.StreamConnectionFactory;
+import io.bitcoinsv.bitcoinjsv.params.Net;
+import io.bitcoinsv.bitcoinjsv.params.NetworkParameters;
+import io.bitcoinsv.bitcoinjsv.params.UnitTestParams;
+import io.bitcoinsv.bitcoinjsv.store_legacy.MemoryBlockStore_legacy;
+import io.bitcoinsv.bitcoinjsv.testing.InboundMessageQueuer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the downloader against loopback peers that answer getheaders and getdata from a prepared chain of blocks.
+ */
+public class ParallelBlockDownloaderTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final Net NET = Net.UNITTEST;
+    private static final int PEER_SERVERS = 2;
+    private static final long TIMEOUT_SECS = 30;
+
+    private final NioServer[] peerServers = new NioServer[PEER_SERVERS];
+    private final BlockingQueue<RemotePeer> newPeers = new LinkedBlockingQueue<>();
+    private RejectingChain chain;
+    private PeerGroup peerGroup;
+    //blocks.get(i) is at height i
+    private final List<Block> blocks = new ArrayList<>();
+    private final Map<Sha256Hash, Integer> heights = new HashMap<>();
+
+    /**
+     * A chain that rejects the next copy of the blocks it is told to.
+     */
+    private static class RejectingChain extends SPVBlockChain_legacy {
+        final List<Sha256Hash> added = Collections.synchronizedList(new ArrayList<Sha256Hash>());
+        final Set<Sha256Hash> rejectOnce = ConcurrentHashMap.newKeySet();
+
+        RejectingChain() throws BlockStoreException {
+            super(PARAMS, new MemoryBlockStore_legacy(PARAMS));
+        }
+
+        @Override
+        public boolean add(Block block) throws VerificationException, PrunedException {
+            if (rejectOnce.remove(block.getHash()))
+                throw new VerificationException("Rejected by the test");
+            boolean connected = super.add(block);
+            if (connected)
+                added.add(block.getHash());
+            return connected;
+        }
+    }
+
+    /**
+     * The far end of a connection.  Answers getheaders from the test's blocks, and getdata too unless
+     * {@link #serveBlocks} is cleared, in which case the test serves the requested blocks itself.
+     */
+    private class RemotePeer extends InboundMessageQueuer {
+        final BlockingQueue<Sha256Hash> requested = new LinkedBlockingQueue<>();
+        final Set<Sha256Hash> asked = ConcurrentHashMap.newKeySet();
+        final AtomicInteger headerRequests = new AtomicInteger();
+        final CountDownLatch closed = new CountDownLatch(1);
+        volatile boolean serveBlocks = true;
+        //answer each getdata last block first
+        volatile boolean reverse;
+
+        RemotePeer() {
+            super(PARAMS);
+        }
+
+        @Override
+        protected void processMessage(Message m) throws Exception {
+            if (m instanceof GetHeadersMessage) {
+                headerRequests.incrementAndGet();
+                sendMessage(new HeadersMessage(NET, headersAfter(((GetHeadersMessage) m).getLocator())));
+            } else if (m instanceof GetDataMessage) {
+                List<Block> reply = new ArrayList<>();
+                for (InventoryItem item : ((GetDataMessage) m).getItems()) {
+                    asked.add(item.hash);
+                    requested.add(item.hash);
+                    reply.add(blocks.get(heights.get(item.hash)));
+                }
+                if (reverse)
+                    Collections.reverse(reply);
+                if (serveBlocks) {
+                    for (Block block : reply)
+                        sendMessage(block);
+                }
+            } else {
+                super.processMessage(m);
+            }
+        }
+
+        void serve(int height) {
+            sendMessage(blocks.get(height));
+        }
+
+        int nextRequestedHeight() throws InterruptedException {
+            Sha256Hash hash = requested.poll(TIMEOUT_SECS, TimeUnit.SECONDS);
+            assertNotNull("no getdata", hash);
+            return heights.get(hash);
+        }
+
+        boolean isClosed() {
+            return closed.getCount() == 0;
+        }
+
+        @Override
+        public void connectionOpened() {
+            newPeers.offer(this);
+        }
+
+        @Override
+        public void connectionClosed() {
+            closed.countDown();
+        }
+    }
+
+    private List<Block> headersAfter(List<Sha256Hash> locator) {
+        for (Sha256Hash hash : locator) {
+            Integer height = heights.get(hash);
+            if (height == null)
+                continue;
+            List<Block> headers = new ArrayList<>();
+            for (int i = height + 1; i < blocks.size(); i++)
+                headers.add(blocks.get(i).cloneAsHeader());
+            return headers;
+        }
+        return Collections.emptyList();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+        chain = new RejectingChain();
+        Block block = chain.getChainHead().getHeader();
+        blocks.add(block);
+        heights.put(block.getHash(), 0);
+        for (int height = 1; height <= 30; height++) {
+            Block next = block.createNextBlock((Address) null);
+            if (height % PARAMS.getInterval() == 0) {
+                //the blocks come far faster than the unit test params expect, so each transition quarters the target
+                next.setDifficultyTarget(Utils.encodeCompactBits(block.getDifficultyTargetAsInteger().shiftRight(2)));
+                next.solve();
+            }
+            block = next;
+            blocks.add(block);
+            heights.put(block.getHash(), height);
+        }
+
+        for (int i = 0; i < PEER_SERVERS; i++) {
+            peerServers[i] = new NioServer(new StreamConnectionFactory() {
+                @Nullable
+                @Override
+                public StreamConnection getNewConnection(InetAddress inetAddress, int port) {
+                    return new RemotePeer();
+                }
+            }, new InetSocketAddress("127.0.0.1", 2000 + i));
+            peerServers[i].startAsync();
+            peerServers[i].awaitRunning();
+        }
+        peerGroup = new PeerGroup(PARAMS, null, new NioClientManager());
+        peerGroup.setPingIntervalMsec(0);
+        peerGroup.setUseLocalhostPeerWhenPossible(false);
+        peerGroup.start();
+    }
+
+    @After
+    public void tearDown() {
+        Utils.mockTime = null;
+        peerGroup.stop();
+        for (NioServer server : peerServers) {
+            server.stopAsync();
+            server.awaitTerminated();
+        }
+    }
+
+    private RemotePeer connectPeer(int id) throws Exception {
+        int connected = peerGroup.getConnectedPeers().size();
+        VersionMessage version = new VersionMessage(NET, blocks.size() - 1);
+        version.localServices = VersionMessage.NODE_NETWORK | VersionMessage.NODE_BITCOIN_CASH;
+        version.clientVersion = NotFoundMessage.MIN_PROTOCOL_VERSION;
+        Peer peer = peerGroup.connectTo(new InetSocketAddress("127.0.0.1", 2000 + id)).getConnectionOpenFuture()
+                .get(TIMEOUT_SECS, TimeUnit.SECONDS);
+        RemotePeer remote = newPeers.poll(TIMEOUT_SECS, TimeUnit.SECONDS);
+        remote.peer = peer;
+        remote.sendMessage(version);
+        remote.sendMessage(new VersionAck());
+        peer.getVersionHandshakeFuture().get(TIMEOUT_SECS, TimeUnit.SECONDS);
+        waitFor(() -> peerGroup.getConnectedPeers().size() > connected);
+        return remote;
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECS);
+        while (!condition.holds()) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private List<Sha256Hash> hashes(int from, int to) {
+        List<Sha256Hash> hashes = new ArrayList<>();
+        for (int height = from; height <= to; height++)
+            hashes.add(blocks.get(height).getHash());
+        return hashes;
+    }
+
+    @Test
+    public void testOutOfOrderBlocksAreAddedInOrder() throws Exception {
+        RemotePeer first = connectPeer(0);
+        RemotePeer second = connectPeer(1);
+        first.reverse = true;
+        second.reverse = true;
+        ParallelBlockDownloader downloader = new ParallelBlockDownloader(peerGroup, chain, 8, 4, 20000);
+        downloader.start();
+        assertEquals(30, (int) downloader.getFuture().get(TIMEOUT_SECS, TimeUnit.SECONDS));
+        assertEquals(hashes(1, 30), chain.added);
+        assertEquals(30, chain.getBestChainHeight());
+    }
+
+    @Test
+    public void testWindowAdvancesAsBlocksAreAdded() throws Exception {
+        RemotePeer remote = connectPeer(0);
+        remote.serveBlocks = false;
+        ParallelBlockDownloader downloader = new ParallelBlockDownloader(peerGroup, chain, 4, 16, 20000);
+        downloader.start();
+
+        //only the window is requested however many the peer may have in flight
+        List<Integer> requested = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            requested.add(remote.nextRequestedHeight());
+        assertEquals(Arrays.asList(1, 2, 3, 4), requested);
+        assertNull(remote.requested.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(4, downloader.getBlocksInFlight());
+
+        //a block past the next one needed doesn't move the window
+        remote.serve(2);
+        assertNull(remote.requested.poll(200, TimeUnit.MILLISECONDS));
+        //the next one moves it past both
+        remote.serve(1);
+        Set<Integer> next = new HashSet<>();
+        next.add(remote.nextRequestedHeight());
+        next.add(remote.nextRequestedHeight());
+        assertEquals(new HashSet<>(Arrays.asList(5, 6)), next);
+        waitFor(() -> chain.added.size() == 2);
+        assertEquals(hashes(1, 2), chain.added);
+
+        remote.serveBlocks = true;
+        for (int height = 3; height <= 6; height++)
+            remote.serve(height);
+        assertEquals(30, (int) downloader.getFuture().get(TIMEOUT_SECS, TimeUnit.SECONDS));
+        assertEquals(hashes(1, 30), chain.added);
+    }
+
+    @Test
+    public void testStalledPeersRequestsAreReassigned() throws Exception {
+        Utils.setMockClock();
+        RemotePeer stalled = connectPeer(0);
+        RemotePeer live = connectPeer(1);
+        stalled.serveBlocks = false;
+        ParallelBlockDownloader downloader = new ParallelBlockDownloader(peerGroup, chain, 8, 4, 1000);
+        downloader.start();
+
+        //the live peer answers its share, what's left in flight is the stalled peer's
+        waitFor(() -> !stalled.asked.isEmpty() && downloader.getBlocksInFlight() == stalled.asked.size()
+                && !live.asked.isEmpty());
+        Set<Sha256Hash> stalledRange = new HashSet<>(stalled.asked);
+
+        Utils.rollMockClockMillis(1001);
+        assertEquals(30, (int) downloader.getFuture().get(TIMEOUT_SECS, TimeUnit.SECONDS));
+        assertTrue(live.asked.containsAll(stalledRange));
+        assertEquals(hashes(1, 30), chain.added);
+        //a slow peer is only passed over, not disconnected
+        assertFalse(stalled.isClosed());
+    }
+
+    @Test
+    public void testRejectedBlockIsRequestedFromAnotherPeer() throws Exception {
+        RemotePeer first = connectPeer(0);
+        RemotePeer second = connectPeer(1);
+        Sha256Hash bad = blocks.get(5).getHash();
+        chain.rejectOnce.add(bad);
+        ParallelBlockDownloader downloader = new ParallelBlockDownloader(peerGroup, chain, 8, 4, 20000);
+        downloader.start();
+        assertEquals(30, (int) downloader.getFuture().get(TIMEOUT_SECS, TimeUnit.SECONDS));
+        assertEquals(hashes(1, 30), chain.added);
+
+        //the peer that sent the rejected block is dropped and the other one asked for it
+        waitFor(() -> first.isClosed() || second.isClosed());
+        RemotePeer sender = first.isClosed() ? first : second;
+        RemotePeer other = sender == first ? second : first;
+        assertFalse(other.isClosed());
+        assertTrue(sender.asked.contains(bad));
+        assertTrue(other.asked.contains(bad));
+        //and the download carried on rather than starting again from the headers
+        assertEquals(1, first.headerRequests.get() + second.headerRequests.get());
+    }
+}
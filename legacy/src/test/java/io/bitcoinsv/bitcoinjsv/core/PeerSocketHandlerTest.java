@@ -0,0 +1,106 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.core;
+
+import io.bitcoinsv.bitcoinjsv.msg.Message;
+import io.bitcoinsv.bitcoinjsv.msg.MessageSerializer;
+import io.bitcoinsv.bitcoinjsv.msg.Serializer;
+import io.bitcoinsv.bitcoinjsv.msg.p2p.Ping;
+import io.bitcoinsv.bitcoinjsv.msg.protocol.Transaction;
+import io.bitcoinsv.bitcoinjsv.msg.protocol.TransactionOutput;
+import io.bitcoinsv.bitcoinjsv.net.BufferPool;
+import io.bitcoinsv.bitcoinjsv.params.Net;
+import io.bitcoinsv.bitcoinjsv.params.NetworkParameters;
+import io.bitcoinsv.bitcoinjsv.params.UnitTestParams;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds a stream of messages to a {@link PeerSocketHandler} through a read buffer smaller than some of them, the way
+ * a connection's selector thread does.
+ */
+public class PeerSocketHandlerTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    private static class Handler extends PeerSocketHandler {
+        final List<Message> received = new ArrayList<>();
+
+        Handler() {
+            super(PARAMS, new InetSocketAddress(InetAddress.getLoopbackAddress(), 8333));
+        }
+
+        @Override
+        protected void processMessage(Message m) {
+            received.add(m);
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+    }
+
+    //a transaction with an output script of the given size
+    private static Transaction transaction(int scriptSize, byte fill) {
+        Transaction tx = new Transaction(Net.UNITTEST);
+        byte[] script = new byte[scriptSize];
+        Arrays.fill(script, fill);
+        tx.addOutput(new TransactionOutput(Net.UNITTEST, tx, Coin.ZERO, script));
+        return tx;
+    }
+
+    //hands the stream to the handler through a buffer of READ_BUFFER_SIZE as ConnectionHandler would
+    private static void receive(Handler handler, byte[] stream) {
+        ByteBuffer buff = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        int pos = 0;
+        while (pos < stream.length) {
+            int n = Math.min(buff.remaining(), stream.length - pos);
+            buff.put(stream, pos, n);
+            pos += n;
+            buff.flip();
+            int consumed = handler.receiveBytes(buff);
+            assertEquals(buff.position(), consumed);
+            buff.compact();
+        }
+    }
+
+    @Test
+    public void testLargeMessagesAreReadIntoPooledBuffers() throws Exception {
+        MessageSerializer serializer = Serializer.defaultFor(PARAMS);
+        Transaction first = transaction(3 * BufferPool.PAYLOAD_CHUNK_SIZE / 2, (byte) 1);
+        //smaller than the first, so it is read into the buffer the first one left behind
+        Transaction second = transaction(BufferPool.PAYLOAD_CHUNK_SIZE + 10, (byte) 2);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        serializer.serialize(first, stream);
+        serializer.serialize(new Ping(1), stream);
+        serializer.serialize(second, stream);
+
+        BufferPool pool = BufferPool.getPayloadPool();
+        long reused = pool.getReusedCount();
+        Handler handler = new Handler();
+        receive(handler, stream.toByteArray());
+
+        assertEquals(3, handler.received.size());
+        assertEquals(first.getHash(), ((Transaction) handler.received.get(0)).getHash());
+        assertEquals(1, ((Ping) handler.received.get(1)).getNonce());
+        Transaction received = (Transaction) handler.received.get(2);
+        assertEquals(second.getHash(), received.getHash());
+        assertArrayEquals(second.bitcoinSerialize(), received.bitcoinSerialize());
+        assertTrue(pool.getReusedCount() > reused);
+    }
+}
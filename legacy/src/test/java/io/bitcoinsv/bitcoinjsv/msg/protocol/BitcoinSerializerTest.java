@@ -21,6 +21,7 @@ import io.bitcoinsv.bitcoinjsv.msg.Serializer;
 import io.bitcoinsv.bitcoinjsv.params.Net;
 import io.bitcoinsv.bitcoinjsv.params.NetworkParameters;
 import io.bitcoinsv.bitcoinjsv.core.ProtocolException;
+import io.bitcoinsv.bitcoinjsv.core.Sha256Hash;
 import io.bitcoinsv.bitcoinjsv.core.Utils;
 import io.bitcoinsv.bitcoinjsv.msg.BitcoinSerializer;
 import io.bitcoinsv.bitcoinjsv.msg.Message;
@@ -228,6 +229,44 @@ public class BitcoinSerializerTest {
         assertArrayEquals(headersMessageBytes, serializedBytes);
     }
 
+    @Test
+    public void testPayloadInLongerArray() throws Exception {
+        MessageSerializer serializer = Serializer.defaultMainnet();
+        Transaction expected = (Transaction) serializer.deserialize(ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES));
+
+        // a reused buffer holds the payload followed by whatever was in it before
+        ByteBuffer in = ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES);
+        serializer.seekPastMagicBytes(in);
+        BitcoinSerializer.BitcoinPacketHeader header = serializer.deserializeHeader(in);
+        byte[] buffer = new byte[header.size + 100];
+        Arrays.fill(buffer, (byte) 0xff);
+        in.get(buffer, 0, header.size);
+        byte[] hash = Sha256Hash.hashTwice(buffer, 0, header.size);
+
+        Transaction tx = (Transaction) serializer.deserializePayload(header, buffer, hash);
+        assertEquals(expected, tx);
+        assertEquals(header.size, tx.getMessageSize());
+        assertArrayEquals(expected.bitcoinSerialize(), tx.bitcoinSerialize());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testPayloadInLongerArrayIsNotReadPastItsEnd() throws Exception {
+        MessageSerializer serializer = Serializer.defaultMainnet();
+        ByteBuffer in = ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES);
+        serializer.seekPastMagicBytes(in);
+        int size = serializer.deserializeHeader(in).size;
+        byte[] buffer = new byte[size];
+        in.get(buffer);
+
+        // the header claims one byte less than the transaction takes, the last byte is still in the array
+        ByteArrayOutputStream truncated = new ByteArrayOutputStream();
+        serializer.serialize("tx", Arrays.copyOf(buffer, size - 1), truncated);
+        in = ByteBuffer.wrap(truncated.toByteArray());
+        serializer.seekPastMagicBytes(in);
+        BitcoinSerializer.BitcoinPacketHeader header = serializer.deserializeHeader(in);
+        serializer.deserializePayload(header, buffer, Sha256Hash.hashTwice(buffer, 0, size - 1));
+    }
+
     @Test(expected = BufferUnderflowException.class)
     public void testBitcoinPacketHeaderTooShort() {
         new BitcoinSerializer.BitcoinPacketHeader(ByteBuffer.wrap(new byte[] { 0 }));
@@ -0,0 +1,106 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.net;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testBuffersAreCarvedFromSlabsAndReused() {
+        BufferPool pool = new BufferPool(1024, 4, 8, false);
+        PooledBuffer first = pool.acquire(1024);
+        assertEquals(1, pool.getSlabsAllocated());
+        assertEquals(3, pool.getPooledCount());
+        assertEquals(1024, first.buffer().capacity());
+        assertEquals(first.buffer().capacity(), first.buffer().limit());
+
+        first.buffer().put((byte) 1);
+        first.release();
+        assertEquals(4, pool.getPooledCount());
+
+        //every chunk of the slab is handed out before another slab is needed
+        for (int i = 0; i < 4; i++) {
+            ByteBuffer buffer = pool.acquire(1024).buffer();
+            assertEquals(0, buffer.position());
+            assertEquals(1024, buffer.limit());
+        }
+        assertEquals(1, pool.getSlabsAllocated());
+        pool.acquire(1024);
+        assertEquals(2, pool.getSlabsAllocated());
+    }
+
+    @Test
+    public void testRetainedBufferIsOnlyRecycledByLastRelease() {
+        BufferPool pool = new BufferPool(64, 1, 8, true);
+        PooledBuffer buffer = pool.acquire(64);
+        assertTrue(buffer.retain());
+        buffer.release();
+        assertEquals(0, pool.getPooledCount());
+        buffer.release();
+        assertEquals(1, pool.getPooledCount());
+        assertFalse(buffer.retain());
+    }
+
+    @Test
+    public void testOtherSizesAndOverflowAreNotPooled() {
+        BufferPool pool = new BufferPool(64, 1, 1, false);
+        PooledBuffer odd = pool.acquire(100);
+        assertEquals(100, odd.buffer().capacity());
+        odd.release();
+        assertEquals(0, pool.getPooledCount());
+
+        PooledBuffer a = pool.acquire(64);
+        PooledBuffer b = pool.acquire(64);
+        a.release();
+        b.release();
+        assertEquals(1, pool.getPooledCount());
+    }
+
+    @Test
+    public void testLargerBuffersArePooledBySizeClass() {
+        BufferPool pool = new BufferPool(64, 1, 8, false);
+        PooledBuffer large = pool.acquireAtLeast(200);
+        assertEquals(256, large.buffer().capacity());
+        assertEquals(200, large.buffer().limit());
+        large.release();
+        assertEquals(256, pool.getPooledLargeBytes());
+        assertEquals(0, pool.getPooledCount());
+
+        PooledBuffer again = pool.acquireAtLeast(129);
+        assertSame(large.buffer(), again.buffer());
+        assertEquals(129, again.buffer().limit());
+        assertEquals(0, pool.getPooledLargeBytes());
+        assertEquals(1, pool.getReusedCount());
+
+        //a different size class isn't served from that one
+        PooledBuffer other = pool.acquireAtLeast(100);
+        assertEquals(128, other.buffer().capacity());
+        assertNotSame(large.buffer(), other.buffer());
+    }
+
+    @Test
+    public void testLargerBuffersAreBoundedByMaxPooledChunks() {
+        //at most 4 * 64 bytes of larger buffers are kept
+        BufferPool pool = new BufferPool(64, 1, 4, false);
+        PooledBuffer a = pool.acquireAtLeast(256);
+        PooledBuffer b = pool.acquireAtLeast(128);
+        a.release();
+        b.release();
+        assertEquals(256, pool.getPooledLargeBytes());
+        assertSame(a.buffer(), pool.acquireAtLeast(256).buffer());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDoubleReleaseFails() {
+        PooledBuffer buffer = new BufferPool(64, 1, 1, false).acquire(64);
+        buffer.release();
+        buffer.release();
+    }
+}
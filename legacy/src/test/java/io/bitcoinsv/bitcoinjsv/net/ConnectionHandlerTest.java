@@ -0,0 +1,294 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives a {@link ConnectionHandler} from the test thread in place of a selector thread while other threads write to
+ * it, the far end of the socket being read by a plain blocking channel.
+ */
+public class ConnectionHandlerTest {
+    private static final int WRITERS = 4;
+
+    private ServerSocketChannel server;
+    private SocketChannel remote;
+    private Selector selector;
+    private HookedKey key;
+    private ConnectionHandler handler;
+    private final AtomicInteger closedCount = new AtomicInteger();
+
+    private class Connection implements StreamConnection {
+        @Override
+        public void connectionClosed() {
+            closedCount.incrementAndGet();
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) {
+            buff.position(buff.limit());
+            return buff.limit();
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return 4096;
+        }
+    }
+
+    /**
+     * The channel's real key, with a hook that runs just before OP_WRITE is cleared.
+     */
+    private static class HookedKey extends SelectionKey {
+        final SelectionKey key;
+        @Nullable Runnable beforeWriteCleared;
+
+        HookedKey(SelectionKey key) {
+            this.key = key;
+        }
+
+        @Override
+        public SelectableChannel channel() {
+            return key.channel();
+        }
+
+        @Override
+        public Selector selector() {
+            return key.selector();
+        }
+
+        @Override
+        public boolean isValid() {
+            return key.isValid();
+        }
+
+        @Override
+        public void cancel() {
+            key.cancel();
+        }
+
+        @Override
+        public int interestOps() {
+            return key.interestOps();
+        }
+
+        @Override
+        public SelectionKey interestOps(int ops) {
+            Runnable hook = beforeWriteCleared;
+            if (hook != null && (ops & OP_WRITE) == 0 && (key.interestOps() & OP_WRITE) != 0) {
+                beforeWriteCleared = null;
+                hook.run();
+            }
+            key.interestOps(ops);
+            return this;
+        }
+
+        @Override
+        public int readyOps() {
+            return key.readyOps();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        SocketChannel client = SocketChannel.open(server.socket().getLocalSocketAddress());
+        remote = server.accept();
+        client.configureBlocking(false);
+        selector = Selector.open();
+        key = new HookedKey(client.register(selector, SelectionKey.OP_READ));
+        handler = new ConnectionHandler(new Connection(), key,
+                Collections.synchronizedSet(new HashSet<ConnectionHandler>()));
+        key.attach(handler);
+    }
+
+    //selects as the selector thread would and hands our key to the handler if the channel is ready
+    private void selectAndHandle(long timeoutMillis) throws IOException {
+        selector.select(timeoutMillis);
+        if (selector.selectedKeys().remove(key.key))
+            ConnectionHandler.handleKey(key);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        handler.closeConnection();
+        selector.close();
+        remote.close();
+        server.close();
+    }
+
+    private interface Writer {
+        void write(int writer) throws Exception;
+    }
+
+    private static List<Thread> startWriters(final CountDownLatch go, final Writer writer) {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < WRITERS; i++) {
+            final int id = i;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                        writer.write(id);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }, "writer " + i);
+            thread.start();
+            threads.add(thread);
+        }
+        return threads;
+    }
+
+    @Test
+    public void testConcurrentWritesAreAllSent() throws Exception {
+        final int messages = 5000;
+        final long total = (long) WRITERS * messages * 8;
+        //each message is the writer and its sequence number, so lost or reordered bytes show up
+        final CountDownLatch go = new CountDownLatch(1);
+        List<Thread> writers = startWriters(go, new Writer() {
+            @Override
+            public void write(int writer) throws Exception {
+                for (int seq = 0; seq < messages; seq++)
+                    handler.writeBytes(ByteBuffer.allocate(8).putInt(writer).putInt(seq).array());
+            }
+        });
+        final AtomicLong received = new AtomicLong();
+        final int[] nextSeq = new int[WRITERS];
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buff = ByteBuffer.allocate(8 * 1024);
+                try {
+                    while (received.get() < total && remote.read(buff) > 0) {
+                        buff.flip();
+                        while (buff.remaining() >= 8) {
+                            int writer = buff.getInt();
+                            if (buff.getInt() != nextSeq[writer]++)
+                                outOfOrder.incrementAndGet();
+                            received.addAndGet(8);
+                        }
+                        buff.compact();
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, "reader");
+        reader.start();
+        go.countDown();
+
+        //the writers only set OP_WRITE, bytes go out when the key is selected, so a write whose OP_WRITE was cleared by
+        //a concurrent drain would sit in the queue and never arrive
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (received.get() < total && System.currentTimeMillis() < deadline)
+            selectAndHandle(100);
+        for (Thread writer : writers)
+            writer.join();
+        reader.join(1000);
+        assertEquals(total, received.get());
+        assertEquals(0, outOfOrder.get());
+        assertEquals(0, closedCount.get());
+    }
+
+    @Test
+    public void testWriteQueuedWhileClearingOpWriteIsSent() throws Exception {
+        final byte[] first = {1, 2, 3};
+        final byte[] second = {4, 5, 6};
+        handler.writeBytes(first);
+        assertTrue((key.interestOps() & SelectionKey.OP_WRITE) != 0);
+        //another thread queues its message after the selector thread found the queue empty but before it dropped
+        //OP_WRITE, the selector thread must see it and put OP_WRITE back
+        key.beforeWriteCleared = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handler.writeBytes(second);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        selectAndHandle(1000);
+        assertNull(key.beforeWriteCleared);
+        assertTrue((key.interestOps() & SelectionKey.OP_WRITE) != 0);
+
+        selectAndHandle(1000);
+        assertEquals(0, key.interestOps() & SelectionKey.OP_WRITE);
+        ByteBuffer buff = ByteBuffer.allocate(6);
+        while (buff.hasRemaining() && remote.read(buff) > 0);
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6}, buff.array());
+    }
+
+    @Test
+    public void testOutboundLimitHoldsAcrossWriters() throws Exception {
+        //nothing drains the queue, so exactly limit / message size writes fit however the writers interleave
+        final int messageSize = 1000;
+        final int fit = 100;
+        handler.outboundBufferByteCount = fit * messageSize;
+        final AtomicInteger accepted = new AtomicInteger();
+        final AtomicInteger rejected = new AtomicInteger();
+        final CountDownLatch go = new CountDownLatch(1);
+        List<Thread> writers = startWriters(go, new Writer() {
+            @Override
+            public void write(int writer) {
+                byte[] message = new byte[messageSize];
+                while (true) {
+                    try {
+                        handler.writeBytes(message);
+                        accepted.incrementAndGet();
+                    } catch (IOException e) {
+                        rejected.incrementAndGet();
+                        return;
+                    }
+                }
+            }
+        });
+        go.countDown();
+        for (Thread writer : writers)
+            writer.join();
+
+        assertEquals(WRITERS, rejected.get());
+        assertTrue(accepted.get() <= fit);
+        //a writer that got its bytes counted just before another overflowed finds the connection already closed
+        assertTrue(accepted.get() > fit - WRITERS);
+        //overflowing closes the connection, once
+        assertEquals(1, closedCount.get());
+    }
+}
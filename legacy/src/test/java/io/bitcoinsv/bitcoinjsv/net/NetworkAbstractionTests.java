@@ -45,17 +45,21 @@ public class NetworkAbstractionTests {
     private static final int CLIENT_MAJOR_VERSION = 1;
     private AtomicBoolean fail;
     private final int clientType;
+    // Selector threads of the NioClientManager, the server gets the listening thread plus one less than this
+    private final int selectorThreads;
     private final ClientConnectionManager channels;
 
     @Parameterized.Parameters
     public static Collection<Integer[]> parameters() {
-        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3});
+        return Arrays.asList(new Integer[]{0, 1}, new Integer[]{1, 1}, new Integer[]{2, 1}, new Integer[]{3, 1},
+                new Integer[]{0, 3}, new Integer[]{1, 3}, new Integer[]{2, 3}, new Integer[]{3, 3});
     }
 
-    public NetworkAbstractionTests(Integer clientType) throws Exception {
+    public NetworkAbstractionTests(Integer clientType, Integer selectorThreads) throws Exception {
         this.clientType = clientType;
+        this.selectorThreads = selectorThreads;
         if (clientType == 0) {
-            channels = new NioClientManager();
+            channels = new NioClientManager(selectorThreads);
             channels.startAsync();
         } else if (clientType == 1) {
             channels = new BlockingClientManager();
@@ -123,7 +127,7 @@ public class NetworkAbstractionTests {
                     }
                 }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
             }
-        }, new InetSocketAddress("localhost", 4243));
+        }, new InetSocketAddress("localhost", 4243), selectorThreads - 1);
         server.startAsync();
         server.awaitRunning();
 
@@ -216,7 +220,7 @@ public class NetworkAbstractionTests {
                     }
                 }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
             }
-        }, new InetSocketAddress("localhost", 4243));
+        }, new InetSocketAddress("localhost", 4243), selectorThreads - 1);
         server.startAsync();
         server.awaitRunning();
 
@@ -300,7 +304,7 @@ public class NetworkAbstractionTests {
                     }
                 }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 10);
             }
-        }, new InetSocketAddress("localhost", 4243));
+        }, new InetSocketAddress("localhost", 4243), selectorThreads - 1);
         server.startAsync();
         server.awaitRunning();
 
@@ -392,7 +396,7 @@ public class NetworkAbstractionTests {
                     }
                 }, Protos.TwoWayChannelMessage.getDefaultInstance(), 0x10000, 0);
             }
-        }, new InetSocketAddress("localhost", 4243));
+        }, new InetSocketAddress("localhost", 4243), selectorThreads - 1);
         server.startAsync();
         server.awaitRunning();
 
@@ -556,7 +560,7 @@ public class NetworkAbstractionTests {
                     }
                 }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
             }
-        }, new InetSocketAddress("localhost", 4243));
+        }, new InetSocketAddress("localhost", 4243), selectorThreads - 1);
         server.startAsync();
         server.awaitRunning();
 
@@ -0,0 +1,136 @@
+/*
+ * © 2020 Bitcoin Association
+ * Open BSV Licence, see the accompanying file LICENSE
+ */
+package io.bitcoinsv.bitcoinjsv.net;
+
+import com.google.common.util.concurrent.Service;
+import io.bitcoinsv.bitcoinjsv.core.Coin;
+import io.bitcoinsv.bitcoinjsv.core.Context;
+import io.bitcoinsv.bitcoinjsv.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SelectorLoopTest {
+
+    private static class CountingTask implements SelectorLoop.Task {
+        final AtomicInteger ran = new AtomicInteger();
+        final AtomicInteger rejected = new AtomicInteger();
+
+        @Override
+        public void run() {
+            ran.incrementAndGet();
+        }
+
+        @Override
+        public void reject() {
+            rejected.incrementAndGet();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(UnitTestParams.get(), 100, Coin.ZERO, false));
+    }
+
+    @Test
+    public void testDeadLoopRejectsItsTasks() throws Exception {
+        final CountDownLatch failed = new CountDownLatch(1);
+        SelectorLoop loop = new SelectorLoop("test selector", new SelectorLoop.KeyHandler() {
+            @Override
+            public void handleKey(SelectionKey key) {
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                failed.countDown();
+            }
+        });
+        final RuntimeException boom = new RuntimeException("boom");
+        loop.execute(new CountingTask() {
+            @Override
+            public void run() {
+                throw boom;
+            }
+        });
+        //queued behind the task that kills the loop
+        CountingTask queued = new CountingTask();
+        loop.execute(queued);
+        loop.start();
+        assertTrue(failed.await(10, TimeUnit.SECONDS));
+        loop.awaitTermination();
+
+        assertSame(boom, loop.getFailure());
+        assertEquals(0, queued.ran.get());
+        assertEquals(1, queued.rejected.get());
+        //and anything handed to it afterwards
+        CountingTask late = new CountingTask();
+        loop.execute(late);
+        assertEquals(0, late.ran.get());
+        assertEquals(1, late.rejected.get());
+    }
+
+    @Test
+    public void testShutdownLoopRejectsLaterTasks() throws Exception {
+        SelectorLoop loop = new SelectorLoop("test selector", new SelectorLoop.KeyHandler() {
+            @Override
+            public void handleKey(SelectionKey key) {
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                fail("a shutdown isn't a failure");
+            }
+        });
+        loop.start();
+        CountingTask task = new CountingTask();
+        loop.execute(task);
+        loop.shutdown();
+        loop.awaitTermination();
+        assertNull(loop.getFailure());
+        assertEquals(1, task.ran.get() + task.rejected.get());
+
+        CountingTask late = new CountingTask();
+        loop.execute(late);
+        assertEquals(1, late.rejected.get());
+    }
+
+    @Test
+    public void testServerFailsWhenSelectorThreadDies() throws Exception {
+        final RuntimeException boom = new RuntimeException("boom");
+        NioServer server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public StreamConnection getNewConnection(InetAddress inetAddress, int port) {
+                throw boom;
+            }
+        }, new InetSocketAddress("localhost", 4243), 2);
+        server.startAsync().awaitRunning();
+
+        SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", 4243));
+        try {
+            server.awaitTerminated(10, TimeUnit.SECONDS);
+            fail("server should have failed");
+        } catch (IllegalStateException e) {
+            assertEquals(Service.State.FAILED, server.state());
+            assertSame(boom, server.failureCause().getCause());
+        } catch (TimeoutException e) {
+            fail("server kept running without its selector thread");
+        }
+        //the accepted connection is closed rather than left with nothing servicing it
+        client.socket().setSoTimeout(10000);
+        assertEquals(-1, client.socket().getInputStream().read());
+        client.close();
+    }
+}
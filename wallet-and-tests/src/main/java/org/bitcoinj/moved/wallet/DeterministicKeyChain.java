@@ -46,6 +46,7 @@ import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
@@ -141,6 +142,10 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         return lookaheadSize / 3;
     }
 
+    // Pool lookahead keys are derived on when there are enough of them to split, null derives them on the calling
+    // thread. Derivation runs under the chain lock, which stays held until the pool gets round to our tasks.
+    @Nullable private ForkJoinPool lookaheadPool;
+
     // The parent keys for external keys (handed out to other people) and internal keys (used for change addresses).
     private DeterministicKey externalParentKey, internalParentKey;
     // How many keys on each path have actually been used. This may be fewer than the number that have been deserialized
@@ -396,6 +401,7 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
 
         this.lookaheadSize = chain.lookaheadSize;
         this.lookaheadThreshold = chain.lookaheadThreshold;
+        this.lookaheadPool = chain.lookaheadPool;
 
         this.seed = chain.seed.encrypt(crypter, aesKey);
         basicKeyChain = new BasicKeyChain(crypter);
@@ -984,6 +990,7 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         if (!chain.getWatchingKey().getPubKeyPoint().equals(getWatchingKey().getPubKeyPoint()))
             throw new KeyCrypterException("Provided AES key is wrong");
         chain.lookaheadSize = lookaheadSize;
+        chain.lookaheadPool = lookaheadPool;
         // Now copy the (pubkey only) leaf keys across to avoid rederiving them. The private key bytes are missing
         // anyway so there's nothing to decrypt.
         for (ECKey eckey : basicKeyChain.getKeys()) {
@@ -1127,6 +1134,34 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         }
     }
 
+    /**
+     * Returns the pool lookahead keys are derived on, see {@link #setLookaheadPool(ForkJoinPool)}. The default is
+     * null, deriving them on the thread that triggers the lookahead.
+     */
+    @Nullable
+    public ForkJoinPool getLookaheadPool() {
+        lock.lock();
+        try {
+            return lookaheadPool;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets a pool to derive large batches of lookahead keys on, or null to derive them on the calling thread. The
+     * chain's lock is held while the pool works, so give it a pool of its own rather than one that other work may be
+     * queued on, such as the common pool.
+     */
+    public void setLookaheadPool(@Nullable ForkJoinPool pool) {
+        lock.lock();
+        try {
+            this.lookaheadPool = pool;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Pre-generate enough keys to reach the lookahead size. You can call this if you need to explicitly invoke
      * the lookahead procedure, but it's normally unnecessary as it will be done automatically when needed.
@@ -1172,13 +1207,14 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
 
         List<DeterministicKey> result  = new ArrayList<DeterministicKey>(needed);
         final Stopwatch watch = Stopwatch.createStarted();
-        int nextChild = numChildren;
-        for (int i = 0; i < needed; i++) {
-            DeterministicKey key = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild);
+        // One batch shares the parent's setup and field inversion across the window, large windows go in parallel
+        // if we've been given a pool.
+        List<DeterministicKey> derived = HDKeyDerivation.deriveChildKeys(parent, new ChildNumber(numChildren, false),
+                needed, lookaheadPool);
+        for (DeterministicKey key : derived) {
             key = key.dropPrivateBytes();
             hierarchy.putKey(key);
             result.add(key);
-            nextChild = key.getChildNumber().num() + 1;
         }
         watch.stop();
         log.info("Took {}", watch);
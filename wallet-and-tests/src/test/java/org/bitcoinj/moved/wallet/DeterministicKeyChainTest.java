@@ -42,7 +42,9 @@ import org.spongycastle.crypto.params.KeyParameter;
 
 import java.io.IOException;
 import java.security.SecureRandom;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.junit.Assert.*;
@@ -93,6 +95,24 @@ public class DeterministicKeyChainTest {
         assertEquals(2, chain.getKeys(false).size());
     }
 
+    @Test
+    public void lookaheadOnPool() throws Exception {
+        DeterministicKeyChain pooled = new DeterministicKeyChain(ENTROPY, "", 1389353062L);
+        assertNull(pooled.getLookaheadPool());
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            pooled.setLookaheadPool(pool);
+            // Enough keys per path for the derivation to be split across the pool.
+            pooled.setLookaheadSize(600);
+            chain.setLookaheadSize(600);
+            pooled.maybeLookAhead();
+            chain.maybeLookAhead();
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(new HashSet<>(chain.getLeafKeys()), new HashSet<>(pooled.getLeafKeys()));
+    }
+
     @Test
     public void deriveAccountOne() throws Exception {
         long secs = 1389353062L;